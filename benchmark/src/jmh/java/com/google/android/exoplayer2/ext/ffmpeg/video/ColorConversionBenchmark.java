@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.ffmpeg.video;
+
+import com.google.android.exoplayer2.C;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures computing the YUV to RGB matrix and offsets the renderer uploads when the color
+ * description of the frames changes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ColorConversionBenchmark {
+
+  @Param({"" + C.COLOR_SPACE_BT601, "" + C.COLOR_SPACE_BT709, "" + C.COLOR_SPACE_BT2020})
+  public int colorSpace;
+
+  private final float[] matrix = new float[9];
+  private final float[] offset = new float[3];
+
+  @Benchmark
+  public float[] getMatrixAndOffset() {
+    int resolvedColorSpace = ColorConversion.resolveColorSpace(colorSpace, 1080);
+    int colorRange = ColorConversion.resolveColorRange(C.COLOR_RANGE_LIMITED);
+    ColorConversion.getMatrix(resolvedColorSpace, colorRange, 10, matrix);
+    ColorConversion.getOffset(colorRange, 10, offset);
+    return matrix;
+  }
+
+}
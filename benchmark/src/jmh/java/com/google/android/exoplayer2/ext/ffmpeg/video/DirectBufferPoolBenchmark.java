@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.ffmpeg.video;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures acquiring and releasing a buffer from a warm {@link DirectBufferPool}, for a packet
+ * and for a 1080p YUV 4:2:0 frame. The GC profiler should report no allocation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DirectBufferPoolBenchmark {
+
+  @Param({"4096", "3110400"})
+  public int size;
+
+  private DirectBufferPool bufferPool;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    bufferPool = new DirectBufferPool();
+    bufferPool.release(bufferPool.acquire(size));
+  }
+
+  @Benchmark
+  public ByteBuffer acquireAndRelease() {
+    ByteBuffer buffer = bufferPool.acquire(size);
+    bufferPool.release(buffer);
+    return buffer;
+  }
+
+}
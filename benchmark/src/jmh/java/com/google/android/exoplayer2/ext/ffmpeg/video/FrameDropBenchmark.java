@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.ffmpeg.video;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the per frame drop decision of {@link SoftVideoRenderer}: whether to drop up to the next
+ * keyframe, whether to drop the frame, and the update of the {@link DecodeDegradationController}
+ * with the frame's lateness. Frames are taken from a synthetic trace of how early each frame is,
+ * in which the decoder keeps up, falls behind, or falls behind and then recovers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FrameDropBenchmark {
+
+  private static final int TRACE_LENGTH = 1024;
+  private static final int TRACE_MASK = TRACE_LENGTH - 1;
+  private static final long FRAME_DURATION_US = 33333;
+
+  @Param({"onTime", "fallingBehind", "recovering"})
+  public String trace;
+
+  private long[] earlyUs;
+  private boolean[] hasNextOutputBuffer;
+  private DecodeDegradationController degradationController;
+  private int consecutiveDroppedFrameCount;
+  private int frameIndex;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    Random random = new Random(0);
+    earlyUs = new long[TRACE_LENGTH];
+    hasNextOutputBuffer = new boolean[TRACE_LENGTH];
+    for (int i = 0; i < TRACE_LENGTH; i++) {
+      long driftUs;
+      switch (trace) {
+        case "onTime":
+          driftUs = 0;
+          break;
+        case "fallingBehind":
+          // Each frame takes 2 ms longer to decode than it lasts.
+          driftUs = -2000L * (i % 300);
+          break;
+        case "recovering":
+          // Behind by up to 100 ms, then catching up again.
+          driftUs = -100000 + Math.abs(i % 200 - 100) * 1000L;
+          break;
+        default:
+          throw new IllegalArgumentException(trace);
+      }
+      // Frames are released up to a frame early, with some scheduling jitter.
+      earlyUs[i] = FRAME_DURATION_US / 2 + driftUs + (long) (random.nextGaussian() * 4000);
+      // The decoder only has the next frame ready when it keeps up.
+      hasNextOutputBuffer[i] = driftUs > -FRAME_DURATION_US || random.nextBoolean();
+    }
+    degradationController = new DecodeDegradationController();
+  }
+
+  /**
+   * Returns 2 if the frames up to the next keyframe are dropped, 1 if the frame is dropped, or 0 if
+   * it is rendered.
+   */
+  @Benchmark
+  public int decide() {
+    int index = frameIndex++ & TRACE_MASK;
+    long earlyUs = this.earlyUs[index];
+    int decision;
+    if (FrameDropPolicy.isBufferVeryLate(earlyUs)) {
+      decision = 2;
+      consecutiveDroppedFrameCount++;
+    } else if (FrameDropPolicy.shouldDropOutputBuffer(earlyUs, hasNextOutputBuffer[index],
+        false)) {
+      decision = 1;
+      consecutiveDroppedFrameCount++;
+    } else {
+      decision = 0;
+      consecutiveDroppedFrameCount = 0;
+    }
+    degradationController.update(earlyUs, consecutiveDroppedFrameCount);
+    return decision;
+  }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.ffmpeg.video;
+
+import com.google.android.exoplayer2.ext.ffmpeg.VideoSoftDecoderException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures how fast the playback thread can queue packets to {@link BaseDecoder} and dequeue and
+ * release the frames its decode thread produces, with a {@link FakeVideoDecoder} in place of the
+ * native codec. The sample time mode reports the p99 time to wait for a frame.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FrameHandoffBenchmark {
+
+  // As many buffers as SoftVideoRenderer asks the decoder for.
+  private static final int INPUT_BUFFER_COUNT = 8;
+  private static final int OUTPUT_BUFFER_COUNT = 16;
+
+  @Param({"1280x720", "1920x1080", "3840x2160"})
+  public String resolution;
+
+  @Param({"1", "2"})
+  public int bitDepth;
+
+  private FakeVideoDecoder decoder;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    int separatorIndex = resolution.indexOf('x');
+    int width = Integer.parseInt(resolution.substring(0, separatorIndex));
+    int height = Integer.parseInt(resolution.substring(separatorIndex + 1));
+    decoder = new FakeVideoDecoder(width, height, bitDepth, 0, INPUT_BUFFER_COUNT,
+        OUTPUT_BUFFER_COUNT);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    decoder.release();
+  }
+
+  @Benchmark
+  public long dequeueAndRelease() throws VideoSoftDecoderException {
+    FrameBuffer frame;
+    do {
+      // Keep the decoder fed and poll it, as the playback thread does on every render loop
+      // iteration.
+      while (decoder.queuePacket()) {}
+    } while ((frame = decoder.dequeueOutputBuffer()) == null);
+    long timeUs = frame.timeUs;
+    frame.release();
+    return timeUs;
+  }
+
+}
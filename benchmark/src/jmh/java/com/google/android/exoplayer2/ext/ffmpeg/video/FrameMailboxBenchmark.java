@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.ffmpeg.video;
+
+import com.google.android.exoplayer2.ext.ffmpeg.VideoSoftDecoderException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures the {@link FrameMailbox} between the renderer's playback thread, which posts decoded
+ * frames, and the GL thread, which takes the latest one. Frames overwritten in the mailbox go back
+ * to the decoder from the posting thread, the others from the taking thread. Frames come from
+ * {@link BaseDecoder} with a {@link FakeVideoDecoder} in place of the native codec.
+ */
+@State(Scope.Group)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FrameMailboxBenchmark {
+
+  private static final int INPUT_BUFFER_COUNT = 8;
+  // The frame being decoded, the one in the mailbox and the one being drawn.
+  private static final int OUTPUT_BUFFER_COUNT = 3;
+
+  private FakeVideoDecoder decoder;
+  private FrameMailbox mailbox;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    decoder = new FakeVideoDecoder(1920, 1080, 1, 0, INPUT_BUFFER_COUNT, OUTPUT_BUFFER_COUNT);
+    mailbox = new FrameMailbox();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    FrameBuffer frame = mailbox.take();
+    if (frame != null) {
+      frame.release();
+    }
+    decoder.release();
+  }
+
+  @Benchmark
+  @Group("mailbox")
+  @GroupThreads(1)
+  public boolean post() throws VideoSoftDecoderException {
+    while (decoder.queuePacket()) {}
+    FrameBuffer frame = decoder.dequeueOutputBuffer();
+    if (frame == null) {
+      return false;
+    }
+    mailbox.post(frame);
+    return true;
+  }
+
+  /**
+   * Returns how long the taken frame waited in the mailbox, in nanoseconds, or -1 if there was
+   * none.
+   */
+  @Benchmark
+  @Group("mailbox")
+  @GroupThreads(1)
+  public long take() {
+    FrameBuffer frame = mailbox.take();
+    if (frame == null) {
+      return -1;
+    }
+    long ageNs = System.nanoTime() - frame.postTimeNs;
+    frame.release();
+    return ageNs;
+  }
+
+}
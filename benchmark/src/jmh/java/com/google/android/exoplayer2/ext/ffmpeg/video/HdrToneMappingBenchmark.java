@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.ffmpeg.video;
+
+import com.google.android.exoplayer2.C;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures filling the tone mapping lookup table, which the renderer does on the GL thread
+ * whenever the transfer function or peak luminance of the frames changes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HdrToneMappingBenchmark {
+
+  @Param({"" + C.COLOR_TRANSFER_ST2084, "" + C.COLOR_TRANSFER_HLG})
+  public int colorTransfer;
+
+  private final ByteBuffer lut = ByteBuffer.allocateDirect(
+      HdrToneMapping.LUT_SIZE * HdrToneMapping.BYTES_PER_ENTRY);
+
+  @Benchmark
+  public ByteBuffer fillLut() {
+    lut.clear();
+    HdrToneMapping.fillLut(colorTransfer,
+        HdrToneMapping.getPeakLuminance(colorTransfer, null), lut);
+    return lut;
+  }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.ffmpeg.video;
+
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the ring buffers the decoder hands buffers over with, with one consumer and one
+ * producer for {@link SpscRingBuffer}, and three producers for {@link MpscRingBuffer}.
+ * <p>
+ * The monitor groups measure the same handoffs through a {@link LinkedList} guarded by a monitor,
+ * as {@link BaseDecoder} did before the ring buffers, bounded to the same capacity.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RingBufferBenchmark {
+
+  private static final Object ELEMENT = new Object();
+
+  @Param({"4", "16"})
+  public int capacity;
+
+  private SpscRingBuffer<Object> spscRingBuffer;
+  private MpscRingBuffer<Object> mpscRingBuffer;
+  private MonitorQueue monitorQueue;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    spscRingBuffer = new SpscRingBuffer<>(capacity);
+    mpscRingBuffer = new MpscRingBuffer<>(capacity);
+    monitorQueue = new MonitorQueue(capacity);
+  }
+
+  @Benchmark
+  @Group("spsc")
+  @GroupThreads(1)
+  public boolean spscOffer() {
+    return spscRingBuffer.offer(ELEMENT);
+  }
+
+  @Benchmark
+  @Group("spsc")
+  @GroupThreads(1)
+  public Object spscPoll() {
+    return spscRingBuffer.poll();
+  }
+
+  @Benchmark
+  @Group("mpsc")
+  @GroupThreads(3)
+  public boolean mpscOffer() {
+    return mpscRingBuffer.offer(ELEMENT);
+  }
+
+  @Benchmark
+  @Group("mpsc")
+  @GroupThreads(1)
+  public Object mpscPoll() {
+    return mpscRingBuffer.poll();
+  }
+
+  @Benchmark
+  @Group("spscMonitor")
+  @GroupThreads(1)
+  public boolean spscMonitorOffer() {
+    return monitorQueue.offer(ELEMENT);
+  }
+
+  @Benchmark
+  @Group("spscMonitor")
+  @GroupThreads(1)
+  public Object spscMonitorPoll() {
+    return monitorQueue.poll();
+  }
+
+  @Benchmark
+  @Group("mpscMonitor")
+  @GroupThreads(3)
+  public boolean mpscMonitorOffer() {
+    return monitorQueue.offer(ELEMENT);
+  }
+
+  @Benchmark
+  @Group("mpscMonitor")
+  @GroupThreads(1)
+  public Object mpscMonitorPoll() {
+    return monitorQueue.poll();
+  }
+
+  /**
+   * A bounded queue in the style of the {@link LinkedList} queues {@link BaseDecoder} guarded with
+   * its lock, which allocate a node for each queued element.
+   */
+  private static final class MonitorQueue {
+
+    private final int capacity;
+    private final LinkedList<Object> queue;
+    private final Object lock;
+
+    public MonitorQueue(int capacity) {
+      this.capacity = capacity;
+      queue = new LinkedList<>();
+      lock = new Object();
+    }
+
+    public boolean offer(Object element) {
+      synchronized (lock) {
+        if (queue.size() == capacity) {
+          return false;
+        }
+        queue.addLast(element);
+        return true;
+      }
+    }
+
+    public Object poll() {
+      synchronized (lock) {
+        return queue.pollFirst();
+      }
+    }
+
+  }
+
+}
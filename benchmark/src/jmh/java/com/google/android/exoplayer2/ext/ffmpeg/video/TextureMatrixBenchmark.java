@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.ffmpeg.video;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the texture coordinate transform {@link FrameRenderer} updates before drawing each
+ * frame: recomputing it, as when the surface is resized, and checking that a 1080p frame on a
+ * 1080p surface needs no update, as for every other frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TextureMatrixBenchmark {
+
+  private static final int WIDTH = 1920;
+  private static final int HEIGHT = 1080;
+  // The stride ffmpeg pads 1080p rows to.
+  private static final int STRIDE = 1984;
+
+  @Param({"0", "90"})
+  public int rotationDegree;
+
+  @Param({"FIT_XY", "FIT_CENTER"})
+  public FrameScaleType scaleType;
+
+  private final TextureMatrix textureMatrix = new TextureMatrix();
+  private int surfaceHeight = HEIGHT;
+
+  @Benchmark
+  public float[] recompute() {
+    // Alternate between two surface sizes so that every call recomputes the matrix.
+    surfaceHeight = surfaceHeight == HEIGHT ? HEIGHT - 1 : HEIGHT;
+    textureMatrix.update(WIDTH, HEIGHT, STRIDE, 1, rotationDegree, WIDTH, surfaceHeight,
+        scaleType);
+    return textureMatrix.getMatrix();
+  }
+
+  @Benchmark
+  public boolean unchanged() {
+    return textureMatrix.update(WIDTH, HEIGHT, STRIDE, 1, rotationDegree, WIDTH, HEIGHT,
+        scaleType);
+  }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.ffmpeg.video;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.ext.Constant;
+import com.google.android.exoplayer2.ext.ffmpeg.VideoSoftDecoderException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stands in for the native codec of {@link VideoDecoder} on a plain JVM, producing synthetic YUV
+ * 4:2:0 frames.
+ * <p>
+ * Everything but the codec is the core module's: packets and frames go through the ring buffers
+ * and the decode thread of {@link BaseDecoder}, and frames are laid out by
+ * {@link FrameBuffer#initForYuvFrame}. As with ffmpeg, each packet decodes to one frame that is
+ * returned by a later {@link #getFrame} call, and {@link Constant#BUFFER_FLAG_DECODE_AGAIN} is set
+ * when a packet can't be accepted or no frame is ready.
+ */
+/* package */ final class FakeVideoDecoder extends BaseDecoder {
+
+  private final int width;
+  private final int height;
+  private final int bitDepth;
+  private final long frameIntervalNs;
+  private final long frameDurationUs;
+
+  // Accessed only by the thread that queues packets.
+  private long frameIndex;
+
+  // Accessed only by the decode thread. Packets sent but not yet returned as frames.
+  private final long[] sentTimesUs;
+  private final int[] sentFlags;
+  private int sentHead;
+  private int sentCount;
+  private long nextFrameTimeNs;
+
+  /**
+   * @param width The width of the frames.
+   * @param height The height of the frames.
+   * @param bitDepth The number of bytes per sample, 1 for 8 bit or 2 for 10 bit frames.
+   * @param frameRate The number of frames to produce per second, or 0 to produce a frame whenever
+   *     a packet and an output buffer are available.
+   * @param inputBufferCount The number of input buffers.
+   * @param outputBufferCount The number of output buffers.
+   */
+  public FakeVideoDecoder(int width, int height, int bitDepth, int frameRate,
+      int inputBufferCount, int outputBufferCount) {
+    super(new PacketBuffer[inputBufferCount], new FrameBuffer[outputBufferCount],
+        new DirectBufferPool());
+    this.width = width;
+    this.height = height;
+    this.bitDepth = bitDepth;
+    frameIntervalNs = frameRate == 0 ? 0 : 1000000000L / frameRate;
+    // Timestamps as if decoding 30 fps content when producing as fast as possible.
+    frameDurationUs = 1000000L / (frameRate == 0 ? 30 : frameRate);
+    // The codec holds a few packets before it asks for the frames, as ffmpeg's frame threads do.
+    sentTimesUs = new long[inputBufferCount];
+    sentFlags = new int[inputBufferCount];
+  }
+
+  /**
+   * Queues the packet of the next frame if an input buffer is free, as the renderer does on each
+   * iteration of its render loop. Must only be called from one thread.
+   *
+   * @return Whether a packet was queued.
+   * @throws VideoSoftDecoderException If the decode thread failed.
+   */
+  public boolean queuePacket() throws VideoSoftDecoderException {
+    PacketBuffer inputBuffer = dequeueInputBuffer();
+    if (inputBuffer == null) {
+      return false;
+    }
+    inputBuffer.timeUs = frameIndex * frameDurationUs;
+    queueInputBuffer(inputBuffer);
+    frameIndex++;
+    return true;
+  }
+
+  @Override
+  public String getName() {
+    return "fake";
+  }
+
+  @Override
+  protected PacketBuffer createInputBuffer() {
+    return new PacketBuffer(bufferPool);
+  }
+
+  @Override
+  protected FrameBuffer createOutputBuffer() {
+    return new FrameBuffer(this, bufferPool);
+  }
+
+  @Override
+  protected void resetDecoder() {
+    sentHead = 0;
+    sentCount = 0;
+    nextFrameTimeNs = 0;
+  }
+
+  @Override
+  protected VideoSoftDecoderException sendPacket(PacketBuffer inputBuffer) {
+    if (sentCount == sentTimesUs.length) {
+      inputBuffer.addFlag(Constant.BUFFER_FLAG_DECODE_AGAIN);
+      return null;
+    }
+    int index = (sentHead + sentCount) % sentTimesUs.length;
+    sentTimesUs[index] = inputBuffer.timeUs;
+    sentFlags[index] = inputBuffer.isEndOfStream() ? C.BUFFER_FLAG_END_OF_STREAM
+        : inputBuffer.isDecodeOnly() ? C.BUFFER_FLAG_DECODE_ONLY : 0;
+    sentCount++;
+    return null;
+  }
+
+  @Override
+  protected VideoSoftDecoderException getFrame(FrameBuffer outputBuffer) {
+    if (sentCount == 0) {
+      outputBuffer.addFlag(Constant.BUFFER_FLAG_DECODE_AGAIN);
+      return null;
+    }
+    if (frameIntervalNs != 0) {
+      waitForFrameTime();
+    }
+    long timeUs = sentTimesUs[sentHead];
+    int flags = sentFlags[sentHead];
+    sentHead = (sentHead + 1) % sentTimesUs.length;
+    sentCount--;
+    if (flags == C.BUFFER_FLAG_END_OF_STREAM) {
+      outputBuffer.addFlag(C.BUFFER_FLAG_END_OF_STREAM);
+      return null;
+    }
+
+    int lumaStride = width * bitDepth;
+    int chromaStride = (width + 1) / 2 * bitDepth;
+    if (!outputBuffer.initForYuvFrame(timeUs, 0, width, height, lumaStride, chromaStride,
+        bitDepth, FrameBuffer.PIXEL_LAYOUT_I420, C.COLOR_SPACE_BT709, C.COLOR_RANGE_LIMITED,
+        C.COLOR_TRANSFER_SDR)) {
+      return new VideoSoftDecoderException("Frame too large: " + width + "x" + height);
+    }
+    outputBuffer.addFlag(flags);
+    fillRow(outputBuffer.yuvPlanes[0], width, timeUs);
+    fillRow(outputBuffer.yuvPlanes[1], (width + 1) / 2, timeUs);
+    fillRow(outputBuffer.yuvPlanes[2], (width + 1) / 2, timeUs);
+    return null;
+  }
+
+  @Override
+  protected void releaseNativeFrame(long nativeFrame) {
+    // Frames are always copied into the output buffers.
+  }
+
+  private void waitForFrameTime() {
+    long nowNs = System.nanoTime();
+    if (nextFrameTimeNs == 0) {
+      nextFrameTimeNs = nowNs;
+    }
+    long waitNs;
+    while ((waitNs = nextFrameTimeNs - nowNs) > 0) {
+      LockSupport.parkNanos(waitNs);
+      nowNs = System.nanoTime();
+    }
+    nextFrameTimeNs += frameIntervalNs;
+  }
+
+  // Only the first row of a plane is written, so that the benchmarks measure the handoff rather
+  // than memory bandwidth.
+  private void fillRow(ByteBuffer plane, int sampleCount, long timeUs) {
+    int value = (int) timeUs;
+    if (bitDepth == 1) {
+      for (int i = 0; i < sampleCount; i++) {
+        plane.put(i, (byte) (value + i));
+      }
+    } else {
+      for (int i = 0; i < sampleCount; i++) {
+        plane.putShort(i * 2, (short) ((value + i) & 0x3FF));
+      }
+    }
+  }
+
+}
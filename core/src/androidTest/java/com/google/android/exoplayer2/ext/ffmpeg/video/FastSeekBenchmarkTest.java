@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.ffmpeg.video;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.content.Context;
+import android.graphics.PixelFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ConditionVariable;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Surface;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.ExoPlaybackException;
+import com.google.android.exoplayer2.ExoPlayer;
+import com.google.android.exoplayer2.ExoPlayerFactory;
+import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.Renderer;
+import com.google.android.exoplayer2.ext.Constant;
+import com.google.android.exoplayer2.source.MediaSource;
+import com.google.android.exoplayer2.source.ProgressiveMediaSource;
+import com.google.android.exoplayer2.source.dash.DashMediaSource;
+import com.google.android.exoplayer2.trackselection.DefaultTrackSelector;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DefaultDataSourceFactory;
+import com.google.android.exoplayer2.util.Util;
+import com.google.android.exoplayer2.video.VideoRendererEventListener;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Measures the time from a seek to its first rendered frame with fast seeking off and on.
+ * <p>
+ * Seeks land between keyframes, so the decoder has to get through the decode-only packets from the
+ * preceding keyframe to the target before anything is rendered. Each seek is timed from
+ * {@link ExoPlayer#seekTo} to {@link VideoRendererEventListener#onRenderedFirstFrame}, and the
+ * renderer's own {@link FrameTracer.Stats#seekToFirstFrameUs} is reported alongside.
+ * <p>
+ * The default stream is the clear long-GOP HEVC one from the demo's sample list. Run against
+ * another stream with:
+ * <pre>
+ * adb shell am instrument -w -e class com.google.android.exoplayer2.ext.ffmpeg.video.FastSeekBenchmarkTest \
+ *     -e seekBenchmarkUri &lt;uri&gt; com.moqan.mqplayer.test/androidx.test.runner.AndroidJUnitRunner
+ * </pre>
+ */
+@RunWith(AndroidJUnit4.class)
+public final class FastSeekBenchmarkTest {
+
+  private static final String TAG = "FastSeekBenchmark";
+  private static final String ARGUMENT_URI = "seekBenchmarkUri";
+  private static final String DEFAULT_URI =
+      "https://storage.googleapis.com/wvmedia/clear/hevc/tears/tears_hd.mpd";
+
+  private static final long TIMEOUT_MS = 30000;
+  private static final int WARM_UP_SEEKS = 2;
+  private static final int MEASURED_SEEKS = 20;
+  // Lands the seeks a little way into a GOP rather than on keyframes.
+  private static final long SEEK_OFFSET_MS = 1700;
+
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final ConditionVariable firstFrameRendered = new ConditionVariable();
+
+  private ExoPlayer player;
+  private ImageReader imageReader;
+  private volatile long firstFrameTimeNs;
+  private volatile ExoPlaybackException playbackException;
+
+  @After
+  public void tearDown() {
+    InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        releasePlayer();
+      }
+    });
+  }
+
+  @Test
+  public void testSeekToFirstFrame() {
+    Bundle arguments = InstrumentationRegistry.getArguments();
+    String uriString = arguments.getString(ARGUMENT_URI, DEFAULT_URI);
+    Uri uri = Uri.parse(uriString);
+
+    long[][] fullDecode = measureSeeks(uri, false);
+    long[][] fastSeek = measureSeeks(uri, true);
+
+    Log.i(TAG, "Stream: " + uriString);
+    report("full decode", fullDecode);
+    report("fast seek", fastSeek);
+    Log.i(TAG, String.format("Median seek to first frame, fast/full: %.2f",
+        (double) percentile(fastSeek[0], 50) / percentile(fullDecode[0], 50)));
+  }
+
+  /**
+   * Returns the end to end times and the tracer times of each measured seek, in microseconds.
+   */
+  private long[][] measureSeeks(final Uri uri, final boolean fastSeekEnabled) {
+    final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    final FrameTracer frameTracer = new FrameTracer(256, Integer.MAX_VALUE, null, null);
+    final long[] durationMs = new long[1];
+    firstFrameRendered.close();
+    InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        preparePlayer(context, uri, fastSeekEnabled, frameTracer);
+      }
+    });
+    awaitFirstFrame();
+    InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        durationMs[0] = player.getDuration();
+      }
+    });
+    assertTrue("Unknown duration", durationMs[0] != C.TIME_UNSET);
+
+    long[] endToEndUs = new long[MEASURED_SEEKS];
+    long[] tracerUs = new long[MEASURED_SEEKS];
+    FrameTracer.Stats stats = new FrameTracer.Stats();
+    int seekCount = WARM_UP_SEEKS + MEASURED_SEEKS;
+    for (int i = 0; i < seekCount; i++) {
+      // Spread the seeks over the stream, so that none of them is served from the buffer.
+      final long positionMs = durationMs[0] * (i + 1) / (seekCount + 1) + SEEK_OFFSET_MS;
+      final long[] seekTimeNs = new long[1];
+      firstFrameRendered.close();
+      InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+        @Override
+        public void run() {
+          seekTimeNs[0] = System.nanoTime();
+          player.seekTo(positionMs);
+        }
+      });
+      awaitFirstFrame();
+      if (i >= WARM_UP_SEEKS) {
+        frameTracer.getStats(stats);
+        endToEndUs[i - WARM_UP_SEEKS] = (firstFrameTimeNs - seekTimeNs[0]) / 1000;
+        tracerUs[i - WARM_UP_SEEKS] = stats.seekToFirstFrameUs;
+      }
+    }
+
+    InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        releasePlayer();
+      }
+    });
+    return new long[][] {endToEndUs, tracerUs};
+  }
+
+  private void preparePlayer(Context context, Uri uri, boolean fastSeekEnabled,
+      FrameTracer frameTracer) {
+    SoftVideoRenderer renderer = new SoftVideoRenderer(context, true, 0, mainHandler,
+        new VideoRendererEventListener() {
+          @Override
+          public void onRenderedFirstFrame(Surface surface) {
+            firstFrameTimeNs = System.nanoTime();
+            firstFrameRendered.open();
+          }
+        }, -1, null, false, DecoderThreadingPolicy.AUTO);
+    renderer.setFastSeekEnabled(fastSeekEnabled);
+
+    // Always play the top representation, so both runs decode the same frames.
+    DefaultTrackSelector trackSelector = new DefaultTrackSelector();
+    trackSelector.setParameters(
+        trackSelector.buildUponParameters().setForceHighestSupportedBitrate(true));
+    player = ExoPlayerFactory.newInstance(context, new Renderer[] {renderer}, trackSelector);
+    player.addListener(new Player.EventListener() {
+      @Override
+      public void onPlayerError(ExoPlaybackException error) {
+        playbackException = error;
+        firstFrameRendered.open();
+      }
+    });
+
+    // Frames are drawn to an ImageReader that drops them as they arrive.
+    imageReader = ImageReader.newInstance(1920, 1080, PixelFormat.RGBA_8888, 2);
+    imageReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+      @Override
+      public void onImageAvailable(ImageReader reader) {
+        Image image = reader.acquireLatestImage();
+        if (image != null) {
+          image.close();
+        }
+      }
+    }, mainHandler);
+    player.createMessage(renderer).setType(C.MSG_SET_SURFACE)
+        .setPayload(imageReader.getSurface()).send();
+    player.createMessage(renderer).setType(Constant.MSG_SET_FRAME_TRACER)
+        .setPayload(frameTracer).send();
+
+    player.setPlayWhenReady(false);
+    player.prepare(buildMediaSource(context, uri));
+  }
+
+  private void releasePlayer() {
+    if (player != null) {
+      player.release();
+      player = null;
+    }
+    if (imageReader != null) {
+      imageReader.close();
+      imageReader = null;
+    }
+  }
+
+  private void awaitFirstFrame() {
+    if (!firstFrameRendered.block(TIMEOUT_MS)) {
+      fail("No frame rendered within " + TIMEOUT_MS + " ms");
+    }
+    if (playbackException != null) {
+      throw new AssertionError(playbackException);
+    }
+  }
+
+  private static MediaSource buildMediaSource(Context context, Uri uri) {
+    DataSource.Factory dataSourceFactory =
+        new DefaultDataSourceFactory(context, Util.getUserAgent(context, TAG));
+    if (Util.inferContentType(uri) == C.TYPE_DASH) {
+      return new DashMediaSource.Factory(dataSourceFactory).createMediaSource(uri);
+    }
+    return new ProgressiveMediaSource.Factory(dataSourceFactory).createMediaSource(uri);
+  }
+
+  private static void report(String mode, long[][] timesUs) {
+    Log.i(TAG, String.format("%s: end to end p50 %d us, p90 %d us, max %d us;"
+            + " tracer p50 %d us, p90 %d us, max %d us", mode,
+        percentile(timesUs[0], 50), percentile(timesUs[0], 90), percentile(timesUs[0], 100),
+        percentile(timesUs[1], 50), percentile(timesUs[1], 90), percentile(timesUs[1], 100)));
+  }
+
+  private static long percentile(long[] values, int percent) {
+    long[] sorted = values.clone();
+    Arrays.sort(sorted);
+    return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+  }
+
+}
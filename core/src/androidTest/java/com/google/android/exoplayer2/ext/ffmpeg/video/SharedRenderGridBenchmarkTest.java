@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.ffmpeg.video;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.content.Context;
+import android.graphics.PixelFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.ExoPlaybackException;
+import com.google.android.exoplayer2.ExoPlayer;
+import com.google.android.exoplayer2.ExoPlayerFactory;
+import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.Renderer;
+import com.google.android.exoplayer2.ext.Constant;
+import com.google.android.exoplayer2.source.MediaSource;
+import com.google.android.exoplayer2.source.ProgressiveMediaSource;
+import com.google.android.exoplayer2.source.dash.DashMediaSource;
+import com.google.android.exoplayer2.trackselection.DefaultTrackSelector;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DefaultDataSourceFactory;
+import com.google.android.exoplayer2.util.Util;
+import com.google.android.exoplayer2.video.VideoRendererEventListener;
+import com.moqan.mqplayer.egl.SharedGLRenderService;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Measures the threads and the memory of a grid of players, each drawing on a GL thread of its own
+ * and all drawing on one {@link SharedGLRenderService}.
+ * <p>
+ * For each grid size, the players are started on the same stream, left to play until the counts
+ * settle, and the process's thread count and total PSS are compared with those before the grid
+ * was created. The results are logged as one line per grid size and mode.
+ * <p>
+ * Run with other grid sizes or another stream with:
+ * <pre>
+ * adb shell am instrument -w -e class com.google.android.exoplayer2.ext.ffmpeg.video.SharedRenderGridBenchmarkTest \
+ *     -e gridSizes 1,4,9,16 -e gridBenchmarkUri &lt;uri&gt; \
+ *     com.moqan.mqplayer.test/androidx.test.runner.AndroidJUnitRunner
+ * </pre>
+ */
+@RunWith(AndroidJUnit4.class)
+public final class SharedRenderGridBenchmarkTest {
+
+  private static final String TAG = "SharedRenderGridBenchmark";
+  private static final String ARGUMENT_GRID_SIZES = "gridSizes";
+  private static final String ARGUMENT_URI = "gridBenchmarkUri";
+  private static final String DEFAULT_GRID_SIZES = "1,4,9";
+  private static final String DEFAULT_URI =
+      "https://storage.googleapis.com/wvmedia/clear/hevc/tears/tears_hd.mpd";
+
+  private static final long TIMEOUT_MS = 60000;
+  // Lets the decoders and the GL threads reach their steady state before measuring.
+  private static final long SETTLE_TIME_MS = 5000;
+  // Lets released threads exit and memory return before the next baseline.
+  private static final long COOL_DOWN_MS = 2000;
+  // The size of a tile of the grid.
+  private static final int TILE_WIDTH = 480;
+  private static final int TILE_HEIGHT = 270;
+
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final List<ExoPlayer> players = new ArrayList<>();
+  private final List<ImageReader> imageReaders = new ArrayList<>();
+
+  private SharedGLRenderService sharedRenderService;
+  private volatile ExoPlaybackException playbackException;
+
+  @After
+  public void tearDown() {
+    InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        releaseGrid();
+      }
+    });
+  }
+
+  @Test
+  public void testGridThreadsAndMemory() throws InterruptedException {
+    Bundle arguments = InstrumentationRegistry.getArguments();
+    String uriString = arguments.getString(ARGUMENT_URI, DEFAULT_URI);
+    Uri uri = Uri.parse(uriString);
+
+    Log.i(TAG, "Stream: " + uriString);
+    Log.i(TAG, "players, mode, threads, total PSS (KB), per player threads, per player PSS (KB)");
+    for (String gridSize : arguments.getString(ARGUMENT_GRID_SIZES, DEFAULT_GRID_SIZES)
+        .split(",")) {
+      int playerCount = Integer.parseInt(gridSize.trim());
+      long[] perPlayer = measureGrid(uri, playerCount, false);
+      long[] shared = measureGrid(uri, playerCount, true);
+      report(playerCount, "per player GL thread", perPlayer);
+      report(playerCount, "shared GL thread", shared);
+      if (playerCount > 1) {
+        // Everything else being the same, sharing saves a GL thread per player but the first.
+        assertTrue("Shared rendering used " + shared[0] + " threads, per player " + perPlayer[0],
+            shared[0] < perPlayer[0]);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of threads and the total PSS in KB that a grid of players adds to the
+   * process.
+   */
+  private long[] measureGrid(final Uri uri, final int playerCount, final boolean shared)
+      throws InterruptedException {
+    final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    long threadsBefore = getThreadCount();
+    long pssBefore = getTotalPssKb();
+
+    final CountDownLatch firstFramesRendered = new CountDownLatch(playerCount);
+    InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        if (shared) {
+          sharedRenderService = new SharedGLRenderService();
+        }
+        for (int i = 0; i < playerCount; i++) {
+          startPlayer(context, uri, firstFramesRendered);
+        }
+      }
+    });
+    if (!firstFramesRendered.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+      fail("Not all players rendered within " + TIMEOUT_MS + " ms");
+    }
+    if (playbackException != null) {
+      throw new AssertionError(playbackException);
+    }
+    SystemClock.sleep(SETTLE_TIME_MS);
+    long threads = getThreadCount() - threadsBefore;
+    long pss = getTotalPssKb() - pssBefore;
+
+    InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        releaseGrid();
+      }
+    });
+    Runtime.getRuntime().gc();
+    SystemClock.sleep(COOL_DOWN_MS);
+    return new long[] {threads, pss};
+  }
+
+  private void startPlayer(Context context, Uri uri, final CountDownLatch firstFramesRendered) {
+    SoftVideoRenderer renderer = new SoftVideoRenderer(context, true, 0, mainHandler,
+        new VideoRendererEventListener() {
+          private boolean rendered;
+
+          @Override
+          public void onRenderedFirstFrame(Surface surface) {
+            if (!rendered) {
+              rendered = true;
+              firstFramesRendered.countDown();
+            }
+          }
+        }, -1, null, false, DecoderThreadingPolicy.AUTO);
+
+    // All players decode the same representation, sized for a tile.
+    DefaultTrackSelector trackSelector = new DefaultTrackSelector();
+    trackSelector.setParameters(
+        trackSelector.buildUponParameters().setMaxVideoSize(TILE_WIDTH * 2, TILE_HEIGHT * 2));
+    ExoPlayer player =
+        ExoPlayerFactory.newInstance(context, new Renderer[] {renderer}, trackSelector);
+    player.addListener(new Player.EventListener() {
+      @Override
+      public void onPlayerError(ExoPlaybackException error) {
+        playbackException = error;
+        while (firstFramesRendered.getCount() > 0) {
+          firstFramesRendered.countDown();
+        }
+      }
+    });
+    players.add(player);
+
+    // Frames are drawn to an ImageReader that drops them as they arrive.
+    ImageReader imageReader =
+        ImageReader.newInstance(TILE_WIDTH, TILE_HEIGHT, PixelFormat.RGBA_8888, 2);
+    imageReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+      @Override
+      public void onImageAvailable(ImageReader reader) {
+        Image image = reader.acquireLatestImage();
+        if (image != null) {
+          image.close();
+        }
+      }
+    }, mainHandler);
+    imageReaders.add(imageReader);
+
+    // The service has to be set before the surface, as it takes effect from the next surface.
+    if (sharedRenderService != null) {
+      player.createMessage(renderer).setType(Constant.MSG_SET_SHARED_RENDER_SERVICE)
+          .setPayload(sharedRenderService).send();
+    }
+    player.createMessage(renderer).setType(C.MSG_SET_SURFACE)
+        .setPayload(imageReader.getSurface()).send();
+    player.setRepeatMode(Player.REPEAT_MODE_ALL);
+    player.setPlayWhenReady(true);
+    player.prepare(buildMediaSource(context, uri));
+  }
+
+  private void releaseGrid() {
+    for (ExoPlayer player : players) {
+      player.release();
+    }
+    players.clear();
+    for (ImageReader imageReader : imageReaders) {
+      imageReader.close();
+    }
+    imageReaders.clear();
+    // The players have detached from the service when their release returned.
+    if (sharedRenderService != null) {
+      sharedRenderService.release();
+      sharedRenderService = null;
+    }
+  }
+
+  private static long getThreadCount() {
+    String[] tasks = new File("/proc/self/task").list();
+    return tasks == null ? 0 : tasks.length;
+  }
+
+  private static long getTotalPssKb() {
+    Debug.MemoryInfo memoryInfo = new Debug.MemoryInfo();
+    Debug.getMemoryInfo(memoryInfo);
+    return memoryInfo.getTotalPss();
+  }
+
+  private static MediaSource buildMediaSource(Context context, Uri uri) {
+    DataSource.Factory dataSourceFactory =
+        new DefaultDataSourceFactory(context, Util.getUserAgent(context, TAG));
+    if (Util.inferContentType(uri) == C.TYPE_DASH) {
+      return new DashMediaSource.Factory(dataSourceFactory).createMediaSource(uri);
+    }
+    return new ProgressiveMediaSource.Factory(dataSourceFactory).createMediaSource(uri);
+  }
+
+  private static void report(int playerCount, String mode, long[] result) {
+    Log.i(TAG, String.format("%d, %s, %d, %d, %.1f, %d", playerCount, mode, result[0], result[1],
+        (double) result[0] / playerCount, result[1] / playerCount));
+  }
+
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.ffmpeg.video;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.content.Context;
+import android.graphics.PixelFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ConditionVariable;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Surface;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.ExoPlaybackException;
+import com.google.android.exoplayer2.ExoPlayer;
+import com.google.android.exoplayer2.ExoPlayerFactory;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.Renderer;
+import com.google.android.exoplayer2.decoder.DecoderCounters;
+import com.google.android.exoplayer2.source.MediaSource;
+import com.google.android.exoplayer2.source.ProgressiveMediaSource;
+import com.google.android.exoplayer2.source.dash.DashMediaSource;
+import com.google.android.exoplayer2.trackselection.DefaultTrackSelector;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DefaultDataSourceFactory;
+import com.google.android.exoplayer2.util.Util;
+import com.google.android.exoplayer2.video.VideoRendererEventListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Checks that {@link SoftVideoRenderer} gives back the frames it holds when it releases its decoder.
+ * <p>
+ * Each cycle renders the first frame of a stream, with playback paused so that the renderer holds
+ * decoded frames, and then stops the player, which disables the renderer. Frames held past the
+ * decoder's release would pile up over the cycles. Only the frames the GL thread holds on to, the
+ * pending and the last drawn one, may outlive a cycle. With zero copy output this is checked on the
+ * native frames that are out, and otherwise on the bytes of {@link DirectBufferPool} that are out.
+ * <p>
+ * Run against another stream with:
+ * <pre>
+ * adb shell am instrument -w -e class com.google.android.exoplayer2.ext.ffmpeg.video.SoftVideoRendererReleaseTest \
+ *     -e releaseTestUri &lt;uri&gt; com.moqan.mqplayer.test/androidx.test.runner.AndroidJUnitRunner
+ * </pre>
+ */
+@RunWith(AndroidJUnit4.class)
+public final class SoftVideoRendererReleaseTest {
+
+  private static final String TAG = "SoftVideoRendererReleaseTest";
+  private static final String ARGUMENT_URI = "releaseTestUri";
+  private static final String DEFAULT_URI =
+      "https://storage.googleapis.com/wvmedia/clear/hevc/tears/tears_hd.mpd";
+
+  private static final long TIMEOUT_MS = 30000;
+  private static final int CYCLES = 10;
+  // The pending frame and the last drawn frame of the GL thread.
+  private static final int MAX_FRAMES_HELD_BY_GL_THREAD = 2;
+  // Lets the decoder fill the output buffers after the first frame.
+  private static final long FILL_TIME_MS = 500;
+  // An upper bound on the pooled bytes per pixel of a frame: 4:2:0 with 16 bit samples takes 3, and
+  // stride padding and rounding to a size class of the pool add at most a quarter on top.
+  private static final int MAX_FRAME_BYTES_PER_PIXEL = 4;
+
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final ConditionVariable firstFrameRendered = new ConditionVariable();
+  private final ConditionVariable disabled = new ConditionVariable();
+
+  private Uri uri;
+  private SoftVideoRenderer renderer;
+  private ExoPlayer player;
+  private ImageReader imageReader;
+  private volatile ExoPlaybackException playbackException;
+  private volatile int maxPixelCount;
+
+  @Before
+  public void setUp() {
+    Bundle arguments = InstrumentationRegistry.getArguments();
+    uri = Uri.parse(arguments.getString(ARGUMENT_URI, DEFAULT_URI));
+  }
+
+  @After
+  public void tearDown() {
+    InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        releasePlayer();
+      }
+    });
+  }
+
+  @Test
+  public void testDisableReleasesZeroCopyFrames() throws InterruptedException {
+    createPlayer(true);
+    for (int i = 0; i < CYCLES; i++) {
+      runCycle();
+      int liveFrameCount = VideoDecoder.getLiveNativeFrameCount();
+      assertTrue("Cycle " + i + ": " + liveFrameCount + " native frames not released",
+          liveFrameCount <= MAX_FRAMES_HELD_BY_GL_THREAD);
+    }
+  }
+
+  @Test
+  public void testDisableReturnsPooledFrames() throws InterruptedException {
+    createPlayer(false);
+    for (int i = 0; i < CYCLES; i++) {
+      runCycle();
+      long outstandingBytes = renderer.getBufferPool().getOutstandingBytes();
+      long maxOutstandingBytes =
+          (long) MAX_FRAMES_HELD_BY_GL_THREAD * maxPixelCount * MAX_FRAME_BYTES_PER_PIXEL;
+      assertTrue("Cycle " + i + ": " + outstandingBytes + " bytes not returned to the pool, at most "
+          + maxOutstandingBytes + " expected", outstandingBytes <= maxOutstandingBytes);
+    }
+  }
+
+  private void createPlayer(final boolean zeroCopyOutput) {
+    final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        renderer = new SoftVideoRenderer(context, true, 0, mainHandler,
+            new VideoRendererEventListener() {
+              @Override
+              public void onRenderedFirstFrame(Surface surface) {
+                firstFrameRendered.open();
+              }
+
+              @Override
+              public void onVideoInputFormatChanged(Format format) {
+                maxPixelCount = Math.max(maxPixelCount, format.width * format.height);
+              }
+
+              @Override
+              public void onVideoDisabled(DecoderCounters counters) {
+                disabled.open();
+              }
+            }, -1, null, false, DecoderThreadingPolicy.AUTO);
+        renderer.setZeroCopyOutput(zeroCopyOutput);
+
+        DefaultTrackSelector trackSelector = new DefaultTrackSelector();
+        trackSelector.setParameters(
+            trackSelector.buildUponParameters().setForceHighestSupportedBitrate(true));
+        player = ExoPlayerFactory.newInstance(context, new Renderer[] {renderer}, trackSelector);
+        player.addListener(new Player.EventListener() {
+          @Override
+          public void onPlayerError(ExoPlaybackException error) {
+            playbackException = error;
+            firstFrameRendered.open();
+            disabled.open();
+          }
+        });
+
+        // Frames are drawn to an ImageReader that drops them as they arrive.
+        imageReader = ImageReader.newInstance(1920, 1080, PixelFormat.RGBA_8888, 2);
+        imageReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+          @Override
+          public void onImageAvailable(ImageReader reader) {
+            Image image = reader.acquireLatestImage();
+            if (image != null) {
+              image.close();
+            }
+          }
+        }, mainHandler);
+        player.createMessage(renderer).setType(C.MSG_SET_SURFACE)
+            .setPayload(imageReader.getSurface()).send();
+        player.setPlayWhenReady(false);
+      }
+    });
+  }
+
+  /**
+   * Enables the renderer by preparing the player, waits for the first frame and for the decoder to
+   * fill its output buffers, and then disables the renderer by stopping the player.
+   */
+  private void runCycle() throws InterruptedException {
+    final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    firstFrameRendered.close();
+    disabled.close();
+    InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        player.prepare(buildMediaSource(context, uri));
+      }
+    });
+    await(firstFrameRendered, "No frame rendered");
+    Thread.sleep(FILL_TIME_MS);
+    InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        player.stop();
+      }
+    });
+    await(disabled, "Renderer not disabled");
+  }
+
+  private void releasePlayer() {
+    if (player != null) {
+      player.release();
+      player = null;
+    }
+    if (imageReader != null) {
+      imageReader.close();
+      imageReader = null;
+    }
+    renderer = null;
+  }
+
+  private void await(ConditionVariable condition, String message) {
+    if (!condition.block(TIMEOUT_MS)) {
+      fail(message + " within " + TIMEOUT_MS + " ms");
+    }
+    if (playbackException != null) {
+      throw new AssertionError(playbackException);
+    }
+  }
+
+  private static MediaSource buildMediaSource(Context context, Uri uri) {
+    DataSource.Factory dataSourceFactory =
+        new DefaultDataSourceFactory(context, Util.getUserAgent(context, TAG));
+    if (Util.inferContentType(uri) == C.TYPE_DASH) {
+      return new DashMediaSource.Factory(dataSourceFactory).createMediaSource(uri);
+    }
+    return new ProgressiveMediaSource.Factory(dataSourceFactory).createMediaSource(uri);
+  }
+
+}
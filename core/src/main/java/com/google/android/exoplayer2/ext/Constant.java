@@ -13,4 +13,6 @@ public class Constant {
     public static final int MSG_PLAY_RELEASED = MSG_CUSTOM_BASE + 101;
     public static final int MSG_SET_BACKGROUND_COLOR = MSG_CUSTOM_BASE + 102;
     public static final int MSG_SET_SCALE_TYPE = MSG_CUSTOM_BASE + 103;
+    public static final int MSG_SET_FRAME_TRACER = MSG_CUSTOM_BASE + 104;
+    public static final int MSG_SET_SHARED_RENDER_SERVICE = MSG_CUSTOM_BASE + 105;
 }
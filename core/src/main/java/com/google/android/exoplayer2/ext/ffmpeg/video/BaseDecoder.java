@@ -22,46 +22,77 @@ import com.google.android.exoplayer2.ext.Constant;
 import com.google.android.exoplayer2.ext.ffmpeg.VideoSoftDecoderException;
 import com.google.android.exoplayer2.util.Assertions;
 
-import java.util.LinkedList;
-
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Base class for decoders that run on a dedicated decode thread.
+ * <p>
+ * Buffers are handed between the playback thread and the decode thread through lock free ring
+ * buffers. The decode thread parks when it has nothing to do, and is only unparked by the other
+ * threads while it is idle.
+ */
 public abstract class BaseDecoder implements Decoder<PacketBuffer, FrameBuffer, VideoSoftDecoderException> {
 
   private final Thread decodeThread;
 
-  private final Object lock;
-  private final LinkedList<PacketBuffer> queuedInputBuffers;
-  private final LinkedList<FrameBuffer> queuedOutputBuffers;
-  private final PacketBuffer[] availableInputBuffers;
-  private final FrameBuffer[] availableOutputBuffers;
-
-  private int availableInputBufferCount;
-  private int availableOutputBufferCount;
+  /**
+   * The pool backing the data of the input and output buffers.
+   */
+  protected final DirectBufferPool bufferPool;
+
+  private final PacketBuffer[] inputBuffers;
+  // Playback thread to decode thread.
+  private final SpscRingBuffer<PacketBuffer> queuedInputBuffers;
+  // Decode thread to playback thread.
+  private final SpscRingBuffer<PacketBuffer> availableInputBuffers;
+  // Decode thread to playback thread.
+  private final SpscRingBuffer<FrameBuffer> queuedOutputBuffers;
+  // Any thread releasing an output buffer to the decode thread.
+  private final MpscRingBuffer<FrameBuffer> availableOutputBuffers;
+  // Guards the final drain of availableOutputBuffers, which buffers released by the renderer after
+  // release() can still race with.
+  private final Object releaseLock;
+  private boolean outputBuffersDrained; // Guarded by releaseLock.
+
+  // Accessed only by the playback thread.
   private PacketBuffer dequeuedInputBuffer;
+  private PacketBuffer flushedInputBuffer;
 
-  private VideoSoftDecoderException exception;
-  private boolean flushed;
-  private boolean released;
+  // Accessed only by the decode thread.
+  private PacketBuffer pendingInputBuffer;
+  private int decodeGeneration;
   private int skippedOutputBufferCount;
-
   private boolean maybeHasFrame = false;
 
+  // Incremented by the playback thread on each flush. Buffers carry the generation they were
+  // queued or decoded in, so that buffers from before a flush can be recognized and discarded.
+  private volatile int flushGeneration;
+  private volatile boolean decoderIdle;
+  private volatile boolean released;
+  private volatile VideoSoftDecoderException exception;
+  private volatile FrameTracer frameTracer;
+
   /**
    * @param inputBuffers An array of nulls that will be used to store references to input buffers.
    * @param outputBuffers An array of nulls that will be used to store references to output buffers.
+   * @param bufferPool The pool backing the data of the input and output buffers.
    */
-  protected BaseDecoder(PacketBuffer[] inputBuffers, FrameBuffer[] outputBuffers) {
-    lock = new Object();
-    queuedInputBuffers = new LinkedList<>();
-    queuedOutputBuffers = new LinkedList<>();
-    availableInputBuffers = inputBuffers;
-    availableInputBufferCount = inputBuffers.length;
-    for (int i = 0; i < availableInputBufferCount; i++) {
-      availableInputBuffers[i] = createInputBuffer();
+  protected BaseDecoder(PacketBuffer[] inputBuffers, FrameBuffer[] outputBuffers,
+      DirectBufferPool bufferPool) {
+    this.bufferPool = bufferPool;
+    this.inputBuffers = inputBuffers;
+    queuedInputBuffers = new SpscRingBuffer<>(inputBuffers.length);
+    availableInputBuffers = new SpscRingBuffer<>(inputBuffers.length);
+    for (int i = 0; i < inputBuffers.length; i++) {
+      inputBuffers[i] = createInputBuffer();
+      availableInputBuffers.offer(inputBuffers[i]);
     }
-    availableOutputBuffers = outputBuffers;
-    availableOutputBufferCount = outputBuffers.length;
-    for (int i = 0; i < availableOutputBufferCount; i++) {
-      availableOutputBuffers[i] = createOutputBuffer();
+    queuedOutputBuffers = new SpscRingBuffer<>(outputBuffers.length);
+    availableOutputBuffers = new MpscRingBuffer<>(outputBuffers.length);
+    releaseLock = new Object();
+    for (int i = 0; i < outputBuffers.length; i++) {
+      outputBuffers[i] = createOutputBuffer();
+      availableOutputBuffers.offer(outputBuffers[i]);
     }
     decodeThread = new Thread("ffmpeg-decoder") {
       @Override
@@ -81,86 +112,136 @@ public abstract class BaseDecoder implements Decoder<PacketBuffer, FrameBuffer,
    * @param size The required input buffer size.
    */
   protected final void setInitialInputBufferSize(int size) {
-    Assertions.checkState(availableInputBufferCount == availableInputBuffers.length);
-    for (PacketBuffer inputBuffer : availableInputBuffers) {
+    Assertions.checkState(availableInputBuffers.size() == inputBuffers.length);
+    for (PacketBuffer inputBuffer : inputBuffers) {
       inputBuffer.ensureSpaceForWrite(size);
     }
   }
 
+  /**
+   * Sets the tracer that records when packets and frames pass through the decoder.
+   *
+   * @param frameTracer The tracer, or null to disable tracing.
+   */
+  /* package */ void setFrameTracer(FrameTracer frameTracer) {
+    this.frameTracer = frameTracer;
+  }
+
   @Override
   public final PacketBuffer dequeueInputBuffer() throws VideoSoftDecoderException {
-    synchronized (lock) {
-      maybeThrowException();
-      Assertions.checkState(dequeuedInputBuffer == null);
-      dequeuedInputBuffer = availableInputBufferCount == 0 ? null
-          : availableInputBuffers[--availableInputBufferCount];
-      return dequeuedInputBuffer;
+    maybeThrowException();
+    Assertions.checkState(dequeuedInputBuffer == null);
+    if (flushedInputBuffer != null) {
+      dequeuedInputBuffer = flushedInputBuffer;
+      flushedInputBuffer = null;
+    } else {
+      dequeuedInputBuffer = availableInputBuffers.poll();
     }
+    return dequeuedInputBuffer;
   }
 
   @Override
   public final void queueInputBuffer(PacketBuffer inputBuffer) throws VideoSoftDecoderException {
-    synchronized (lock) {
-      maybeThrowException();
-      Assertions.checkArgument(inputBuffer == dequeuedInputBuffer);
-      queuedInputBuffers.addLast(inputBuffer);
-      maybeNotifyDecodeLoop();
-      dequeuedInputBuffer = null;
+    maybeThrowException();
+    Assertions.checkArgument(inputBuffer == dequeuedInputBuffer);
+    inputBuffer.generation = flushGeneration;
+    FrameTracer frameTracer = this.frameTracer;
+    if (frameTracer != null && !inputBuffer.isEndOfStream()) {
+      frameTracer.markQueued(inputBuffer.timeUs);
     }
+    queuedInputBuffers.offer(inputBuffer);
+    dequeuedInputBuffer = null;
+    maybeNotifyDecodeLoop();
   }
 
   @Override
   public final FrameBuffer dequeueOutputBuffer() throws VideoSoftDecoderException {
-    synchronized (lock) {
-      maybeThrowException();
-      if (queuedOutputBuffers.isEmpty()) {
-        return null;
+    maybeThrowException();
+    FrameBuffer outputBuffer;
+    while ((outputBuffer = queuedOutputBuffers.poll()) != null) {
+      if (outputBuffer.generation == flushGeneration) {
+        return outputBuffer;
       }
-      return queuedOutputBuffers.removeFirst();
+      // Decoded before the last flush.
+      releaseOutputBuffer(outputBuffer);
     }
+    return null;
   }
 
   /**
-   * Releases an output buffer back to the decoder.
+   * Releases an output buffer back to the decoder. May be called from any thread.
    *
    * @param outputBuffer The output buffer being released.
    */
   protected void releaseOutputBuffer(FrameBuffer outputBuffer) {
-    synchronized (lock) {
-      releaseOutputBufferInternal(outputBuffer);
-      maybeNotifyDecodeLoop();
+    if (released) {
+      // Released by the renderer after the decoder, nothing will dequeue it again.
+      outputBuffer.clear();
+      outputBuffer.releaseData();
+      return;
+    }
+    releaseOutputBufferInternal(outputBuffer);
+    if (released) {
+      // release() may have drained the available buffers between the check above and the offer,
+      // in which case this buffer would never be returned to the pool.
+      synchronized (releaseLock) {
+        if (outputBuffersDrained) {
+          drainAvailableOutputBuffers();
+        }
+      }
+      return;
     }
+    maybeNotifyDecodeLoop();
   }
 
   @Override
   public final void flush() {
-    synchronized (lock) {
-      flushed = true;
-      skippedOutputBufferCount = 0;
-      if (dequeuedInputBuffer != null) {
-        releaseInputBufferInternal(dequeuedInputBuffer);
-        dequeuedInputBuffer = null;
-      }
-      while (!queuedInputBuffers.isEmpty()) {
-        releaseInputBufferInternal(queuedInputBuffers.removeFirst());
-      }
-      while (!queuedOutputBuffers.isEmpty()) {
-        releaseOutputBufferInternal(queuedOutputBuffers.removeFirst());
-      }
+    flushGeneration++;
+    if (dequeuedInputBuffer != null) {
+      dequeuedInputBuffer.clear();
+      flushedInputBuffer = dequeuedInputBuffer;
+      dequeuedInputBuffer = null;
+    }
+    FrameBuffer outputBuffer;
+    while ((outputBuffer = queuedOutputBuffers.poll()) != null) {
+      releaseOutputBufferInternal(outputBuffer);
     }
+    // Queued input buffers are owned by the decode thread, which releases them when it notices the
+    // new generation.
+    LockSupport.unpark(decodeThread);
   }
 
   @Override
   public void release() {
-    synchronized (lock) {
-      released = true;
-      lock.notify();
-    }
+    released = true;
+    LockSupport.unpark(decodeThread);
     try {
       decodeThread.join();
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
     }
+    // Return the data of every buffer the decoder still owns to the pool, so that the next decoder
+    // can reuse it. Output buffers held by the renderer are returned when they are released.
+    for (PacketBuffer inputBuffer : inputBuffers) {
+      inputBuffer.releaseData();
+    }
+    FrameBuffer outputBuffer;
+    while ((outputBuffer = queuedOutputBuffers.poll()) != null) {
+      outputBuffer.clear();
+      outputBuffer.releaseData();
+    }
+    // The decode thread has exited, so from here on only the holder of releaseLock consumes.
+    synchronized (releaseLock) {
+      outputBuffersDrained = true;
+      drainAvailableOutputBuffers();
+    }
+  }
+
+  private void drainAvailableOutputBuffers() {
+    FrameBuffer outputBuffer;
+    while ((outputBuffer = availableOutputBuffers.poll()) != null) {
+      outputBuffer.releaseData();
+    }
   }
 
   /**
@@ -169,86 +250,109 @@ public abstract class BaseDecoder implements Decoder<PacketBuffer, FrameBuffer,
    * @throws VideoSoftDecoderException The decode exception.
    */
   private void maybeThrowException() throws VideoSoftDecoderException {
+    VideoSoftDecoderException exception = this.exception;
     if (exception != null) {
       throw exception;
     }
   }
 
   /**
-   * Notifies the decode loop if there exists a queued input buffer and an available output buffer
-   * to decode into.
-   * <p>
-   * Should only be called whilst synchronized on the lock object.
+   * Wakes the decode loop if it is waiting for work.
    */
   private void maybeNotifyDecodeLoop() {
-    if (canDecodeBuffer()) {
-      lock.notify();
+    if (decoderIdle) {
+      LockSupport.unpark(decodeThread);
     }
   }
 
   private void run() {
-    try {
-      while (decode()) {
-        // Do nothing.
+    while (!released) {
+      if (decodeGeneration != flushGeneration) {
+        onFlushed();
+      } else if (canDecodeBuffer()) {
+        if (!decode()) {
+          break;
+        }
+      } else {
+        waitForWork();
       }
-    } catch (InterruptedException e) {
-      // Not expected.
-      throw new IllegalStateException(e);
     }
   }
 
-  @SuppressLint("WrongConstant")
-  private boolean decode() throws InterruptedException {
-    PacketBuffer inputBuffer = null;
-    FrameBuffer outputBuffer = null;
-    boolean resetDecoder;
-
-    // Wait until we have an input buffer to decode, and an output buffer to decode into.
-    synchronized (lock) {
-      while (!released && !canDecodeBuffer()) {
-        lock.wait();
-      }
-      if (released) {
-        return false;
-      }
+  private void waitForWork() {
+    decoderIdle = true;
+    // Check again now that the idle flag is visible, as work published before it was set would not
+    // have unparked this thread.
+    if (!released && decodeGeneration == flushGeneration && !canDecodeBuffer()) {
+      LockSupport.park(this);
+    }
+    decoderIdle = false;
+  }
 
-      if (queuedInputBuffers.size() > 0) {
-        inputBuffer = queuedInputBuffers.removeFirst();
+  private void onFlushed() {
+    decodeGeneration = flushGeneration;
+    skippedOutputBufferCount = 0;
+    if (pendingInputBuffer != null && pendingInputBuffer.generation != decodeGeneration) {
+      releaseInputBufferInternal(pendingInputBuffer);
+      pendingInputBuffer = null;
+    }
+    while (pendingInputBuffer == null && !queuedInputBuffers.isEmpty()) {
+      PacketBuffer inputBuffer = queuedInputBuffers.poll();
+      if (inputBuffer.generation == decodeGeneration) {
+        pendingInputBuffer = inputBuffer;
       } else {
-        inputBuffer = null;
+        releaseInputBufferInternal(inputBuffer);
       }
+    }
+    resetDecoder();
+  }
 
-      if (maybeHasFrame && availableOutputBufferCount > 0) {
-        outputBuffer = availableOutputBuffers[--availableOutputBufferCount];
+  @SuppressLint("WrongConstant")
+  private boolean decode() {
+    PacketBuffer inputBuffer;
+    FrameBuffer outputBuffer = null;
+    int generation = decodeGeneration;
+    FrameTracer frameTracer = this.frameTracer;
+
+    if (pendingInputBuffer != null) {
+      inputBuffer = pendingInputBuffer;
+      pendingInputBuffer = null;
+    } else {
+      inputBuffer = queuedInputBuffers.poll();
+      if (inputBuffer != null && inputBuffer.generation != generation) {
+        // Queued after a flush this thread has not handled yet. Sent now, it would be lost when the
+        // decoder is reset, so keep it until then.
+        pendingInputBuffer = inputBuffer;
+        return true;
       }
-
-      resetDecoder = flushed;
-      flushed = false;
     }
 
-    if (resetDecoder) {
-      resetDecoder();
+    if (maybeHasFrame) {
+      outputBuffer = availableOutputBuffers.poll();
     }
 
     if (inputBuffer != null) {
       // 发送packet
-      exception = sendPacket(inputBuffer);
+      VideoSoftDecoderException sendException = sendPacket(inputBuffer);
       boolean needSendAgain = inputBuffer.hasFlag(Constant.BUFFER_FLAG_DECODE_AGAIN);
       if (needSendAgain) {
         inputBuffer.clearFlag(Constant.BUFFER_FLAG_DECODE_AGAIN);
-      }
-
-      synchronized (lock) {
-        if (needSendAgain) {
-          queuedInputBuffers.addFirst(inputBuffer);
-        } else {
-          // Make the input buffer available again.
-          releaseInputBufferInternal(inputBuffer);
-          maybeHasFrame = true;
+        // Keep it at the head of the input queue.
+        pendingInputBuffer = inputBuffer;
+      } else {
+        if (frameTracer != null && sendException == null) {
+          frameTracer.mark(FrameTracer.STAGE_SENT, inputBuffer.timeUs);
         }
+        // Make the input buffer available again.
+        releaseInputBufferInternal(inputBuffer);
+        maybeHasFrame = true;
       }
 
-      if (exception != null) {
+      if (sendException != null) {
+        if (outputBuffer != null) {
+          releaseOutputBufferInternal(outputBuffer);
+        }
+        exception = sendException;
         return false;
       }
     }
@@ -257,48 +361,50 @@ public abstract class BaseDecoder implements Decoder<PacketBuffer, FrameBuffer,
       return true;
     }
 
-    exception = getFrame(outputBuffer);
-    if (exception != null) {
-      synchronized (lock) {
-        releaseOutputBufferInternal(outputBuffer);
-      }
+    VideoSoftDecoderException frameException = getFrame(outputBuffer);
+    if (frameException != null) {
+      releaseOutputBufferInternal(outputBuffer);
+      exception = frameException;
       return false;
     }
 
     boolean frameIsReady = !outputBuffer.hasFlag(Constant.BUFFER_FLAG_DECODE_AGAIN);
     boolean frameIsIgnored = outputBuffer.isDecodeOnly();
 
-    synchronized (lock) {
-      if (flushed || !frameIsReady) {
-        releaseOutputBufferInternal(outputBuffer);
-        maybeHasFrame = false;
-      } else if (frameIsIgnored) {
-        skippedOutputBufferCount++;
-        releaseOutputBufferInternal(outputBuffer);
-      } else {
-        outputBuffer.skippedOutputBufferCount = skippedOutputBufferCount;
-        skippedOutputBufferCount = 0;
-        queuedOutputBuffers.addLast(outputBuffer);
-        // 取出最后一帧后需要重置maybeHasFrame为false
-        maybeHasFrame = !outputBuffer.isEndOfStream();
+    if (generation != flushGeneration || !frameIsReady) {
+      releaseOutputBufferInternal(outputBuffer);
+      maybeHasFrame = false;
+    } else if (frameIsIgnored) {
+      skippedOutputBufferCount++;
+      releaseOutputBufferInternal(outputBuffer);
+    } else {
+      outputBuffer.skippedOutputBufferCount = skippedOutputBufferCount;
+      outputBuffer.generation = generation;
+      skippedOutputBufferCount = 0;
+      if (frameTracer != null && !outputBuffer.isEndOfStream()) {
+        frameTracer.mark(FrameTracer.STAGE_DECODED, outputBuffer.timeUs);
       }
+      queuedOutputBuffers.offer(outputBuffer);
+      // 取出最后一帧后需要重置maybeHasFrame为false
+      maybeHasFrame = !outputBuffer.isEndOfStream();
     }
 
     return true;
   }
 
   private boolean canDecodeBuffer() {
-    return (maybeHasFrame || !queuedInputBuffers.isEmpty()) && availableOutputBufferCount > 0;
+    return (maybeHasFrame || pendingInputBuffer != null || !queuedInputBuffers.isEmpty())
+        && !availableOutputBuffers.isEmpty();
   }
 
   private void releaseInputBufferInternal(PacketBuffer inputBuffer) {
     inputBuffer.clear();
-    availableInputBuffers[availableInputBufferCount++] = inputBuffer;
+    availableInputBuffers.offer(inputBuffer);
   }
 
   private void releaseOutputBufferInternal(FrameBuffer outputBuffer) {
     outputBuffer.clear();
-    availableOutputBuffers[availableOutputBufferCount++] = outputBuffer;
+    availableOutputBuffers.offer(outputBuffer);
   }
 
   /**
@@ -314,4 +420,10 @@ public abstract class BaseDecoder implements Decoder<PacketBuffer, FrameBuffer,
   protected abstract void resetDecoder();
   protected abstract VideoSoftDecoderException sendPacket(PacketBuffer inputBuffer);
   protected abstract VideoSoftDecoderException getFrame(FrameBuffer outputBuffer);
+
+  /**
+   * Unreferences a native frame held by an output buffer in zero copy mode. May be called from any
+   * thread, including after {@link #release()}.
+   */
+  protected abstract void releaseNativeFrame(long nativeFrame);
 }
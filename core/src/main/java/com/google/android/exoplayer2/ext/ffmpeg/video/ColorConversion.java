@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.ffmpeg.video;
+
+import com.google.android.exoplayer2.C;
+
+/**
+ * Computes the YUV to RGB conversion for a color space, range and bit depth.
+ * <p>
+ * Shaders normalize a sample of n bits by dividing it by 2^n - 1, subtract {@link #getOffset} and
+ * multiply the result by {@link #getMatrix}.
+ */
+/* package */ final class ColorConversion {
+
+  // The height from which frames that don't signal their color space are assumed to be HD.
+  private static final int MIN_HD_HEIGHT = 720;
+
+  private ColorConversion() {}
+
+  /**
+   * Returns the color space to render a frame with, guessing from its size if it is unknown.
+   */
+  public static @C.ColorSpace int resolveColorSpace(@C.ColorSpace int colorSpace, int height) {
+    if (colorSpace == C.COLOR_SPACE_BT601 || colorSpace == C.COLOR_SPACE_BT709
+        || colorSpace == C.COLOR_SPACE_BT2020) {
+      return colorSpace;
+    }
+    return height >= MIN_HD_HEIGHT ? C.COLOR_SPACE_BT709 : C.COLOR_SPACE_BT601;
+  }
+
+  /**
+   * Returns the color range to render a frame with, assuming limited range if it is unknown.
+   */
+  public static @C.ColorRange int resolveColorRange(@C.ColorRange int colorRange) {
+    return colorRange == C.COLOR_RANGE_FULL ? C.COLOR_RANGE_FULL : C.COLOR_RANGE_LIMITED;
+  }
+
+  /**
+   * Writes the column major YUV to RGB matrix into {@code matrix}.
+   *
+   * @param colorSpace A resolved color space.
+   * @param colorRange A resolved color range.
+   * @param bitsPerSample The number of significant bits per sample.
+   * @param matrix An array of at least 9 elements.
+   */
+  public static void getMatrix(@C.ColorSpace int colorSpace, @C.ColorRange int colorRange,
+      int bitsPerSample, float[] matrix) {
+    float kr;
+    float kb;
+    if (colorSpace == C.COLOR_SPACE_BT2020) {
+      kr = 0.2627f;
+      kb = 0.0593f;
+    } else if (colorSpace == C.COLOR_SPACE_BT709) {
+      kr = 0.2126f;
+      kb = 0.0722f;
+    } else {
+      kr = 0.299f;
+      kb = 0.114f;
+    }
+    float kg = 1 - kr - kb;
+
+    float yScale = 1;
+    float cScale = 1;
+    if (colorRange == C.COLOR_RANGE_LIMITED) {
+      // Limited range luma spans 219 and chroma 224 of 255 steps, scaled with the bit depth.
+      float maxValue = (1 << bitsPerSample) - 1;
+      float step = 1 << (bitsPerSample - 8);
+      yScale = maxValue / (219 * step);
+      cScale = maxValue / (224 * step);
+    }
+
+    // Y column.
+    matrix[0] = yScale;
+    matrix[1] = yScale;
+    matrix[2] = yScale;
+    // U column.
+    matrix[3] = 0;
+    matrix[4] = -cScale * 2 * kb * (1 - kb) / kg;
+    matrix[5] = cScale * 2 * (1 - kb);
+    // V column.
+    matrix[6] = cScale * 2 * (1 - kr);
+    matrix[7] = -cScale * 2 * kr * (1 - kr) / kg;
+    matrix[8] = 0;
+  }
+
+  /**
+   * Writes the normalized black level of Y and the zero level of U and V into {@code offset}.
+   *
+   * @param colorRange A resolved color range.
+   * @param bitsPerSample The number of significant bits per sample.
+   * @param offset An array of at least 3 elements.
+   */
+  public static void getOffset(@C.ColorRange int colorRange, int bitsPerSample, float[] offset) {
+    float maxValue = (1 << bitsPerSample) - 1;
+    float step = 1 << (bitsPerSample - 8);
+    offset[0] = colorRange == C.COLOR_RANGE_LIMITED ? 16 * step / maxValue : 0;
+    offset[1] = 128 * step / maxValue;
+    offset[2] = offset[1];
+  }
+
+}
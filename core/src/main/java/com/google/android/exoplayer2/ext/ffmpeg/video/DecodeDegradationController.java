@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.ffmpeg.video;
+
+/**
+ * Decides how much decoding work the codec may skip while the renderer is falling behind.
+ * <p>
+ * Each level skips more than the previous one, trading picture quality for decode time before the
+ * renderer has to drop whole frames after decoding them. The level is raised quickly when frames
+ * are late and lowered only after a sustained period of frames arriving on time, so that it does
+ * not oscillate around the point where the decoder just keeps up. Must only be used on the
+ * playback thread.
+ */
+/* package */ final class DecodeDegradationController {
+
+  /**
+   * Full decode.
+   */
+  public static final int LEVEL_NONE = 0;
+  /**
+   * Skip the loop filter of non-reference frames, which nothing else is predicted from.
+   */
+  public static final int LEVEL_SKIP_LOOP_FILTER = 1;
+  /**
+   * Skip non-reference frames entirely.
+   */
+  public static final int LEVEL_SKIP_NON_REFERENCE = 2;
+  /**
+   * Skip all bidirectionally predicted frames, including those used as references. Causes
+   * artifacts until the next keyframe, so it is only used if allowed by {@link #setMaxLevel}.
+   */
+  public static final int LEVEL_SKIP_BIDIRECTIONAL = 3;
+
+  // The smoothed earliness below which the decoder is considered to be falling behind.
+  private static final long LATE_THRESHOLD_US = -20000;
+  // The smoothed earliness above which the decoder is considered to be keeping up.
+  private static final long ON_TIME_THRESHOLD_US = 5000;
+  // The number of consecutive dropped frames that raises the level regardless of the trend.
+  private static final int DROPPED_FRAMES_THRESHOLD = 2;
+  // The number of frames to wait after a change before raising the level again, so that the
+  // previous change can take effect on the frames already in the decoder.
+  private static final int FRAMES_BEFORE_RAISE = 15;
+  // The number of consecutive on time frames before the level is lowered.
+  private static final int FRAMES_BEFORE_LOWER = 120;
+  // Weight of the newest sample in the moving average, as a power of two.
+  private static final int SMOOTHING_SHIFT = 3;
+
+  private int maxLevel = LEVEL_SKIP_NON_REFERENCE;
+  private int level;
+  private boolean hasSample;
+  private long smoothedEarlyUs;
+  private int framesSinceChange;
+  private int onTimeFrameCount;
+
+  /**
+   * Returns the current level.
+   */
+  public int getLevel() {
+    return level;
+  }
+
+  /**
+   * Sets the highest level the controller may raise the level to. Defaults to
+   * {@link #LEVEL_SKIP_NON_REFERENCE}, which never skips a frame that others are predicted from.
+   *
+   * @param maxLevel The highest level.
+   * @return Whether the level changed, because it was above the new highest level.
+   */
+  public boolean setMaxLevel(int maxLevel) {
+    this.maxLevel = maxLevel;
+    if (level > maxLevel) {
+      setLevel(maxLevel);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Updates the level with a frame that has been rendered or dropped.
+   *
+   * @param earlyUs The time until the frame should be presented. Negative if it is late.
+   * @param consecutiveDroppedFrameCount The number of frames dropped in a row, including this one
+   *     if it was dropped.
+   * @return Whether the level changed.
+   */
+  public boolean update(long earlyUs, int consecutiveDroppedFrameCount) {
+    if (hasSample) {
+      smoothedEarlyUs += (earlyUs - smoothedEarlyUs) >> SMOOTHING_SHIFT;
+    } else {
+      smoothedEarlyUs = earlyUs;
+      hasSample = true;
+    }
+    framesSinceChange++;
+
+    boolean fallingBehind = smoothedEarlyUs < LATE_THRESHOLD_US
+        || consecutiveDroppedFrameCount >= DROPPED_FRAMES_THRESHOLD;
+    if (fallingBehind) {
+      onTimeFrameCount = 0;
+      if (level < maxLevel && framesSinceChange >= FRAMES_BEFORE_RAISE) {
+        setLevel(level + 1);
+        return true;
+      }
+      return false;
+    }
+
+    if (smoothedEarlyUs > ON_TIME_THRESHOLD_US && consecutiveDroppedFrameCount == 0) {
+      onTimeFrameCount++;
+    } else {
+      onTimeFrameCount = 0;
+    }
+    if (level > LEVEL_NONE && onTimeFrameCount >= FRAMES_BEFORE_LOWER) {
+      setLevel(level - 1);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Forgets the current trend, for example after a seek, while keeping the level.
+   */
+  public void resetTrend() {
+    hasSample = false;
+    smoothedEarlyUs = 0;
+    framesSinceChange = 0;
+    onTimeFrameCount = 0;
+  }
+
+  /**
+   * Returns to full decode and forgets the current trend.
+   */
+  public void reset() {
+    level = LEVEL_NONE;
+    resetTrend();
+  }
+
+  private void setLevel(int level) {
+    this.level = level;
+    framesSinceChange = 0;
+    onTimeFrameCount = 0;
+  }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.ffmpeg.video;
+
+import androidx.annotation.IntDef;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.util.MimeTypes;
+import com.moqan.misc.CpuTopology;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Chooses how the ffmpeg decoder spreads work over threads.
+ * <p>
+ * Frame threading decodes several frames in parallel, which gives the best throughput but delays
+ * output by one frame per thread, slowing down start-up and seeking. Slice threading decodes the
+ * slices of a single frame in parallel and adds no latency, but only helps streams that are coded
+ * with several slices (or wavefronts for H.265).
+ * <p>
+ * On devices with performance and efficiency cores, the default thread count only covers the
+ * performance cores, and decoder threads can optionally be pinned to them.
+ */
+public final class DecoderThreadingPolicy {
+
+  @Retention(RetentionPolicy.SOURCE)
+  @IntDef({THREAD_TYPE_AUTO, THREAD_TYPE_FRAME, THREAD_TYPE_SLICE, THREAD_TYPE_FRAME_AND_SLICE})
+  public @interface ThreadType {
+  }
+
+  /**
+   * Chooses the thread type for each decoder based on the format and the decode time measured by
+   * the previous decoder.
+   */
+  public static final int THREAD_TYPE_AUTO = 0;
+  /**
+   * Frame threading only. Matches FF_THREAD_FRAME.
+   */
+  public static final int THREAD_TYPE_FRAME = 1;
+  /**
+   * Slice threading only. Matches FF_THREAD_SLICE.
+   */
+  public static final int THREAD_TYPE_SLICE = 2;
+  /**
+   * Frame and slice threading, leaving the choice to the codec.
+   */
+  public static final int THREAD_TYPE_FRAME_AND_SLICE = THREAD_TYPE_FRAME | THREAD_TYPE_SLICE;
+
+  /**
+   * A policy that chooses both the thread type and the thread count automatically.
+   */
+  public static final DecoderThreadingPolicy AUTO =
+      new DecoderThreadingPolicy(THREAD_TYPE_AUTO, 0, false);
+
+  // Formats up to this size decode fast enough without frame threading on most devices.
+  private static final int MAX_SLICE_ONLY_PIXEL_COUNT = 1280 * 720;
+  // The share of the frame interval a decoder may use per frame before frame threading is needed.
+  private static final float MAX_SLICE_ONLY_DECODE_LOAD = 0.5f;
+  private static final float DEFAULT_FRAME_RATE = 30;
+
+  private final @ThreadType int threadType;
+  private final int threadCount;
+  private final boolean pinToPerformanceCores;
+
+  /**
+   * @param threadType The thread type, or {@link #THREAD_TYPE_AUTO}.
+   * @param threadCount The number of decoder threads, or 0 to choose it from the number of cores.
+   */
+  public DecoderThreadingPolicy(@ThreadType int threadType, int threadCount) {
+    this(threadType, threadCount, false);
+  }
+
+  /**
+   * @param threadType The thread type, or {@link #THREAD_TYPE_AUTO}.
+   * @param threadCount The number of decoder threads, or 0 to choose it from the number of
+   *     performance cores.
+   * @param pinToPerformanceCores Whether the decode thread and the codec's threads should be
+   *     restricted to the performance cores. Has no effect on devices whose cores are all alike.
+   */
+  public DecoderThreadingPolicy(@ThreadType int threadType, int threadCount,
+      boolean pinToPerformanceCores) {
+    this.threadType = threadType;
+    this.threadCount = threadCount;
+    this.pinToPerformanceCores = pinToPerformanceCores;
+  }
+
+  /**
+   * Returns the thread type to open a decoder for {@code format} with.
+   * <p>
+   * Large and H.264 formats always get frame threading. Other formats start with slice threading
+   * only, and the measurement of the previous decoder can escalate them to frame threading.
+   *
+   * @param format The format to decode.
+   * @param decodeTimePerFrameUs The average decode time per frame measured by the previous decoder
+   *     for this renderer, or {@link C#TIME_UNSET} if unknown.
+   * @param measuredThreadType The thread type that was active while {@code decodeTimePerFrameUs}
+   *     was measured.
+   * @param measuredThreadCount The thread count of the decoder that measured
+   *     {@code decodeTimePerFrameUs}.
+   */
+  public @ThreadType int getThreadType(Format format, long decodeTimePerFrameUs,
+      @ThreadType int measuredThreadType, int measuredThreadCount) {
+    if (threadType != THREAD_TYPE_AUTO) {
+      return threadType;
+    }
+    boolean isLarge = format.width == Format.NO_VALUE || format.height == Format.NO_VALUE
+        || format.width * format.height > MAX_SLICE_ONLY_PIXEL_COUNT;
+    // H.264 streams are commonly coded with a single slice per frame, so slice threading alone
+    // rarely helps them.
+    boolean sliceThreadingUseful = !MimeTypes.VIDEO_H264.equals(format.sampleMimeType);
+    if (isLarge || !sliceThreadingUseful) {
+      return THREAD_TYPE_FRAME_AND_SLICE;
+    }
+    if (decodeTimePerFrameUs != C.TIME_UNSET) {
+      // With frame threading the decode thread only waits for about one frame in threadCount, so
+      // the measured time is scaled back up to the cost of a frame.
+      long frameCostUs = (measuredThreadType & THREAD_TYPE_FRAME) != 0
+          ? decodeTimePerFrameUs * Math.max(measuredThreadCount, 1) : decodeTimePerFrameUs;
+      float frameRate = format.frameRate > 0 ? format.frameRate : DEFAULT_FRAME_RATE;
+      float frameIntervalUs = C.MICROS_PER_SECOND / frameRate;
+      if (frameCostUs > frameIntervalUs * MAX_SLICE_ONLY_DECODE_LOAD) {
+        return THREAD_TYPE_FRAME_AND_SLICE;
+      }
+    }
+    return THREAD_TYPE_SLICE;
+  }
+
+  /**
+   * Returns the number of threads to open a decoder with.
+   */
+  public int getThreadCount() {
+    return threadCount > 0 ? threadCount : CpuTopology.get().getPerformanceCoreCount() + 1;
+  }
+
+  /**
+   * Returns the affinity mask to run the decoder's threads with, where bit n stands for cpu n, or 0
+   * if they should not be pinned.
+   */
+  public long getAffinityMask() {
+    if (!pinToPerformanceCores) {
+      return 0;
+    }
+    CpuTopology topology = CpuTopology.get();
+    return topology.getEfficiencyCoreCount() > 0 ? topology.getPerformanceCoreMask() : 0;
+  }
+
+}
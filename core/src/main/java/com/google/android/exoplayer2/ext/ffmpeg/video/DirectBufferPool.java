@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.ffmpeg.video;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of direct buffers shared by the input and output buffers of successive decoders.
+ * <p>
+ * Requests are rounded up to a size class. There are four size classes per power of two, so at
+ * most a quarter of a buffer is wasted. Buffers returned to the pool are kept for reuse while the
+ * total size of idle buffers stays within the configured limit, and are otherwise left to the
+ * garbage collector.
+ */
+public final class DirectBufferPool {
+
+  /**
+   * The default maximum number of bytes held by idle buffers.
+   */
+  public static final long DEFAULT_MAX_RESIDENT_BYTES = 64 * 1024 * 1024;
+
+  private static final int MIN_CLASS_SHIFT = 12;
+  private static final int MIN_CLASS_SIZE = 1 << MIN_CLASS_SHIFT;
+  private static final int MAX_CLASS_SIZE = 1 << 30;
+  private static final int CLASSES_PER_SHIFT = 4;
+
+  private final ArrayDeque<ByteBuffer>[] freeBuffers;
+
+  private long maxResidentBytes;
+  private long residentBytes;
+  private long outstandingBytes;
+  private long hitCount;
+  private long missCount;
+
+  public DirectBufferPool() {
+    this(DEFAULT_MAX_RESIDENT_BYTES);
+  }
+
+  /**
+   * @param maxResidentBytes The maximum number of bytes held by idle buffers.
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public DirectBufferPool(long maxResidentBytes) {
+    this.maxResidentBytes = maxResidentBytes;
+    freeBuffers = new ArrayDeque[classIndex(MAX_CLASS_SIZE) + 1];
+  }
+
+  /**
+   * Sets the maximum number of bytes held by idle buffers, dropping idle buffers if needed.
+   */
+  public synchronized void setMaxResidentBytes(long maxResidentBytes) {
+    this.maxResidentBytes = maxResidentBytes;
+    for (int i = freeBuffers.length - 1; i >= 0 && residentBytes > maxResidentBytes; i--) {
+      ArrayDeque<ByteBuffer> buffers = freeBuffers[i];
+      while (buffers != null && !buffers.isEmpty() && residentBytes > maxResidentBytes) {
+        residentBytes -= buffers.poll().capacity();
+      }
+    }
+  }
+
+  /**
+   * Returns a cleared buffer with a capacity of at least {@code size} bytes.
+   */
+  public synchronized ByteBuffer acquire(int size) {
+    int classSize = classSize(size);
+    if (classSize > MAX_CLASS_SIZE) {
+      missCount++;
+      outstandingBytes += size;
+      return ByteBuffer.allocateDirect(size);
+    }
+    ArrayDeque<ByteBuffer> buffers = freeBuffers[classIndex(classSize)];
+    ByteBuffer buffer = buffers == null ? null : buffers.poll();
+    if (buffer != null) {
+      hitCount++;
+      residentBytes -= classSize;
+      buffer.clear();
+    } else {
+      missCount++;
+      buffer = ByteBuffer.allocateDirect(classSize);
+    }
+    outstandingBytes += classSize;
+    return buffer;
+  }
+
+  /**
+   * Returns a buffer obtained from {@link #acquire(int)} to the pool. The caller must not access
+   * the buffer afterwards.
+   */
+  public synchronized void release(ByteBuffer buffer) {
+    int capacity = buffer.capacity();
+    outstandingBytes -= capacity;
+    if (capacity > MAX_CLASS_SIZE || classSize(capacity) != capacity
+        || residentBytes + capacity > maxResidentBytes) {
+      return;
+    }
+    int index = classIndex(capacity);
+    if (freeBuffers[index] == null) {
+      freeBuffers[index] = new ArrayDeque<>();
+    }
+    freeBuffers[index].push(buffer);
+    residentBytes += capacity;
+  }
+
+  /**
+   * Returns the number of {@link #acquire(int)} calls satisfied by an idle buffer.
+   */
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  /**
+   * Returns the number of {@link #acquire(int)} calls that allocated a new buffer.
+   */
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  /**
+   * Returns the number of bytes held by idle buffers in the pool.
+   */
+  public synchronized long getResidentBytes() {
+    return residentBytes;
+  }
+
+  /**
+   * Returns the number of bytes held by buffers that have been acquired and not yet released.
+   */
+  public synchronized long getOutstandingBytes() {
+    return outstandingBytes;
+  }
+
+  private static int classSize(int size) {
+    if (size <= MIN_CLASS_SIZE) {
+      return MIN_CLASS_SIZE;
+    }
+    if (size > MAX_CLASS_SIZE) {
+      return Integer.MAX_VALUE;
+    }
+    int step = Integer.highestOneBit(size) / CLASSES_PER_SHIFT;
+    return (size + step - 1) & -step;
+  }
+
+  private static int classIndex(int classSize) {
+    int shift = 31 - Integer.numberOfLeadingZeros(classSize);
+    int subClass = (classSize >> (shift - 2)) & (CLASSES_PER_SHIFT - 1);
+    return (shift - MIN_CLASS_SHIFT) * CLASSES_PER_SHIFT + subClass;
+  }
+
+}
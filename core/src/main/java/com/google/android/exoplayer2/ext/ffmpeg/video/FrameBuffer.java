@@ -15,8 +15,14 @@
  */
 package com.google.android.exoplayer2.ext.ffmpeg.video;
 
+import androidx.annotation.IntDef;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Format;
 import com.google.android.exoplayer2.decoder.OutputBuffer;
 
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
 import java.nio.ByteBuffer;
 
 /**
@@ -24,22 +30,89 @@ import java.nio.ByteBuffer;
  */
 /* package */
 final class FrameBuffer extends OutputBuffer {
-  private final VideoDecoder owner;
+
+  @Retention(RetentionPolicy.SOURCE)
+  @IntDef({PIXEL_LAYOUT_I420, PIXEL_LAYOUT_NV12, PIXEL_LAYOUT_NV21, PIXEL_LAYOUT_P010})
+  public @interface PixelLayout {
+  }
+
+  /**
+   * Three planes: Y, then U and V at half resolution. Samples take {@link #bitDepth} bytes, with
+   * 16 bit samples holding 10 significant bits in their low bits.
+   */
+  public static final int PIXEL_LAYOUT_I420 = 0;
+  /**
+   * Two planes: Y, then interleaved U and V at half resolution, one byte per sample.
+   */
+  public static final int PIXEL_LAYOUT_NV12 = 1;
+  /**
+   * As {@link #PIXEL_LAYOUT_NV12}, with V before U.
+   */
+  public static final int PIXEL_LAYOUT_NV21 = 2;
+  /**
+   * As {@link #PIXEL_LAYOUT_NV12}, with 16 bit samples holding 10 significant bits in their high
+   * bits.
+   */
+  public static final int PIXEL_LAYOUT_P010 = 3;
+
+  private final BaseDecoder owner;
+  private final DirectBufferPool bufferPool;
 
   public ByteBuffer data;
   public int width;
   public int height;
 
   /**
-   * YUV planes for YUV mode.
+   * YUV planes for YUV mode. The third plane is null for two plane layouts.
    */
   public ByteBuffer[] yuvPlanes;
   public int[] yuvStrides;
   public int bitDepth;
   public int rotationDegree;
+  public @PixelLayout int pixelLayout;
+  /**
+   * The color space, range and transfer function signalled by the stream, or
+   * {@link Format#NO_VALUE} if unknown.
+   */
+  public @C.ColorSpace int colorSpace;
+  public @C.ColorRange int colorRange;
+  public @C.ColorTransfer int colorTransfer;
+  /**
+   * HDR static metadata in the format of {@link com.google.android.exoplayer2.video.ColorInfo},
+   * or null if unknown.
+   */
+  public byte[] hdrStaticInfo;
+
+  /**
+   * The native frame whose planes are wrapped by {@link #yuvPlanes} in zero copy mode, or 0 if the
+   * planes are backed by {@link #data}.
+   */
+  /* package */ long nativeFrame;
+
+  /**
+   * The native address of {@link #data}, cached by native code the first time it copies a frame
+   * into the buffer, or 0 if not known yet. Reset whenever {@link #data} is replaced.
+   */
+  /* package */ long dataAddress;
+
+  /**
+   * The {@link BaseDecoder} flush generation the buffer was decoded in.
+   */
+  /* package */ int generation;
+
+  /**
+   * The {@link System#nanoTime()} at which the buffer was posted to the {@link FrameMailbox}.
+   */
+  /* package */ long postTimeNs;
+
+  /**
+   * The pixel buffers the planes were copied into by {@link PixelBufferUploader#stage}, or null.
+   */
+  /* package */ PixelBufferUploader.Slot stagedPixels;
 
-  public FrameBuffer(VideoDecoder owner) {
+  public FrameBuffer(BaseDecoder owner, DirectBufferPool bufferPool) {
     this.owner = owner;
+    this.bufferPool = bufferPool;
   }
 
   @Override
@@ -48,14 +121,23 @@ final class FrameBuffer extends OutputBuffer {
   }
 
   /**
-   * Resizes the buffer based on the given stride. Called via JNI after decoding completes.
+   * Resizes the buffer based on the given stride. Called via JNI after decoding completes, as the
+   * only upcall for the frame.
    * @return Whether the buffer was resized successfully.
    */
-  public boolean initForYuvFrame(int width, int height, int yStride, int uvStride,
-      int bitDepth) {
+  public boolean initForYuvFrame(long timeUs, int rotationDegree, int width, int height,
+      int yStride, int uvStride, int bitDepth, @PixelLayout int pixelLayout,
+      @C.ColorSpace int colorSpace, @C.ColorRange int colorRange,
+      @C.ColorTransfer int colorTransfer) {
+    this.timeUs = timeUs;
+    this.rotationDegree = rotationDegree;
     this.width = width;
     this.height = height;
     this.bitDepth = bitDepth;
+    this.pixelLayout = pixelLayout;
+    this.colorSpace = colorSpace;
+    this.colorRange = colorRange;
+    this.colorTransfer = colorTransfer;
 
     int uvHeight = (int) (((long) height + 1) / 2);
     if (!isSafeToMultiply(yStride, height) || !isSafeToMultiply(uvStride, uvHeight)) {
@@ -64,8 +146,9 @@ final class FrameBuffer extends OutputBuffer {
 
     int yLength = yStride * height;
     int uvLength = uvStride * uvHeight;
-    int minimumYuvSize = yLength + (uvLength * 2);
-    if (!isSafeToMultiply(uvLength, 2) || minimumYuvSize < yLength) {
+    int uvPlaneCount = isSemiPlanar(pixelLayout) ? 1 : 2;
+    int minimumYuvSize = yLength + (uvLength * uvPlaneCount);
+    if (!isSafeToMultiply(uvLength, uvPlaneCount) || minimumYuvSize < yLength) {
       return false;
     }
     initData(minimumYuvSize);
@@ -78,24 +161,93 @@ final class FrameBuffer extends OutputBuffer {
     data.position(yLength);
     yuvPlanes[1] = data.slice();
     yuvPlanes[1].limit(uvLength);
-    data.position(yLength + uvLength);
-    yuvPlanes[2] = data.slice();
-    yuvPlanes[2].limit(uvLength);
+    if (uvPlaneCount == 2) {
+      data.position(yLength + uvLength);
+      yuvPlanes[2] = data.slice();
+      yuvPlanes[2].limit(uvLength);
+    } else {
+      yuvPlanes[2] = null;
+    }
+    if (yuvStrides == null) {
+      yuvStrides = new int[3];
+    }
+    yuvStrides[0] = yStride;
+    yuvStrides[1] = uvStride;
+    yuvStrides[2] = uvPlaneCount == 2 ? uvStride : 0;
+    return true;
+  }
+
+  /**
+   * Wraps the planes of a decoded frame without copying them. Called via JNI after decoding
+   * completes, as the only upcall for the frame. The buffer holds the frame reference until it is
+   * cleared. {@code vPlane} is null for two plane layouts.
+   * @return Whether the buffer was initialized successfully.
+   */
+  public boolean initForZeroCopyYuvFrame(long nativeFrame, long timeUs, int rotationDegree,
+      int width, int height, ByteBuffer yPlane, ByteBuffer uPlane, ByteBuffer vPlane, int yStride,
+      int uvStride, int bitDepth, @PixelLayout int pixelLayout, @C.ColorSpace int colorSpace,
+      @C.ColorRange int colorRange, @C.ColorTransfer int colorTransfer) {
+    if (this.nativeFrame != 0) {
+      return false;
+    }
+    this.nativeFrame = nativeFrame;
+    this.timeUs = timeUs;
+    this.rotationDegree = rotationDegree;
+    this.width = width;
+    this.height = height;
+    this.bitDepth = bitDepth;
+    this.pixelLayout = pixelLayout;
+    this.colorSpace = colorSpace;
+    this.colorRange = colorRange;
+    this.colorTransfer = colorTransfer;
+
+    if (yuvPlanes == null) {
+      yuvPlanes = new ByteBuffer[3];
+    }
+    yuvPlanes[0] = yPlane;
+    yuvPlanes[1] = uPlane;
+    yuvPlanes[2] = vPlane;
     if (yuvStrides == null) {
       yuvStrides = new int[3];
     }
     yuvStrides[0] = yStride;
     yuvStrides[1] = uvStride;
-    yuvStrides[2] = uvStride;
+    yuvStrides[2] = vPlane != null ? uvStride : 0;
     return true;
   }
 
+  /**
+   * Returns whether the layout stores U and V interleaved in a single plane.
+   */
+  public static boolean isSemiPlanar(@PixelLayout int pixelLayout) {
+    return pixelLayout != PIXEL_LAYOUT_I420;
+  }
+
   private void initData(int size) {
     if (data == null || data.capacity() < size) {
-      data = ByteBuffer.allocateDirect(size);
-    } else {
-      data.position(0);
-      data.limit(size);
+      if (data != null) {
+        bufferPool.release(data);
+      }
+      data = bufferPool.acquire(size);
+      dataAddress = 0;
+    }
+    data.position(0);
+    data.limit(size);
+  }
+
+  /**
+   * Returns the data to the pool. Must only be called once the buffer is no longer in use.
+   */
+  /* package */ void releaseData() {
+    if (data != null) {
+      if (yuvPlanes != null && nativeFrame == 0) {
+        yuvPlanes[0] = null;
+        yuvPlanes[1] = null;
+        yuvPlanes[2] = null;
+      }
+      bufferPool.release(data);
+      data = null;
+      dataAddress = 0;
     }
   }
 
@@ -115,5 +267,14 @@ final class FrameBuffer extends OutputBuffer {
   public void clear() {
     super.clear();
     rotationDegree = 0;
+    PixelBufferUploader.unstage(this);
+    if (nativeFrame != 0) {
+      // The planes point into the native frame, drop them before the frame is unreferenced.
+      yuvPlanes[0] = null;
+      yuvPlanes[1] = null;
+      yuvPlanes[2] = null;
+      owner.releaseNativeFrame(nativeFrame);
+      nativeFrame = 0;
+    }
   }
 }
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.ffmpeg.video;
+
+/**
+ * Decides when {@link SoftVideoRenderer} drops decoded frames rather than rendering them, from how
+ * early each frame is relative to the playback position.
+ */
+/* package */ final class FrameDropPolicy {
+
+  // A frame is late if it should have been presented more than 30 ms ago.
+  private static final long LATE_THRESHOLD_US = -30000;
+  // A frame is very late if it should have been presented more than 500 ms ago.
+  private static final long VERY_LATE_THRESHOLD_US = -500000;
+
+  private FrameDropPolicy() {}
+
+  /**
+   * Returns whether a frame is late enough to be skipped.
+   *
+   * @param earlyUs The time until the frame should be presented. Negative if it is late.
+   */
+  public static boolean isBufferLate(long earlyUs) {
+    return earlyUs < LATE_THRESHOLD_US;
+  }
+
+  /**
+   * Returns whether a frame is so late that all buffers up to the next keyframe should be dropped.
+   *
+   * @param earlyUs The time until the frame should be presented. Negative if it is late.
+   */
+  public static boolean isBufferVeryLate(long earlyUs) {
+    return earlyUs < VERY_LATE_THRESHOLD_US;
+  }
+
+  /**
+   * Returns whether a decoded frame should be dropped. A late frame is only dropped while joining,
+   * or if the next frame is already decoded, so that something is always shown.
+   *
+   * @param earlyUs The time until the frame should be presented. Negative if it is late.
+   * @param hasNextOutputBuffer Whether the frame after it is already decoded.
+   * @param joining Whether the renderer is joining playback.
+   */
+  public static boolean shouldDropOutputBuffer(long earlyUs, boolean hasNextOutputBuffer,
+      boolean joining) {
+    return isBufferLate(earlyUs) && (joining || hasNextOutputBuffer);
+  }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.ffmpeg.video;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands the latest frame from the renderer's playback thread to the GL thread without locking.
+ * <p>
+ * The mailbox holds at most one frame. Together with the frame the GL thread draws and the one
+ * being decoded, this makes up a triple buffer in which the producer never waits. A frame that is
+ * overwritten before the GL thread takes it is released and counted as dropped.
+ */
+/* package */ final class FrameMailbox {
+
+  private final AtomicReference<FrameBuffer> pendingFrame;
+  private final AtomicInteger droppedFrameCount;
+
+  public FrameMailbox() {
+    pendingFrame = new AtomicReference<>();
+    droppedFrameCount = new AtomicInteger();
+  }
+
+  /**
+   * Posts a frame, replacing any frame the GL thread hasn't taken yet.
+   *
+   * @param frame The frame. The mailbox or its consumer becomes responsible for releasing it.
+   */
+  public void post(FrameBuffer frame) {
+    frame.postTimeNs = System.nanoTime();
+    FrameBuffer overwrittenFrame = pendingFrame.getAndSet(frame);
+    if (overwrittenFrame != null) {
+      overwrittenFrame.release();
+      droppedFrameCount.incrementAndGet();
+    }
+  }
+
+  /**
+   * Takes the posted frame, if any. The caller becomes responsible for releasing it.
+   */
+  public FrameBuffer take() {
+    return pendingFrame.getAndSet(null);
+  }
+
+  /**
+   * Returns the number of frames overwritten since the last call, and resets it.
+   */
+  public int pollDroppedFrameCount() {
+    return droppedFrameCount.getAndSet(0);
+  }
+
+}
@@ -18,163 +18,258 @@ package com.google.android.exoplayer2.ext.ffmpeg.video;
 import android.graphics.Color;
 import android.opengl.GLES20;
 
-import com.moqan.mqplayer.egl.GLViewRenderer;
+import androidx.annotation.VisibleForTesting;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.ext.ffmpeg.DecoderSoLibrary;
+import com.moqan.mqplayer.egl.SharedGLViewRenderer;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * GLSurfaceView.Renderer implementation that can render YUV Frames returned by libffmpeg after
  * decoding. It does the YUV to RGB color conversion in the Fragment Shader.
  */
-class FrameRenderer implements GLViewRenderer, IFrameRenderer {
-    private static final float[] kColorConversion601 = {
-            1.164f, 1.164f, 1.164f,
-            0.0f, -0.392f, 2.017f,
-            1.596f, -0.813f, 0.0f,
-    };
-
-    private static final float[] kColorConversion709 = {
-            1.164f, 1.164f, 1.164f,
-            0.0f, -0.213f, 2.112f,
-            1.793f, -0.533f, 0.0f,
-    };
-
-    private static final float[] kColorConversion2020 = {
-            1.168f, 1.168f, 1.168f,
-            0.0f, -0.188f, 2.148f,
-            1.683f, -0.652f, 0.0f,
-    };
-
+class FrameRenderer implements SharedGLViewRenderer, IFrameRenderer {
+    // in_tc is the position in the unit quad, with (0, 0) at the top left. tex_matrix maps it to
+    // the texture, applying the rotation, the scale type and the crop of the stride padding.
     private static final String VERTEX_SHADER =
             "varying vec2 interp_tc;\n"
                     + "attribute vec4 in_pos;\n"
                     + "attribute vec2 in_tc;\n"
+                    + "uniform mat3 tex_matrix;\n"
                     + "void main() {\n"
                     + "  gl_Position = in_pos;\n"
-                    + "  interp_tc = in_tc;\n"
+                    + "  interp_tc = (tex_matrix * vec3(in_tc, 1.0)).xy;\n"
                     + "}\n";
 
+    // Program variants, one per pixel layout and bit depth, so that fragment shaders don't branch.
+    private static final int PROGRAM_I420 = 0;
+    private static final int PROGRAM_I010 = 1;
+    private static final int PROGRAM_NV12 = 2;
+    private static final int PROGRAM_NV21 = 3;
+    private static final int PROGRAM_P010 = 4;
+    private static final int PROGRAM_I010_HDR = 5;
+    private static final int PROGRAM_P010_HDR = 6;
+    private static final int PROGRAM_COUNT = 7;
+
     private static final String[] TEXTURE_UNIFORMS = {"y_tex", "u_tex", "v_tex"};
-    private static final String FRAGMENT_SHADER =
-            "precision mediump float;\n"
-                    + "varying vec2 interp_tc;\n"
-                    + "uniform sampler2D y_tex;\n"
-                    + "uniform sampler2D u_tex;\n"
-                    + "uniform sampler2D v_tex;\n"
-                    + "uniform float bitDepth;\n"
-                    + "uniform mat3 mColorConversion;\n"
-                    + "void main() {\n"
-                    + "vec3 yuv;\n"
-                    + "if(interp_tc.x < 0.0 || interp_tc.x > 1.0 || interp_tc.y < 0.0 || interp_tc.y > 1.0){"
-                    + "gl_FragColor = vec4(0.0, 0.0, 0.0, 0.0);\n"
-                    + "} else {"
-                    + "if(bitDepth==2.0){\n"
-                    + "vec3 yuv_l;\n"
-                    + "vec3 yuv_h;\n"
-                    + "yuv_l.x = texture2D(y_tex, interp_tc).r;\n"
-                    + "yuv_h.x = texture2D(y_tex, interp_tc).a;\n"
-                    + "yuv_l.y = texture2D(u_tex, interp_tc).r;\n"
-                    + "yuv_h.y = texture2D(u_tex, interp_tc).a;\n"
-                    + "yuv_l.z = texture2D(v_tex, interp_tc).r;\n"
-                    + "yuv_h.z = texture2D(v_tex, interp_tc).a;\n"
-                    + "yuv = (yuv_l * 255.0 + yuv_h * 255.0 * 256.0) / (1023.0) - vec3(16.0 / 255.0, 0.5, 0.5);\n"
-                    + "}else{\n"
-                    + "yuv.x = texture2D(y_tex, interp_tc).r - 0.0625;\n"
-                    + "yuv.y = texture2D(u_tex, interp_tc).r - 0.5;\n"
-                    + "yuv.z = texture2D(v_tex, interp_tc).r - 0.5;\n"
-                    + "}\n"
-                    + "gl_FragColor = vec4(mColorConversion * yuv, 1.0);\n"
-                    + "}"
+    private static final String[] SEMI_PLANAR_TEXTURE_UNIFORMS = {"y_tex", "uv_tex"};
+
+    // Each variant samples the planes into yuv, normalized to [0, 1] for its bit depth. 16 bit
+    // samples are uploaded as luminance-alpha (or RGBA for interleaved chroma) with the low byte
+    // first, and are combined with factors that keep mediump intermediates below 1.
+    private static final String SAMPLE_I420 =
+            "yuv = vec3(texture2D(y_tex, interp_tc).r, texture2D(u_tex, interp_tc).r,"
+                    + " texture2D(v_tex, interp_tc).r);\n";
+    private static final String SAMPLE_I010 =
+            "vec2 y = texture2D(y_tex, interp_tc).ra;\n"
+                    + "vec2 u = texture2D(u_tex, interp_tc).ra;\n"
+                    + "vec2 v = texture2D(v_tex, interp_tc).ra;\n"
+                    + "yuv = vec3(y.y, u.y, v.y) * (65280.0 / 1023.0)"
+                    + " + vec3(y.x, u.x, v.x) * (255.0 / 1023.0);\n";
+    private static final String SAMPLE_NV12 =
+            "yuv = vec3(texture2D(y_tex, interp_tc).r, texture2D(uv_tex, interp_tc).ra);\n";
+    private static final String SAMPLE_NV21 =
+            "yuv = vec3(texture2D(y_tex, interp_tc).r, texture2D(uv_tex, interp_tc).ar);\n";
+    // P010 holds 10 bit samples in the high bits of 16.
+    private static final String SAMPLE_P010 =
+            "vec2 y = texture2D(y_tex, interp_tc).ra;\n"
+                    + "vec4 uv = texture2D(uv_tex, interp_tc);\n"
+                    + "yuv = vec3(y.y, uv.g, uv.a) * (65280.0 / 65472.0)"
+                    + " + vec3(y.x, uv.r, uv.b) * (255.0 / 65472.0);\n";
+
+    // The HDR variants look up the tone mapped linear value of each channel from a table built by
+    // HdrToneMapping, convert BT.2020 primaries to BT.709 and apply the display gamma, all in the
+    // same pass as the YUV conversion.
+    private static final String TONE_MAP_FUNCTION =
+            "float toneMap(float x) {\n"
+                    + "  vec2 t = texture2D(tone_lut,"
+                    + " vec2(x * (1023.0 / 1024.0) + (0.5 / 1024.0), 0.5)).ra;\n"
+                    + "  return t.y * (65280.0 / 65535.0) + t.x * (255.0 / 65535.0);\n"
                     + "}\n";
-
-    private static final FloatBuffer TEXTURE_VERTICES = nativeFloatBuffer(
-            -1.0f, 1.0f,
-            -1.0f, -1.0f,
-            1.0f, 1.0f,
-            1.0f, -1.0f);
+    private static final String TONE_MAP_RGB = buildToneMapRgb();
+    // The unit after the plane textures.
+    private static final int TONE_MAPPING_TEXTURE_UNIT = 3;
+
+    // Attribute locations bound before linking, so that all programs share the vertex state.
+    private static final int POSITION_ATTRIBUTE = 0;
+    private static final int TEXTURE_COORDINATE_ATTRIBUTE = 1;
+
+    // The number of frames whose pixel buffers can be in flight on the GLES 3 upload path.
+    private static final int PIXEL_BUFFER_COUNT = 3;
+
+    // Interleaved clip space positions and unit quad coordinates of a triangle strip. The geometry
+    // never changes, as everything that depends on the frame and surface is in tex_matrix.
+    private static final FloatBuffer QUAD_VERTICES = nativeFloatBuffer(
+            -1.0f, 1.0f, 0.0f, 0.0f,
+            -1.0f, -1.0f, 0.0f, 1.0f,
+            1.0f, 1.0f, 1.0f, 0.0f,
+            1.0f, -1.0f, 1.0f, 1.0f);
+    private static final int QUAD_VERTEX_STRIDE = 4 * 4;
+    private static final int QUAD_TEXTURE_COORDINATE_OFFSET = 2 * 4;
     private final int[] yuvTextures = new int[3];
-    private final AtomicReference<FrameBuffer> pendingOutputBufferReference;
-
-    // Kept in a field rather than a local variable so that it doesn't get garbage collected before
-    // glDrawArrays uses it.
-    @SuppressWarnings("FieldCanBeLocal")
-    private FloatBuffer textureCoords;
-    private int program;
-    private int texLocation;
-    private int colorMatrixLocation;
-    private int bitDepthLocation;
-    private int previousWidth;
-    private int previousStride;
+    // Dimensions and format the texture storage of each plane was allocated with.
+    private final int[] textureWidths = new int[3];
+    private final int[] textureHeights = new int[3];
+    private final int[] textureFormats = new int[3];
+    private final int[] toneMappingTexture = new int[1];
+    private final ByteBuffer toneMappingLut = ByteBuffer.allocateDirect(
+            HdrToneMapping.LUT_SIZE * HdrToneMapping.BYTES_PER_ENTRY);
+    // The transfer function and peak luminance the tone mapping texture was filled for.
+    private int toneMappingTransfer;
+    private int toneMappingPeakLuminance;
+    private final FrameRendererCounters counters = new FrameRendererCounters();
+    // Null if the context is not GLES 3. Read by the producing thread to stage frames.
+    private volatile PixelBufferUploader pixelBufferUploader;
+    private final FrameMailbox mailbox = new FrameMailbox();
+    // Whether the textures hold the planes of renderedOutputBuffer, so that a draw without a new
+    // frame only has to re-issue the draw call. Accessed only from the GL thread.
+    private boolean texturesUploaded;
+
+    private final int[] vertexBuffer = new int[1];
+    private final TextureMatrix textureMatrix = new TextureMatrix();
+    private final YuvProgram[] programs = new YuvProgram[PROGRAM_COUNT];
+    private YuvProgram currentProgram;
 
     private int surfaceWidth, surfaceHeight;
-    private int previousSurfaceWidth, previousSurfaceHeight;
-    private int previousRotationDegree;
 
-    private float bgColorAlpha = 1.0f;
-    private float bgColorRed = 0.f;
-    private float bgColorGreen = 0.f;
-    private float bgColorBlue = 0.f;
+    private volatile int backgroundColor = Color.BLACK;
+    private int previousBackgroundColor;
 
-    private FrameScaleType scaleType = FrameScaleType.FIT_CENTER;
+    private volatile FrameScaleType scaleType = FrameScaleType.FIT_CENTER;
     private FrameScaleType previousScaleType = scaleType;
+    // Whether the surface was created, replaced or resized since the last draw, so that it must be
+    // drawn even if the frame and settings are the same. Set by onSurfaceCreated and by
+    // onSurfaceChanged, which both GL thread types call for a new surface. Accessed only from the
+    // GL thread.
+    private boolean surfaceInvalidated;
 
     private FrameBuffer renderedOutputBuffer; // Accessed only from the GL thread.
-
-    public FrameRenderer() {
-        previousWidth = -1;
-        previousStride = -1;
-        pendingOutputBufferReference = new AtomicReference<>();
-    }
+    private volatile FrameTracer frameTracer;
 
     public void setBackgroundColor(int bgColor) {
-        this.bgColorAlpha = Color.alpha(bgColor) / 255.0f;
-        this.bgColorRed = Color.red(bgColor) / 255.0f;
-        this.bgColorGreen = Color.green(bgColor) / 255.0f;
-        this.bgColorBlue = Color.blue(bgColor) / 255.0f;
+        this.backgroundColor = bgColor;
     }
 
     public void setScaleType(FrameScaleType scaleType) {
         this.scaleType = scaleType;
     }
 
-    @Override
-    public void onSurfaceCreated() {
-        // Create the GL program.
-        program = GLES20.glCreateProgram();
+    public FrameRendererCounters getCounters() {
+        return counters;
+    }
 
-        // Add the vertex and fragment shaders.
-        addShader(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER, program);
-        addShader(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER, program);
+    /**
+     * Returns the number of frames that were replaced by a newer frame before they were drawn since
+     * the last call.
+     */
+    public int pollDroppedFrameCount() {
+        return mailbox.pollDroppedFrameCount();
+    }
 
-        // Link the GL program.
-        GLES20.glLinkProgram(program);
-        int[] result = new int[]{
-                GLES20.GL_FALSE
-        };
-        result[0] = GLES20.GL_FALSE;
-        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, result, 0);
-        abortUnless(result[0] == GLES20.GL_TRUE, GLES20.glGetProgramInfoLog(program));
-        GLES20.glUseProgram(program);
-        int posLocation = GLES20.glGetAttribLocation(program, "in_pos");
-        GLES20.glEnableVertexAttribArray(posLocation);
-        GLES20.glVertexAttribPointer(
-                posLocation, 2, GLES20.GL_FLOAT, false, 0, TEXTURE_VERTICES);
-        texLocation = GLES20.glGetAttribLocation(program, "in_tc");
-        GLES20.glEnableVertexAttribArray(texLocation);
+    public void setFrameTracer(FrameTracer frameTracer) {
+        this.frameTracer = frameTracer;
+    }
+
+    /**
+     * Stamps the swap of the frame drawn last. Must be called on the GL thread after the surface
+     * has been swapped.
+     */
+    public void onFrameSwapped() {
+        FrameTracer frameTracer = this.frameTracer;
+        if (frameTracer != null) {
+            frameTracer.markSwapped();
+        }
+    }
+
+    @Override
+    public void onSurfaceCreated() {
+        // All programs are linked up front, so that a change of layout or bit depth between frames
+        // only switches the program.
+        programs[PROGRAM_I420] = createProgram(SAMPLE_I420, TEXTURE_UNIFORMS, 8, false);
+        programs[PROGRAM_I010] = createProgram(SAMPLE_I010, TEXTURE_UNIFORMS, 10, false);
+        programs[PROGRAM_NV12] =
+                createProgram(SAMPLE_NV12, SEMI_PLANAR_TEXTURE_UNIFORMS, 8, false);
+        programs[PROGRAM_NV21] =
+                createProgram(SAMPLE_NV21, SEMI_PLANAR_TEXTURE_UNIFORMS, 8, false);
+        programs[PROGRAM_P010] =
+                createProgram(SAMPLE_P010, SEMI_PLANAR_TEXTURE_UNIFORMS, 10, false);
+        programs[PROGRAM_I010_HDR] = createProgram(SAMPLE_I010, TEXTURE_UNIFORMS, 10, true);
+        programs[PROGRAM_P010_HDR] =
+                createProgram(SAMPLE_P010, SEMI_PLANAR_TEXTURE_UNIFORMS, 10, true);
+        currentProgram = programs[PROGRAM_I420];
+        GLES20.glUseProgram(currentProgram.program);
+        GLES20.glGenBuffers(1, vertexBuffer, 0);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBuffer[0]);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, QUAD_VERTICES.capacity() * 4, QUAD_VERTICES,
+                GLES20.GL_STATIC_DRAW);
+        setupVertexAttributes();
         checkNoGLES2Error();
         GLES20.glEnable(GLES20.GL_BLEND);
         checkNoGLES2Error();
         GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
         checkNoGLES2Error();
-        bitDepthLocation = GLES20.glGetUniformLocation(program, "bitDepth");
-        checkNoGLES2Error();
-        colorMatrixLocation = GLES20.glGetUniformLocation(program, "mColorConversion");
-        checkNoGLES2Error();
         setupTextures();
         checkNoGLES2Error();
+        // The texture matrix is uniform state of the new programs.
+        textureMatrix.invalidate();
+        surfaceInvalidated = true;
+        if (pixelBufferUploader != null) {
+            // The surface was recreated with the same context.
+            pixelBufferUploader.release();
+            pixelBufferUploader = null;
+        }
+        if (getGlesMajorVersion() >= 3 && DecoderSoLibrary.isAvailable()) {
+            pixelBufferUploader = new PixelBufferUploader(PIXEL_BUFFER_COUNT);
+            checkNoGLES2Error();
+        }
+    }
+
+    @Override
+    public void onRestoreGLState() {
+        GLES20.glViewport(0, 0, surfaceWidth, surfaceHeight);
+        GLES20.glUseProgram(currentProgram.program);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBuffer[0]);
+        setupVertexAttributes();
+        GLES20.glEnable(GLES20.GL_BLEND);
+        GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+        for (int i = 0; i < 3; i++) {
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, yuvTextures[i]);
+        }
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + TONE_MAPPING_TEXTURE_UNIT);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, toneMappingTexture[0]);
+        checkNoGLES2Error();
+    }
+
+    @Override
+    public void onSurfaceDestroyed() {
+        for (int i = 0; i < PROGRAM_COUNT; i++) {
+            if (programs[i] != null) {
+                GLES20.glDeleteProgram(programs[i].program);
+                programs[i] = null;
+            }
+        }
+        currentProgram = null;
+        GLES20.glDeleteBuffers(1, vertexBuffer, 0);
+        GLES20.glDeleteTextures(3, yuvTextures, 0);
+        GLES20.glDeleteTextures(1, toneMappingTexture, 0);
+        if (pixelBufferUploader != null) {
+            pixelBufferUploader.release();
+            pixelBufferUploader = null;
+        }
+    }
+
+    @Override
+    public void onContextLost() {
+        if (pixelBufferUploader != null) {
+            pixelBufferUploader.retire();
+            pixelBufferUploader = null;
+        }
     }
 
     @Override
@@ -182,109 +277,227 @@ class FrameRenderer implements GLViewRenderer, IFrameRenderer {
         GLES20.glViewport(0, 0, width, height);
         surfaceWidth = width;
         surfaceHeight = height;
+        surfaceInvalidated = true;
     }
 
     @Override
-    public void onDrawFrame() {
-        FrameBuffer pendingOutputBuffer = pendingOutputBufferReference.getAndSet(null);
+    public boolean onDrawFrame() {
+        FrameBuffer pendingOutputBuffer = mailbox.take();
         if (pendingOutputBuffer == null && renderedOutputBuffer == null) {
             // There is no output buffer to render at the moment.
-            return;
+            return false;
+        }
+        FrameScaleType scaleType = this.scaleType;
+        int backgroundColor = this.backgroundColor;
+        if (pendingOutputBuffer == null && !surfaceInvalidated
+                && scaleType == previousScaleType && backgroundColor == previousBackgroundColor) {
+            // The surface already shows exactly what would be drawn.
+            counters.skippedDrawCount++;
+            counters.ensureUpdated();
+            return false;
         }
         if (pendingOutputBuffer != null) {
             if (renderedOutputBuffer != null) {
                 renderedOutputBuffer.release();
             }
             renderedOutputBuffer = pendingOutputBuffer;
+            texturesUploaded = false;
+            counters.onFrameReceived((System.nanoTime() - pendingOutputBuffer.postTimeNs) / 1000);
         }
 
         FrameBuffer outputBuffer = renderedOutputBuffer;
-        float[] colorConversion = kColorConversion709;
-        int bitDepth = outputBuffer.bitDepth;
-        int format = bitDepth == 1 ? GLES20.GL_LUMINANCE : GLES20.GL_LUMINANCE_ALPHA;
 
-        GLES20.glUniformMatrix3fv(colorMatrixLocation, 1, false, colorConversion, 0);
-        GLES20.glUniform1f(bitDepthLocation, bitDepth);
+        YuvProgram program = programs[getProgramIndex(outputBuffer)];
+        if (program != currentProgram) {
+            GLES20.glUseProgram(program.program);
+            currentProgram = program;
+        }
+        // HDR streams that don't signal their color space are BT.2020 whatever their size.
+        int colorSpace = program.toneMapping && outputBuffer.colorSpace == Format.NO_VALUE
+                ? C.COLOR_SPACE_BT2020 : outputBuffer.colorSpace;
+        program.setColor(
+                ColorConversion.resolveColorSpace(colorSpace, outputBuffer.height),
+                ColorConversion.resolveColorRange(outputBuffer.colorRange));
+        if (program.toneMapping) {
+            updateToneMapping(outputBuffer.colorTransfer, HdrToneMapping.getPeakLuminance(
+                    outputBuffer.colorTransfer, outputBuffer.hdrStaticInfo));
+        }
 
-        for (int i = 0; i < 3; i++) {
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, yuvTextures[i]);
+        if (texturesUploaded) {
+            // No new frame since the last draw, for example while the surface is being resized.
+            counters.redrawCount++;
+        } else {
+            long uploadStartTimeNs = System.nanoTime();
+            uploadPlanes(outputBuffer);
+            texturesUploaded = true;
+            counters.onFrameUploaded((System.nanoTime() - uploadStartTimeNs) / 1000);
+        }
+        counters.ensureUpdated();
+        FrameTracer frameTracer = this.frameTracer;
+        if (frameTracer != null && pendingOutputBuffer != null) {
+            frameTracer.markUploaded(outputBuffer.timeUs);
+        }
 
-            int width = outputBuffer.yuvStrides[i] / bitDepth;
-            int height = (i == 0) ? outputBuffer.height : outputBuffer.height / 2;
+        // Rotate the frame, crop the stride padding and scale the frame to the surface.
+        textureMatrix.update(outputBuffer.width, outputBuffer.height, outputBuffer.yuvStrides[0],
+                outputBuffer.bitDepth, outputBuffer.rotationDegree, surfaceWidth, surfaceHeight,
+                scaleType);
+        previousScaleType = scaleType;
+        program.setTextureMatrix(textureMatrix.getMatrix(), textureMatrix.getGeneration());
+        GLES20.glClearColor(Color.red(backgroundColor) / 255.0f,
+                Color.green(backgroundColor) / 255.0f, Color.blue(backgroundColor) / 255.0f,
+                Color.alpha(backgroundColor) / 255.0f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        checkNoGLES2Error();
+        previousBackgroundColor = backgroundColor;
+        surfaceInvalidated = false;
+        return true;
+    }
 
-            GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
-            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, format,
-                    width, height, 0, format, GLES20.GL_UNSIGNED_BYTE,
-                    outputBuffer.yuvPlanes[i]);
-        }
+    private static void setupVertexAttributes() {
+        GLES20.glEnableVertexAttribArray(POSITION_ATTRIBUTE);
+        GLES20.glVertexAttribPointer(
+                POSITION_ATTRIBUTE, 2, GLES20.GL_FLOAT, false, QUAD_VERTEX_STRIDE, 0);
+        GLES20.glEnableVertexAttribArray(TEXTURE_COORDINATE_ATTRIBUTE);
+        GLES20.glVertexAttribPointer(TEXTURE_COORDINATE_ATTRIBUTE, 2, GLES20.GL_FLOAT, false,
+                QUAD_VERTEX_STRIDE, QUAD_TEXTURE_COORDINATE_OFFSET);
+    }
 
-        // Set cropping of stride if either width,stride,surface width or surface height has changed.
-        if (previousWidth != outputBuffer.width ||
-                previousStride != outputBuffer.yuvStrides[0] ||
-                previousSurfaceWidth != surfaceWidth ||
-                previousSurfaceHeight != surfaceHeight ||
-                previousScaleType != scaleType ||
-                previousRotationDegree != outputBuffer.rotationDegree) {
-
-            int width = outputBuffer.width;
-            int height = outputBuffer.height;
-            int rotationDegree = outputBuffer.rotationDegree;
-            if (rotationDegree == 90 || rotationDegree == 270) {
-                int tmp = width;
-                width = height;
-                height = tmp;
-            }
+    private YuvProgram createProgram(String sampleYuv, String[] textureUniforms,
+            int bitsPerSample, boolean toneMapping) {
+        String fragmentShader = buildFragmentShader(sampleYuv, textureUniforms, toneMapping);
 
-            float verticalAspect = 0.f;
-            float horizontalAspect = 0.f;
-            if (scaleType != FrameScaleType.FIT_XY) {
-                boolean fitX = false;
-                boolean fitY = false;
-                if (scaleType == FrameScaleType.FIT_CENTER) {
-                    if (width / (float)surfaceWidth >= height / (float)surfaceHeight) {
-                        fitX = true;
-                    } else {
-                        fitY = true;
-                    }
-                }
-                if (fitX || scaleType == FrameScaleType.FIT_X) {
-                    float textureHeight = (float) surfaceWidth * height / width;
-                    verticalAspect = (textureHeight - surfaceHeight) / 2f / textureHeight;
-                } else if (fitY || scaleType == FrameScaleType.FIT_Y) {
-                    float textureWidth = (float) surfaceHeight * width / height;
-                    horizontalAspect = (textureWidth - surfaceWidth) / 2f / textureWidth;
-                }
-            }
+        int program = GLES20.glCreateProgram();
 
-            if (rotationDegree == 90 || rotationDegree == 270) {
-                float tmp = horizontalAspect;
-                horizontalAspect = verticalAspect;
-                verticalAspect = tmp;
-            }
+        // Add the vertex and fragment shaders.
+        addShader(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER, program);
+        addShader(GLES20.GL_FRAGMENT_SHADER, fragmentShader, program);
+        GLES20.glBindAttribLocation(program, POSITION_ATTRIBUTE, "in_pos");
+        GLES20.glBindAttribLocation(program, TEXTURE_COORDINATE_ATTRIBUTE, "in_tc");
 
-            float crop = (float) outputBuffer.width * bitDepth / outputBuffer.yuvStrides[0];
-            textureCoords = nativeFloatBuffer(
-                    crop * horizontalAspect, verticalAspect,
-                    crop * horizontalAspect, 1 - verticalAspect,
-                    crop * (1 - horizontalAspect), verticalAspect,
-                    crop * (1 - horizontalAspect), 1 - verticalAspect);
-            TextureRotationUtil.rotate(textureCoords, outputBuffer.rotationDegree);
-
-            GLES20.glVertexAttribPointer(
-                    texLocation, 2, GLES20.GL_FLOAT, false, 0, textureCoords);
-
-            previousWidth = outputBuffer.width;
-            previousStride = outputBuffer.yuvStrides[0];
-            previousSurfaceWidth = surfaceWidth;
-            previousSurfaceHeight = surfaceHeight;
-            previousScaleType = scaleType;
-            previousRotationDegree = rotationDegree;
+        // Link the GL program.
+        GLES20.glLinkProgram(program);
+        int[] result = new int[]{
+                GLES20.GL_FALSE
+        };
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, result, 0);
+        abortUnless(result[0] == GLES20.GL_TRUE, GLES20.glGetProgramInfoLog(program));
+
+        GLES20.glUseProgram(program);
+        for (int i = 0; i < textureUniforms.length; i++) {
+            GLES20.glUniform1i(GLES20.glGetUniformLocation(program, textureUniforms[i]), i);
         }
-        GLES20.glClearColor(bgColorRed, bgColorGreen, bgColorBlue, bgColorAlpha);
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        if (toneMapping) {
+            GLES20.glUniform1i(GLES20.glGetUniformLocation(program, "tone_lut"),
+                    TONE_MAPPING_TEXTURE_UNIT);
+        }
+        YuvProgram yuvProgram = new YuvProgram(program, bitsPerSample, toneMapping,
+                GLES20.glGetUniformLocation(program, "mColorConversion"),
+                GLES20.glGetUniformLocation(program, "yuvOffset"),
+                GLES20.glGetUniformLocation(program, "tex_matrix"));
         checkNoGLES2Error();
+        return yuvProgram;
+    }
+
+    /**
+     * Returns the fragment shader of the I010 or, if {@code semiPlanar}, the P010 HDR program.
+     */
+    @VisibleForTesting
+    static String getHdrFragmentShader(boolean semiPlanar) {
+        return semiPlanar
+                ? buildFragmentShader(SAMPLE_P010, SEMI_PLANAR_TEXTURE_UNIFORMS, true)
+                : buildFragmentShader(SAMPLE_I010, TEXTURE_UNIFORMS, true);
+    }
+
+    private static String buildFragmentShader(String sampleYuv, String[] textureUniforms,
+            boolean toneMapping) {
+        StringBuilder fragmentShader = new StringBuilder()
+                .append("precision mediump float;\n")
+                .append("varying vec2 interp_tc;\n");
+        for (String textureUniform : textureUniforms) {
+            fragmentShader.append("uniform sampler2D ").append(textureUniform).append(";\n");
+        }
+        fragmentShader
+                .append("uniform mat3 mColorConversion;\n")
+                .append("uniform vec3 yuvOffset;\n");
+        if (toneMapping) {
+            fragmentShader
+                    .append("uniform sampler2D tone_lut;\n")
+                    .append(TONE_MAP_FUNCTION);
+        }
+        return fragmentShader
+                .append("void main() {\n")
+                .append("vec3 yuv;\n")
+                .append(sampleYuv)
+                .append("vec3 rgb = mColorConversion * (yuv - yuvOffset);\n")
+                .append(toneMapping ? TONE_MAP_RGB : "")
+                // Coordinates outside the frame are transparent and show the background.
+                .append("vec2 inside = step(vec2(0.0), interp_tc) * step(interp_tc, vec2(1.0));\n")
+                .append("gl_FragColor = vec4(rgb, inside.x * inside.y);\n")
+                .append("}\n")
+                .toString();
+    }
+
+    /**
+     * Returns the tone mapping step of the HDR variants, with the gamut conversion and display
+     * gamma taken from {@link HdrToneMapping}.
+     */
+    private static String buildToneMapRgb() {
+        float[] gamutConversion = new float[9];
+        HdrToneMapping.getGamutConversion(gamutConversion);
+        StringBuilder toneMapRgb = new StringBuilder("const mat3 BT2020_TO_BT709 = mat3(");
+        for (int i = 0; i < gamutConversion.length; i++) {
+            toneMapRgb.append(i == 0 ? "" : ", ").append(gamutConversion[i]);
+        }
+        return toneMapRgb
+                .append(");\n")
+                .append("rgb = clamp(rgb, 0.0, 1.0);\n")
+                .append("rgb = vec3(toneMap(rgb.r), toneMap(rgb.g), toneMap(rgb.b));\n")
+                .append("rgb = pow(clamp(BT2020_TO_BT709 * rgb, 0.0, 1.0), vec3(1.0 / ")
+                .append(HdrToneMapping.DISPLAY_GAMMA)
+                .append("));\n")
+                .toString();
+    }
+
+    private static int getProgramIndex(FrameBuffer outputBuffer) {
+        // Only 10 bit frames carry HDR in practice, 8 bit ones are rendered as they are.
+        boolean hdr = HdrToneMapping.isHdr(outputBuffer.colorTransfer);
+        switch (outputBuffer.pixelLayout) {
+            case FrameBuffer.PIXEL_LAYOUT_NV12:
+                return PROGRAM_NV12;
+            case FrameBuffer.PIXEL_LAYOUT_NV21:
+                return PROGRAM_NV21;
+            case FrameBuffer.PIXEL_LAYOUT_P010:
+                return hdr ? PROGRAM_P010_HDR : PROGRAM_P010;
+            case FrameBuffer.PIXEL_LAYOUT_I420:
+            default:
+                if (outputBuffer.bitDepth == 1) {
+                    return PROGRAM_I420;
+                }
+                return hdr ? PROGRAM_I010_HDR : PROGRAM_I010;
+        }
+    }
+
+    /**
+     * Fills the tone mapping texture for the given transfer function and peak luminance, if it
+     * doesn't hold them already.
+     */
+    private void updateToneMapping(@C.ColorTransfer int colorTransfer, int peakLuminance) {
+        if (toneMappingTransfer == colorTransfer && toneMappingPeakLuminance == peakLuminance) {
+            return;
+        }
+        toneMappingLut.clear();
+        HdrToneMapping.fillLut(colorTransfer, peakLuminance, toneMappingLut);
+        toneMappingLut.flip();
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + TONE_MAPPING_TEXTURE_UNIT);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, toneMappingTexture[0]);
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE_ALPHA,
+                HdrToneMapping.LUT_SIZE, 1, 0, GLES20.GL_LUMINANCE_ALPHA,
+                GLES20.GL_UNSIGNED_BYTE, toneMappingLut);
+        toneMappingTransfer = colorTransfer;
+        toneMappingPeakLuminance = peakLuminance;
     }
 
     private void addShader(int type, String source, int program) {
@@ -303,10 +516,65 @@ class FrameRenderer implements GLViewRenderer, IFrameRenderer {
         checkNoGLES2Error();
     }
 
+    private void uploadPlanes(FrameBuffer outputBuffer) {
+        int bitDepth = outputBuffer.bitDepth;
+        boolean semiPlanar = FrameBuffer.isSemiPlanar(outputBuffer.pixelLayout);
+        int planeCount = semiPlanar ? 2 : 3;
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        PixelBufferUploader.Slot stagedPixels = pixelBufferUploader != null
+                ? pixelBufferUploader.takeStaged(outputBuffer) : null;
+        for (int i = 0; i < planeCount; i++) {
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, yuvTextures[i]);
+
+            int width;
+            int format;
+            if (semiPlanar && i == 1) {
+                // Each texel holds a U and V pair.
+                width = outputBuffer.yuvStrides[i] / (bitDepth * 2);
+                format = bitDepth == 1 ? GLES20.GL_LUMINANCE_ALPHA : GLES20.GL_RGBA;
+            } else {
+                width = outputBuffer.yuvStrides[i] / bitDepth;
+                format = bitDepth == 1 ? GLES20.GL_LUMINANCE : GLES20.GL_LUMINANCE_ALPHA;
+            }
+            // Odd heights have a last chroma row shared by a single luma row.
+            int height = (i == 0) ? outputBuffer.height : (outputBuffer.height + 1) / 2;
+
+            if (textureWidths[i] != width || textureHeights[i] != height
+                    || textureFormats[i] != format) {
+                // Reallocate the storage only when the plane geometry changes, as many drivers
+                // allocate new storage on every glTexImage2D.
+                GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, format,
+                        width, height, 0, format, GLES20.GL_UNSIGNED_BYTE,
+                        outputBuffer.yuvPlanes[i]);
+                textureWidths[i] = width;
+                textureHeights[i] = height;
+                textureFormats[i] = format;
+                counters.textureAllocationCount++;
+            } else if (stagedPixels == null
+                    || !pixelBufferUploader.upload(stagedPixels, i, width, height, format)) {
+                GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0,
+                        width, height, format, GLES20.GL_UNSIGNED_BYTE,
+                        outputBuffer.yuvPlanes[i]);
+            }
+        }
+        if (pixelBufferUploader != null) {
+            if (stagedPixels != null) {
+                pixelBufferUploader.finishUpload(stagedPixels);
+                counters.stagedFrameCount++;
+            }
+            // Map buffers for the frames that follow, which are likely to have the same geometry.
+            pixelBufferUploader.prepare(outputBuffer);
+        }
+    }
+
     private void setupTextures() {
+        texturesUploaded = false;
         GLES20.glGenTextures(3, yuvTextures, 0);
         for (int i = 0; i < 3; i++) {
-            GLES20.glUniform1i(GLES20.glGetUniformLocation(program, TEXTURE_UNIFORMS[i]), i);
+            textureWidths[i] = 0;
+            textureHeights[i] = 0;
+            textureFormats[i] = 0;
             GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
             GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, yuvTextures[i]);
             GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
@@ -318,9 +586,38 @@ class FrameRenderer implements GLViewRenderer, IFrameRenderer {
             GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
                     GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
         }
+        // Linear filtering interpolates the two bytes of an entry with the same weights, which
+        // interpolates the 16 bit value.
+        GLES20.glGenTextures(1, toneMappingTexture, 0);
+        toneMappingTransfer = Format.NO_VALUE;
+        toneMappingPeakLuminance = Format.NO_VALUE;
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + TONE_MAPPING_TEXTURE_UNIT);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, toneMappingTexture[0]);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
         checkNoGLES2Error();
     }
 
+    /**
+     * Returns the major version of the current context, parsed from its "OpenGL ES N.M" version
+     * string.
+     */
+    private static int getGlesMajorVersion() {
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        String prefix = "OpenGL ES ";
+        if (version == null || !version.startsWith(prefix) || version.length() <= prefix.length()) {
+            return 2;
+        }
+        char major = version.charAt(prefix.length());
+        return Character.isDigit(major) ? major - '0' : 2;
+    }
+
     private void abortUnless(boolean condition, String msg) {
         if (!condition) {
             throw new RuntimeException(msg);
@@ -342,6 +639,61 @@ class FrameRenderer implements GLViewRenderer, IFrameRenderer {
         return buffer;
     }
 
+    /**
+     * A linked program and the color conversion and texture matrix last uploaded to it. Must only be used on the GL
+     * thread, while the program is current.
+     */
+    private static final class YuvProgram {
+        public final int program;
+        public final boolean toneMapping;
+        private final int bitsPerSample;
+        private final int colorMatrixLocation;
+        private final int offsetLocation;
+        private final int textureMatrixLocation;
+        private final float[] colorMatrix = new float[9];
+        private final float[] offset = new float[3];
+        private int colorSpace = Format.NO_VALUE;
+        private int colorRange = Format.NO_VALUE;
+        private int textureMatrixGeneration = Format.NO_VALUE;
+
+        public YuvProgram(int program, int bitsPerSample, boolean toneMapping,
+                int colorMatrixLocation, int offsetLocation, int textureMatrixLocation) {
+            this.program = program;
+            this.toneMapping = toneMapping;
+            this.bitsPerSample = bitsPerSample;
+            this.colorMatrixLocation = colorMatrixLocation;
+            this.offsetLocation = offsetLocation;
+            this.textureMatrixLocation = textureMatrixLocation;
+        }
+
+        /**
+         * Uploads the conversion for the given color space and range, if it differs from the one
+         * the program already has.
+         */
+        public void setColor(@C.ColorSpace int colorSpace, @C.ColorRange int colorRange) {
+            if (this.colorSpace == colorSpace && this.colorRange == colorRange) {
+                return;
+            }
+            this.colorSpace = colorSpace;
+            this.colorRange = colorRange;
+            ColorConversion.getMatrix(colorSpace, colorRange, bitsPerSample, colorMatrix);
+            ColorConversion.getOffset(colorRange, bitsPerSample, offset);
+            GLES20.glUniformMatrix3fv(colorMatrixLocation, 1, false, colorMatrix, 0);
+            GLES20.glUniform3fv(offsetLocation, 1, offset, 0);
+        }
+
+        /**
+         * Uploads the texture matrix, if the program doesn't have the given generation of it yet.
+         */
+        public void setTextureMatrix(float[] textureMatrix, int generation) {
+            if (textureMatrixGeneration == generation) {
+                return;
+            }
+            textureMatrixGeneration = generation;
+            GLES20.glUniformMatrix3fv(textureMatrixLocation, 1, false, textureMatrix, 0);
+        }
+    }
+
     /**
      * Set a frame to be rendered. This should be followed by a call to
      * FFmpegVideoSurfaceView.requestRender() to actually render the frame.
@@ -349,10 +701,11 @@ class FrameRenderer implements GLViewRenderer, IFrameRenderer {
      * @param outputBuffer OutputBuffer containing the YUV Frame to be rendered
      */
     public void setOutputBuffer(FrameBuffer outputBuffer) {
-        FrameBuffer oldPendingOutputBuffer = pendingOutputBufferReference.getAndSet(outputBuffer);
-        if (oldPendingOutputBuffer != null) {
-            // The old pending output buffer will never be used for rendering, so release it now.
-            oldPendingOutputBuffer.release();
+        PixelBufferUploader pixelBufferUploader = this.pixelBufferUploader;
+        if (pixelBufferUploader != null) {
+            // Copy the planes on this thread, so that the GL thread only starts the transfers.
+            pixelBufferUploader.stage(outputBuffer);
         }
+        mailbox.post(outputBuffer);
     }
 }
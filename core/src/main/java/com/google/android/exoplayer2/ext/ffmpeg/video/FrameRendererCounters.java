@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.ffmpeg.video;
+
+/**
+ * Maintains frame and texture upload counts for a {@link FrameRenderer}.
+ * <p>
+ * Counters are updated on the GL thread. Call {@link #ensureUpdated()} before reading them from
+ * another thread.
+ */
+public final class FrameRendererCounters {
+
+  /**
+   * The number of frames uploaded to textures.
+   */
+  public int uploadedFrameCount;
+  /**
+   * The number of times texture storage was (re)allocated with glTexImage2D.
+   */
+  public int textureAllocationCount;
+  /**
+   * The number of frames whose planes had been copied into pixel buffers by the producing thread,
+   * so that uploading them only started the transfers. Compare {@link #totalUploadTimeUs} with and
+   * without pixel buffers to measure the saving.
+   */
+  public int stagedFrameCount;
+  /**
+   * The total time spent uploading frames, in microseconds.
+   */
+  public long totalUploadTimeUs;
+  /**
+   * The longest time spent uploading a single frame, in microseconds.
+   */
+  public long maxUploadTimeUs;
+  /**
+   * The number of draws that reused the uploaded textures, because no new frame had arrived.
+   */
+  public int redrawCount;
+  /**
+   * The number of draw requests skipped along with their swap, because neither the frame, the
+   * surface, the scale type nor the background color had changed since the last draw.
+   */
+  public int skippedDrawCount;
+  /**
+   * The number of frames the GL thread took from the mailbox.
+   */
+  public int receivedFrameCount;
+  /**
+   * The total time frames waited in the mailbox before the GL thread took them, in microseconds.
+   */
+  public long totalFrameAgeUs;
+  /**
+   * The longest time a frame waited in the mailbox, in microseconds.
+   */
+  public long maxFrameAgeUs;
+
+  /**
+   * Should be called to ensure counter values are made visible across threads. The GL thread
+   * should call this method after updating the counter values. Any other thread should call this
+   * method before reading the counters.
+   */
+  public synchronized void ensureUpdated() {
+    // Do nothing. The use of synchronized ensures a memory barrier should another thread also
+    // call this method.
+  }
+
+  /* package */ void onFrameReceived(long frameAgeUs) {
+    receivedFrameCount++;
+    totalFrameAgeUs += frameAgeUs;
+    maxFrameAgeUs = Math.max(maxFrameAgeUs, frameAgeUs);
+  }
+
+  /* package */ void onFrameUploaded(long uploadTimeUs) {
+    uploadedFrameCount++;
+    totalUploadTimeUs += uploadTimeUs;
+    maxUploadTimeUs = Math.max(maxUploadTimeUs, uploadTimeUs);
+  }
+
+}
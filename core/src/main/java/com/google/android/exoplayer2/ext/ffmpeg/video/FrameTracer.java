@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.ffmpeg.video;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records when each frame passes through the stages of the decode and render pipeline.
+ * <p>
+ * Timestamps are kept in a preallocated ring indexed by the frame's presentation time, so that
+ * tracing a frame does not allocate. Each stage is written by the thread that owns it: the
+ * playback thread queues packets and requests rendering, the decode thread sends packets and
+ * receives frames, and the GL thread uploads and swaps.
+ * <p>
+ * Computing statistics sorts every metric over the whole ring, which costs far more than stamping
+ * a frame, so periodic reports are computed and delivered on a caller-provided executor rather than
+ * on the playback thread.
+ */
+public final class FrameTracer {
+
+  /**
+   * Receives pipeline statistics.
+   */
+  public interface Listener {
+
+    /**
+     * Called on the report executor every {@code reportIntervalFrames} rendered frames. A report
+     * that comes due while the previous one is still pending is skipped. The {@link Stats}
+     * instance is reused and is only valid for the duration of the call.
+     *
+     * @param stats The statistics over the frames currently held in the ring.
+     */
+    void onFrameStats(Stats stats);
+
+  }
+
+  /**
+   * Latency percentiles over the frames currently held in the ring, in microseconds.
+   */
+  public static final class Stats {
+
+    /**
+     * The number of frames that contributed to at least one metric.
+     */
+    public int frameCount;
+    /**
+     * The median latency of each metric, indexed by {@code METRIC_*}.
+     */
+    public final long[] p50Us = new long[METRIC_COUNT];
+    /**
+     * The 90th percentile latency of each metric, indexed by {@code METRIC_*}.
+     */
+    public final long[] p90Us = new long[METRIC_COUNT];
+    /**
+     * The 99th percentile latency of each metric, indexed by {@code METRIC_*}.
+     */
+    public final long[] p99Us = new long[METRIC_COUNT];
+    /**
+     * The maximum latency of each metric, indexed by {@code METRIC_*}.
+     */
+    public final long[] maxUs = new long[METRIC_COUNT];
+    /**
+     * The {@link DecoderThreadingPolicy.ThreadType} of the current decoder, or
+     * {@link DecoderThreadingPolicy#THREAD_TYPE_AUTO} if unknown.
+     */
+    public int decoderThreadType;
+    /**
+     * The number of threads of the current decoder, or 0 if unknown.
+     */
+    public int decoderThreadCount;
+    /**
+     * The time from the most recent seek until its first frame was rendered, or 0 if no seek has
+     * completed yet.
+     */
+    public long seekToFirstFrameUs;
+
+  }
+
+  /* package */ static final int STAGE_QUEUED = 0;
+  /* package */ static final int STAGE_SENT = 1;
+  /* package */ static final int STAGE_DECODED = 2;
+  /* package */ static final int STAGE_RENDER = 3;
+  /* package */ static final int STAGE_UPLOADED = 4;
+  /* package */ static final int STAGE_SWAPPED = 5;
+  private static final int STAGE_COUNT = 6;
+  private static final String[] STAGE_NAMES =
+      {"queued", "sent", "decoded", "render", "uploaded", "swapped"};
+
+  /**
+   * Time from a packet being queued to the decoder until the decoder accepted it.
+   */
+  public static final int METRIC_QUEUE_WAIT = 0;
+  /**
+   * Time from the decoder accepting a packet until the frame was returned by the decoder.
+   */
+  public static final int METRIC_DECODE = 1;
+  /**
+   * Time from the renderer requesting a frame be drawn until its textures were uploaded.
+   */
+  public static final int METRIC_UPLOAD = 2;
+  /**
+   * Time from the textures being uploaded until the surface was swapped. This is GL thread time,
+   * not how late the frame was displayed relative to its release time.
+   */
+  public static final int METRIC_UPLOAD_TO_SWAP = 3;
+  private static final int METRIC_COUNT = 4;
+  private static final int[] METRIC_START_STAGES =
+      {STAGE_QUEUED, STAGE_SENT, STAGE_RENDER, STAGE_UPLOADED};
+  private static final int[] METRIC_END_STAGES =
+      {STAGE_SENT, STAGE_DECODED, STAGE_UPLOADED, STAGE_SWAPPED};
+
+  // Frames further back than this are not searched for when stamping a stage.
+  private static final int MAX_SEARCH_DEPTH = 128;
+
+  private final int capacity;
+  private final int mask;
+  private final int reportIntervalFrames;
+  private final Executor reportExecutor;
+  private final Listener listener;
+  private final AtomicLongArray frameTimesUs;
+  private final AtomicLongArray stampsNs;
+  private final long[] scratch;
+  private final Stats reportStats;
+  private final AtomicBoolean reportPending;
+  private final Runnable reportRunnable;
+
+  // Written only by the playback thread.
+  private volatile int nextSlot;
+  private int renderCount;
+  private long seekStartNs;
+  private volatile long seekToFirstFrameUs;
+  // Accessed only by the GL thread.
+  private int lastUploadedSlot = -1;
+  private volatile int decoderThreadType;
+  private volatile int decoderThreadCount;
+
+  /**
+   * @param capacity The number of frames to keep. Rounded up to a power of two.
+   * @param reportIntervalFrames The number of rendered frames between calls to the listener.
+   * @param reportExecutor The executor to compute statistics and call the listener on, for example
+   *     {@code handler::post} for a handler on a background thread. May be null if the listener is.
+   * @param listener The listener to report statistics to. May be null.
+   */
+  public FrameTracer(int capacity, int reportIntervalFrames, Executor reportExecutor,
+      Listener listener) {
+    if (listener != null && reportExecutor == null) {
+      throw new IllegalArgumentException("A listener requires a report executor");
+    }
+    this.capacity = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+    this.mask = this.capacity - 1;
+    this.reportIntervalFrames = reportIntervalFrames;
+    this.reportExecutor = reportExecutor;
+    this.listener = listener;
+    frameTimesUs = new AtomicLongArray(this.capacity);
+    stampsNs = new AtomicLongArray(this.capacity * STAGE_COUNT);
+    scratch = new long[this.capacity];
+    reportStats = new Stats();
+    reportPending = new AtomicBoolean();
+    reportRunnable = new Runnable() {
+      @Override
+      public void run() {
+        report();
+      }
+    };
+  }
+
+  /**
+   * Records how the current decoder is threaded, so that it is reported alongside the latencies.
+   */
+  /* package */ void setDecoderThreading(int threadType, int threadCount) {
+    decoderThreadType = threadType;
+    decoderThreadCount = threadCount;
+  }
+
+  /**
+   * Starts tracing the frame with the given presentation time. Called on the playback thread.
+   */
+  /* package */ void markQueued(long timeUs) {
+    int slot = nextSlot & mask;
+    int base = slot * STAGE_COUNT;
+    for (int i = 0; i < STAGE_COUNT; i++) {
+      stampsNs.lazySet(base + i, 0);
+    }
+    frameTimesUs.lazySet(slot, timeUs);
+    stampsNs.lazySet(base + STAGE_QUEUED, System.nanoTime());
+    nextSlot++;
+  }
+
+  /**
+   * Stamps a stage of the frame with the given presentation time, if it is still being traced.
+   */
+  /* package */ void mark(int stage, long timeUs) {
+    int slot = findSlot(timeUs);
+    if (slot != -1) {
+      stampsNs.lazySet(slot * STAGE_COUNT + stage, System.nanoTime());
+    }
+  }
+
+  /**
+   * Starts timing a seek, which ends when the next frame is rendered. Called on the playback thread.
+   */
+  /* package */ void markSeek() {
+    seekStartNs = System.nanoTime();
+  }
+
+  /**
+   * Stamps the render stage of a frame and schedules a report on the report executor if one is due.
+   * Called on the playback thread.
+   */
+  /* package */ void markRender(long timeUs) {
+    mark(STAGE_RENDER, timeUs);
+    if (seekStartNs != 0) {
+      seekToFirstFrameUs = (System.nanoTime() - seekStartNs) / 1000;
+      seekStartNs = 0;
+    }
+    if (listener != null && ++renderCount >= reportIntervalFrames) {
+      renderCount = 0;
+      if (reportPending.compareAndSet(false, true)) {
+        reportExecutor.execute(reportRunnable);
+      }
+    }
+  }
+
+  /**
+   * Stamps the upload stage of a frame. Called on the GL thread.
+   */
+  /* package */ void markUploaded(long timeUs) {
+    int slot = findSlot(timeUs);
+    if (slot != -1) {
+      stampsNs.lazySet(slot * STAGE_COUNT + STAGE_UPLOADED, System.nanoTime());
+    }
+    lastUploadedSlot = slot;
+  }
+
+  /**
+   * Stamps the swap stage of the most recently uploaded frame. Called on the GL thread.
+   */
+  /* package */ void markSwapped() {
+    if (lastUploadedSlot != -1) {
+      stampsNs.lazySet(lastUploadedSlot * STAGE_COUNT + STAGE_SWAPPED, System.nanoTime());
+      lastUploadedSlot = -1;
+    }
+  }
+
+  /**
+   * Computes statistics over the frames currently held in the ring.
+   *
+   * @param stats The instance to populate.
+   */
+  public synchronized void getStats(Stats stats) {
+    int frameCount = 0;
+    for (int metric = 0; metric < METRIC_COUNT; metric++) {
+      int startStage = METRIC_START_STAGES[metric];
+      int endStage = METRIC_END_STAGES[metric];
+      int count = 0;
+      for (int slot = 0; slot < capacity; slot++) {
+        long startNs = stampsNs.get(slot * STAGE_COUNT + startStage);
+        long endNs = stampsNs.get(slot * STAGE_COUNT + endStage);
+        if (startNs != 0 && endNs >= startNs) {
+          scratch[count++] = (endNs - startNs) / 1000;
+        }
+      }
+      Arrays.sort(scratch, 0, count);
+      stats.p50Us[metric] = percentile(count, 50);
+      stats.p90Us[metric] = percentile(count, 90);
+      stats.p99Us[metric] = percentile(count, 99);
+      stats.maxUs[metric] = count == 0 ? 0 : scratch[count - 1];
+      frameCount = Math.max(frameCount, count);
+    }
+    stats.frameCount = frameCount;
+    stats.decoderThreadType = decoderThreadType;
+    stats.decoderThreadCount = decoderThreadCount;
+    stats.seekToFirstFrameUs = seekToFirstFrameUs;
+  }
+
+  /**
+   * Writes the frames currently held in the ring to a CSV file, oldest first. Stages a frame has
+   * not reached are written as 0.
+   *
+   * @param file The file to write.
+   * @throws IOException If the file could not be written.
+   */
+  public synchronized void dump(File file) throws IOException {
+    Writer writer = new FileWriter(file);
+    try {
+      StringBuilder line = new StringBuilder("timeUs");
+      for (String name : STAGE_NAMES) {
+        line.append(',').append(name).append("Ns");
+      }
+      writer.write(line.append('\n').toString());
+      int end = nextSlot;
+      for (int i = Math.max(0, end - capacity); i < end; i++) {
+        int slot = i & mask;
+        line.setLength(0);
+        line.append(frameTimesUs.get(slot));
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+          line.append(',').append(stampsNs.get(slot * STAGE_COUNT + stage));
+        }
+        writer.write(line.append('\n').toString());
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  private void report() {
+    try {
+      getStats(reportStats);
+      listener.onFrameStats(reportStats);
+    } finally {
+      reportPending.set(false);
+    }
+  }
+
+  private int findSlot(long timeUs) {
+    int end = nextSlot;
+    int start = end - Math.min(capacity, MAX_SEARCH_DEPTH);
+    for (int i = end - 1; i >= start && i >= 0; i--) {
+      int slot = i & mask;
+      if (frameTimesUs.get(slot) == timeUs) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  private long percentile(int count, int percent) {
+    return count == 0 ? 0 : scratch[Math.min(count - 1, count * percent / 100)];
+  }
+
+}
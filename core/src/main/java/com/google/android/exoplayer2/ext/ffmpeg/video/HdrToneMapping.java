@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.ffmpeg.video;
+
+import com.google.android.exoplayer2.C;
+import java.nio.ByteBuffer;
+
+/**
+ * Computes the lookup table that tone maps PQ and HLG signals for an SDR display.
+ * <p>
+ * The table is indexed by the normalized non-linear R', G' or B' value and holds the tone mapped
+ * linear light value relative to SDR white, so that shaders convert a 10 bit HDR sample with one
+ * lookup per channel, a gamut conversion and the display gamma. Tone mapping uses the EETF of
+ * ITU-R BT.2390 on each channel.
+ */
+/* package */ final class HdrToneMapping {
+
+  /** The number of entries of the lookup table, one per 10 bit code value. */
+  public static final int LUT_SIZE = 1024;
+  /** The number of bytes per entry. Each entry is a 16 bit value, low byte first. */
+  public static final int BYTES_PER_ENTRY = 2;
+  /** The gamma of the SDR display that shaders encode the tone mapped BT.709 values for. */
+  public static final float DISPLAY_GAMMA = 2.2f;
+
+  // The peak assumed for PQ content without metadata, and the nominal peak of HLG.
+  private static final int DEFAULT_PEAK_LUMINANCE = 1000;
+  // The HDR reference white that maps to SDR white, as recommended by ITU-R BT.2408.
+  private static final double SDR_WHITE_LUMINANCE = 203;
+  private static final double PQ_MAX_LUMINANCE = 10000;
+  private static final double HLG_SYSTEM_GAMMA = 1.2;
+
+  // SMPTE ST 2084 constants.
+  private static final double PQ_M1 = 2610.0 / 16384;
+  private static final double PQ_M2 = 2523.0 / 4096 * 128;
+  private static final double PQ_C1 = 3424.0 / 4096;
+  private static final double PQ_C2 = 2413.0 / 4096 * 32;
+  private static final double PQ_C3 = 2392.0 / 4096 * 32;
+
+  // ARIB STD-B67 constants.
+  private static final double HLG_A = 0.17883277;
+  private static final double HLG_B = 0.28466892;
+  private static final double HLG_C = 0.55991073;
+
+  // Offsets into the static metadata built by the extractors: a type byte followed by little
+  // endian 16 bit values, of which these are the max mastering and max content light levels.
+  private static final int HDR_STATIC_INFO_LENGTH = 25;
+  private static final int MAX_MASTERING_LUMINANCE_OFFSET = 17;
+  private static final int MAX_CONTENT_LIGHT_LEVEL_OFFSET = 21;
+
+  private HdrToneMapping() {}
+
+  /** Returns whether frames with the given transfer function need tone mapping. */
+  public static boolean isHdr(@C.ColorTransfer int colorTransfer) {
+    return colorTransfer == C.COLOR_TRANSFER_ST2084 || colorTransfer == C.COLOR_TRANSFER_HLG;
+  }
+
+  /**
+   * Returns the peak luminance in cd/m2 to tone map from. PQ content uses the max content light
+   * level or, failing that, the max mastering luminance from {@code hdrStaticInfo}.
+   */
+  public static int getPeakLuminance(@C.ColorTransfer int colorTransfer, byte[] hdrStaticInfo) {
+    if (colorTransfer != C.COLOR_TRANSFER_ST2084 || hdrStaticInfo == null
+        || hdrStaticInfo.length < HDR_STATIC_INFO_LENGTH || hdrStaticInfo[0] != 0) {
+      return DEFAULT_PEAK_LUMINANCE;
+    }
+    int maxContentLightLevel = readUnsignedShort(hdrStaticInfo, MAX_CONTENT_LIGHT_LEVEL_OFFSET);
+    if (maxContentLightLevel > 0) {
+      return maxContentLightLevel;
+    }
+    int maxMasteringLuminance = readUnsignedShort(hdrStaticInfo, MAX_MASTERING_LUMINANCE_OFFSET);
+    return maxMasteringLuminance > 0 ? maxMasteringLuminance : DEFAULT_PEAK_LUMINANCE;
+  }
+
+  /**
+   * Writes {@link #LUT_SIZE} entries into {@code lut} from its current position.
+   *
+   * @param colorTransfer {@link C#COLOR_TRANSFER_ST2084} or {@link C#COLOR_TRANSFER_HLG}.
+   * @param peakLuminance The peak luminance returned by {@link #getPeakLuminance}.
+   * @param lut A buffer with at least {@code LUT_SIZE * BYTES_PER_ENTRY} remaining bytes.
+   */
+  public static void fillLut(@C.ColorTransfer int colorTransfer, int peakLuminance,
+      ByteBuffer lut) {
+    double sourcePeak = pqInverseEotf(peakLuminance);
+    // The target peak and the knee start of the EETF, relative to the source peak in PQ.
+    double maxLuminance = pqInverseEotf(SDR_WHITE_LUMINANCE) / sourcePeak;
+    double kneeStart = 1.5 * maxLuminance - 0.5;
+    for (int i = 0; i < LUT_SIZE; i++) {
+      double signal = (double) i / (LUT_SIZE - 1);
+      double luminance;
+      if (colorTransfer == C.COLOR_TRANSFER_HLG) {
+        // The OOTF is applied per channel rather than on the scene luminance.
+        luminance = DEFAULT_PEAK_LUMINANCE
+            * Math.pow(hlgInverseOetf(signal), HLG_SYSTEM_GAMMA);
+      } else {
+        luminance = pqEotf(signal);
+      }
+      double e1 = pqInverseEotf(Math.min(luminance, peakLuminance)) / sourcePeak;
+      double e2 = e1 < kneeStart ? e1 : hermiteSpline(e1, kneeStart, maxLuminance);
+      double value = Math.min(pqEotf(e2 * sourcePeak) / SDR_WHITE_LUMINANCE, 1);
+      int quantized = (int) Math.round(value * 65535);
+      lut.put((byte) quantized);
+      lut.put((byte) (quantized >> 8));
+    }
+  }
+
+  /**
+   * Writes the column major matrix that converts linear BT.2020 RGB to linear BT.709 RGB, as given
+   * by ITU-R BT.2087, into {@code matrix}. Shaders apply it to the looked up values.
+   *
+   * @param matrix An array of at least 9 elements.
+   */
+  public static void getGamutConversion(float[] matrix) {
+    // R column.
+    matrix[0] = 1.6605f;
+    matrix[1] = -0.1246f;
+    matrix[2] = -0.0182f;
+    // G column.
+    matrix[3] = -0.5876f;
+    matrix[4] = 1.1329f;
+    matrix[5] = -0.1006f;
+    // B column.
+    matrix[6] = -0.0728f;
+    matrix[7] = -0.0083f;
+    matrix[8] = 1.1187f;
+  }
+
+  private static double hermiteSpline(double e1, double kneeStart, double maxLuminance) {
+    double t = (e1 - kneeStart) / (1 - kneeStart);
+    double t2 = t * t;
+    double t3 = t2 * t;
+    return (2 * t3 - 3 * t2 + 1) * kneeStart + (t3 - 2 * t2 + t) * (1 - kneeStart)
+        + (-2 * t3 + 3 * t2) * maxLuminance;
+  }
+
+  /** Returns the luminance in cd/m2 of a normalized PQ signal. */
+  private static double pqEotf(double signal) {
+    double p = Math.pow(signal, 1 / PQ_M2);
+    return PQ_MAX_LUMINANCE
+        * Math.pow(Math.max(p - PQ_C1, 0) / (PQ_C2 - PQ_C3 * p), 1 / PQ_M1);
+  }
+
+  /** Returns the normalized PQ signal of a luminance in cd/m2. */
+  private static double pqInverseEotf(double luminance) {
+    double y = Math.pow(luminance / PQ_MAX_LUMINANCE, PQ_M1);
+    return Math.pow((PQ_C1 + PQ_C2 * y) / (1 + PQ_C3 * y), PQ_M2);
+  }
+
+  /** Returns the normalized scene linear light of a normalized HLG signal. */
+  private static double hlgInverseOetf(double signal) {
+    if (signal <= 0.5) {
+      return signal * signal / 3;
+    }
+    return (Math.exp((signal - HLG_C) / HLG_A) + HLG_B) / 12;
+  }
+
+  private static int readUnsignedShort(byte[] data, int offset) {
+    return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
+  }
+
+}
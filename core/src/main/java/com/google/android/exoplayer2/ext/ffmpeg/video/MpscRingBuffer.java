@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.ffmpeg.video;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock free queue over a preallocated array that accepts elements from any thread.
+ * {@link #poll()} and {@link #isEmpty()} must only be called from a single consumer thread.
+ */
+/* package */ final class MpscRingBuffer<T> {
+
+  private final AtomicReferenceArray<T> elements;
+  private final int capacity;
+  private final int mask;
+  // Index of the next element to read, written by the consumer only.
+  private final AtomicLong head;
+  // Index of the next slot to claim, advanced by producers.
+  private final AtomicLong tail;
+
+  /**
+   * @param capacity The minimum number of elements the queue can hold.
+   */
+  public MpscRingBuffer(int capacity) {
+    int size = Integer.highestOneBit(Math.max(capacity, 1) * 2 - 1);
+    elements = new AtomicReferenceArray<>(size);
+    this.capacity = size;
+    mask = size - 1;
+    head = new AtomicLong();
+    tail = new AtomicLong();
+  }
+
+  /**
+   * Appends an element. May be called from any thread.
+   *
+   * @return Whether the element was added, false if the queue is full.
+   */
+  public boolean offer(T element) {
+    while (true) {
+      long currentTail = tail.get();
+      if (currentTail - head.get() >= capacity) {
+        return false;
+      }
+      if (tail.compareAndSet(currentTail, currentTail + 1)) {
+        elements.set((int) currentTail & mask, element);
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Removes the oldest element. Consumer thread only.
+   *
+   * @return The oldest element, or null if the queue is empty or the oldest slot is claimed but
+   *     not yet written.
+   */
+  public T poll() {
+    long currentHead = head.get();
+    int index = (int) currentHead & mask;
+    T element = elements.get(index);
+    if (element == null) {
+      return null;
+    }
+    elements.lazySet(index, null);
+    head.set(currentHead + 1);
+    return element;
+  }
+
+  /**
+   * Returns whether {@link #poll()} would return null. Consumer thread only.
+   */
+  public boolean isEmpty() {
+    return elements.get((int) head.get() & mask) == null;
+  }
+}
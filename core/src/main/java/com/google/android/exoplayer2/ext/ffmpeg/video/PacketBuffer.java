@@ -18,15 +18,55 @@ package com.google.android.exoplayer2.ext.ffmpeg.video;
 import com.google.android.exoplayer2.decoder.DecoderInputBuffer;
 import com.google.android.exoplayer2.video.ColorInfo;
 
+import java.nio.ByteBuffer;
+
 /**
  * Input buffer to a {@link VideoDecoder}.
  */
 final class PacketBuffer extends DecoderInputBuffer {
 
+  private final DirectBufferPool bufferPool;
+
   public ColorInfo colorInfo;
 
-  public PacketBuffer() {
+  /**
+   * The {@link BaseDecoder} flush generation the buffer was queued in.
+   */
+  /* package */ int generation;
+
+  public PacketBuffer(DirectBufferPool bufferPool) {
     super(DecoderInputBuffer.BUFFER_REPLACEMENT_MODE_DIRECT);
+    this.bufferPool = bufferPool;
+  }
+
+  @Override
+  public void ensureSpaceForWrite(int length) {
+    if (data == null) {
+      data = bufferPool.acquire(length);
+      return;
+    }
+    int position = data.position();
+    int requiredCapacity = position + length;
+    if (data.capacity() >= requiredCapacity) {
+      return;
+    }
+    ByteBuffer newData = bufferPool.acquire(requiredCapacity);
+    if (position > 0) {
+      data.flip();
+      newData.put(data);
+    }
+    bufferPool.release(data);
+    data = newData;
+  }
+
+  /**
+   * Returns the data to the pool. Must only be called once the buffer is no longer in use.
+   */
+  /* package */ void releaseData() {
+    if (data != null) {
+      bufferPool.release(data);
+      data = null;
+    }
   }
 
   public boolean hasFlag(int flag) {
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.ffmpeg.video;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams YUV planes to textures through pixel buffer objects. Requires a GLES 3.0 context.
+ * <p>
+ * The GL thread keeps a ring of slots, each with one pixel buffer per plane, and maps idle slots
+ * ahead of time. The thread that produces a frame copies its planes into a mapped slot with
+ * {@link #stage(FrameBuffer)} before it requests a render, so that the GL thread only unmaps the
+ * buffers and starts the asynchronous transfers to the textures. Frames that could not be staged
+ * are uploaded from client memory.
+ */
+/* package */ final class PixelBufferUploader {
+
+  private static final int PLANE_COUNT = 3;
+
+  // Owned by the GL thread and not mapped.
+  private static final int STATE_IDLE = 0;
+  // Mapped, and free for a producer to fill.
+  private static final int STATE_MAPPED = 1;
+  // A producer is copying a frame into the mapping.
+  private static final int STATE_FILLING = 2;
+  // Holds the planes of the frame the slot is attached to.
+  private static final int STATE_FILLED = 3;
+  // The uploader was released, so the mapping must not be touched.
+  private static final int STATE_RETIRED = 4;
+
+  /**
+   * One pixel buffer per plane. The mappings and plane sizes are written by the GL thread before
+   * it publishes the slot as mapped.
+   */
+  /* package */ static final class Slot {
+
+    private final AtomicInteger state = new AtomicInteger(STATE_IDLE);
+    private final int[] pixelBuffers = new int[PLANE_COUNT];
+    private final int[] bufferSizes = new int[PLANE_COUNT];
+    private final ByteBuffer[] mappings = new ByteBuffer[PLANE_COUNT];
+    private final int[] planeSizes = new int[PLANE_COUNT];
+    private int planeCount;
+
+    private boolean matches(FrameBuffer frame, int planeCount) {
+      if (this.planeCount != planeCount) {
+        return false;
+      }
+      for (int i = 0; i < planeCount; i++) {
+        if (planeSizes[i] != getPlaneSize(frame, i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+  }
+
+  private final Slot[] slots;
+  // The slot the last transfers were started from. It is mapped again one frame later, so that
+  // mapping doesn't have to wait for or orphan a transfer that was just started.
+  private Slot lastUploadedSlot;
+
+  /**
+   * @param slotCount The number of frames that can be staged or in flight, typically 3.
+   */
+  public PixelBufferUploader(int slotCount) {
+    slots = new Slot[slotCount];
+    for (int i = 0; i < slotCount; i++) {
+      slots[i] = new Slot();
+      GLES20.glGenBuffers(PLANE_COUNT, slots[i].pixelBuffers, 0);
+    }
+  }
+
+  /**
+   * Copies the planes of {@code frame} into a mapped slot and attaches the slot to the frame. May
+   * be called from any thread that owns the frame.
+   *
+   * @return Whether the frame was staged. If not, it will be uploaded from client memory.
+   */
+  public boolean stage(FrameBuffer frame) {
+    int planeCount = getPlaneCount(frame);
+    for (Slot slot : slots) {
+      if (slot.state.get() != STATE_MAPPED
+          || !slot.state.compareAndSet(STATE_MAPPED, STATE_FILLING)) {
+        continue;
+      }
+      // Checked after claiming, as the GL thread may have mapped the slot again in between.
+      if (!slot.matches(frame, planeCount)) {
+        slot.state.set(STATE_MAPPED);
+        continue;
+      }
+      for (int i = 0; i < planeCount; i++) {
+        ByteBuffer pixels = frame.yuvPlanes[i];
+        int position = pixels.position();
+        int limit = pixels.limit();
+        pixels.limit(position + slot.planeSizes[i]);
+        ByteBuffer mapping = slot.mappings[i];
+        mapping.clear();
+        mapping.put(pixels);
+        pixels.limit(limit);
+        pixels.position(position);
+      }
+      frame.stagedPixels = slot;
+      slot.state.set(STATE_FILLED);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Detaches the staged slot of a frame that will not be drawn, so that it can be filled again.
+   * May be called from any thread that owns the frame.
+   */
+  public static void unstage(FrameBuffer frame) {
+    Slot slot = frame.stagedPixels;
+    if (slot != null) {
+      frame.stagedPixels = null;
+      slot.state.compareAndSet(STATE_FILLED, STATE_MAPPED);
+    }
+  }
+
+  /**
+   * Takes the slot staged for {@code frame}. Must be called on the GL thread, and followed by
+   * {@link #finishUpload(Slot)} if a slot is returned.
+   *
+   * @return The slot, or null if the frame was not staged by this uploader.
+   */
+  public Slot takeStaged(FrameBuffer frame) {
+    Slot slot = frame.stagedPixels;
+    if (slot == null) {
+      return null;
+    }
+    frame.stagedPixels = null;
+    // Fails for a slot of a released uploader.
+    return slot.state.compareAndSet(STATE_FILLED, STATE_IDLE) ? slot : null;
+  }
+
+  /**
+   * Uploads a plane of a taken slot to the texture bound to {@code GL_TEXTURE_2D}, whose storage
+   * must already have been allocated with the given dimensions and format.
+   *
+   * @param slot The slot returned by {@link #takeStaged(FrameBuffer)}.
+   * @param plane The index of the plane.
+   * @param width The width of the plane in texels.
+   * @param height The height of the plane in texels.
+   * @param format The format of the texture.
+   * @return Whether the plane was uploaded. If not, the caller should upload it directly.
+   */
+  public boolean upload(Slot slot, int plane, int width, int height, int format) {
+    GLES20.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, slot.pixelBuffers[plane]);
+    slot.mappings[plane] = null;
+    // Fails if the contents were lost while mapped, for example on a display mode change.
+    boolean uploaded = GLES30.glUnmapBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER);
+    if (uploaded) {
+      texSubImage2DFromPixelBuffer(GLES20.GL_TEXTURE_2D, 0, 0, 0, width, height, format,
+          GLES20.GL_UNSIGNED_BYTE, 0);
+    }
+    GLES20.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+    return uploaded;
+  }
+
+  /**
+   * Unmaps the buffers of a taken slot whose planes were not uploaded from it. Must be called on
+   * the GL thread.
+   */
+  public void finishUpload(Slot slot) {
+    unmap(slot);
+    lastUploadedSlot = slot;
+  }
+
+  /**
+   * Maps idle slots for frames with the geometry of {@code frame}, so that the following frames
+   * can be staged. Must be called on the GL thread.
+   */
+  public void prepare(FrameBuffer frame) {
+    int planeCount = getPlaneCount(frame);
+    for (Slot slot : slots) {
+      if (slot == lastUploadedSlot) {
+        continue;
+      }
+      int state = slot.state.get();
+      if (state == STATE_MAPPED && !slot.matches(frame, planeCount)
+          && slot.state.compareAndSet(STATE_MAPPED, STATE_IDLE)) {
+        // Mapped for frames of another geometry.
+        unmap(slot);
+        state = STATE_IDLE;
+      }
+      if (state == STATE_IDLE) {
+        map(slot, frame, planeCount);
+      }
+    }
+    lastUploadedSlot = null;
+  }
+
+  /**
+   * Stops producers from using the mappings, without making GL calls. Must be called on the GL
+   * thread before the context is destroyed, when it may no longer be current. The uploader must
+   * not be used afterwards.
+   */
+  public void retire() {
+    for (Slot slot : slots) {
+      while (true) {
+        int state = slot.state.get();
+        if (state == STATE_FILLING) {
+          // A producer is still copying into the mapping, which is only a few milliseconds.
+          Thread.yield();
+        } else if (slot.state.compareAndSet(state, STATE_RETIRED)) {
+          break;
+        }
+      }
+      Arrays.fill(slot.mappings, null);
+    }
+  }
+
+  /**
+   * Retires the uploader and deletes the pixel buffers, which unmaps them. Must be called on the GL
+   * thread with the context current. The uploader must not be used afterwards.
+   */
+  public void release() {
+    retire();
+    for (Slot slot : slots) {
+      GLES20.glDeleteBuffers(PLANE_COUNT, slot.pixelBuffers, 0);
+    }
+  }
+
+  private void map(Slot slot, FrameBuffer frame, int planeCount) {
+    for (int i = 0; i < planeCount; i++) {
+      int size = getPlaneSize(frame, i);
+      GLES20.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, slot.pixelBuffers[i]);
+      if (slot.bufferSizes[i] != size) {
+        GLES20.glBufferData(GLES30.GL_PIXEL_UNPACK_BUFFER, size, null, GLES20.GL_STREAM_DRAW);
+        slot.bufferSizes[i] = size;
+      }
+      // Invalidating the buffer lets the driver hand out fresh storage instead of waiting for a
+      // transfer that still reads from it.
+      ByteBuffer mapping = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_UNPACK_BUFFER, 0,
+          size, GLES30.GL_MAP_WRITE_BIT | GLES30.GL_MAP_INVALIDATE_BUFFER_BIT);
+      if (mapping == null) {
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+        unmap(slot);
+        return;
+      }
+      slot.mappings[i] = mapping;
+      slot.planeSizes[i] = size;
+    }
+    GLES20.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+    slot.planeCount = planeCount;
+    slot.state.set(STATE_MAPPED);
+  }
+
+  private static void unmap(Slot slot) {
+    for (int i = 0; i < PLANE_COUNT; i++) {
+      if (slot.mappings[i] != null) {
+        slot.mappings[i] = null;
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, slot.pixelBuffers[i]);
+        GLES30.glUnmapBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER);
+      }
+    }
+    GLES20.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+  }
+
+  private static int getPlaneCount(FrameBuffer frame) {
+    return FrameBuffer.isSemiPlanar(frame.pixelLayout) ? 2 : 3;
+  }
+
+  private static int getPlaneSize(FrameBuffer frame, int plane) {
+    // The chroma planes round up, like FrameBuffer.initForYuvFrame and the native decoder.
+    return frame.yuvStrides[plane] * (plane == 0 ? frame.height : (frame.height + 1) / 2);
+  }
+
+  // GLES20.glTexSubImage2D has no overload taking an offset into the bound pixel buffer.
+  private static native void texSubImage2DFromPixelBuffer(int target, int level, int xoffset,
+      int yoffset, int width, int height, int format, int type, int offset);
+
+}
@@ -15,6 +15,7 @@
  */
 package com.google.android.exoplayer2.ext.ffmpeg.video;
 
+import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Point;
@@ -23,9 +24,12 @@ import android.os.Looper;
 import android.os.SystemClock;
 
 import androidx.annotation.IntDef;
+import androidx.annotation.Nullable;
 
 import android.util.Log;
+import android.view.Display;
 import android.view.Surface;
+import android.view.WindowManager;
 
 import com.google.android.exoplayer2.BaseRenderer;
 import com.google.android.exoplayer2.C;
@@ -46,9 +50,11 @@ import com.google.android.exoplayer2.util.Assertions;
 import com.google.android.exoplayer2.util.MimeTypes;
 import com.google.android.exoplayer2.util.TraceUtil;
 import com.google.android.exoplayer2.util.Util;
+import com.google.android.exoplayer2.video.VideoFrameReleaseTimeHelper;
 import com.google.android.exoplayer2.video.VideoRendererEventListener;
 import com.google.android.exoplayer2.video.VideoRendererEventListener.EventDispatcher;
 import com.moqan.mqplayer.egl.GLThread;
+import com.moqan.mqplayer.egl.SharedGLRenderService;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
@@ -59,6 +65,9 @@ import java.lang.annotation.RetentionPolicy;
 public final class SoftVideoRenderer extends BaseRenderer {
     @SuppressWarnings("unused")
     private static final String TAG = "SoftVideoRenderer";
+    // Logs on the playback thread, off by default as degradation levels can change every frame.
+    private static final boolean LOG_DEGRADATION = false;
+    private static final boolean LOG_DECODER_THREADING = false;
 
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({REINITIALIZATION_STATE_NONE, REINITIALIZATION_STATE_SIGNAL_END_OF_STREAM,
@@ -97,6 +106,15 @@ public final class SoftVideoRenderer extends BaseRenderer {
      * insufficient.
      */
     private static final int INITIAL_INPUT_BUFFER_SIZE = 768 * 1024; // Value based on cs/SoftFFmpeg.cpp.
+    /**
+     * The vsync duration assumed when the display refresh rate is unknown.
+     */
+    private static final long DEFAULT_VSYNC_DURATION_US = 16667;
+    /**
+     * How many vsyncs ahead of its presentation time a frame is released when the surface can hold
+     * it until then.
+     */
+    private static final int MAX_QUEUED_VSYNCS = 2;
 
     private final boolean scaleToFit;
     private final long allowedJoiningTimeMs;
@@ -106,6 +124,10 @@ public final class SoftVideoRenderer extends BaseRenderer {
     private final FormatHolder formatHolder;
     private final DecoderInputBuffer flagsOnlyBuffer;
     private final DrmSessionManager<FrameworkMediaCrypto> drmSessionManager;
+    private final DirectBufferPool bufferPool;
+    private final DecoderThreadingPolicy threadingPolicy;
+    private final VideoFrameReleaseTimeHelper frameReleaseTimeHelper;
+    private final long maxReleaseEarlyUs;
 
     private DecoderCounters decoderCounters;
     private Format format;
@@ -129,7 +151,15 @@ public final class SoftVideoRenderer extends BaseRenderer {
     private int surfaceHeight = -1;
     private FrameRenderer outputBufferRenderer;
     private GLThread glThread;
+    private SharedGLRenderService sharedRenderService;
+    private SharedGLRenderService.Target sharedRenderTarget;
     private boolean waitingForKeys;
+    private volatile boolean zeroCopyOutput;
+    private volatile boolean fastSeekEnabled = true;
+    private volatile boolean adaptiveFrameSkippingEnabled = true;
+    private volatile boolean bidirectionalFrameSkippingEnabled;
+    private final DecodeDegradationController degradationController;
+    private FrameTracer frameTracer;
 
     private boolean inputStreamEnded;
     private boolean outputStreamEnded;
@@ -140,6 +170,11 @@ public final class SoftVideoRenderer extends BaseRenderer {
     private int droppedFrames;
     private int consecutiveDroppedFrameCount;
     private int buffersInCodecCount;
+    private int decoderThreadCount;
+    private long decodeTimePerFrameUs;
+    // The threading of the decoder that measured decodeTimePerFrameUs.
+    private int decodeTimeThreadType;
+    private int decodeTimeThreadCount;
 
     /**
      * @param scaleToFit           Whether video frames should be scaled to fit when rendering.
@@ -188,14 +223,80 @@ public final class SoftVideoRenderer extends BaseRenderer {
                              Handler eventHandler, VideoRendererEventListener eventListener,
                              int maxDroppedFramesToNotify, DrmSessionManager<FrameworkMediaCrypto> drmSessionManager,
                              boolean playClearSamplesWithoutKeys) {
+        this(scaleToFit, allowedJoiningTimeMs, eventHandler, eventListener, maxDroppedFramesToNotify,
+                drmSessionManager, playClearSamplesWithoutKeys, DecoderThreadingPolicy.AUTO);
+    }
+
+    /**
+     * @param scaleToFit                  Whether video frames should be scaled to fit when rendering.
+     * @param allowedJoiningTimeMs        The maximum duration in milliseconds for which this video renderer
+     *                                    can attempt to seamlessly join an ongoing playback.
+     * @param eventHandler                A handler to use when delivering events to {@code eventListener}. May be
+     *                                    null if delivery of events is not required.
+     * @param eventListener               A listener of events. May be null if delivery of events is not required.
+     * @param maxDroppedFramesToNotify    The maximum number of frames that can be dropped between
+     *                                    invocations of {@link VideoRendererEventListener#onDroppedFrames(int, long)}.
+     * @param drmSessionManager           For use with encrypted media. May be null if support for encrypted
+     *                                    media is not required.
+     * @param playClearSamplesWithoutKeys Encrypted media may contain clear (un-encrypted) regions.
+     *                                    For example a media file may start with a short clear region so as to allow playback to
+     *                                    begin in parallel with key acquisition. This parameter specifies whether the renderer is
+     *                                    permitted to play clear regions of encrypted media files before {@code drmSessionManager}
+     *                                    has obtained the keys necessary to decrypt encrypted regions of the media.
+     * @param threadingPolicy             How the decoder spreads work over threads.
+     */
+    public SoftVideoRenderer(boolean scaleToFit, long allowedJoiningTimeMs,
+                             Handler eventHandler, VideoRendererEventListener eventListener,
+                             int maxDroppedFramesToNotify, DrmSessionManager<FrameworkMediaCrypto> drmSessionManager,
+                             boolean playClearSamplesWithoutKeys, DecoderThreadingPolicy threadingPolicy) {
+        this(null, scaleToFit, allowedJoiningTimeMs, eventHandler, eventListener,
+                maxDroppedFramesToNotify, drmSessionManager, playClearSamplesWithoutKeys,
+                threadingPolicy);
+    }
+
+    /**
+     * @param context                     A context used to read the display refresh rate, so that
+     *                                    frames are presented on vsync. May be null, in which case
+     *                                    release times are only smoothed.
+     * @param scaleToFit                  Whether video frames should be scaled to fit when rendering.
+     * @param allowedJoiningTimeMs        The maximum duration in milliseconds for which this video renderer
+     *                                    can attempt to seamlessly join an ongoing playback.
+     * @param eventHandler                A handler to use when delivering events to {@code eventListener}. May be
+     *                                    null if delivery of events is not required.
+     * @param eventListener               A listener of events. May be null if delivery of events is not required.
+     * @param maxDroppedFramesToNotify    The maximum number of frames that can be dropped between
+     *                                    invocations of {@link VideoRendererEventListener#onDroppedFrames(int, long)}.
+     * @param drmSessionManager           For use with encrypted media. May be null if support for encrypted
+     *                                    media is not required.
+     * @param playClearSamplesWithoutKeys Encrypted media may contain clear (un-encrypted) regions.
+     *                                    For example a media file may start with a short clear region so as to allow playback to
+     *                                    begin in parallel with key acquisition. This parameter specifies whether the renderer is
+     *                                    permitted to play clear regions of encrypted media files before {@code drmSessionManager}
+     *                                    has obtained the keys necessary to decrypt encrypted regions of the media.
+     * @param threadingPolicy             How the decoder spreads work over threads.
+     */
+    public SoftVideoRenderer(@Nullable Context context, boolean scaleToFit,
+                             long allowedJoiningTimeMs, Handler eventHandler,
+                             VideoRendererEventListener eventListener, int maxDroppedFramesToNotify,
+                             DrmSessionManager<FrameworkMediaCrypto> drmSessionManager,
+                             boolean playClearSamplesWithoutKeys, DecoderThreadingPolicy threadingPolicy) {
         super(C.TRACK_TYPE_VIDEO);
+        this.threadingPolicy = threadingPolicy;
+        frameReleaseTimeHelper = new VideoFrameReleaseTimeHelper(context);
+        // eglPresentationTimeANDROID makes the surface hold a frame until its time, so frames can be
+        // queued ahead and the GL thread wakes once per frame rather than as close to vsync as the
+        // render loop gets.
+        maxReleaseEarlyUs = MAX_QUEUED_VSYNCS * getVsyncDurationUs(context);
+        degradationController = new DecodeDegradationController();
         this.scaleToFit = scaleToFit;
         this.allowedJoiningTimeMs = allowedJoiningTimeMs;
         this.maxDroppedFramesToNotify = maxDroppedFramesToNotify;
         this.drmSessionManager = drmSessionManager;
         this.playClearSamplesWithoutKeys = playClearSamplesWithoutKeys;
         this.outputBufferRenderer = new FrameRenderer();
+        this.bufferPool = new DirectBufferPool();
         joiningDeadlineMs = C.TIME_UNSET;
+        decodeTimePerFrameUs = C.TIME_UNSET;
         clearReportedVideoSize();
         formatHolder = new FormatHolder();
         flagsOnlyBuffer = DecoderInputBuffer.newFlagsOnlyInstance();
@@ -225,18 +326,102 @@ public final class SoftVideoRenderer extends BaseRenderer {
         return FORMAT_HANDLED | ADAPTIVE_SEAMLESS;
     }
 
+    /**
+     * Sets whether decoded frames are handed to the renderer without being copied. Takes effect the
+     * next time a decoder is created.
+     *
+     * @param zeroCopyOutput Whether zero copy output is enabled.
+     */
+    public void setZeroCopyOutput(boolean zeroCopyOutput) {
+        this.zeroCopyOutput = zeroCopyOutput;
+    }
+
+    /**
+     * Sets whether the decoder skips non-reference frames that precede the seek target, instead of
+     * decoding them only to throw them away. Enabled by default.
+     *
+     * @param fastSeekEnabled Whether fast seeking is enabled.
+     */
+    public void setFastSeekEnabled(boolean fastSeekEnabled) {
+        this.fastSeekEnabled = fastSeekEnabled;
+        VideoDecoder videoDecoder = this.videoDecoder;
+        if (videoDecoder != null) {
+            videoDecoder.setFastSeekEnabled(fastSeekEnabled);
+        }
+    }
+
+    /**
+     * Sets whether the decoder may skip work, such as the loop filter or whole non-reference frames,
+     * while the renderer is falling behind, rather than only dropping frames after decoding them.
+     * Enabled by default. Frames that others are predicted from are only skipped if
+     * {@link #setBidirectionalFrameSkippingEnabled} allows it.
+     *
+     * @param adaptiveFrameSkippingEnabled Whether adaptive frame skipping is enabled.
+     */
+    public void setAdaptiveFrameSkippingEnabled(boolean adaptiveFrameSkippingEnabled) {
+        this.adaptiveFrameSkippingEnabled = adaptiveFrameSkippingEnabled;
+    }
+
+    /**
+     * Sets whether adaptive frame skipping may, as a last resort, skip all bidirectionally predicted
+     * frames. Streams with B-pyramids use some of them as references, so skipping them corrupts the
+     * picture until the next keyframe. Disabled by default.
+     *
+     * @param bidirectionalFrameSkippingEnabled Whether bidirectional frame skipping is enabled.
+     */
+    public void setBidirectionalFrameSkippingEnabled(boolean bidirectionalFrameSkippingEnabled) {
+        this.bidirectionalFrameSkippingEnabled = bidirectionalFrameSkippingEnabled;
+    }
+
+    /**
+     * Sets a tracer that records when each frame passes through the decode and render pipeline.
+     *
+     * @param frameTracer The tracer, or null to disable tracing.
+     */
+    public void setFrameTracer(FrameTracer frameTracer) {
+        this.frameTracer = frameTracer;
+        outputBufferRenderer.setFrameTracer(frameTracer);
+        if (videoDecoder != null) {
+            videoDecoder.setFrameTracer(frameTracer);
+            if (frameTracer != null) {
+                frameTracer.setDecoderThreading(videoDecoder.getActiveThreadType(), decoderThreadCount);
+            }
+        }
+    }
+
+    /**
+     * Returns the pool backing the decoder's buffers. It is shared by all decoders created by this
+     * renderer, and can be used to read its metrics or to change its size limit.
+     */
+    public DirectBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Returns the texture upload counters of the frame renderer.
+     */
+    public FrameRendererCounters getFrameRendererCounters() {
+        return outputBufferRenderer.getCounters();
+    }
+
+    /**
+     * Draws on the GL thread of a service shared with other renderers, rather than on a GL thread
+     * of this renderer. Takes effect from the next output surface.
+     *
+     * @param sharedRenderService The service, or null to use a GL thread of this renderer.
+     */
+    public void setSharedRenderService(SharedGLRenderService sharedRenderService) {
+        this.sharedRenderService = sharedRenderService;
+    }
+
     public void setBackgroundColor(int color) {
         outputBufferRenderer.setBackgroundColor(color);
-        if (glThread != null) {
-            glThread.requestRender();
-        }
+        requestRender(0);
     }
 
     public void setScaleType(FrameScaleType scaleType) {
         outputBufferRenderer.setScaleType(scaleType);
-        if (glThread != null) {
-            glThread.requestRender();
-        }
+        requestRender(0);
     }
 
     @Override
@@ -270,7 +455,7 @@ public final class SoftVideoRenderer extends BaseRenderer {
             try {
                 // Rendering loop.
                 TraceUtil.beginSection("drainAndFeed");
-                while (drainOutputBuffer(positionUs)) {
+                while (drainOutputBuffer(positionUs, elapsedRealtimeUs)) {
                 }
                 while (feedInputBuffer()) {
                 }
@@ -278,12 +463,24 @@ public final class SoftVideoRenderer extends BaseRenderer {
             } catch (VideoSoftDecoderException e) {
                 throw ExoPlaybackException.createForRenderer(e, getIndex());
             }
+            // Frames replaced by a newer one before the GL thread drew them were counted as rendered
+            // when they were handed over. The frame that replaced them was drawn, so they don't add
+            // to the consecutive drop count, which only the render path maintains.
+            int overwrittenFrameCount = outputBufferRenderer.pollDroppedFrameCount();
+            if (overwrittenFrameCount > 0) {
+                decoderCounters.renderedOutputBufferCount -= overwrittenFrameCount;
+                decoderCounters.droppedBufferCount += overwrittenFrameCount;
+                droppedFrames += overwrittenFrameCount;
+                if (droppedFrames >= maxDroppedFramesToNotify) {
+                    maybeNotifyDroppedFrames();
+                }
+            }
             decoderCounters.ensureUpdated();
         }
     }
 
-    private boolean drainOutputBuffer(long positionUs) throws ExoPlaybackException,
-            VideoSoftDecoderException {
+    private boolean drainOutputBuffer(long positionUs, long elapsedRealtimeUs)
+            throws ExoPlaybackException, VideoSoftDecoderException {
         // Acquire outputBuffer either from nextOutputBuffer or from the videoDecoder.
         if (outputBuffer == null) {
             if (nextOutputBuffer != null) {
@@ -318,7 +515,7 @@ public final class SoftVideoRenderer extends BaseRenderer {
 
         if (surface == null) {
             // Skip frames in sync with playback, so we'll be at the right frame if the mode changes.
-            if (isBufferLate(outputBuffer.timeUs - positionUs)) {
+            if (FrameDropPolicy.isBufferLate(outputBuffer.timeUs - positionUs)) {
                 forceRenderFrame = false;
                 skipBuffer();
                 buffersInCodecCount--;
@@ -329,7 +526,7 @@ public final class SoftVideoRenderer extends BaseRenderer {
 
         if (forceRenderFrame) {
             forceRenderFrame = false;
-            renderBuffer();
+            renderBuffer(0);
             buffersInCodecCount--;
             return true;
         }
@@ -340,25 +537,72 @@ public final class SoftVideoRenderer extends BaseRenderer {
 
         long earlyUs = outputBuffer.timeUs - positionUs;
         if (shouldDropBuffersToKeyframe(earlyUs) && maybeDropBuffersToKeyframe(positionUs)) {
+            maybeUpdateDegradationLevel(earlyUs);
             forceRenderFrame = true;
             return false;
         } else if (shouldDropOutputBuffer(
                 outputBuffer.timeUs, nextOutputBufferTimeUs, positionUs, joiningDeadlineMs)) {
             dropBuffer();
             buffersInCodecCount--;
+            maybeUpdateDegradationLevel(earlyUs);
             return true;
         }
 
         // If we have yet to render a frame to the current output (either initially or immediately
         // following a seek), render one irrespective of the state or current position.
-        if (!renderedFirstFrame
-                || (getState() == STATE_STARTED && earlyUs <= 30000)) {
-            renderBuffer();
+        if (!renderedFirstFrame) {
+            renderBuffer(0);
+            buffersInCodecCount--;
+            maybeUpdateDegradationLevel(earlyUs);
+            return false;
+        }
+        if (getState() != STATE_STARTED) {
+            return false;
+        }
+
+        // Map the presentation time onto the system clock and let the helper snap it to vsync, so
+        // that frame rates that don't divide the refresh rate keep an even cadence.
+        long elapsedSinceStartOfLoopUs = SystemClock.elapsedRealtime() * 1000 - elapsedRealtimeUs;
+        long systemTimeNs = System.nanoTime();
+        long unadjustedReleaseTimeNs = systemTimeNs + (earlyUs - elapsedSinceStartOfLoopUs) * 1000;
+        long releaseTimeNs = frameReleaseTimeHelper.adjustReleaseTime(
+                outputBuffer.timeUs, unadjustedReleaseTimeNs);
+        if ((releaseTimeNs - systemTimeNs) / 1000 <= maxReleaseEarlyUs) {
+            renderBuffer(releaseTimeNs);
             buffersInCodecCount--;
+            maybeUpdateDegradationLevel(earlyUs);
         }
         return false;
     }
 
+    /**
+     * Feeds the lateness of a frame that has just been rendered or dropped to the degradation
+     * controller, and passes any change of level on to the decoder.
+     */
+    private void maybeUpdateDegradationLevel(long earlyUs) {
+        if (!adaptiveFrameSkippingEnabled) {
+            if (degradationController.getLevel() != DecodeDegradationController.LEVEL_NONE) {
+                degradationController.reset();
+                videoDecoder.setDegradationLevel(DecodeDegradationController.LEVEL_NONE);
+            }
+            return;
+        }
+        int maxLevel = bidirectionalFrameSkippingEnabled
+                ? DecodeDegradationController.LEVEL_SKIP_BIDIRECTIONAL
+                : DecodeDegradationController.LEVEL_SKIP_NON_REFERENCE;
+        if (degradationController.setMaxLevel(maxLevel)) {
+            videoDecoder.setDegradationLevel(degradationController.getLevel());
+        }
+        if (getState() == STATE_STARTED
+                && degradationController.update(earlyUs, consecutiveDroppedFrameCount)) {
+            int level = degradationController.getLevel();
+            if (LOG_DEGRADATION) {
+                Log.d(TAG, "decode degradation level: " + level);
+            }
+            videoDecoder.setDegradationLevel(level);
+        }
+    }
+
     /**
      * Returns whether the current frame should be dropped.
      *
@@ -371,8 +615,8 @@ public final class SoftVideoRenderer extends BaseRenderer {
      */
     private boolean shouldDropOutputBuffer(long outputBufferTimeUs, long nextOutputBufferTimeUs,
                                            long positionUs, long joiningDeadlineMs) {
-        return isBufferLate(outputBufferTimeUs - positionUs)
-                && (joiningDeadlineMs != C.TIME_UNSET || nextOutputBufferTimeUs != C.TIME_UNSET);
+        return FrameDropPolicy.shouldDropOutputBuffer(outputBufferTimeUs - positionUs,
+                nextOutputBufferTimeUs != C.TIME_UNSET, joiningDeadlineMs != C.TIME_UNSET);
     }
 
     /**
@@ -383,10 +627,14 @@ public final class SoftVideoRenderer extends BaseRenderer {
      *                negative value indicates that the buffer is late.
      */
     private boolean shouldDropBuffersToKeyframe(long earlyUs) {
-        return isBufferVeryLate(earlyUs);
+        return FrameDropPolicy.isBufferVeryLate(earlyUs);
     }
 
-    private void renderBuffer() {
+    /**
+     * @param releaseTimeNs The {@link System#nanoTime()} at which the frame should be displayed, or
+     *                      0 to display it as soon as possible.
+     */
+    private void renderBuffer(long releaseTimeNs) {
         // 软解带endofstream标志的buffer是没有实际数据的
         if (outputBuffer.isEndOfStream()) {
             outputBuffer = null;
@@ -395,11 +643,12 @@ public final class SoftVideoRenderer extends BaseRenderer {
 
         if (surface != null) {
             maybeNotifyVideoSizeChanged(outputBuffer.width, outputBuffer.height);
+            if (frameTracer != null) {
+                frameTracer.markRender(outputBuffer.timeUs);
+            }
             // The renderer will release the buffer.
             outputBufferRenderer.setOutputBuffer(outputBuffer);
-            if (glThread != null) {
-                glThread.requestRender();
-            }
+            requestRender(releaseTimeNs);
             outputBuffer = null;
             consecutiveDroppedFrameCount = 0;
             decoderCounters.renderedOutputBufferCount++;
@@ -585,6 +834,7 @@ public final class SoftVideoRenderer extends BaseRenderer {
 
         decoderCounters = new DecoderCounters();
         eventDispatcher.enabled(decoderCounters);
+        frameReleaseTimeHelper.enable();
     }
 
     @Override
@@ -595,6 +845,10 @@ public final class SoftVideoRenderer extends BaseRenderer {
         outputStreamEnded = false;
         clearRenderedFirstFrame();
         consecutiveDroppedFrameCount = 0;
+        degradationController.resetTrend();
+        if (frameTracer != null) {
+            frameTracer.markSeek();
+        }
         if (videoDecoder != null) {
             flushDecoder();
         }
@@ -631,11 +885,7 @@ public final class SoftVideoRenderer extends BaseRenderer {
 
     @Override
     protected void finalize() throws Throwable {
-        if (glThread != null) {
-            glThread.surfaceDestroyed();
-            glThread.requestExitAndWait();
-            glThread = null;
-        }
+        releaseGLOutput();
         super.finalize();
     }
 
@@ -645,6 +895,8 @@ public final class SoftVideoRenderer extends BaseRenderer {
 
         format = null;
         waitingForKeys = false;
+        degradationController.reset();
+        frameReleaseTimeHelper.disable();
         clearReportedVideoSize();
         clearRenderedFirstFrame();
         try {
@@ -690,9 +942,23 @@ public final class SoftVideoRenderer extends BaseRenderer {
 
         try {
             long codecInitializingTimestamp = SystemClock.elapsedRealtime();
+            int threadType = threadingPolicy.getThreadType(format, decodeTimePerFrameUs,
+                    decodeTimeThreadType, decodeTimeThreadCount);
+            decoderThreadCount = threadingPolicy.getThreadCount();
             TraceUtil.beginSection("createFFmpegDecoder");
             videoDecoder = new VideoDecoder(format, NUM_INPUT_BUFFERS, NUM_OUTPUT_BUFFERS, INITIAL_INPUT_BUFFER_SIZE,
-                    mediaCrypto);
+                    mediaCrypto, zeroCopyOutput, bufferPool, threadType, decoderThreadCount,
+                    threadingPolicy.getAffinityMask());
+            videoDecoder.setFastSeekEnabled(fastSeekEnabled);
+            videoDecoder.setDegradationLevel(degradationController.getLevel());
+            videoDecoder.setFrameTracer(frameTracer);
+            if (frameTracer != null) {
+                frameTracer.setDecoderThreading(videoDecoder.getActiveThreadType(), decoderThreadCount);
+            }
+            if (LOG_DECODER_THREADING) {
+                Log.d(TAG, "decoder threading, requested type: " + threadType + ", active type: "
+                        + videoDecoder.getActiveThreadType() + ", count: " + decoderThreadCount);
+            }
             TraceUtil.endSection();
             long codecInitializedTimestamp = SystemClock.elapsedRealtime();
             eventDispatcher.decoderInitialized(videoDecoder.getName(), codecInitializedTimestamp,
@@ -709,8 +975,23 @@ public final class SoftVideoRenderer extends BaseRenderer {
         }
 
         inputBuffer = null;
+        // The renderer's output buffers hold pooled data or, with zero copy output, a referenced
+        // native frame, which are only given back when the buffers are released.
+        if (outputBuffer != null && !outputBuffer.isEndOfStream()) {
+            outputBuffer.release();
+        }
         outputBuffer = null;
+        if (nextOutputBuffer != null && !nextOutputBuffer.isEndOfStream()) {
+            nextOutputBuffer.release();
+        }
         nextOutputBuffer = null;
+        // Remembered so that the next decoder can pick its thread type from it.
+        long releasedDecodeTimePerFrameUs = videoDecoder.getDecodeTimePerFrameUs();
+        if (releasedDecodeTimePerFrameUs != C.TIME_UNSET) {
+            decodeTimePerFrameUs = releasedDecodeTimePerFrameUs;
+            decodeTimeThreadType = videoDecoder.getActiveThreadType();
+            decodeTimeThreadCount = decoderThreadCount;
+        }
         videoDecoder.release();
         videoDecoder = null;
         decoderCounters.decoderReleaseCount++;
@@ -772,17 +1053,41 @@ public final class SoftVideoRenderer extends BaseRenderer {
             setBackgroundColor((Integer) message);
         } else if (messageType == Constant.MSG_SET_SCALE_TYPE) {
             setScaleType((FrameScaleType) message);
+        } else if (messageType == Constant.MSG_SET_FRAME_TRACER) {
+            setFrameTracer((FrameTracer) message);
+        } else if (messageType == Constant.MSG_SET_SHARED_RENDER_SERVICE) {
+            setSharedRenderService((SharedGLRenderService) message);
         } else {
             super.handleMessage(messageType, message);
         }
     }
 
     private void onPlayReleased() {
+        releaseGLOutput();
+    }
+
+    private void releaseGLOutput() {
         if (glThread != null) {
             glThread.surfaceDestroyed();
             glThread.requestExitAndWait();
             glThread = null;
         }
+        if (sharedRenderTarget != null) {
+            sharedRenderTarget.release();
+            sharedRenderTarget = null;
+        }
+    }
+
+    /**
+     * @param releaseTimeNs The {@link System#nanoTime()} at which the drawn frame should be
+     *                      displayed, or 0 to display it as soon as possible.
+     */
+    private void requestRender(long releaseTimeNs) {
+        if (sharedRenderTarget != null) {
+            sharedRenderTarget.requestRender(releaseTimeNs);
+        } else if (glThread != null) {
+            glThread.requestRender(releaseTimeNs);
+        }
     }
 
     private void setOutput(Surface surface) {
@@ -815,10 +1120,29 @@ public final class SoftVideoRenderer extends BaseRenderer {
     }
 
     private void onSurfaceChanged(Surface newSurface, Surface oldSurface) {
+        if (sharedRenderService != null) {
+            // Each surface gets its own target, whose GL objects are created on attaching.
+            releaseGLOutput();
+            if (newSurface != null) {
+                sharedRenderTarget = sharedRenderService.addTarget(newSurface, outputBufferRenderer);
+                sharedRenderTarget.setOnFrameSwappedListener(outputBufferRenderer::onFrameSwapped);
+                if (surfaceWidth > 0 && surfaceHeight > 0) {
+                    sharedRenderTarget.setSize(surfaceWidth, surfaceHeight);
+                }
+            }
+            return;
+        }
+        if (sharedRenderTarget != null) {
+            sharedRenderTarget.release();
+            sharedRenderTarget = null;
+        }
         if (glThread == null) {
             GLThread.Builder builder = new GLThread.Builder();
             builder.setSurface(newSurface).setRenderer(outputBufferRenderer);
+            // Prefer GLES 3 so that the renderer can stream textures through pixel buffers.
+            builder.setEglContextFactory(new GLThread.DefaultContextFactory(3, 2));
             glThread = builder.createGLThread();
+            glThread.setOnFrameSwappedListener(outputBufferRenderer::onFrameSwapped);
             glThread.start();
         } else {
             glThread.setSurface(newSurface);
@@ -835,6 +1159,9 @@ public final class SoftVideoRenderer extends BaseRenderer {
         if (glThread != null) {
             glThread.onWindowResize(width, height);
         }
+        if (sharedRenderTarget != null) {
+            sharedRenderTarget.setSize(width, height);
+        }
         surfaceWidth = width;
         surfaceHeight = height;
     }
@@ -890,14 +1217,18 @@ public final class SoftVideoRenderer extends BaseRenderer {
         }
     }
 
-    private static boolean isBufferLate(long earlyUs) {
-        // Class a buffer as late if it should have been presented more than 30 ms ago.
-        return earlyUs < -30000;
-    }
-
-    private static boolean isBufferVeryLate(long earlyUs) {
-        // Class a buffer as very late if it should have been presented more than 500 ms ago.
-        return earlyUs < -500000;
+    private static long getVsyncDurationUs(@Nullable Context context) {
+        Display display = null;
+        if (context != null) {
+            WindowManager windowManager =
+                    (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+            if (windowManager != null) {
+                display = windowManager.getDefaultDisplay();
+            }
+        }
+        float refreshRate = display != null ? display.getRefreshRate() : 0;
+        return refreshRate > 0
+                ? (long) (C.MICROS_PER_SECOND / refreshRate) : DEFAULT_VSYNC_DURATION_US;
     }
 
 }
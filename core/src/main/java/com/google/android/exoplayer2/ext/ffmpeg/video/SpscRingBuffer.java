@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.ffmpeg.video;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock free queue over a preallocated array. {@link #offer(Object)} must only be called
+ * from a single producer thread and {@link #poll()} from a single consumer thread.
+ */
+/* package */ final class SpscRingBuffer<T> {
+
+  private final Object[] elements;
+  private final int mask;
+  // Index of the next element to read, written by the consumer only.
+  private final AtomicLong head;
+  // Index of the next element to write, written by the producer only.
+  private final AtomicLong tail;
+
+  /**
+   * @param capacity The minimum number of elements the queue can hold.
+   */
+  public SpscRingBuffer(int capacity) {
+    int size = Integer.highestOneBit(Math.max(capacity, 1) * 2 - 1);
+    elements = new Object[size];
+    mask = size - 1;
+    head = new AtomicLong();
+    tail = new AtomicLong();
+  }
+
+  /**
+   * Appends an element. Producer thread only.
+   *
+   * @return Whether the element was added, false if the queue is full.
+   */
+  public boolean offer(T element) {
+    long currentTail = tail.get();
+    if (currentTail - head.get() == elements.length) {
+      return false;
+    }
+    elements[(int) currentTail & mask] = element;
+    // A volatile write, so that a consumer about to park is guaranteed to see the element or be
+    // seen as idle by the producer.
+    tail.set(currentTail + 1);
+    return true;
+  }
+
+  /**
+   * Removes the oldest element. Consumer thread only.
+   *
+   * @return The oldest element, or null if the queue is empty.
+   */
+  @SuppressWarnings("unchecked")
+  public T poll() {
+    long currentHead = head.get();
+    if (currentHead == tail.get()) {
+      return null;
+    }
+    int index = (int) currentHead & mask;
+    T element = (T) elements[index];
+    elements[index] = null;
+    head.set(currentHead + 1);
+    return element;
+  }
+
+  public boolean isEmpty() {
+    return head.get() == tail.get();
+  }
+
+  public int size() {
+    return (int) (tail.get() - head.get());
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.ffmpeg.video;
+
+/**
+ * Computes the transform from unit quad coordinates to texture coordinates, which rotates the
+ * frame, crops the stride padding and scales the frame to the surface.
+ * <p>
+ * The matrix is only recomputed when one of its inputs changes, and carries a generation that is
+ * incremented whenever it is, so that each program uploads it only once. Must only be used on the
+ * GL thread.
+ */
+/* package */ final class TextureMatrix {
+
+  // The column major transform.
+  private final float[] matrix;
+  private int generation;
+
+  private int previousWidth;
+  private int previousHeight;
+  private int previousStride;
+  private int previousBitDepth;
+  private int previousRotationDegree;
+  private int previousSurfaceWidth;
+  private int previousSurfaceHeight;
+  private FrameScaleType previousScaleType;
+
+  public TextureMatrix() {
+    matrix = new float[9];
+    invalidate();
+  }
+
+  /**
+   * Returns the column major matrix. The array is updated in place by {@link #update}.
+   */
+  public float[] getMatrix() {
+    return matrix;
+  }
+
+  /**
+   * Returns a number that changes whenever the matrix does.
+   */
+  public int getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Makes the next {@link #update} recompute the matrix, for example because it has to be uploaded
+   * to new programs.
+   */
+  public void invalidate() {
+    previousWidth = -1;
+    previousStride = -1;
+  }
+
+  /**
+   * Recomputes the matrix for a frame drawn on a surface, if any of them changed since the last
+   * call.
+   *
+   * @param width The width of the frame in pixels.
+   * @param height The height of the frame in pixels.
+   * @param stride The stride of the luma plane in bytes.
+   * @param bitDepth The number of bytes per sample.
+   * @param rotationDegree The clockwise rotation of the frame.
+   * @param surfaceWidth The width of the surface.
+   * @param surfaceHeight The height of the surface.
+   * @param scaleType How the frame is scaled to the surface.
+   * @return Whether the matrix was recomputed.
+   */
+  public boolean update(int width, int height, int stride, int bitDepth, int rotationDegree,
+      int surfaceWidth, int surfaceHeight, FrameScaleType scaleType) {
+    if (previousWidth == width && previousHeight == height && previousStride == stride
+        && previousBitDepth == bitDepth && previousRotationDegree == rotationDegree
+        && previousSurfaceWidth == surfaceWidth && previousSurfaceHeight == surfaceHeight
+        && previousScaleType == scaleType) {
+      return false;
+    }
+    previousWidth = width;
+    previousHeight = height;
+    previousStride = stride;
+    previousBitDepth = bitDepth;
+    previousRotationDegree = rotationDegree;
+    previousSurfaceWidth = surfaceWidth;
+    previousSurfaceHeight = surfaceHeight;
+    previousScaleType = scaleType;
+
+    boolean transposed = rotationDegree == 90 || rotationDegree == 270;
+    int displayWidth = transposed ? height : width;
+    int displayHeight = transposed ? width : height;
+
+    float verticalAspect = 0;
+    float horizontalAspect = 0;
+    if (scaleType != FrameScaleType.FIT_XY) {
+      boolean fitX = false;
+      boolean fitY = false;
+      if (scaleType == FrameScaleType.FIT_CENTER) {
+        if (displayWidth / (float) surfaceWidth >= displayHeight / (float) surfaceHeight) {
+          fitX = true;
+        } else {
+          fitY = true;
+        }
+      }
+      if (fitX || scaleType == FrameScaleType.FIT_X) {
+        float textureHeight = (float) surfaceWidth * displayHeight / displayWidth;
+        verticalAspect = (textureHeight - surfaceHeight) / 2f / textureHeight;
+      } else if (fitY || scaleType == FrameScaleType.FIT_Y) {
+        float textureWidth = (float) surfaceHeight * displayWidth / displayHeight;
+        horizontalAspect = (textureWidth - surfaceWidth) / 2f / textureWidth;
+      }
+    }
+    if (transposed) {
+      float aspect = horizontalAspect;
+      horizontalAspect = verticalAspect;
+      verticalAspect = aspect;
+    }
+
+    float crop = (float) width * bitDepth / stride;
+    compute(rotationDegree, crop, horizontalAspect, verticalAspect);
+    return true;
+  }
+
+  /**
+   * Computes the matrix. The unit quad coordinate p is first rotated, to (p.y, 1 - p.x) for 90
+   * degrees, (1 - p.x, 1 - p.y) for 180 and (1 - p.y, p.x) for 270, then mapped to
+   * (crop * (h + p.x * (1 - 2h)), v + p.y * (1 - 2v)).
+   *
+   * @param rotationDegree The clockwise rotation of the frame.
+   * @param crop The fraction of the texture width that holds pixels rather than stride padding.
+   * @param horizontalAspect The fraction h of the frame width cut on each side.
+   * @param verticalAspect The fraction v of the frame height cut on each side.
+   */
+  private void compute(int rotationDegree, float crop, float horizontalAspect,
+      float verticalAspect) {
+    // The rotation as p' = (a00 * p.x + a01 * p.y + tx, a10 * p.x + a11 * p.y + ty).
+    float a00 = 1;
+    float a01 = 0;
+    float a10 = 0;
+    float a11 = 1;
+    float tx = 0;
+    float ty = 0;
+    if (rotationDegree == 90) {
+      a00 = 0;
+      a01 = 1;
+      a10 = -1;
+      a11 = 0;
+      ty = 1;
+    } else if (rotationDegree == 180) {
+      a00 = -1;
+      a11 = -1;
+      tx = 1;
+      ty = 1;
+    } else if (rotationDegree == 270) {
+      a00 = 0;
+      a01 = -1;
+      a10 = 1;
+      a11 = 0;
+      tx = 1;
+    }
+    float scaleX = crop * (1 - 2 * horizontalAspect);
+    float scaleY = 1 - 2 * verticalAspect;
+    float[] m = matrix;
+    m[0] = scaleX * a00;
+    m[1] = scaleY * a10;
+    m[2] = 0;
+    m[3] = scaleX * a01;
+    m[4] = scaleY * a11;
+    m[5] = 0;
+    m[6] = scaleX * tx + crop * horizontalAspect;
+    m[7] = scaleY * ty + verticalAspect;
+    m[8] = 1;
+    generation++;
+  }
+
+}
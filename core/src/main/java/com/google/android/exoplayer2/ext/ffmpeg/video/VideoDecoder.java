@@ -17,6 +17,8 @@ package com.google.android.exoplayer2.ext.ffmpeg.video;
 
 import android.annotation.SuppressLint;
 
+import androidx.annotation.VisibleForTesting;
+
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.Format;
 import com.google.android.exoplayer2.decoder.CryptoInfo;
@@ -26,10 +28,11 @@ import com.google.android.exoplayer2.ext.Constant;
 import com.google.android.exoplayer2.ext.ffmpeg.VideoSoftDecoderException;
 import com.google.android.exoplayer2.ext.ffmpeg.DecoderSoLibrary;
 import com.google.android.exoplayer2.util.MimeTypes;
-import com.moqan.misc.Util;
+import com.google.android.exoplayer2.video.ColorInfo;
 
 import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * ffmpeg decoder.
@@ -43,8 +46,23 @@ final class VideoDecoder extends BaseDecoder {
     private static final int DECODE_EOF = 4;
     private static final int OUTPUT_BUFFER_ALLOCATE_FAILED = 5;
 
+    // The zero copy frames of all decoders that have not been released yet.
+    private static final AtomicInteger liveNativeFrameCount = new AtomicInteger();
+
     private final ExoMediaCrypto exoMediaCrypto;
     private final long ffmpegDecContext;
+    private final int activeThreadType;
+    private final long affinityMask;
+    private volatile boolean fastSeekEnabled;
+    private volatile int degradationLevel;
+
+    // Accessed only by the decode thread.
+    private boolean affinityApplied;
+    // The color info of the container, for frames that don't signal their own.
+    private ColorInfo colorInfo;
+    private long decodeTimeNs;
+    private int decodedFrameCount;
+    private volatile long decodeTimePerFrameUs = C.TIME_UNSET;
 
     /**
      * Creates a ffmpeg decoder.
@@ -54,11 +72,21 @@ final class VideoDecoder extends BaseDecoder {
      * @param initialInputBufferSize The initial size of each input buffer.
      * @param exoMediaCrypto         The {@link ExoMediaCrypto} object required for decoding encrypted
      *                               content. Maybe null and can be ignored if decoder does not handle encrypted content.
+     * @param zeroCopyOutput         Whether decoded frames should be wrapped instead of copied into the
+     *                               output buffers, when their pixel format allows it.
+     * @param bufferPool             The pool backing the data of the input and output buffers.
+     * @param threadType             The {@link DecoderThreadingPolicy.ThreadType} to open the codec with.
+     * @param threadCount            The number of decoder threads.
+     * @param affinityMask           The cores to run the decoder's threads on, where bit n stands for
+     *                               cpu n, or 0 to let the system schedule them.
      * @throws VideoSoftDecoderException Thrown if an exception occurs when initializing the decoder.
      */
     public VideoDecoder(Format format, int numInputBuffers, int numOutputBuffers, int initialInputBufferSize,
-                        ExoMediaCrypto exoMediaCrypto) throws VideoSoftDecoderException {
-        super(new PacketBuffer[numInputBuffers], new FrameBuffer[numOutputBuffers]);
+                        ExoMediaCrypto exoMediaCrypto, boolean zeroCopyOutput, DirectBufferPool bufferPool,
+                        @DecoderThreadingPolicy.ThreadType int threadType, int threadCount,
+                        long affinityMask)
+            throws VideoSoftDecoderException {
+        super(new PacketBuffer[numInputBuffers], new FrameBuffer[numOutputBuffers], bufferPool);
         if (!DecoderSoLibrary.isAvailable()) {
             throw new VideoSoftDecoderException("Failed to load decoder native libraries.");
         }
@@ -85,10 +113,15 @@ final class VideoDecoder extends BaseDecoder {
                 width,
                 height,
                 getExtraData(mimeType, format.initializationData),
-                Util.getCpuNumCores() + 1);
+                threadType,
+                threadCount,
+                affinityMask,
+                zeroCopyOutput);
         if (ffmpegDecContext == 0) {
             throw new VideoSoftDecoderException("Failed to initialize decoder");
         }
+        activeThreadType = ffmpegGetActiveThreadType(ffmpegDecContext);
+        this.affinityMask = affinityMask;
         setInitialInputBufferSize(initialInputBufferSize);
     }
 
@@ -97,14 +130,51 @@ final class VideoDecoder extends BaseDecoder {
         return "libffmpeg" + DecoderSoLibrary.getVersion();
     }
 
+    /**
+     * Sets whether non-reference frames of decode-only packets are skipped by the codec. Those
+     * frames are never output, and nothing else depends on them, so skipping them shortens seeking
+     * without changing the output.
+     *
+     * @param fastSeekEnabled Whether fast seeking is enabled.
+     */
+    public void setFastSeekEnabled(boolean fastSeekEnabled) {
+        this.fastSeekEnabled = fastSeekEnabled;
+    }
+
+    /**
+     * Sets how much decoding work the codec may skip to keep up, applied from the next packet.
+     *
+     * @param degradationLevel One of the {@code LEVEL_*} constants of
+     *                         {@link DecodeDegradationController}.
+     */
+    public void setDegradationLevel(int degradationLevel) {
+        this.degradationLevel = degradationLevel;
+    }
+
+    /**
+     * Returns the {@link DecoderThreadingPolicy.ThreadType} the codec actually uses, which may differ
+     * from the requested one if the codec does not support it.
+     */
+    public int getActiveThreadType() {
+        return activeThreadType;
+    }
+
+    /**
+     * Returns the average time the decode thread spent in the codec per output frame, or
+     * {@link C#TIME_UNSET} if no frame has been output yet.
+     */
+    public long getDecodeTimePerFrameUs() {
+        return decodeTimePerFrameUs;
+    }
+
     @Override
     protected PacketBuffer createInputBuffer() {
-        return new PacketBuffer();
+        return new PacketBuffer(bufferPool);
     }
 
     @Override
     protected FrameBuffer createOutputBuffer() {
-        return new FrameBuffer(this);
+        return new FrameBuffer(this, bufferPool);
     }
 
     @Override
@@ -114,9 +184,20 @@ final class VideoDecoder extends BaseDecoder {
 
     @Override
     protected VideoSoftDecoderException sendPacket(PacketBuffer inputBuffer) {
+        if (affinityMask != 0 && !affinityApplied) {
+            // The codec's own threads were pinned when they were created in ffmpegInit.
+            // Failures are logged natively, and the thread is then left to the scheduler.
+            ffmpegSetThreadAffinity(affinityMask);
+            affinityApplied = true;
+        }
 
+        if (inputBuffer.colorInfo != null) {
+            colorInfo = inputBuffer.colorInfo;
+        }
         boolean isEndOfStream = inputBuffer.isEndOfStream();
         boolean isDecodeOnly = inputBuffer.isDecodeOnly();
+        boolean isKeyFrame = inputBuffer.isKeyFrame();
+        boolean skipNonReferenceFrames = isDecodeOnly && fastSeekEnabled;
 
         ByteBuffer inputData = inputBuffer.data;
         int inputSize = 0;
@@ -124,6 +205,7 @@ final class VideoDecoder extends BaseDecoder {
             inputSize = inputData.limit();
         }
         CryptoInfo cryptoInfo = inputBuffer.cryptoInfo;
+        long startTimeNs = System.nanoTime();
         final long result = inputBuffer.isEncrypted()
                 ? ffmpegSecureDecode(ffmpegDecContext,
                 inputData,
@@ -137,13 +219,20 @@ final class VideoDecoder extends BaseDecoder {
                 cryptoInfo.numBytesOfEncryptedData,
                 inputBuffer.timeUs,
                 isDecodeOnly,
-                isEndOfStream)
+                isEndOfStream,
+                isKeyFrame,
+                skipNonReferenceFrames,
+                degradationLevel)
                 : ffmpegDecode(ffmpegDecContext,
                 inputData,
                 inputSize,
                 inputBuffer.timeUs,
                 isDecodeOnly,
-                isEndOfStream);
+                isEndOfStream,
+                isKeyFrame,
+                skipNonReferenceFrames,
+                degradationLevel);
+        decodeTimeNs += System.nanoTime() - startTimeNs;
         if (result != NO_ERROR) {
             if (result == DRM_ERROR) {
                 String message = "Drm error!!";
@@ -161,7 +250,28 @@ final class VideoDecoder extends BaseDecoder {
 
     @Override
     protected VideoSoftDecoderException getFrame(FrameBuffer outputBuffer) {
+        long startTimeNs = System.nanoTime();
         int getFrameResult = ffmpegGetFrame(ffmpegDecContext, outputBuffer);
+        decodeTimeNs += System.nanoTime() - startTimeNs;
+        if (getFrameResult == NO_ERROR) {
+            if (outputBuffer.nativeFrame != 0) {
+                liveNativeFrameCount.incrementAndGet();
+            }
+            decodedFrameCount++;
+            decodeTimePerFrameUs = decodeTimeNs / decodedFrameCount / 1000;
+            if (colorInfo != null) {
+                if (outputBuffer.colorSpace == Format.NO_VALUE) {
+                    outputBuffer.colorSpace = colorInfo.colorSpace;
+                }
+                if (outputBuffer.colorRange == Format.NO_VALUE) {
+                    outputBuffer.colorRange = colorInfo.colorRange;
+                }
+                if (outputBuffer.colorTransfer == Format.NO_VALUE) {
+                    outputBuffer.colorTransfer = colorInfo.colorTransfer;
+                }
+            }
+            outputBuffer.hdrStaticInfo = colorInfo != null ? colorInfo.hdrStaticInfo : null;
+        }
         if (getFrameResult == DECODE_AGAIN) {
             outputBuffer.addFlag(Constant.BUFFER_FLAG_DECODE_AGAIN);
         } else if (getFrameResult == OUTPUT_BUFFER_ALLOCATE_FAILED) {
@@ -179,6 +289,21 @@ final class VideoDecoder extends BaseDecoder {
         super.releaseOutputBuffer(buffer);
     }
 
+    @Override
+    protected void releaseNativeFrame(long nativeFrame) {
+        ffmpegReleaseFrame(nativeFrame);
+        liveNativeFrameCount.decrementAndGet();
+    }
+
+    /**
+     * Returns the number of zero copy frames, of any decoder, that have been output and not yet
+     * released.
+     */
+    @VisibleForTesting
+    static int getLiveNativeFrameCount() {
+        return liveNativeFrameCount.get();
+    }
+
     @Override
     public void release() {
         super.release();
@@ -224,7 +349,12 @@ final class VideoDecoder extends BaseDecoder {
     }
 
     private native long ffmpegInit(String codecName, int rotationDegrees, int width, int height,
-                                   byte[] extraData, int threadCount);
+                                   byte[] extraData, int threadType, int threadCount, long affinityMask,
+                                   boolean zeroCopyOutput);
+
+    private native boolean ffmpegSetThreadAffinity(long affinityMask);
+
+    private native int ffmpegGetActiveThreadType(long context);
 
     private native int ffmpegClose(long context);
 
@@ -235,7 +365,10 @@ final class VideoDecoder extends BaseDecoder {
                                      int length,
                                      long timeUs,
                                      boolean isDecodeOnly,
-                                     boolean isEndOfStream);
+                                     boolean isEndOfStream,
+                                     boolean isKeyFrame,
+                                     boolean skipNonReferenceFrames,
+                                     int degradationLevel);
 
     private native int ffmpegSecureDecode(long context,
                                            ByteBuffer encoded,
@@ -249,9 +382,14 @@ final class VideoDecoder extends BaseDecoder {
                                            int[] numBytesOfEncryptedData,
                                            long timeUs,
                                            boolean isDecodeOnly,
-                                           boolean isEndOfStream);
+                                           boolean isEndOfStream,
+                                           boolean isKeyFrame,
+                                           boolean skipNonReferenceFrames,
+                                           int degradationLevel);
 
     private native int ffmpegGetFrame(long context, FrameBuffer outputBuffer);
 
     private native int ffmpegGetErrorCode(long context);
+
+    private native void ffmpegReleaseFrame(long frame);
 }
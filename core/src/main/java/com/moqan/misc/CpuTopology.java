@@ -0,0 +1,255 @@
+package com.moqan.misc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * CPU核心拓扑，区分大核(performance)和小核(efficiency)
+ * <p>
+ * 从sysfs读取每个核心的cpufreq/cpuinfo_max_freq，并通过cpufreq/related_cpus得到同一cluster的核心，
+ * 这样offline的核心也能归到它所在的cluster。最高频率最低的cluster视为小核，其余都视为大核；
+ * 读不到频率的核心都视为大核。
+ */
+public final class CpuTopology {
+    private static final String SYSFS_CPU_DIR = "/sys/devices/system/cpu";
+    // 掩码用long表示，超出的核心忽略
+    private static final int MAX_CORE_COUNT = 64;
+
+    private static CpuTopology instance;
+
+    private final int coreCount;
+    private final int clusterCount;
+    private final long performanceCoreMask;
+    private final long efficiencyCoreMask;
+
+    /**
+     * 返回当前设备的拓扑，第一次调用时读取sysfs，之后使用缓存
+     */
+    public static synchronized CpuTopology get() {
+        if (instance == null) {
+            instance = read(new File(SYSFS_CPU_DIR));
+        }
+        return instance;
+    }
+
+    /**
+     * 从指定目录读取拓扑，目录结构同/sys/devices/system/cpu
+     *
+     * @param cpuDir sysfs的cpu目录
+     */
+    public static CpuTopology read(File cpuDir) {
+        int[] cores = readCores(cpuDir);
+        if (cores.length == 0) {
+            int count = Math.min(Runtime.getRuntime().availableProcessors(), MAX_CORE_COUNT);
+            return new CpuTopology(count, 1, maskOfFirst(count), 0);
+        }
+
+        int maxCore = 0;
+        for (int core : cores) {
+            maxCore = Math.max(maxCore, core);
+        }
+        long[] maxFreqs = new long[maxCore + 1];
+        for (int core : cores) {
+            if (maxFreqs[core] != 0) {
+                continue;
+            }
+            File cpufreqDir = new File(cpuDir, "cpu" + core + "/cpufreq");
+            long maxFreq = parseLong(readLine(new File(cpufreqDir, "cpuinfo_max_freq")));
+            if (maxFreq <= 0) {
+                continue;
+            }
+            maxFreqs[core] = maxFreq;
+            int[] relatedCores = parseCpuList(readLine(new File(cpufreqDir, "related_cpus")));
+            for (int relatedCore : relatedCores) {
+                if (relatedCore <= maxCore && maxFreqs[relatedCore] == 0) {
+                    maxFreqs[relatedCore] = maxFreq;
+                }
+            }
+        }
+
+        long minFreq = Long.MAX_VALUE;
+        long[] distinctFreqs = new long[cores.length];
+        int clusterCount = 0;
+        for (int core : cores) {
+            long maxFreq = maxFreqs[core];
+            if (maxFreq == 0) {
+                continue;
+            }
+            minFreq = Math.min(minFreq, maxFreq);
+            if (indexOf(distinctFreqs, clusterCount, maxFreq) == -1) {
+                distinctFreqs[clusterCount++] = maxFreq;
+            }
+        }
+
+        long allMask = 0;
+        long efficiencyMask = 0;
+        for (int core : cores) {
+            allMask |= 1L << core;
+            // 只有一种频率时没有大小核之分；读不到频率的核心(通常是整个cluster都offline)按大核处理，
+            // 被关掉的通常是大核，这样绑核时不会把它们排除在外
+            if (clusterCount > 1 && maxFreqs[core] != 0 && maxFreqs[core] <= minFreq) {
+                efficiencyMask |= 1L << core;
+            }
+        }
+        return new CpuTopology(cores.length, Math.max(1, clusterCount),
+                allMask & ~efficiencyMask, efficiencyMask);
+    }
+
+    private CpuTopology(int coreCount, int clusterCount, long performanceCoreMask,
+                        long efficiencyCoreMask) {
+        this.coreCount = coreCount;
+        this.clusterCount = clusterCount;
+        this.performanceCoreMask = performanceCoreMask;
+        this.efficiencyCoreMask = efficiencyCoreMask;
+    }
+
+    /**
+     * 核心总数，包括offline的核心
+     */
+    public int getCoreCount() {
+        return coreCount;
+    }
+
+    /**
+     * 按最高频率区分的cluster数
+     */
+    public int getClusterCount() {
+        return clusterCount;
+    }
+
+    /**
+     * 大核数，没有大小核之分时等于核心总数
+     */
+    public int getPerformanceCoreCount() {
+        return Long.bitCount(performanceCoreMask);
+    }
+
+    /**
+     * 小核数，没有大小核之分时为0
+     */
+    public int getEfficiencyCoreCount() {
+        return Long.bitCount(efficiencyCoreMask);
+    }
+
+    /**
+     * 大核的亲和性掩码，第n位对应cpu n
+     */
+    public long getPerformanceCoreMask() {
+        return performanceCoreMask;
+    }
+
+    /**
+     * 小核的亲和性掩码，第n位对应cpu n
+     */
+    public long getEfficiencyCoreMask() {
+        return efficiencyCoreMask;
+    }
+
+    @Override
+    public String toString() {
+        return "CpuTopology{cores=" + coreCount + ", clusters=" + clusterCount
+                + ", performance=0x" + Long.toHexString(performanceCoreMask)
+                + ", efficiency=0x" + Long.toHexString(efficiencyCoreMask) + "}";
+    }
+
+    // 优先读取present，读不到时列举cpuN目录
+    private static int[] readCores(File cpuDir) {
+        int[] cores = parseCpuList(readLine(new File(cpuDir, "present")));
+        if (cores.length > 0) {
+            return cores;
+        }
+        File[] files = cpuDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File pathname) {
+                return Pattern.matches("cpu[0-9]+", pathname.getName());
+            }
+        });
+        if (files == null) {
+            return new int[0];
+        }
+        int[] listedCores = new int[files.length];
+        int count = 0;
+        for (File file : files) {
+            int core = (int) parseLong(file.getName().substring(3));
+            if (core >= 0 && core < MAX_CORE_COUNT) {
+                listedCores[count++] = core;
+            }
+        }
+        Arrays.sort(listedCores, 0, count);
+        return Arrays.copyOf(listedCores, count);
+    }
+
+    // 解析"0-3,6"这样的核心列表，格式不对时返回空数组
+    private static int[] parseCpuList(String cpuList) {
+        if (cpuList == null || cpuList.isEmpty()) {
+            return new int[0];
+        }
+        long mask = 0;
+        for (String range : cpuList.split(",")) {
+            int separator = range.indexOf('-');
+            long first = parseLong(separator == -1 ? range : range.substring(0, separator));
+            long last = separator == -1 ? first : parseLong(range.substring(separator + 1));
+            if (first < 0 || last < first) {
+                return new int[0];
+            }
+            for (long core = first; core <= last && core < MAX_CORE_COUNT; core++) {
+                mask |= 1L << core;
+            }
+        }
+        int[] cores = new int[Long.bitCount(mask)];
+        for (int i = 0, core = 0; i < cores.length; core++) {
+            if ((mask & (1L << core)) != 0) {
+                cores[i++] = core;
+            }
+        }
+        return cores;
+    }
+
+    private static int indexOf(long[] values, int count, long value) {
+        for (int i = 0; i < count; i++) {
+            if (values[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String readLine(File file) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            String line = reader.readLine();
+            return line == null ? null : line.trim();
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+
+    private static long maskOfFirst(int count) {
+        return count >= MAX_CORE_COUNT ? -1L : (1L << count) - 1;
+    }
+}
@@ -1,34 +1,14 @@
 package com.moqan.misc;
 
-import java.io.File;
-import java.io.FileFilter;
-import java.util.regex.Pattern;
-
 /**
  * Created by joffy on 18/2/17.
  */
 
 public class Util {
+    /**
+     * 核心总数，结果缓存在{@link CpuTopology}中
+     */
     public static int getCpuNumCores() {
-        //Private Class to display only CPU devices in the directory listing
-        class CpuFilter implements FileFilter {
-            @Override
-            public boolean accept(File pathname) {
-                //Check if filename is "cpu", followed by a single digit number
-                return Pattern.matches("cpu[0-9]+", pathname.getName());
-            }
-        }
-
-        try {
-            //Get directory containing CPU info
-            File dir = new File("/sys/devices/system/cpu/");
-            //Filter to only list the devices we care about
-            File[] files = dir.listFiles(new CpuFilter());
-            //Return the number of cores (virtual CPU devices)
-            return files.length;
-        } catch(Exception e) {
-            //Default to return 1 core
-            return 1;
-        }
+        return CpuTopology.get().getCoreCount();
     }
 }
@@ -6,6 +6,8 @@ import android.view.SurfaceHolder
 import android.view.SurfaceView
 import android.view.TextureView
 import com.google.android.exoplayer2.ext.ffmpeg.video.FrameScaleType
+import com.google.android.exoplayer2.ext.ffmpeg.video.FrameTracer
+import com.moqan.mqplayer.egl.SharedGLRenderService
 
 /*
  * @author joffychim  <zhanzenghui@bytedance.com>
@@ -57,4 +59,6 @@ interface IMediaPlayer {
 
     fun setBackgroundColor(color: Int)
     fun setScaleType(scaleType: FrameScaleType)
+    fun setFrameTracer(frameTracer: FrameTracer?)
+    fun setSharedRenderService(sharedRenderService: SharedGLRenderService?)
 }
\ No newline at end of file
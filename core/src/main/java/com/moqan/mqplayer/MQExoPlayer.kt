@@ -16,8 +16,10 @@ import com.google.android.exoplayer2.drm.FrameworkMediaCrypto
 import com.google.android.exoplayer2.ext.Constant
 import com.google.android.exoplayer2.ext.Constant.*
 import com.google.android.exoplayer2.ext.ffmpeg.video.FrameScaleType
+import com.google.android.exoplayer2.ext.ffmpeg.video.FrameTracer
 import com.google.android.exoplayer2.trackselection.TrackSelector
 import com.google.android.exoplayer2.upstream.DefaultBandwidthMeter
+import com.moqan.mqplayer.egl.SharedGLRenderService
 import java.util.*
 
 /**
@@ -163,4 +165,22 @@ internal class MQExoPlayer @JvmOverloads constructor(
 
         messages.forEach { it.blockUntilDelivered() }
     }
+
+    fun setFrameTracer(frameTracer: FrameTracer?) {
+        val messages = mutableListOf<PlayerMessage>()
+        renderers.firstOrNull { it.trackType == C.TRACK_TYPE_VIDEO }?.let {
+            messages.add(createMessage(it).setType(MSG_SET_FRAME_TRACER).setPayload(frameTracer).send())
+        }
+
+        messages.forEach { it.blockUntilDelivered() }
+    }
+
+    fun setSharedRenderService(sharedRenderService: SharedGLRenderService?) {
+        val messages = mutableListOf<PlayerMessage>()
+        renderers.firstOrNull { it.trackType == C.TRACK_TYPE_VIDEO }?.let {
+            messages.add(createMessage(it).setType(MSG_SET_SHARED_RENDER_SERVICE).setPayload(sharedRenderService).send())
+        }
+
+        messages.forEach { it.blockUntilDelivered() }
+    }
 }
\ No newline at end of file
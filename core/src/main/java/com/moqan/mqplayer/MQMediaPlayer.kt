@@ -18,7 +18,9 @@ import com.google.android.exoplayer2.database.ExoDatabaseProvider
 import com.google.android.exoplayer2.drm.DrmSessionManager
 import com.google.android.exoplayer2.drm.FrameworkMediaCrypto
 import com.google.android.exoplayer2.ext.ffmpeg.audio.SoftAudioRenderer
+import com.google.android.exoplayer2.ext.ffmpeg.video.DecoderThreadingPolicy
 import com.google.android.exoplayer2.ext.ffmpeg.video.FrameScaleType
+import com.google.android.exoplayer2.ext.ffmpeg.video.FrameTracer
 import com.google.android.exoplayer2.ext.ffmpeg.video.SoftVideoRenderer
 import com.google.android.exoplayer2.mediacodec.MediaCodecSelector
 import com.google.android.exoplayer2.source.MediaSource
@@ -32,6 +34,7 @@ import com.google.android.exoplayer2.upstream.cache.*
 import com.google.android.exoplayer2.util.Util
 import com.google.android.exoplayer2.video.VideoListener
 import com.google.android.exoplayer2.video.VideoRendererEventListener
+import com.moqan.mqplayer.egl.SharedGLRenderService
 import java.io.File
 import java.util.ArrayList
 import java.util.concurrent.CopyOnWriteArrayList
@@ -56,10 +59,10 @@ private class RenderFactoryImp : DefaultRenderersFactory {
     }
 
     override fun buildVideoRenderers(context: Context?, extensionRendererMode: Int, mediaCodecSelector: MediaCodecSelector?, drmSessionManager: DrmSessionManager<FrameworkMediaCrypto>?, playClearSamplesWithoutKeys: Boolean, enableDecoderFallback: Boolean, eventHandler: Handler?, eventListener: VideoRendererEventListener?, allowedVideoJoiningTimeMs: Long, out: ArrayList<Renderer>) {
-        val softRenderer = SoftVideoRenderer(true,
+        val softRenderer = SoftVideoRenderer(context, true,
                 allowedVideoJoiningTimeMs, eventHandler, eventListener,
                 MAX_DROPPED_VIDEO_FRAME_COUNT_TO_NOTIFY,
-                drmSessionManager, false)
+                drmSessionManager, false, DecoderThreadingPolicy.AUTO)
         out.add(softRenderer)
         super.buildVideoRenderers(context, extensionRendererMode, mediaCodecSelector, drmSessionManager, playClearSamplesWithoutKeys, enableDecoderFallback, eventHandler, eventListener, allowedVideoJoiningTimeMs, out)
     }
@@ -242,4 +245,12 @@ class MQMediaPlayer(private val context: Context) : IMediaPlayer {
     override fun setScaleType(scaleType: FrameScaleType) {
         player.setScaleType(scaleType)
     }
+
+    override fun setFrameTracer(frameTracer: FrameTracer?) {
+        player.setFrameTracer(frameTracer)
+    }
+
+    override fun setSharedRenderService(sharedRenderService: SharedGLRenderService?) {
+        player.setSharedRenderService(sharedRenderService)
+    }
 }
\ No newline at end of file
@@ -10,6 +10,7 @@ import com.google.android.exoplayer2.DefaultRenderersFactory;
 import com.google.android.exoplayer2.Renderer;
 import com.google.android.exoplayer2.drm.DrmSessionManager;
 import com.google.android.exoplayer2.drm.FrameworkMediaCrypto;
+import com.google.android.exoplayer2.ext.ffmpeg.video.DecoderThreadingPolicy;
 import com.google.android.exoplayer2.ext.ffmpeg.video.SoftVideoRenderer;
 import com.google.android.exoplayer2.video.VideoRendererEventListener;
 
@@ -40,10 +41,10 @@ public class SimpleRenderersFactory extends DefaultRenderersFactory {
 
     @Override
     protected void buildVideoRenderers(Context context, @Nullable DrmSessionManager<FrameworkMediaCrypto> drmSessionManager, long allowedVideoJoiningTimeMs, Handler eventHandler, VideoRendererEventListener eventListener, int extensionRendererMode, ArrayList<Renderer> out) {
-        BaseRenderer ffmpegRenderer = new SoftVideoRenderer(true,
+        BaseRenderer ffmpegRenderer = new SoftVideoRenderer(context, true,
                 allowedVideoJoiningTimeMs, eventHandler, eventListener,
                 MAX_DROPPED_VIDEO_FRAME_COUNT_TO_NOTIFY,
-                drmSessionManager, false);
+                drmSessionManager, false, DecoderThreadingPolicy.AUTO);
         out.add(ffmpegRenderer);
 
         super.buildVideoRenderers(context, drmSessionManager, allowedVideoJoiningTimeMs, eventHandler, eventListener, extensionRendererMode, out);
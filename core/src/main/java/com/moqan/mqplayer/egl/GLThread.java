@@ -26,10 +26,13 @@ import android.opengl.EGLExt;
 import android.os.Build;
 import androidx.annotation.NonNull;
 import androidx.annotation.RequiresApi;
+import androidx.annotation.VisibleForTesting;
 import android.util.Log;
 import android.view.Choreographer;
 
 import java.util.ArrayList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGL11;
@@ -54,7 +57,17 @@ public class GLThread extends Thread {
     public final static int RENDERMODE_WHEN_DIRTY = 0;
     public final static int RENDERMODE_CONTINUOUSLY = 1;
 
-    private final GLThreadManager sGLThreadManager = new GLThreadManager();
+    // Guards the state below. The GL thread waits on mWorkAvailable for requests from other
+    // threads, which wait on mStateChanged for the GL thread to act on them, so that a request
+    // wakes only the GL thread and a state change wakes only the callers.
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mWorkAvailable = mLock.newCondition();
+    private final Condition mStateChanged = mLock.newCondition();
+    // Arbitrates the EGL context, independently of mLock.
+    private final EglContextManager mEglContextManager = new EglContextManager();
+    // How often the GL thread and the callers waiting for it have been woken, guarded by mLock.
+    private int mWorkWakeCount;
+    private int mStateChangeWakeCount;
 
 
     private int mRenderMode;
@@ -65,11 +78,12 @@ public class GLThread extends Thread {
     private Object mSurface;
 
     private OnCreateGLContextListener onCreateGLContextListener;
+    private volatile OnFrameSwappedListener onFrameSwappedListener;
     private boolean mPreserveEGLContextOnPause = true;
 
 
     // Once the thread is started, all accesses to the following member
-    // variables are protected by the sGLThreadManager monitor
+    // variables are protected by mLock
     private boolean mShouldExit;
     private boolean mExited;
     private boolean mRequestPaused;
@@ -83,6 +97,8 @@ public class GLThread extends Thread {
     private int mWidth;
     private int mHeight;
     private boolean mRequestRender;
+    // The System.nanoTime() at which the next swap should be displayed, or 0 if it isn't timed.
+    private long mPresentationTimeNs;
     private boolean mWantRenderNotification;
     private boolean mRenderComplete;
     private ArrayList<Runnable> mEventQueue = new ArrayList<>();
@@ -92,7 +108,6 @@ public class GLThread extends Thread {
 
 
     private ChoreographerRenderWrapper mChoreographerRenderWrapper = new ChoreographerRenderWrapper(this);
-    private long frameTimeNanos;
 
     GLThread(EGLConfigChooser configChooser, EGLContextFactory eglContextFactory
             , EGLWindowSurfaceFactory eglWindowSurfaceFactory, GLViewRenderer renderer
@@ -131,10 +146,55 @@ public class GLThread extends Thread {
         } catch (InterruptedException e) {
             // fall thru and exit normally
         } finally {
-            sGLThreadManager.threadExiting(this);
+            if (LOG_THREADS) {
+                Log.i("GLThread", "exiting tid=" + getId());
+            }
+            mLock.lock();
+            try {
+                mExited = true;
+                mEglContextManager.release(this);
+                mStateChanged.signalAll();
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+
+
+    /**
+     * Replaces the EGL helper the thread creates when it starts, so that the thread can run
+     * without EGL. Must be called before {@link #start()}.
+     */
+    @VisibleForTesting
+    void setEglHelper(IEglHelper eglHelper) {
+        mEglHelper = eglHelper;
+    }
+
+    /**
+     * Returns how often the GL thread has been woken from waiting for work.
+     */
+    @VisibleForTesting
+    int getWorkWakeCount() {
+        mLock.lock();
+        try {
+            return mWorkWakeCount;
+        } finally {
+            mLock.unlock();
         }
     }
 
+    /**
+     * Returns how often callers waiting for the GL thread to act on a request have been woken.
+     */
+    @VisibleForTesting
+    int getStateChangeWakeCount() {
+        mLock.lock();
+        try {
+            return mStateChangeWakeCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
 
     public void setPreserveEGLContextOnPause(boolean mPreserveEGLContextOnPause) {
         this.mPreserveEGLContextOnPause = mPreserveEGLContextOnPause;
@@ -142,9 +202,8 @@ public class GLThread extends Thread {
 
 
     /*
-         * This private method should only be called inside a
-         * synchronized(sGLThreadManager) block.
-         */
+     * This private method should only be called while holding mLock.
+     */
     private void stopEglSurfaceLocked() {
         if (mHaveEglSurface) {
             mHaveEglSurface = false;
@@ -153,19 +212,21 @@ public class GLThread extends Thread {
     }
 
     /*
-     * This private method should only be called inside a
-     * synchronized(sGLThreadManager) block.
+     * This private method should only be called while holding mLock.
      */
     private void stopEglContextLocked() {
         if (mHaveEglContext) {
+            mRenderer.onContextLost();
             mEglHelper.finish();
             mHaveEglContext = false;
-            sGLThreadManager.releaseEglContextLocked(this);
+            mEglContextManager.release(this);
         }
     }
 
     private void guardedRun() throws InterruptedException {
-        mEglHelper = EglHelperFactory.create(mEGLConfigChooser, mEGLContextFactory, mEGLWindowSurfaceFactory);
+        if (mEglHelper == null) {
+            mEglHelper = EglHelperFactory.create(mEGLConfigChooser, mEGLContextFactory, mEGLWindowSurfaceFactory);
+        }
         mHaveEglContext = false;
         mHaveEglSurface = false;
         mWantRenderNotification = false;
@@ -179,12 +240,14 @@ public class GLThread extends Thread {
             boolean wantRenderNotification = false;
             boolean doRenderNotification = false;
             boolean askedToReleaseEglContext = false;
+            long presentationTimeNs = 0;
             int w = 0;
             int h = 0;
             Runnable event = null;
 
             while (true) {
-                synchronized (sGLThreadManager) {
+                mLock.lock();
+                try {
                     while (true) {
                         if (mShouldExit) {
                             return;
@@ -200,7 +263,7 @@ public class GLThread extends Thread {
                         if (mPaused != mRequestPaused) {
                             pausing = mRequestPaused;
                             mPaused = mRequestPaused;
-                            sGLThreadManager.notifyAll();
+                            mStateChanged.signalAll();
                             if (LOG_PAUSE_RESUME) {
                                 Log.i("GLThread", "mPaused is now " + mPaused + " tid=" + getId());
                             }
@@ -243,7 +306,7 @@ public class GLThread extends Thread {
                             }
                             mWaitingForSurface = true;
                             mSurfaceIsBad = false;
-                            sGLThreadManager.notifyAll();
+                            mStateChanged.signalAll();
                         }
 
                         // Have we acquired the surface view surface?
@@ -252,7 +315,7 @@ public class GLThread extends Thread {
                                 Log.i("GLThread", "noticed surfaceView surface acquired tid=" + getId());
                             }
                             mWaitingForSurface = false;
-                            sGLThreadManager.notifyAll();
+                            mStateChanged.signalAll();
                         }
 
                         if (doRenderNotification) {
@@ -262,7 +325,7 @@ public class GLThread extends Thread {
                             mWantRenderNotification = false;
                             doRenderNotification = false;
                             mRenderComplete = true;
-                            sGLThreadManager.notifyAll();
+                            mStateChanged.signalAll();
                         }
 
                         // Ready to draw?
@@ -272,20 +335,20 @@ public class GLThread extends Thread {
                             if (!mHaveEglContext) {
                                 if (askedToReleaseEglContext) {
                                     askedToReleaseEglContext = false;
-                                } else if (sGLThreadManager.tryAcquireEglContextLocked(this)) {
+                                } else if (mEglContextManager.tryAcquire(this)) {
                                     try {
                                         mEglContext = mEglHelper.start(mEglContext);
                                         if (onCreateGLContextListener != null) {
                                             onCreateGLContextListener.onCreate(mEglContext);
                                         }
                                     } catch (RuntimeException t) {
-                                        sGLThreadManager.releaseEglContextLocked(this);
+                                        mEglContextManager.release(this);
                                         throw t;
                                     }
                                     mHaveEglContext = true;
                                     createEglContext = true;
 
-                                    sGLThreadManager.notifyAll();
+                                    mStateChanged.signalAll();
                                 }
                             }
 
@@ -317,11 +380,18 @@ public class GLThread extends Thread {
                                 if (changeSurface) {
                                     createEglSurface = true;
                                     changeSurface = false;
+                                    // The new surface holds nothing yet, so the renderer is told
+                                    // even if the size is the same, and draws it in full.
+                                    sizeChanged = true;
+                                    w = mWidth;
+                                    h = mHeight;
                                 }
 
 
                                 mRequestRender = false;
-                                sGLThreadManager.notifyAll();
+                                presentationTimeNs = mPresentationTimeNs;
+                                mPresentationTimeNs = 0;
+                                mStateChanged.signalAll();
                                 if (mWantRenderNotification) {
                                     wantRenderNotification = true;
                                 }
@@ -344,9 +414,12 @@ public class GLThread extends Thread {
                                     + " mRequestRender: " + mRequestRender
                                     + " mRenderMode: " + mRenderMode);
                         }
-                        sGLThreadManager.wait();
+                        mWorkAvailable.await();
+                        mWorkWakeCount++;
                     }
-                } // end of synchronized(sGLThreadManager)
+                } finally {
+                    mLock.unlock();
+                }
 
                 if (event != null) {
                     event.run();
@@ -359,15 +432,21 @@ public class GLThread extends Thread {
                         Log.w("GLThread", "egl createSurface");
                     }
                     if (mEglHelper.createSurface(mSurface)) {
-                        synchronized (sGLThreadManager) {
+                        mLock.lock();
+                        try {
                             mFinishedCreatingEglSurface = true;
-                            sGLThreadManager.notifyAll();
+                            mStateChanged.signalAll();
+                        } finally {
+                            mLock.unlock();
                         }
                     } else {
-                        synchronized (sGLThreadManager) {
+                        mLock.lock();
+                        try {
                             mFinishedCreatingEglSurface = true;
                             mSurfaceIsBad = true;
-                            sGLThreadManager.notifyAll();
+                            mStateChanged.signalAll();
+                        } finally {
+                            mLock.unlock();
                         }
                         continue;
                     }
@@ -399,12 +478,24 @@ public class GLThread extends Thread {
                     if (LOG_RENDERER_DRAW_FRAME) {
                         Log.w("GLThread", "onDrawFrame tid=" + getId());
                     }
-                    mRenderer.onDrawFrame();
-                    mEglHelper.setPresentationTime(frameTimeNanos);
-                    int swapError = mEglHelper.swap();
+                    // A renderer with nothing new to draw leaves the surface showing the last
+                    // swap, which saves the composition of an identical buffer.
+                    boolean drawn = mRenderer.onDrawFrame();
+                    int swapError = EGL10.EGL_SUCCESS;
+                    if (drawn) {
+                        // The time sticks to the surface, so untimed swaps are stamped with the
+                        // current time rather than inheriting the previous frame's.
+                        mEglHelper.setPresentationTime(
+                                presentationTimeNs != 0 ? presentationTimeNs : System.nanoTime());
+                        swapError = mEglHelper.swap();
+                    }
                     mChoreographerRenderWrapper.disableSwap();
                     switch (swapError) {
                         case EGL10.EGL_SUCCESS:
+                            OnFrameSwappedListener frameSwappedListener = onFrameSwappedListener;
+                            if (drawn && frameSwappedListener != null) {
+                                frameSwappedListener.onFrameSwapped();
+                            }
                             break;
                         case EGL11.EGL_CONTEXT_LOST:
                             if (LOG_SURFACE) {
@@ -419,9 +510,12 @@ public class GLThread extends Thread {
                             // Log the error to help developers understand why rendering stopped.
                             EglHelper.logEglErrorAsWarning("GLThread", "eglSwapBuffers", swapError);
 
-                            synchronized (sGLThreadManager) {
+                            mLock.lock();
+                            try {
                                 mSurfaceIsBad = true;
-                                sGLThreadManager.notifyAll();
+                                mStateChanged.signalAll();
+                            } finally {
+                                mLock.unlock();
                             }
                             break;
                     }
@@ -438,9 +532,12 @@ public class GLThread extends Thread {
                 /*
                  * clean-up everything...
                  */
-            synchronized (sGLThreadManager) {
+            mLock.lock();
+            try {
                 stopEglSurfaceLocked();
                 stopEglContextLocked();
+            } finally {
+                mLock.unlock();
             }
         }
     }
@@ -473,13 +570,27 @@ public class GLThread extends Thread {
         void onCreate(EglContextWrapper eglContext);
     }
 
+    public void setOnFrameSwappedListener(OnFrameSwappedListener onFrameSwappedListener) {
+        this.onFrameSwappedListener = onFrameSwappedListener;
+    }
+
+    /**
+     * Called on the GL thread after each successful eglSwapBuffers.
+     */
+    public interface OnFrameSwappedListener {
+        void onFrameSwapped();
+    }
+
     public void setRenderMode(int renderMode) {
         if (!((RENDERMODE_WHEN_DIRTY <= renderMode) && (renderMode <= RENDERMODE_CONTINUOUSLY))) {
             throw new IllegalArgumentException("renderMode");
         }
-        synchronized (sGLThreadManager) {
+        mLock.lock();
+        try {
             mRenderMode = renderMode;
-            sGLThreadManager.notifyAll();
+            mWorkAvailable.signal();
+        } finally {
+            mLock.unlock();
         }
     }
 
@@ -488,19 +599,39 @@ public class GLThread extends Thread {
     }
 
     public void requestRender() {
-        requestRender(0);
+        mLock.lock();
+        try {
+            mRequestRender = true;
+            mWorkAvailable.signal();
+        } finally {
+            mLock.unlock();
+        }
     }
 
-    public void requestRender(long frameTimeNanos) {
-        this.frameTimeNanos = frameTimeNanos;
-        synchronized (sGLThreadManager) {
+    /**
+     * Requests a render whose swap is displayed at the given time, if the EGL implementation
+     * supports presentation times. A pending time is kept when an untimed render is requested
+     * before the draw, so that redraws don't present a queued frame early.
+     *
+     * @param presentationTimeNs The {@link System#nanoTime()} at which to display the frame, or 0
+     *                           to display it as soon as possible.
+     */
+    public void requestRender(long presentationTimeNs) {
+        mLock.lock();
+        try {
+            if (presentationTimeNs != 0) {
+                mPresentationTimeNs = presentationTimeNs;
+            }
             mRequestRender = true;
-            sGLThreadManager.notifyAll();
+            mWorkAvailable.signal();
+        } finally {
+            mLock.unlock();
         }
     }
 
     public void requestRenderAndWait() {
-        synchronized (sGLThreadManager) {
+        mLock.lock();
+        try {
             // If we are already on the GL thread, this means a client callback
             // has caused reentrancy, for example via updating the SurfaceView parameters.
             // We will return to the client rendering code, so here we don't need to
@@ -513,102 +644,97 @@ public class GLThread extends Thread {
             mRequestRender = true;
             mRenderComplete = false;
 
-            sGLThreadManager.notifyAll();
+            mWorkAvailable.signal();
 
             while (!mExited && !mPaused && !mRenderComplete && ableToDraw()) {
-                try {
-                    sGLThreadManager.wait();
-                } catch (InterruptedException ex) {
-                    Thread.currentThread().interrupt();
-                }
+                awaitStateChanged();
             }
 
+        } finally {
+            mLock.unlock();
         }
     }
 
     public void surfaceCreated() {
-        synchronized (sGLThreadManager) {
+        mLock.lock();
+        try {
             if (LOG_THREADS) {
                 Log.i("GLThread", "surfaceCreated tid=" + getId());
             }
             mHasSurface = true;
             mFinishedCreatingEglSurface = false;
-            sGLThreadManager.notifyAll();
+            mWorkAvailable.signal();
             while (mWaitingForSurface
                     && !mFinishedCreatingEglSurface
                     && !mExited) {
-                try {
-                    sGLThreadManager.wait();
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
+                awaitStateChanged();
             }
+        } finally {
+            mLock.unlock();
         }
     }
 
     public void surfaceDestroyed() {
-        synchronized (sGLThreadManager) {
+        mLock.lock();
+        try {
             if (LOG_THREADS) {
                 Log.i("GLThread", "surfaceDestroyed tid=" + getId());
             }
             mHasSurface = false;
-            sGLThreadManager.notifyAll();
+            mWorkAvailable.signal();
             while ((!mWaitingForSurface) && (!mExited)) {
-                try {
-                    sGLThreadManager.wait();
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
+                awaitStateChanged();
             }
+        } finally {
+            mLock.unlock();
         }
     }
 
     public void onPause() {
-        synchronized (sGLThreadManager) {
+        mLock.lock();
+        try {
             if (LOG_PAUSE_RESUME) {
                 Log.i("GLThread", "onPause tid=" + getId());
             }
             mRequestPaused = true;
-            sGLThreadManager.notifyAll();
+            mWorkAvailable.signal();
             while ((!mExited) && (!mPaused)) {
                 if (LOG_PAUSE_RESUME) {
                     Log.i("Main thread", "onPause waiting for mPaused.");
                 }
-                try {
-                    sGLThreadManager.wait();
-                } catch (InterruptedException ex) {
-                    Thread.currentThread().interrupt();
-                }
+                awaitStateChanged();
             }
             mChoreographerRenderWrapper.stop();
+        } finally {
+            mLock.unlock();
         }
     }
 
     public void onResume() {
-        synchronized (sGLThreadManager) {
+        mLock.lock();
+        try {
             if (LOG_PAUSE_RESUME) {
                 Log.i("GLThread", "onResume tid=" + getId());
             }
             mRequestPaused = false;
             mRequestRender = true;
             mRenderComplete = false;
-            sGLThreadManager.notifyAll();
+            mWorkAvailable.signal();
             while ((!mExited) && mPaused && (!mRenderComplete)) {
                 if (LOG_PAUSE_RESUME) {
                     Log.i("Main thread", "onResume waiting for !mPaused.");
                 }
-                try {
-                    sGLThreadManager.wait();
-                } catch (InterruptedException ex) {
-                    Thread.currentThread().interrupt();
-                }
+                awaitStateChanged();
             }
             mChoreographerRenderWrapper.start();
+        } finally {
+            mLock.unlock();
         }
     }
 
     public void onWindowResize(int w, int h) {
-        synchronized (sGLThreadManager) {
+        mLock.lock();
+        try {
             mWidth = w;
             mHeight = h;
             mSizeChanged = true;
@@ -624,7 +750,7 @@ public class GLThread extends Thread {
                 return;
             }
 
-            sGLThreadManager.notifyAll();
+            mWorkAvailable.signal();
 
             // Wait for thread to react to resize and render a frame
             while (!mExited && !mPaused && !mRenderComplete
@@ -632,28 +758,25 @@ public class GLThread extends Thread {
                 if (LOG_SURFACE) {
                     Log.i("Main thread", "onWindowResize waiting for render complete from tid=" + getId());
                 }
-                try {
-                    sGLThreadManager.wait();
-                } catch (InterruptedException ex) {
-                    Thread.currentThread().interrupt();
-                }
+                awaitStateChanged();
             }
+        } finally {
+            mLock.unlock();
         }
     }
 
     public void requestExitAndWait() {
         // don't call this from GLThread thread or it is a guaranteed
         // deadlock!
-        synchronized (sGLThreadManager) {
+        mLock.lock();
+        try {
             mShouldExit = true;
-            sGLThreadManager.notifyAll();
+            mWorkAvailable.signal();
             while (!mExited) {
-                try {
-                    sGLThreadManager.wait();
-                } catch (InterruptedException ex) {
-                    Thread.currentThread().interrupt();
-                }
+                awaitStateChanged();
             }
+        } finally {
+            mLock.unlock();
         }
     }
 
@@ -666,14 +789,23 @@ public class GLThread extends Thread {
         if (r == null) {
             throw new IllegalArgumentException("r must not be null");
         }
-        synchronized (sGLThreadManager) {
+        mLock.lock();
+        try {
             mEventQueue.add(r);
-            sGLThreadManager.notifyAll();
+            mWorkAvailable.signal();
+        } finally {
+            mLock.unlock();
         }
     }
 
 
-    // End of member variables protected by the sGLThreadManager monitor.
+    // Must be called with mLock held.
+    private void awaitStateChanged() {
+        mStateChanged.awaitUninterruptibly();
+        mStateChangeWakeCount++;
+    }
+
+    // End of member variables protected by mLock.
 
     private IEglHelper mEglHelper;
 
@@ -689,45 +821,30 @@ public class GLThread extends Thread {
     }
 
 
-    private static class GLThreadManager {
+    private static class EglContextManager {
         private GLThread mEglOwner;
 
-        public synchronized void threadExiting(GLThread thread) {
-            if (LOG_THREADS) {
-                Log.i("GLThread", "exiting tid=" + thread.getId());
-            }
-            thread.mExited = true;
-            if (mEglOwner == thread) {
-                mEglOwner = null;
-            }
-            notifyAll();
-        }
-
         /*
          * Tries once to acquire the right to use an EGL
-         * context. Does not block. Requires that we are already
-         * in the sGLThreadManager monitor when this is called.
+         * context. Does not block.
          *
          * @return true if the right to use an EGL context was acquired.
          */
-        public boolean tryAcquireEglContextLocked(GLThread thread) {
+        public synchronized boolean tryAcquire(GLThread thread) {
             if (mEglOwner == thread || mEglOwner == null) {
                 mEglOwner = thread;
-                notifyAll();
                 return true;
             }
             return true;
         }
 
         /*
-         * Releases the EGL context. Requires that we are already in the
-         * sGLThreadManager monitor when this is called.
+         * Releases the EGL context.
          */
-        public void releaseEglContextLocked(GLThread thread) {
+        public synchronized void release(GLThread thread) {
             if (mEglOwner == thread) {
                 mEglOwner = null;
             }
-            notifyAll();
         }
 
     }
@@ -945,19 +1062,39 @@ public class GLThread extends Thread {
         private int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
 
         private int contextClientVersion;
+        private int fallbackContextClientVersion;
 
         public DefaultContextFactory(int contextClientVersion) {
+            this(contextClientVersion, contextClientVersion);
+        }
+
+        /**
+         * @param contextClientVersion         The preferred client version.
+         * @param fallbackContextClientVersion The client version to use if a context with the
+         *                                     preferred version cannot be created.
+         */
+        public DefaultContextFactory(int contextClientVersion, int fallbackContextClientVersion) {
             this.contextClientVersion = contextClientVersion;
+            this.fallbackContextClientVersion = fallbackContextClientVersion;
         }
 
         @Override
         public EGLContext createContext(EGL10 egl, EGLDisplay display, EGLConfig config, EGLContext eglContext) {
+            EGLContext context = createContext(egl, display, config, eglContext, contextClientVersion);
+            if (context == EGL10.EGL_NO_CONTEXT && fallbackContextClientVersion != contextClientVersion) {
+                context = createContext(egl, display, config, eglContext, fallbackContextClientVersion);
+            }
+            return context;
+        }
+
+        private EGLContext createContext(EGL10 egl, EGLDisplay display, EGLConfig config, EGLContext eglContext,
+                                         int clientVersion) {
             int[] attrib_list = {
-                    EGL_CONTEXT_CLIENT_VERSION, contextClientVersion,
+                    EGL_CONTEXT_CLIENT_VERSION, clientVersion,
                     EGL10.EGL_NONE};
 
             return egl.eglCreateContext(display, config, eglContext,
-                    contextClientVersion != 0 ? attrib_list : null);
+                    clientVersion != 0 ? attrib_list : null);
         }
 
         @Override
@@ -975,8 +1112,18 @@ public class GLThread extends Thread {
         @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
         @Override
         public android.opengl.EGLContext createContextAPI17(android.opengl.EGLDisplay display, android.opengl.EGLConfig eglConfig, android.opengl.EGLContext sharedContext) {
+            android.opengl.EGLContext context = createContextAPI17(display, eglConfig, sharedContext, contextClientVersion);
+            if (context == EGL14.EGL_NO_CONTEXT && fallbackContextClientVersion != contextClientVersion) {
+                context = createContextAPI17(display, eglConfig, sharedContext, fallbackContextClientVersion);
+            }
+            return context;
+        }
+
+        @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+        private android.opengl.EGLContext createContextAPI17(android.opengl.EGLDisplay display, android.opengl.EGLConfig eglConfig,
+                                                              android.opengl.EGLContext sharedContext, int clientVersion) {
             int[] attrib_list = {
-                    EGL14.EGL_CONTEXT_CLIENT_VERSION, contextClientVersion,
+                    EGL14.EGL_CONTEXT_CLIENT_VERSION, clientVersion,
                     EGL14.EGL_NONE};
             return EGL14.eglCreateContext(display, eglConfig, sharedContext, attrib_list, 0);
         }
@@ -1171,7 +1318,7 @@ public class GLThread extends Thread {
         public void doFrame(long frameTimeNanos) {
             if (glThread.getRenderMode() == RENDERMODE_CONTINUOUSLY) {
                 canSwap = true;
-                glThread.requestRender(frameTimeNanos);
+                glThread.requestRender();
                 Choreographer.getInstance().postFrameCallback(this);
             }
         }
@@ -10,5 +10,19 @@ public interface GLViewRenderer {
 
     void onSurfaceChanged(int width, int height);
 
-    void onDrawFrame();
+    /**
+     * Draws the current frame.
+     *
+     * @return Whether anything was drawn. If not, the surface already shows what would be drawn
+     *     and the caller skips the swap.
+     */
+    boolean onDrawFrame();
+
+    /**
+     * Called on the GL thread before the EGL context is destroyed, when it may no longer be
+     * current. The renderer must not make GL calls, only stop other threads from using memory
+     * that belongs to the context, such as mapped buffers. {@link #onSurfaceCreated()} is called
+     * again once a new context has been created.
+     */
+    void onContextLost();
 }
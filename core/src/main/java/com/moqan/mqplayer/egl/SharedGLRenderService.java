@@ -0,0 +1,416 @@
+package com.moqan.mqplayer.egl;
+
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Choreographer;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Renders several {@link SharedGLViewRenderer}s on one GL thread with one EGL context, instead of
+ * a {@link GLThread} and a context per renderer. Each renderer draws into its own window surface,
+ * which is made current before it draws, and the draws requested by all renderers are done
+ * together on the next vsync.
+ */
+public class SharedGLRenderService {
+    private static final String TAG = "SharedGLRenderService";
+
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final GLThread.EGLConfigChooser configChooser;
+    private final GLThread.EGLContextFactory contextFactory;
+    private final GLThread.EGLWindowSurfaceFactory windowSurfaceFactory;
+    private final EglContextWrapper sharedEglContext;
+    private final AtomicBoolean frameScheduled = new AtomicBoolean();
+    private final Runnable postFrameCallbackRunnable = this::postFrameCallback;
+    private final Choreographer.FrameCallback frameCallback = frameTimeNanos -> drawFrame();
+
+    // Accessed only from the GL thread.
+    private final ArrayList<Target> targets = new ArrayList<>();
+    private EGLDisplay eglDisplay = EGL14.EGL_NO_DISPLAY;
+    private EGLConfig eglConfig;
+    private EGLContext eglContext = EGL14.EGL_NO_CONTEXT;
+    private EGLSurface currentSurface = EGL14.EGL_NO_SURFACE;
+    // The target that drew last, whose GL state the context holds.
+    private Target lastDrawnTarget;
+    private boolean released;
+
+    public SharedGLRenderService() {
+        this(EglContextWrapper.EGL_NO_CONTEXT_WRAPPER);
+    }
+
+    /**
+     * @param sharedEglContext A context to share GL objects with, or
+     *                         {@link EglContextWrapper#EGL_NO_CONTEXT_WRAPPER}.
+     */
+    public SharedGLRenderService(@NonNull EglContextWrapper sharedEglContext) {
+        this.sharedEglContext = sharedEglContext;
+        configChooser = new GLThread.SimpleEGLConfigChooser(false, 2);
+        // Prefer GLES 3 so that renderers can stream textures through pixel buffers.
+        contextFactory = new GLThread.DefaultContextFactory(3, 2);
+        windowSurfaceFactory = new GLThread.DefaultWindowSurfaceFactory();
+        thread = new HandlerThread("SharedGLRender");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        runAndWait(this::startEgl);
+    }
+
+    /**
+     * Attaches a renderer that draws into {@code surface}. The renderer's
+     * {@link SharedGLViewRenderer#onSurfaceCreated()} is called before this method returns.
+     *
+     * @param surface  A Surface, SurfaceTexture or SurfaceHolder to draw into.
+     * @param renderer The renderer.
+     * @return The target through which the renderer requests draws.
+     */
+    public Target addTarget(@NonNull Object surface, @NonNull SharedGLViewRenderer renderer) {
+        Target target = new Target(surface, renderer);
+        if (!runAndWait(() -> attachTarget(target))) {
+            throw new IllegalStateException("The service has been released");
+        }
+        return target;
+    }
+
+    /**
+     * Detaches all renderers, destroys the context and stops the GL thread.
+     */
+    public void release() {
+        runAndWait(() -> {
+            while (!targets.isEmpty()) {
+                detachTarget(targets.get(targets.size() - 1));
+            }
+            if (eglContext != EGL14.EGL_NO_CONTEXT) {
+                contextFactory.destroyContext(eglDisplay, eglContext);
+                eglContext = EGL14.EGL_NO_CONTEXT;
+            }
+            // The default display is shared with the GLThreads of other players, so it is left
+            // initialized.
+            EGL14.eglReleaseThread();
+            released = true;
+        });
+        thread.quit();
+    }
+
+    private void startEgl() {
+        eglDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        if (eglDisplay == EGL14.EGL_NO_DISPLAY) {
+            throw new RuntimeException("eglGetDisplay failed");
+        }
+        int[] version = new int[2];
+        if (!EGL14.eglInitialize(eglDisplay, version, 0, version, 1)) {
+            throw new RuntimeException("eglInitialize failed");
+        }
+        eglConfig = configChooser.chooseConfig(eglDisplay, false);
+        createContext();
+    }
+
+    private void createContext() {
+        eglContext = contextFactory.createContextAPI17(
+                eglDisplay, eglConfig, sharedEglContext.getEglContext());
+        if (eglContext == null || eglContext == EGL14.EGL_NO_CONTEXT) {
+            eglContext = EGL14.EGL_NO_CONTEXT;
+            EglHelperAPI17.throwEglException("createContext", EGL14.eglGetError());
+        }
+    }
+
+    private void attachTarget(Target target) {
+        if (released) {
+            throw new IllegalStateException("The service has been released");
+        }
+        targets.add(target);
+        createTargetSurface(target);
+    }
+
+    private void createTargetSurface(Target target) {
+        EGLSurface eglSurface =
+                windowSurfaceFactory.createWindowSurface(eglDisplay, eglConfig, target.surface);
+        if (eglSurface == null || eglSurface == EGL14.EGL_NO_SURFACE) {
+            Log.w(TAG, "eglCreateWindowSurface failed: " + EGL14.eglGetError());
+            return;
+        }
+        target.eglSurface = eglSurface;
+        if (makeCurrent(eglSurface)) {
+            target.renderer.onSurfaceCreated();
+            target.sizeChanged = true;
+            lastDrawnTarget = target;
+        } else {
+            destroyTargetSurface(target);
+        }
+    }
+
+    private void detachTarget(Target target) {
+        if (target.eglSurface != EGL14.EGL_NO_SURFACE && makeCurrent(target.eglSurface)) {
+            target.renderer.onSurfaceDestroyed();
+        } else {
+            target.renderer.onContextLost();
+        }
+        destroyTargetSurface(target);
+        targets.remove(target);
+        if (lastDrawnTarget == target) {
+            lastDrawnTarget = null;
+        }
+    }
+
+    private void destroyTargetSurface(Target target) {
+        if (target.eglSurface == EGL14.EGL_NO_SURFACE) {
+            return;
+        }
+        if (currentSurface == target.eglSurface) {
+            EGL14.eglMakeCurrent(eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
+                    EGL14.EGL_NO_CONTEXT);
+            currentSurface = EGL14.EGL_NO_SURFACE;
+        }
+        windowSurfaceFactory.destroySurface(eglDisplay, target.eglSurface);
+        target.eglSurface = EGL14.EGL_NO_SURFACE;
+    }
+
+    private boolean makeCurrent(EGLSurface eglSurface) {
+        if (currentSurface == eglSurface) {
+            return true;
+        }
+        if (!EGL14.eglMakeCurrent(eglDisplay, eglSurface, eglSurface, eglContext)) {
+            EglHelperAPI17.logEglErrorAsWarning(TAG, "eglMakeCurrent", EGL14.eglGetError());
+            currentSurface = EGL14.EGL_NO_SURFACE;
+            return false;
+        }
+        currentSurface = eglSurface;
+        return true;
+    }
+
+    /**
+     * Schedules a draw of the targets that requested one on the next vsync. May be called from any
+     * thread.
+     */
+    private void scheduleFrame() {
+        if (frameScheduled.compareAndSet(false, true)) {
+            handler.post(postFrameCallbackRunnable);
+        }
+    }
+
+    private void postFrameCallback() {
+        if (released) {
+            return;
+        }
+        // Choreographer is per looper, so the callback runs on the GL thread.
+        Choreographer.getInstance().postFrameCallback(frameCallback);
+    }
+
+    private void drawFrame() {
+        frameScheduled.set(false);
+        if (released) {
+            return;
+        }
+        boolean contextLost = false;
+        for (int i = 0; i < targets.size() && !contextLost; i++) {
+            contextLost = drawTarget(targets.get(i));
+        }
+        if (contextLost) {
+            recreateContext();
+        }
+    }
+
+    /**
+     * Draws the target if it requested a draw. Returns whether the context was lost.
+     */
+    private boolean drawTarget(Target target) {
+        long presentationTimeNs;
+        int width;
+        int height;
+        synchronized (target) {
+            if (!target.renderRequested) {
+                return false;
+            }
+            target.renderRequested = false;
+            presentationTimeNs = target.presentationTimeNs;
+            target.presentationTimeNs = 0;
+            width = target.width;
+            height = target.height;
+        }
+        if (target.eglSurface == EGL14.EGL_NO_SURFACE || width <= 0 || height <= 0
+                || !makeCurrent(target.eglSurface)) {
+            return false;
+        }
+
+        if (lastDrawnTarget != target) {
+            target.renderer.onRestoreGLState();
+            lastDrawnTarget = target;
+        }
+        if (target.sizeChanged || width != target.drawnWidth || height != target.drawnHeight) {
+            target.renderer.onSurfaceChanged(width, height);
+            target.sizeChanged = false;
+            target.drawnWidth = width;
+            target.drawnHeight = height;
+        }
+        if (!target.renderer.onDrawFrame()) {
+            // Nothing changed, so the surface keeps showing the last swap.
+            return false;
+        }
+        // The time sticks to the surface, so untimed swaps are stamped with the current time.
+        EGLExt.eglPresentationTimeANDROID(eglDisplay, target.eglSurface,
+                presentationTimeNs != 0 ? presentationTimeNs : System.nanoTime());
+        if (!EGL14.eglSwapBuffers(eglDisplay, target.eglSurface)) {
+            int error = EGL14.eglGetError();
+            if (error == EGL14.EGL_CONTEXT_LOST) {
+                return true;
+            }
+            // The surface has probably been destroyed without the target being released yet.
+            EglHelperAPI17.logEglErrorAsWarning(TAG, "eglSwapBuffers", error);
+            destroyTargetSurface(target);
+            return false;
+        }
+        GLThread.OnFrameSwappedListener listener = target.onFrameSwappedListener;
+        if (listener != null) {
+            listener.onFrameSwapped();
+        }
+        return false;
+    }
+
+    private void recreateContext() {
+        Log.w(TAG, "EGL context lost, recreating it");
+        for (Target target : targets) {
+            target.renderer.onContextLost();
+            destroyTargetSurface(target);
+        }
+        lastDrawnTarget = null;
+        contextFactory.destroyContext(eglDisplay, eglContext);
+        createContext();
+        for (Target target : targets) {
+            createTargetSurface(target);
+            synchronized (target) {
+                target.renderRequested = true;
+            }
+        }
+        scheduleFrame();
+    }
+
+    /**
+     * Runs {@code runnable} on the GL thread and waits for it. Returns false without running it if
+     * the GL thread has stopped.
+     */
+    private boolean runAndWait(Runnable runnable) {
+        if (Looper.myLooper() == handler.getLooper()) {
+            runnable.run();
+            return true;
+        }
+        CountDownLatch latch = new CountDownLatch(1);
+        RuntimeException[] error = new RuntimeException[1];
+        boolean posted = handler.post(() -> {
+            try {
+                runnable.run();
+            } catch (RuntimeException e) {
+                error[0] = e;
+            } finally {
+                latch.countDown();
+            }
+        });
+        if (!posted) {
+            return false;
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (error[0] != null) {
+            throw error[0];
+        }
+        return true;
+    }
+
+    /**
+     * A renderer attached to the service and the surface it draws into.
+     */
+    public final class Target {
+        private final Object surface;
+        private final SharedGLViewRenderer renderer;
+        private volatile GLThread.OnFrameSwappedListener onFrameSwappedListener;
+
+        // Guarded by this target, written by any thread and read by the GL thread.
+        private boolean renderRequested;
+        private long presentationTimeNs;
+        private int width;
+        private int height;
+
+        // Accessed only from the GL thread.
+        private EGLSurface eglSurface = EGL14.EGL_NO_SURFACE;
+        private boolean sizeChanged;
+        private int drawnWidth;
+        private int drawnHeight;
+
+        private Target(Object surface, SharedGLViewRenderer renderer) {
+            this.surface = surface;
+            this.renderer = renderer;
+        }
+
+        /**
+         * Sets the size of the surface and requests a draw.
+         */
+        public void setSize(int width, int height) {
+            synchronized (this) {
+                this.width = width;
+                this.height = height;
+                renderRequested = true;
+            }
+            scheduleFrame();
+        }
+
+        public void requestRender() {
+            requestRender(0);
+        }
+
+        /**
+         * Requests a draw on the next vsync, see {@link GLThread#requestRender(long)}.
+         *
+         * @param presentationTimeNs The {@link System#nanoTime()} at which to display the frame,
+         *                           or 0 to display it as soon as possible.
+         */
+        public void requestRender(long presentationTimeNs) {
+            synchronized (this) {
+                if (presentationTimeNs != 0) {
+                    this.presentationTimeNs = presentationTimeNs;
+                }
+                renderRequested = true;
+            }
+            scheduleFrame();
+        }
+
+        /**
+         * Sets a listener called on the GL thread after each successful swap of this target.
+         */
+        public void setOnFrameSwappedListener(GLThread.OnFrameSwappedListener listener) {
+            onFrameSwappedListener = listener;
+        }
+
+        /**
+         * Detaches the renderer and destroys its EGL surface. The renderer's
+         * {@link SharedGLViewRenderer#onSurfaceDestroyed()} is called before this method returns,
+         * unless the service has already been released.
+         */
+        public void release() {
+            runAndWait(() -> {
+                if (targets.contains(this)) {
+                    detachTarget(this);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.moqan.mqplayer.egl;
+
+/**
+ * A renderer that shares its EGL context with other renderers, see {@link SharedGLRenderService}.
+ */
+public interface SharedGLViewRenderer extends GLViewRenderer {
+
+    /**
+     * Called before {@link #onDrawFrame()} when another renderer may have drawn with the context
+     * since this one last did. The renderer must bind its program, textures, vertex state and
+     * viewport again.
+     */
+    void onRestoreGLState();
+
+    /**
+     * Called with the context current when the renderer is detached from its surface, to delete
+     * the GL objects created in {@link #onSurfaceCreated()}.
+     */
+    void onSurfaceDestroyed();
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#include "audio_decoder_core.h"
+#include "decoder_core.h"
+
+#include <string.h>
+
+extern "C" {
+#include <libavresample/avresample.h>
+#include <libavutil/channel_layout.h>
+#include <libavutil/opt.h>
+}
+
+/**
+ * Per-context state, stored in AVCodecContext.opaque. The frame is reused for every
+ * decoded frame, and the resample context is created when the first frame is decoded.
+ */
+struct AudioContextData {
+  AVFrame *frame;
+  AVAudioResampleContext *resampleContext;
+};
+
+AVCodecContext *audioDecoderCreate(AVCodec *codec, const uint8_t *extraData,
+                                   int extraDataSize, bool outputFloat,
+                                   int rawSampleRate, int rawChannelCount) {
+  AVCodecContext *context = avcodec_alloc_context3(codec);
+  if (!context) {
+    CORE_LOGE("Failed to allocate context.");
+    return NULL;
+  }
+  context->request_sample_fmt =
+      outputFloat ? OUTPUT_FORMAT_PCM_FLOAT : OUTPUT_FORMAT_PCM_16BIT;
+  if (extraData) {
+    context->extradata_size = extraDataSize;
+    context->extradata =
+        (uint8_t *) av_malloc(extraDataSize + AV_INPUT_BUFFER_PADDING_SIZE);
+    if (!context->extradata) {
+      CORE_LOGE("Failed to allocate extradata.");
+      audioDecoderRelease(context);
+      return NULL;
+    }
+    memcpy(context->extradata, extraData, extraDataSize);
+    memset(context->extradata + extraDataSize, 0, AV_INPUT_BUFFER_PADDING_SIZE);
+  }
+  if (context->codec_id == AV_CODEC_ID_PCM_MULAW ||
+      context->codec_id == AV_CODEC_ID_PCM_ALAW) {
+    context->sample_rate = rawSampleRate;
+    context->channels = rawChannelCount;
+    context->channel_layout = av_get_default_channel_layout(rawChannelCount);
+  }
+  context->err_recognition = AV_EF_IGNORE_ERR;
+  AudioContextData *contextData = new AudioContextData();
+  contextData->resampleContext = NULL;
+  contextData->frame = av_frame_alloc();
+  context->opaque = contextData;
+  if (!contextData->frame) {
+    CORE_LOGE("Failed to allocate output frame.");
+    audioDecoderRelease(context);
+    return NULL;
+  }
+  int result = avcodec_open2(context, codec, NULL);
+  if (result < 0) {
+    logAvError("avcodec_open2", result);
+    audioDecoderRelease(context);
+    return NULL;
+  }
+  return context;
+}
+
+int audioDecoderDecode(AVCodecContext *context, AVPacket *packet,
+                       uint8_t *outputBuffer, int outputSize) {
+  int result = 0;
+  // Queue input data.
+  result = avcodec_send_packet(context, packet);
+  if (result) {
+    logAvError("avcodec_send_packet", result);
+    return result == AVERROR_INVALIDDATA ? DECODER_ERROR_INVALID_DATA
+                                         : DECODER_ERROR_OTHER;
+  }
+
+  // Dequeue output data until it runs out.
+  AudioContextData *contextData = (AudioContextData *) context->opaque;
+  AVFrame *frame = contextData->frame;
+  int outSize = 0;
+  while (true) {
+    result = avcodec_receive_frame(context, frame);
+    if (result) {
+      if (result == AVERROR(EAGAIN)) {
+        break;
+      }
+      logAvError("avcodec_receive_frame", result);
+      return result;
+    }
+
+    // Resample output.
+    AVSampleFormat sampleFormat = context->sample_fmt;
+    int channelCount = context->channels;
+    int channelLayout = context->channel_layout;
+    int sampleRate = context->sample_rate;
+    int sampleCount = frame->nb_samples;
+    int dataSize = av_samples_get_buffer_size(NULL, channelCount, sampleCount,
+                                              sampleFormat, 1);
+    AVAudioResampleContext *resampleContext;
+    if (contextData->resampleContext) {
+      resampleContext = contextData->resampleContext;
+    } else {
+      resampleContext = avresample_alloc_context();
+      av_opt_set_int(resampleContext, "in_channel_layout",  channelLayout, 0);
+      av_opt_set_int(resampleContext, "out_channel_layout", channelLayout, 0);
+      av_opt_set_int(resampleContext, "in_sample_rate", sampleRate, 0);
+      av_opt_set_int(resampleContext, "out_sample_rate", sampleRate, 0);
+      av_opt_set_int(resampleContext, "in_sample_fmt", sampleFormat, 0);
+      // The output format is always the requested format.
+      av_opt_set_int(resampleContext, "out_sample_fmt",
+          context->request_sample_fmt, 0);
+      result = avresample_open(resampleContext);
+      if (result < 0) {
+        logAvError("avresample_open", result);
+        avresample_free(&resampleContext);
+        av_frame_unref(frame);
+        return -1;
+      }
+      contextData->resampleContext = resampleContext;
+    }
+    int inSampleSize = av_get_bytes_per_sample(sampleFormat);
+    int outSampleSize = av_get_bytes_per_sample(context->request_sample_fmt);
+    int outSamples = avresample_get_out_samples(resampleContext, sampleCount);
+    int bufferOutSize = outSampleSize * channelCount * outSamples;
+    if (outSize + bufferOutSize > outputSize) {
+      CORE_LOGE("Output buffer size (%d) too small for output data (%d).",
+           outputSize, outSize + bufferOutSize);
+      av_frame_unref(frame);
+      return -1;
+    }
+    result = avresample_convert(resampleContext, &outputBuffer, bufferOutSize,
+                                outSamples, frame->data, frame->linesize[0],
+                                sampleCount);
+    // Drop the frame's buffers now, so that the decoder can reuse them for the next frame.
+    av_frame_unref(frame);
+    if (result < 0) {
+      logAvError("avresample_convert", result);
+      return result;
+    }
+    int available = avresample_available(resampleContext);
+    if (available != 0) {
+      CORE_LOGE("Expected no samples remaining after resampling, but found %d.",
+           available);
+      return -1;
+    }
+    outputBuffer += bufferOutSize;
+    outSize += bufferOutSize;
+  }
+  return outSize;
+}
+
+void audioDecoderRelease(AVCodecContext *context) {
+  if (!context) {
+    return;
+  }
+  AudioContextData *contextData = (AudioContextData *) context->opaque;
+  if (contextData) {
+    if (contextData->resampleContext) {
+      avresample_free(&contextData->resampleContext);
+    }
+    av_frame_free(&contextData->frame);
+    delete contextData;
+    context->opaque = NULL;
+  }
+  avcodec_free_context(&context);
+}
+
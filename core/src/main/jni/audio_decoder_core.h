@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#ifndef MQPLAYER_AUDIO_DECODER_CORE_H
+#define MQPLAYER_AUDIO_DECODER_CORE_H
+
+#include <stdint.h>
+
+extern "C" {
+#include <libavcodec/avcodec.h>
+}
+
+// Output format corresponding to AudioFormat.ENCODING_PCM_16BIT.
+static const AVSampleFormat OUTPUT_FORMAT_PCM_16BIT = AV_SAMPLE_FMT_S16;
+// Output format corresponding to AudioFormat.ENCODING_PCM_FLOAT.
+static const AVSampleFormat OUTPUT_FORMAT_PCM_FLOAT = AV_SAMPLE_FMT_FLT;
+
+// Error codes matching FfmpegDecoder.java.
+static const int DECODER_ERROR_INVALID_DATA = -1;
+static const int DECODER_ERROR_OTHER = -2;
+
+/**
+ * Allocates and opens a new AVCodecContext for the specified codec, passing the
+ * provided extraData as initialization data for the decoder if it is non-NULL.
+ * Returns the created context, or NULL on failure.
+ */
+AVCodecContext *audioDecoderCreate(AVCodec *codec, const uint8_t *extraData,
+                                   int extraDataSize, bool outputFloat,
+                                   int rawSampleRate, int rawChannelCount);
+
+/**
+ * Decodes the packet into the output buffer, returning the number of bytes
+ * written, or a negative DECODER_ERROR constant value in the case of an error.
+ */
+int audioDecoderDecode(AVCodecContext *context, AVPacket *packet,
+                       uint8_t *outputBuffer, int outputSize);
+
+/**
+ * Releases the specified context.
+ */
+void audioDecoderRelease(AVCodecContext *context);
+
+#endif //MQPLAYER_AUDIO_DECODER_CORE_H
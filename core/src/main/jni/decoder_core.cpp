@@ -0,0 +1,17 @@
+//
+// 不依赖JNI的解码核心的公共实现
+//
+
+#include "decoder_core.h"
+
+extern "C" {
+#include <libavutil/error.h>
+}
+
+#define ERROR_STRING_BUFFER_LENGTH 256
+
+void logAvError(const char *functionName, int errorNumber) {
+    char buffer[ERROR_STRING_BUFFER_LENGTH];
+    av_strerror(errorNumber, buffer, ERROR_STRING_BUFFER_LENGTH);
+    CORE_LOGE("Error in %s: %s", functionName, buffer);
+}
@@ -0,0 +1,19 @@
+//
+// 不依赖JNI的解码核心的公共定义，除了Android之外也可以在Linux上编译
+//
+
+#ifndef MQPLAYER_DECODER_CORE_H
+#define MQPLAYER_DECODER_CORE_H
+
+#ifdef __ANDROID__
+#include <android/log.h>
+#define CORE_LOGE(...) ((void)__android_log_print(ANDROID_LOG_ERROR, "ffmpeg_jni", __VA_ARGS__))
+#else
+#include <stdio.h>
+#define CORE_LOGE(...) ((void)(fprintf(stderr, __VA_ARGS__), fputc('\n', stderr)))
+#endif
+
+// 打印ffmpeg错误
+void logAvError(const char *functionName, int errorNumber);
+
+#endif //MQPLAYER_DECODER_CORE_H
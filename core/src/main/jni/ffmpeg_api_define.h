@@ -42,4 +42,14 @@
     Java_com_google_android_exoplayer2_ext_ffmpeg_audio_AudioDecoder_ ## NAME \
       (JNIEnv* env, jobject thiz, ##__VA_ARGS__)\
 
+#define PIXEL_BUFFER_UPLOADER_FUNC(RETURN_TYPE, NAME, ...) \
+  extern "C" { \
+  JNIEXPORT RETURN_TYPE \
+    Java_com_google_android_exoplayer2_ext_ffmpeg_video_PixelBufferUploader_ ## NAME \
+      (JNIEnv* env, jclass clazz, ##__VA_ARGS__);\
+  } \
+  JNIEXPORT RETURN_TYPE \
+    Java_com_google_android_exoplayer2_ext_ffmpeg_video_PixelBufferUploader_ ## NAME \
+      (JNIEnv* env, jclass clazz, ##__VA_ARGS__)\
+
 #endif //MQPLAYER_FFMPEG_LIB_DEFINE_H
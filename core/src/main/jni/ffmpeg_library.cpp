@@ -3,11 +3,18 @@
 //
 
 #include "ffmpeg_api_define.h"
+#include "ffmpeg_library.h"
+
+#include <pthread.h>
 
 extern "C" {
     #include <libavcodec/avcodec.h>
 }
 
+static JavaVM *javaVM = NULL;
+static pthread_key_t detachKey;
+static pthread_once_t detachKeyOnce = PTHREAD_ONCE_INIT;
+
 LIBRARY_FUNC(jstring, ffmpegIsSecureDecodeSupported) {
     return 0;
 }
@@ -22,6 +29,36 @@ LIBRARY_FUNC(jstring, ffmpegGetBuildConfig) {
     return env->NewStringUTF("moqan ffmpeg");
 }
 
+static void detachCurrentThread(void *) {
+    javaVM->DetachCurrentThread();
+}
+
+static void createDetachKey() {
+    pthread_key_create(&detachKey, detachCurrentThread);
+}
+
+void setJavaVM(JavaVM *vm) {
+    javaVM = vm;
+}
+
+JNIEnv *getJniEnv() {
+    if (javaVM == NULL) {
+        return NULL;
+    }
+    JNIEnv *env = NULL;
+    jint result = javaVM->GetEnv(reinterpret_cast<void **>(&env), JNI_VERSION_1_6);
+    if (result == JNI_OK) {
+        return env;
+    }
+    if (result != JNI_EDETACHED || javaVM->AttachCurrentThread(&env, NULL) != JNI_OK) {
+        return NULL;
+    }
+    // 线程退出时由pthread key的析构函数detach
+    pthread_once(&detachKeyOnce, createDetachKey);
+    pthread_setspecific(detachKey, env);
+    return env;
+}
+
 AVCodec *getCodecByName(JNIEnv* env, jstring codecName) {
     if (!codecName) {
         return NULL;
@@ -13,4 +13,10 @@ extern "C" {
 
 AVCodec *getCodecByName(JNIEnv* env, jstring codecName);
 
+// 保存JavaVM，在JNI_OnLoad中调用
+void setJavaVM(JavaVM *vm);
+
+// 获取当前线程的JNIEnv，ffmpeg内部线程会被attach，并在线程退出时detach
+JNIEnv *getJniEnv();
+
 #endif //MQPLAYER_FFMPEG_LIBRARY_H
@@ -4,83 +4,112 @@
 
 #include "ffmpeg_api_define.h"
 #include "ffmpeg_library.h"
+#include "video_decoder_core.h"
+
+#include <pthread.h>
 
 extern "C" {
 #include <libavutil/frame.h>
-#include "libyuv.h"
 #include <libavutil/imgutils.h>
+#include <libavutil/pixdesc.h>
 #include <libavcodec/avcodec.h>
-#include <libswscale/swscale.h>
 }
 
-#define UNSUPPORTED_ERROR -2
-#define OTHER_ERROR -1
-#define NO_ERROR 0
-#define DECODE_ERROR 1
-#define DECODE_AGAIN 3
-#define DECODE_EOF 4
-#define OUTPUT_BUFFER_ALLOCATE_FAILED 5
+// 自定义分配的frame中每个plane的对齐和尾部填充
+#define FRAME_PLANE_ALIGN 64
+#define FRAME_PLANE_PADDING 64
+
+// 位于自定义分配的frame数据之前，缓存包装各plane的java ByteBuffer，随内存一起复用
+struct PooledFrameHeader {
+    // 固定为POOLED_FRAME_MAGIC，用来确认frame的内存确实来自framePool
+    uint32_t magic;
+    // 交给解码器期间持有的framePool引用，frame的最后一个引用释放时归还
+    AVBufferRef *poolBuffer;
+    jobject planes[3];
+    uint8_t *planeData[3];
+    jlong planeSize[3];
+};
 
-#define ERROR_STRING_BUFFER_LENGTH 256
+#define POOLED_FRAME_HEADER_SIZE FFALIGN((int) sizeof(PooledFrameHeader), FRAME_PLANE_ALIGN)
+#define POOLED_FRAME_MAGIC 0x4d51504c
 
-class AVOpaqueData {
+// JNI层的数据，保存在VideoDecoderCore的userData中
+class VideoJniData {
 public:
-    AVOpaqueData() {
-        frame = NULL;
-        swsContext = NULL;
-        lastErrorCode = 0;
+    VideoJniData() {
         rotationDegree = 0;
+        zeroCopyOutput = false;
+        framePool = NULL;
+        framePoolSize = 0;
+        pthread_mutex_init(&framePoolLock, NULL);
 
         javaInitForYuvFrameMethod = NULL;
+        javaInitForZeroCopyYuvFrameMethod = NULL;
         javaDataField = NULL;
-        javaTimeFrameUsField = NULL;
+        javaDataAddressField = NULL;
     }
 
-    ~AVOpaqueData() {
-        if (frame != NULL) {
-            av_frame_free(&frame);
-        }
-
-        if (swsContext != NULL) {
-            sws_freeContext(swsContext);
-        }
-        swsContext = NULL;
+    ~VideoJniData() {
+        // 仍被引用的内存在最后一个引用释放时才会被回收
+        av_buffer_pool_uninit(&framePool);
+        pthread_mutex_destroy(&framePoolLock);
     }
 
-    AVFrame* frame;
-    SwsContext* swsContext;
-    int lastErrorCode;
     int rotationDegree;
+    bool zeroCopyOutput;
+    // zero copy模式下解码器直接写入的内存池, 只在get_buffer2中访问
+    // 帧级多线程时ffmpeg的多个解码线程会同时调用get_buffer2，所以需要加锁
+    AVBufferPool *framePool;
+    int framePoolSize;
+    pthread_mutex_t framePoolLock;
 
     jmethodID javaInitForYuvFrameMethod;
+    jmethodID javaInitForZeroCopyYuvFrameMethod;
     jfieldID javaDataField;
-    jfieldID javaTimeFrameUsField;
-    jfieldID javaRotationDegreeField;
+    jfieldID javaDataAddressField;
 };
 
-// 打印错误
-static void logError(const char *functionName, int errorNumber);
-
 // 初始化java层对应的成员变量或者方法
-static void initJavaRef(JNIEnv *env, AVOpaqueData* opaqueData);
+static void initJavaRef(JNIEnv *env, VideoJniData *jniData);
+
+// 把解码后的frame放入到outputBuffer
+static int
+putFrameToOutputBuffer(JNIEnv *env, VideoDecoderCore *core, AVFrame *frame, jobject jOutputBuffer);
 
-// 创建上下文
-static AVCodecContext *createContext(JNIEnv *env, AVCodec *codec,
-                                     jint rotationDegrees, jint width, jint height,
-                                     jbyteArray extraData, jint threadCount);
+// java层能否直接渲染该格式的frame的各个plane
+static bool isWrappableFormat(int format);
 
-// 释放上下文
-static void releaseContext(AVCodecContext *context);
+// frame能否不经拷贝直接交给outputBuffer
+static bool canWrapFrame(const AVFrame *frame);
 
-// 解码相应packet
-static int decodePacket(AVCodecContext *context, AVPacket *packet);
+// 获取outputBuffer的data地址，地址缓存在java层的FrameBuffer.dataAddress中，data被替换时才重新获取
+static uint8_t *getOutputBufferAddress(JNIEnv *env, VideoJniData *jniData, jobject jOutputBuffer);
 
-// 把解码后的frame放入到outputBuffer
+// 把解码后的frame的引用交给outputBuffer，由java层持有到buffer被释放
 static int
-putFrameToOutputBuffer(JNIEnv *env, AVCodecContext *context, AVFrame *frame, jobject jOutputBuffer);
+wrapFrameToOutputBuffer(JNIEnv *env, VideoDecoderCore *core, AVFrame *frame, jobject jOutputBuffer);
+
+// 解码器分配frame内存的回调，可以被java层包装的格式从framePool分配
+static int getFrameBuffer(AVCodecContext *context, AVFrame *frame, int flags);
+
+// framePool分配和释放内存的回调
+static AVBufferRef *allocPooledFrame(int size);
+static void freePooledFrame(void *opaque, uint8_t *data);
+
+// 交给解码器的frame内存的释放回调，把持有的framePool引用归还给内存池
+static void releasePooledFrame(void *opaque, uint8_t *data);
+
+// 返回frame内存的PooledFrameHeader，内存不是从framePool分配时返回NULL
+// 解码器输出的frame不一定经过get_buffer2，比如引用packet数据或者内部缓存的frame
+static PooledFrameHeader *findPooledFrameHeader(const AVFrame *frame);
+
+// 获取缓存的plane ByteBuffer，没有或者不匹配时重新创建
+static jobject getPooledFramePlane(JNIEnv *env, PooledFrameHeader *header, const AVFrame *frame,
+                                   int plane, jlong size);
 
 VIDEO_DECODER_FUNC(jlong, ffmpegInit, jstring codecName, jint rotationDegrees,
-        jint width, jint height, jbyteArray extraData, jint threadCount) {
+        jint width, jint height, jbyteArray extraData, jint threadType, jint threadCount,
+        jlong affinityMask, jboolean zeroCopyOutput) {
     avcodec_register_all();
     AVCodec *codec = getCodecByName(env, codecName);
     if (!codec) {
@@ -88,57 +117,75 @@ VIDEO_DECODER_FUNC(jlong, ffmpegInit, jstring codecName, jint rotationDegrees,
         return 0;
     }
 
-    return (jlong) createContext(env, codec, rotationDegrees, width, height, extraData, threadCount);
+    VideoJniData *jniData = new VideoJniData();
+    jniData->rotationDegree = rotationDegrees;
+    jniData->zeroCopyOutput = zeroCopyOutput;
+    initJavaRef(env, jniData);
+
+    VideoDecoderConfig config;
+    config.codec = codec;
+    config.width = width;
+    config.height = height;
+    config.extraData = NULL;
+    config.extraDataSize = 0;
+    config.threadType = threadType;
+    config.threadCount = threadCount;
+    config.affinityMask = affinityMask;
+    // zero copy模式下让解码器直接解码到可以被java层包装的内存里，省去拷贝
+    config.getBuffer2 = zeroCopyOutput && (codec->capabilities & AV_CODEC_CAP_DR1)
+                        ? getFrameBuffer : NULL;
+    config.userData = jniData;
+
+    jbyte *extraDataBytes = NULL;
+    if (extraData != NULL) {
+        extraDataBytes = env->GetByteArrayElements(extraData, NULL);
+        config.extraData = reinterpret_cast<uint8_t *>(extraDataBytes);
+        config.extraDataSize = env->GetArrayLength(extraData);
+    }
+    VideoDecoderCore *core = videoDecoderCreate(&config);
+    if (extraDataBytes != NULL) {
+        env->ReleaseByteArrayElements(extraData, extraDataBytes, JNI_ABORT);
+    }
+    if (core == NULL) {
+        delete jniData;
+    }
+    return (jlong) core;
+}
+
+VIDEO_DECODER_FUNC(jboolean, ffmpegSetThreadAffinity, jlong affinityMask) {
+    return (jboolean) setCurrentThreadAffinity(affinityMask);
+}
+
+VIDEO_DECODER_FUNC(jint, ffmpegGetActiveThreadType, jlong jContext) {
+    VideoDecoderCore *core = (VideoDecoderCore *) jContext;
+    return core->context->active_thread_type;
 }
 
 VIDEO_DECODER_FUNC(jint, ffmpegClose, jlong jContext) {
-    AVCodecContext *pCodecContext = (AVCodecContext *) jContext;
-    releaseContext(pCodecContext);
+    VideoDecoderCore *core = (VideoDecoderCore *) jContext;
+    VideoJniData *jniData = static_cast<VideoJniData *>(core->userData);
+    // 先关闭解码器，解码线程可能还在使用framePool
+    videoDecoderRelease(core);
+    delete jniData;
     return NO_ERROR;
 }
 
 VIDEO_DECODER_FUNC(void, ffmpegFlushBuffers, jlong jContext) {
-    AVCodecContext *context = (AVCodecContext *) jContext;
-    avcodec_flush_buffers(context);
+    videoDecoderFlush((VideoDecoderCore *) jContext);
 }
 
 VIDEO_DECODER_FUNC(jint, ffmpegDecode, jlong jContext, jobject encoded, jint len,
              jlong timeUs,
              jboolean isDecodeOnly,
              jboolean isEndOfStream,
-             jboolean isKeyFrame) {
-    AVCodecContext *context = (AVCodecContext *) jContext;
+             jboolean isKeyFrame,
+             jboolean skipNonReferenceFrames,
+             jint degradationLevel) {
+    VideoDecoderCore *core = (VideoDecoderCore *) jContext;
+    videoDecoderSetDiscard(core, skipNonReferenceFrames, degradationLevel);
     uint8_t *packetBuffer = (uint8_t *) env->GetDirectBufferAddress(encoded);
-
-    int result = NO_ERROR;
-
-    if (len > 0) {
-        AVPacket packet;
-        av_init_packet(&packet);
-        packet.data = packetBuffer;
-        packet.size = len;
-
-        packet.pts = timeUs;
-        packet.dts = timeUs;
-        if (isDecodeOnly) {
-            packet.flags |= AV_PKT_FLAG_DISCARD;
-        }
-
-        if (isKeyFrame) {
-            packet.flags |= AV_PKT_FLAG_KEY;
-        }
-
-        result = decodePacket(context, &packet);
-    }
-
-    if (result == NO_ERROR && isEndOfStream) {
-        result = decodePacket(context, NULL);
-        if (result == DECODE_AGAIN) {
-            result = NO_ERROR;
-        }
-    }
-
-    return result;
+    return videoDecoderSendPacket(core, packetBuffer, len, timeUs, isDecodeOnly, isKeyFrame,
+                                  isEndOfStream);
 }
 
 VIDEO_DECODER_FUNC(jint, ffmpegSecureDecode,
@@ -155,214 +202,324 @@ VIDEO_DECODER_FUNC(jint, ffmpegSecureDecode,
              jlong timeUs,
              jboolean isDecodeOnly,
              jboolean isEndOfStream,
-             jboolean isKeyFrame) {
+             jboolean isKeyFrame,
+             jboolean skipNonReferenceFrames,
+             jint degradationLevel) {
     return UNSUPPORTED_ERROR;
 }
 
 VIDEO_DECODER_FUNC(jint, ffmpegGetFrame, jlong jContext, jobject jOutputBuffer) {
-    int result = 0;
-    AVCodecContext *context = (AVCodecContext *) jContext;
-
-    AVOpaqueData* opaqueData = static_cast<AVOpaqueData *>(context->opaque);
-    if (opaqueData->frame == NULL) {
-        opaqueData->frame = av_frame_alloc();
-    }
-
-    int error = avcodec_receive_frame(context, opaqueData->frame);
-    // 测试只有三帧的视频，send null packet后，解最后一帧出现AVERROR_INVALIDDATA错误
-    // 所以把AVERROR_INVALIDDATA当做EOF处理
-    // TODO 把AVERROR_INVALIDDATA当做EOF处理是否得当？
-    if (error == 0) {
-        result = putFrameToOutputBuffer(env, context, opaqueData->frame, jOutputBuffer);
-    } else if (error == AVERROR(EAGAIN)) {
-        // packet还不够
-        result = DECODE_AGAIN;
-    } else if (error == AVERROR_EOF || error == AVERROR_INVALIDDATA) {
-        result = DECODE_EOF;
-    } else {
-        result = DECODE_ERROR;
-    }
-    opaqueData->lastErrorCode = error;
+    VideoDecoderCore *core = (VideoDecoderCore *) jContext;
+    VideoJniData *jniData = static_cast<VideoJniData *>(core->userData);
+
+    int result = videoDecoderReceiveFrame(core);
+    if (result == NO_ERROR) {
+        if (jniData->zeroCopyOutput && canWrapFrame(core->frame)) {
+            result = wrapFrameToOutputBuffer(env, core, core->frame, jOutputBuffer);
+        } else {
+            result = putFrameToOutputBuffer(env, core, core->frame, jOutputBuffer);
+        }
+    }
     return result;
 }
 
 VIDEO_DECODER_FUNC(jint, ffmpegGetErrorCode, jlong jContext) {
-    AVCodecContext *context = (AVCodecContext *) jContext;
-    AVOpaqueData* opaqueData = static_cast<AVOpaqueData *>(context->opaque);
-    return opaqueData->lastErrorCode;
+    VideoDecoderCore *core = (VideoDecoderCore *) jContext;
+    return core->lastErrorCode;
 }
 
-void logError(const char *functionName, int errorNumber) {
-    char *buffer = (char *) malloc(ERROR_STRING_BUFFER_LENGTH * sizeof(char));
-    av_strerror(errorNumber, buffer, ERROR_STRING_BUFFER_LENGTH);
-    LOGE("Error in %s: %s", functionName, buffer);
-    free(buffer);
+VIDEO_DECODER_FUNC(void, ffmpegReleaseFrame, jlong jFrame) {
+    // frame的数据是引用计数的，context关闭后释放也是安全的
+    AVFrame *frame = (AVFrame *) jFrame;
+    av_frame_free(&frame);
 }
 
-AVCodecContext *createContext(JNIEnv *env, AVCodec *codec,
-                              jint rotationDegrees, jint width, jint height,
-                              jbyteArray extraData, jint threadCount) {
-    AVCodecContext *context = avcodec_alloc_context3(codec);
-    if (!context) {
-        LOGE("Failed to allocate avcodec context.");
-        return NULL;
+void initJavaRef(JNIEnv *env, VideoJniData *jniData) {
+    // Populate JNI References.
+    const jclass outputBufferClass = env->FindClass(
+            "com/google/android/exoplayer2/ext/ffmpeg/video/FrameBuffer");
+    // 时间戳、旋转角度和尺寸都通过init方法一次传给java层，每帧只有一次upcall
+    jniData->javaInitForYuvFrameMethod = env->GetMethodID(outputBufferClass, "initForYuvFrame",
+                                       "(JIIIIIIIIII)Z");
+    jniData->javaInitForZeroCopyYuvFrameMethod = env->GetMethodID(outputBufferClass,
+            "initForZeroCopyYuvFrame",
+            "(JJIIILjava/nio/ByteBuffer;Ljava/nio/ByteBuffer;Ljava/nio/ByteBuffer;IIIIIII)Z");
+    jniData->javaDataField = env->GetFieldID(outputBufferClass, "data",
+                                "Ljava/nio/ByteBuffer;");
+    jniData->javaDataAddressField = env->GetFieldID(outputBufferClass, "dataAddress", "J");
+    env->DeleteLocalRef(outputBufferClass);
+}
+
+int putFrameToOutputBuffer(JNIEnv *env, VideoDecoderCore *core, AVFrame *frame,
+                           jobject jOutputBuffer) {
+    VideoJniData *jniData = static_cast<VideoJniData *>(core->userData);
+    const VideoOutputLayout *layout = videoDecoderGetOutputLayout(core, frame);
+
+    // resize buffer if required.
+    jboolean initResult = env->CallBooleanMethod(
+            jOutputBuffer, jniData->javaInitForYuvFrameMethod, (jlong) frame->pts,
+            jniData->rotationDegree, frame->width, frame->height,
+            layout->lineSize[0], layout->lineSize[1], layout->bitDepth, layout->pixelLayout,
+            getFrameColorSpace(frame), getFrameColorRange(frame), getFrameColorTransfer(frame));
+    if (env->ExceptionCheck() || !initResult) {
+        return OUTPUT_BUFFER_ALLOCATE_FAILED;
     }
-    context->bits_per_coded_sample = 10;
-    context->profile = FF_PROFILE_HEVC_MAIN_10;
 
-    if (extraData != NULL) {
-        jsize size = env->GetArrayLength(extraData);
-        context->extradata_size = size;
-        context->extradata =
-                (uint8_t *) av_malloc((size_t) (size + AV_INPUT_BUFFER_PADDING_SIZE));
-        if (!context->extradata) {
-            LOGE("Failed to allocate extradata.");
-            releaseContext(context);
-            return NULL;
-        }
-        env->GetByteArrayRegion(extraData, 0, size, (jbyte *) context->extradata);
+    uint8_t *data = getOutputBufferAddress(env, jniData, jOutputBuffer);
+    if (data == NULL) {
+        return OUTPUT_BUFFER_ALLOCATE_FAILED;
     }
-    AVDictionary *opts = NULL;
-    av_dict_set_int(&opts, "threads", threadCount, 0);
-    //av_dict_set_int(&opts, "lowres", true, 0);
+    return videoDecoderCopyFrame(core, frame, data);
+}
 
-    int result = avcodec_open2(context, codec, &opts);
-    if (result < 0) {
-        logError("avcodec_open2", result);
-        releaseContext(context);
+uint8_t *getOutputBufferAddress(JNIEnv *env, VideoJniData *jniData, jobject jOutputBuffer) {
+    jlong address = env->GetLongField(jOutputBuffer, jniData->javaDataAddressField);
+    if (address != 0) {
+        return reinterpret_cast<uint8_t *>(address);
+    }
+    jobject dataObject = env->GetObjectField(jOutputBuffer, jniData->javaDataField);
+    if (dataObject == NULL) {
         return NULL;
     }
+    uint8_t *data = static_cast<uint8_t *>(env->GetDirectBufferAddress(dataObject));
+    env->DeleteLocalRef(dataObject);
+    env->SetLongField(jOutputBuffer, jniData->javaDataAddressField, (jlong) data);
+    return data;
+}
 
+bool isWrappableFormat(int format) {
+    switch (format) {
+        case AV_PIX_FMT_YUV420P:
+        case AV_PIX_FMT_YUVJ420P:
+        case AV_PIX_FMT_YUV420P10LE:
+        case AV_PIX_FMT_NV12:
+        case AV_PIX_FMT_NV21:
+        case AV_PIX_FMT_P010LE:
+            return true;
+        default:
+            return false;
+    }
+}
 
-    context->width = width;
-    context->height = height;
-
-    AVOpaqueData* opaqueData = new AVOpaqueData();
-    opaqueData->rotationDegree = rotationDegrees;
-
-    context->opaque = opaqueData;
-    initJavaRef(env, opaqueData);
-
-    return context;
+bool canWrapFrame(const AVFrame *frame) {
+    if (!isWrappableFormat(frame->format)) {
+        return false;
+    }
+    // 只有引用计数的frame才能在avcodec_receive_frame之后继续持有
+    if (frame->buf[0] == NULL) {
+        return false;
+    }
+    int planeCount = av_pix_fmt_count_planes(static_cast<AVPixelFormat>(frame->format));
+    for (int i = 0; i < planeCount; i++) {
+        if (frame->data[i] == NULL || frame->linesize[i] <= 0) {
+            return false;
+        }
+    }
+    // java层按亮度plane的linesize计算裁剪比例，色度plane的linesize必须和亮度保持比例
+    if (planeCount == 2) {
+        return frame->linesize[1] == frame->linesize[0];
+    }
+    return frame->linesize[1] == frame->linesize[2]
+           && frame->linesize[1] * 2 == frame->linesize[0];
 }
 
-void initJavaRef(JNIEnv *env, AVOpaqueData* opaqueData) {
-    // Populate JNI References.
-    const jclass outputBufferClass = env->FindClass(
-            "com/google/android/exoplayer2/ext/ffmpeg/video/FrameBuffer");
-    opaqueData->javaInitForYuvFrameMethod = env->GetMethodID(outputBufferClass, "initForYuvFrame",
-                                       "(IIIII)Z");
-    opaqueData->javaDataField = env->GetFieldID(outputBufferClass, "data",
-                                "Ljava/nio/ByteBuffer;");
-    opaqueData->javaTimeFrameUsField = env->GetFieldID(outputBufferClass, "timeUs", "J");
+int wrapFrameToOutputBuffer(JNIEnv *env, VideoDecoderCore *core, AVFrame *frame,
+                            jobject jOutputBuffer) {
+    VideoJniData *jniData = static_cast<VideoJniData *>(core->userData);
 
-    opaqueData->javaRotationDegreeField = env->GetFieldID(outputBufferClass, "rotationDegree", "I");
+    int bitDepth = getBytesPerSample(frame->format);
+    int pixelLayout = getPixelLayout(frame->format);
+    int planeCount = av_pix_fmt_count_planes(static_cast<AVPixelFormat>(frame->format));
 
+    // 把引用转移给新的frame，core->frame继续用于接收下一帧
+    AVFrame *outputFrame = av_frame_alloc();
+    if (!outputFrame) {
+        return OUTPUT_BUFFER_ALLOCATE_FAILED;
+    }
+    av_frame_move_ref(outputFrame, frame);
+
+    int uvHeight = (outputFrame->height + 1) / 2;
+    jlong planeSizes[3] = {
+            (jlong) outputFrame->linesize[0] * outputFrame->height,
+            (jlong) outputFrame->linesize[1] * uvHeight,
+            (jlong) outputFrame->linesize[2] * uvHeight
+    };
+    // 从framePool分配的frame复用缓存的ByteBuffer，否则每帧新建
+    PooledFrameHeader *header = findPooledFrameHeader(outputFrame);
+    bool pooled = header != NULL;
+    // 两个plane的格式没有第三个plane，传给java层null
+    jobject planes[3] = {NULL, NULL, NULL};
+    bool hasAllPlanes = true;
+    for (int i = 0; i < planeCount; i++) {
+        planes[i] = pooled ? getPooledFramePlane(env, header, outputFrame, i, planeSizes[i])
+                           : env->NewDirectByteBuffer(outputFrame->data[i], planeSizes[i]);
+        hasAllPlanes = hasAllPlanes && planes[i] != NULL;
+    }
+    jboolean initResult = JNI_FALSE;
+    if (hasAllPlanes && !env->ExceptionCheck()) {
+        initResult = env->CallBooleanMethod(
+                jOutputBuffer, jniData->javaInitForZeroCopyYuvFrameMethod, (jlong) outputFrame,
+                (jlong) outputFrame->pts, jniData->rotationDegree, outputFrame->width,
+                outputFrame->height, planes[0], planes[1], planes[2],
+                outputFrame->linesize[0], outputFrame->linesize[1], bitDepth, pixelLayout,
+                getFrameColorSpace(outputFrame), getFrameColorRange(outputFrame),
+                getFrameColorTransfer(outputFrame));
+    }
+    if (!pooled) {
+        for (int i = 0; i < planeCount; i++) {
+            env->DeleteLocalRef(planes[i]);
+        }
+    }
+    if (env->ExceptionCheck() || !initResult) {
+        av_frame_free(&outputFrame);
+        return OUTPUT_BUFFER_ALLOCATE_FAILED;
+    }
+    return NO_ERROR;
 }
 
-void releaseContext(AVCodecContext *pCodecContext) {
-    if (!pCodecContext) {
-        return;
+int getFrameBuffer(AVCodecContext *context, AVFrame *frame, int flags) {
+    VideoDecoderCore *core = static_cast<VideoDecoderCore *>(context->opaque);
+    VideoJniData *jniData = static_cast<VideoJniData *>(core->userData);
+    AVPixelFormat format = static_cast<AVPixelFormat>(frame->format);
+    if (!isWrappableFormat(format)) {
+        return avcodec_default_get_buffer2(context, frame, flags);
     }
 
-    if (pCodecContext->extradata != NULL) {
-        av_free(pCodecContext->extradata);
-        pCodecContext->extradata = NULL;
+    // 和avcodec_default_get_buffer2一样按解码器的要求对齐宽高
+    int width = frame->width;
+    int height = frame->height;
+    int linesizeAlign[AV_NUM_DATA_POINTERS];
+    avcodec_align_dimensions2(context, &width, &height, linesizeAlign);
+
+    // 和avcodec_default_get_buffer2一样通过加宽图像让每个plane的linesize都对齐，而不是单独对齐
+    // 每个plane，这样色度plane的linesize和亮度保持比例，java层可以用同一个裁剪比例渲染所有plane
+    int planeCount = av_pix_fmt_count_planes(format);
+    int linesize[4];
+    bool unaligned;
+    do {
+        int result = av_image_fill_linesizes(linesize, format, width);
+        if (result < 0) {
+            return result;
+        }
+        width += width & ~(width - 1);
+        unaligned = false;
+        for (int i = 0; i < planeCount; i++) {
+            unaligned = unaligned || linesize[i] % FRAME_PLANE_ALIGN != 0;
+        }
+    } while (unaligned);
+
+    // 可以包装的格式都是4:2:0，色度plane的高度减半
+    int planeHeights[3] = {height, AV_CEIL_RSHIFT(height, 1), AV_CEIL_RSHIFT(height, 1)};
+    int planeOffsets[3] = {0, 0, 0};
+    int size = 0;
+    for (int i = 0; i < planeCount; i++) {
+        planeOffsets[i] = size;
+        size = FFALIGN(size + linesize[i] * planeHeights[i] + FRAME_PLANE_PADDING, FRAME_PLANE_ALIGN);
     }
 
-    if (pCodecContext->opaque != NULL) {
-        AVOpaqueData *opaqueData = static_cast<AVOpaqueData *>(pCodecContext->opaque);
-        delete opaqueData;
-        pCodecContext->opaque = NULL;
+    // 尺寸变化后重建内存池，旧池的内存在引用释放后回收
+    pthread_mutex_lock(&jniData->framePoolLock);
+    if (jniData->framePool == NULL || jniData->framePoolSize != size) {
+        av_buffer_pool_uninit(&jniData->framePool);
+        jniData->framePool = av_buffer_pool_init(size, allocPooledFrame);
+        jniData->framePoolSize = size;
     }
-
-    avcodec_free_context(&pCodecContext);
+    AVBufferRef *poolBuffer = jniData->framePool != NULL
+                              ? av_buffer_pool_get(jniData->framePool) : NULL;
+    pthread_mutex_unlock(&jniData->framePoolLock);
+    if (poolBuffer == NULL) {
+        return AVERROR(ENOMEM);
+    }
+    // av_buffer_pool_get返回的引用的opaque是内存池内部的数据，再包装一层，让opaque指向header，
+    // 输出时据此判断frame的内存是否来自framePool
+    PooledFrameHeader *header = reinterpret_cast<PooledFrameHeader *>(
+            poolBuffer->data - POOLED_FRAME_HEADER_SIZE);
+    header->poolBuffer = poolBuffer;
+    AVBufferRef *buffer = av_buffer_create(poolBuffer->data, poolBuffer->size, releasePooledFrame,
+                                           header, 0);
+    if (buffer == NULL) {
+        header->poolBuffer = NULL;
+        av_buffer_unref(&poolBuffer);
+        return AVERROR(ENOMEM);
+    }
+    frame->buf[0] = buffer;
+    for (int i = 0; i < AV_NUM_DATA_POINTERS; i++) {
+        frame->data[i] = i < planeCount ? buffer->data + planeOffsets[i] : NULL;
+        frame->linesize[i] = i < planeCount ? linesize[i] : 0;
+    }
+    frame->extended_data = frame->data;
+    return 0;
 }
 
-int decodePacket(AVCodecContext *context, AVPacket *packet) {
-    AVOpaqueData *opaqueData = static_cast<AVOpaqueData *>(context->opaque);
-
-    // Queue input data.
-    int result = NO_ERROR;
-    int ffError = avcodec_send_packet(context, packet);
-    if (ffError == AVERROR(EAGAIN)) {
-        result = DECODE_AGAIN;
-    } else if (ffError != 0 && ffError != AVERROR_INVALIDDATA) {
-        result = DECODE_ERROR;
+AVBufferRef *allocPooledFrame(int size) {
+    uint8_t *memory = static_cast<uint8_t *>(av_malloc((size_t) (size + POOLED_FRAME_HEADER_SIZE)));
+    if (memory == NULL) {
+        return NULL;
     }
-
-    opaqueData->lastErrorCode = ffError;
-    return result;
+    memset(memory, 0, sizeof(PooledFrameHeader));
+    reinterpret_cast<PooledFrameHeader *>(memory)->magic = POOLED_FRAME_MAGIC;
+    AVBufferRef *buffer = av_buffer_create(memory + POOLED_FRAME_HEADER_SIZE, size,
+                                           freePooledFrame, NULL, 0);
+    if (buffer == NULL) {
+        av_free(memory);
+    }
+    return buffer;
 }
 
-int putFrameToOutputBuffer(JNIEnv *env, AVCodecContext *context, AVFrame *frame,
-                           jobject jOutputBuffer) {
-    AVOpaqueData *opaqueData = static_cast<AVOpaqueData *>(context->opaque);
-
-    env->SetLongField(jOutputBuffer, opaqueData->javaTimeFrameUsField, frame->pts);
-    env->SetIntField(jOutputBuffer, opaqueData->javaRotationDegreeField, opaqueData->rotationDegree);
-
-    int supportFormats[] = {AV_PIX_FMT_YUV420P, AV_PIX_FMT_YUVJ420P, AV_PIX_FMT_YUV420P10LE, AV_PIX_FMT_YUV444P10LE};
-    bool isFormatSupported = false;
-    for (int i = 0; i < 4; i++) {
-        if (supportFormats[i] == frame->format) {
-            isFormatSupported = true;
-            break;
+void freePooledFrame(void *opaque, uint8_t *data) {
+    uint8_t *memory = data - POOLED_FRAME_HEADER_SIZE;
+    PooledFrameHeader *header = reinterpret_cast<PooledFrameHeader *>(memory);
+    if (header->planes[0] != NULL || header->planes[1] != NULL || header->planes[2] != NULL) {
+        // 可能在ffmpeg的解码线程中释放
+        JNIEnv *env = getJniEnv();
+        for (int i = 0; i < 3 && env != NULL; i++) {
+            if (header->planes[i] != NULL) {
+                env->DeleteGlobalRef(header->planes[i]);
+            }
         }
     }
+    av_free(memory);
+}
 
-    int outputFormat = frame->format;
-    if (!isFormatSupported) {
-        outputFormat = AV_PIX_FMT_YUV420P;
-    }
+void releasePooledFrame(void *opaque, uint8_t *data) {
+    PooledFrameHeader *header = static_cast<PooledFrameHeader *>(opaque);
+    AVBufferRef *poolBuffer = header->poolBuffer;
+    header->poolBuffer = NULL;
+    av_buffer_unref(&poolBuffer);
+}
 
-    int bitDepth = 1;
-    if (outputFormat == AV_PIX_FMT_YUV420P10LE) {
-        bitDepth = 2;
+PooledFrameHeader *findPooledFrameHeader(const AVFrame *frame) {
+    if (frame->buf[0] == NULL) {
+        return NULL;
     }
-
-    int outputLineSize[4];
-    av_image_fill_linesizes(outputLineSize, static_cast<AVPixelFormat>(outputFormat), frame->width);
-    // resize buffer if required.
-    jboolean initResult = env->CallBooleanMethod(
-            jOutputBuffer, opaqueData->javaInitForYuvFrameMethod, frame->width, frame->height,
-            outputLineSize[0], outputLineSize[1], bitDepth);
-    if (env->ExceptionCheck() || !initResult) {
-        return OUTPUT_BUFFER_ALLOCATE_FAILED;
+    // 先只比较地址，opaque指向紧挨着数据的header时才读取header，避免读取其他来源内存之外的数据
+    uintptr_t headerAddress = reinterpret_cast<uintptr_t>(frame->buf[0]->data)
+                              - POOLED_FRAME_HEADER_SIZE;
+    void *opaque = av_buffer_get_opaque(frame->buf[0]);
+    if (reinterpret_cast<uintptr_t>(opaque) != headerAddress) {
+        return NULL;
     }
+    PooledFrameHeader *header = static_cast<PooledFrameHeader *>(opaque);
+    return header->magic == POOLED_FRAME_MAGIC ? header : NULL;
+}
 
-    // get pointer to the data buffer.
-    const jobject dataObject = env->GetObjectField(jOutputBuffer, opaqueData->javaDataField);
-    jbyte *const data = reinterpret_cast<jbyte *>(env->GetDirectBufferAddress( dataObject));
-
-    if (!isFormatSupported) {
-        if (!opaqueData->swsContext) {
-            SwsContext *pSwsContext = sws_getCachedContext(NULL,
-                                                           frame->width,
-                                                           frame->height,
-                                                           static_cast<AVPixelFormat>(frame->format),
-                                                           frame->width,
-                                                           frame->height,
-                                                           static_cast<AVPixelFormat>(outputFormat),
-                                                           SWS_BICUBIC,
-                                                           NULL,
-                                                           NULL,
-                                                           NULL);
-            opaqueData->swsContext = pSwsContext;
-        }
-        SwsContext *swsContext = opaqueData->swsContext;
-        uint8_t *dst_data[4];
-        av_image_fill_pointers(dst_data,
-                             static_cast<AVPixelFormat>(outputFormat),
-                             frame->height,
-                             (uint8_t *) data,
-                             outputLineSize);
-        sws_scale(swsContext, (const uint8_t **) frame->data, frame->linesize, 0,
-                  frame->width, dst_data, outputLineSize);
-    } else {
-        int outputSize = av_image_get_buffer_size(static_cast<AVPixelFormat>(frame->format), frame->width, frame->height, 1);
-        av_image_copy_to_buffer((uint8_t *) data, outputSize, frame->data, frame->linesize,
-                                static_cast<AVPixelFormat>(frame->format), frame->width, frame->height, 1);
+jobject getPooledFramePlane(JNIEnv *env, PooledFrameHeader *header, const AVFrame *frame,
+                            int plane, jlong size) {
+    if (header->planes[plane] != NULL && header->planeData[plane] == frame->data[plane]
+        && header->planeSize[plane] == size) {
+        return header->planes[plane];
     }
-    return NO_ERROR;
-}
\ No newline at end of file
+    if (header->planes[plane] != NULL) {
+        env->DeleteGlobalRef(header->planes[plane]);
+        header->planes[plane] = NULL;
+    }
+    jobject localPlane = env->NewDirectByteBuffer(frame->data[plane], size);
+    if (localPlane == NULL) {
+        return NULL;
+    }
+    header->planes[plane] = env->NewGlobalRef(localPlane);
+    header->planeData[plane] = frame->data[plane];
+    header->planeSize[plane] = size;
+    env->DeleteLocalRef(localPlane);
+    return header->planes[plane];
+}
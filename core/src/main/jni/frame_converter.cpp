@@ -0,0 +1,145 @@
+//
+// 解码帧到拷贝输出格式的转换
+//
+
+#include "frame_converter.h"
+#include "decoder_core.h"
+#include "video_decoder_core.h"
+
+#include "libyuv.h"
+
+extern "C" {
+#include <libavutil/pixdesc.h>
+}
+
+// libyuv的转换函数，16位格式的stride以像素为单位
+typedef bool (*LibyuvConverter)(const AVFrame *frame, uint8_t *const dstData[4],
+                                const int dstLineSize[4]);
+
+struct LibyuvConverterEntry {
+    AVPixelFormat sourceFormat;
+    AVPixelFormat outputFormat;
+    LibyuvConverter convert;
+};
+
+static bool convertI422(const AVFrame *frame, uint8_t *const dst[4], const int dstLineSize[4]) {
+    return libyuv::I422ToI420(frame->data[0], frame->linesize[0],
+                              frame->data[1], frame->linesize[1],
+                              frame->data[2], frame->linesize[2],
+                              dst[0], dstLineSize[0], dst[1], dstLineSize[1],
+                              dst[2], dstLineSize[2], frame->width, frame->height) == 0;
+}
+
+static bool convertI444(const AVFrame *frame, uint8_t *const dst[4], const int dstLineSize[4]) {
+    return libyuv::I444ToI420(frame->data[0], frame->linesize[0],
+                              frame->data[1], frame->linesize[1],
+                              frame->data[2], frame->linesize[2],
+                              dst[0], dstLineSize[0], dst[1], dstLineSize[1],
+                              dst[2], dstLineSize[2], frame->width, frame->height) == 0;
+}
+
+static bool convertI400(const AVFrame *frame, uint8_t *const dst[4], const int dstLineSize[4]) {
+    return libyuv::I400ToI420(frame->data[0], frame->linesize[0],
+                              dst[0], dstLineSize[0], dst[1], dstLineSize[1],
+                              dst[2], dstLineSize[2], frame->width, frame->height) == 0;
+}
+
+static bool convertYuy2(const AVFrame *frame, uint8_t *const dst[4], const int dstLineSize[4]) {
+    return libyuv::YUY2ToI420(frame->data[0], frame->linesize[0],
+                              dst[0], dstLineSize[0], dst[1], dstLineSize[1],
+                              dst[2], dstLineSize[2], frame->width, frame->height) == 0;
+}
+
+static bool convertUyvy(const AVFrame *frame, uint8_t *const dst[4], const int dstLineSize[4]) {
+    return libyuv::UYVYToI420(frame->data[0], frame->linesize[0],
+                              dst[0], dstLineSize[0], dst[1], dstLineSize[1],
+                              dst[2], dstLineSize[2], frame->width, frame->height) == 0;
+}
+
+// 10位4:2:2转成4:2:0，保留位深，libyuv没有I210ToI010，色度平面用ScalePlane_16在垂直方向减半
+static bool convertI210(const AVFrame *frame, uint8_t *const dst[4], const int dstLineSize[4]) {
+    int chromaWidth = (frame->width + 1) / 2;
+    int chromaHeight = (frame->height + 1) / 2;
+    libyuv::CopyPlane_16(reinterpret_cast<const uint16_t *>(frame->data[0]),
+                         frame->linesize[0] / 2,
+                         reinterpret_cast<uint16_t *>(dst[0]), dstLineSize[0] / 2,
+                         frame->width, frame->height);
+    for (int plane = 1; plane < 3; plane++) {
+        libyuv::ScalePlane_16(reinterpret_cast<const uint16_t *>(frame->data[plane]),
+                              frame->linesize[plane] / 2, chromaWidth, frame->height,
+                              reinterpret_cast<uint16_t *>(dst[plane]), dstLineSize[plane] / 2,
+                              chromaWidth, chromaHeight, libyuv::kFilterBilinear);
+    }
+    return true;
+}
+
+static const LibyuvConverterEntry LIBYUV_CONVERTERS[] = {
+        {AV_PIX_FMT_YUV422P,     AV_PIX_FMT_YUV420P,     convertI422},
+        {AV_PIX_FMT_YUVJ422P,    AV_PIX_FMT_YUVJ420P,    convertI422},
+        {AV_PIX_FMT_YUV444P,     AV_PIX_FMT_YUV420P,     convertI444},
+        {AV_PIX_FMT_YUVJ444P,    AV_PIX_FMT_YUVJ420P,    convertI444},
+        {AV_PIX_FMT_GRAY8,       AV_PIX_FMT_YUV420P,     convertI400},
+        {AV_PIX_FMT_YUYV422,     AV_PIX_FMT_YUV420P,     convertYuy2},
+        {AV_PIX_FMT_UYVY422,     AV_PIX_FMT_YUV420P,     convertUyvy},
+        {AV_PIX_FMT_YUV422P10LE, AV_PIX_FMT_YUV420P10LE, convertI210},
+};
+
+static const LibyuvConverterEntry *findLibyuvConverter(int sourceFormat) {
+    for (size_t i = 0; i < sizeof(LIBYUV_CONVERTERS) / sizeof(LIBYUV_CONVERTERS[0]); i++) {
+        if (LIBYUV_CONVERTERS[i].sourceFormat == sourceFormat) {
+            return &LIBYUV_CONVERTERS[i];
+        }
+    }
+    return NULL;
+}
+
+int getConvertOutputFormat(int sourceFormat) {
+    // 半平面的NV12/NV21/P010由java层用两个纹理渲染，不再拆分成三个平面
+    if (getPixelLayout(sourceFormat) >= 0) {
+        return sourceFormat;
+    }
+    const LibyuvConverterEntry *entry = findLibyuvConverter(sourceFormat);
+    if (entry != NULL) {
+        return entry->outputFormat;
+    }
+    // 其他格式交给swscale，高位深的格式转换成YUV420P10LE以保留精度
+    return getBytesPerSample(sourceFormat) == 2 ? AV_PIX_FMT_YUV420P10LE : AV_PIX_FMT_YUV420P;
+}
+
+bool hasLibyuvConverter(int sourceFormat) {
+    return findLibyuvConverter(sourceFormat) != NULL;
+}
+
+bool convertFrameWithLibyuv(const AVFrame *frame, int outputFormat, uint8_t *const dstData[4],
+                            const int dstLineSize[4]) {
+    const LibyuvConverterEntry *entry = findLibyuvConverter(frame->format);
+    if (entry == NULL || entry->outputFormat != outputFormat) {
+        return false;
+    }
+    return entry->convert(frame, dstData, dstLineSize);
+}
+
+bool convertFrameWithSwscale(SwsContext **context, const AVFrame *frame, int outputFormat,
+                             uint8_t *const dstData[4], const int dstLineSize[4]) {
+    AVPixelFormat sourceFormat = static_cast<AVPixelFormat>(frame->format);
+    AVPixelFormat targetFormat = static_cast<AVPixelFormat>(outputFormat);
+    // 尺寸不变，只有色度平面可能需要缩放，色度采样相同时直接取点，否则用最快的双线性
+    const AVPixFmtDescriptor *sourceDescriptor = av_pix_fmt_desc_get(sourceFormat);
+    const AVPixFmtDescriptor *targetDescriptor = av_pix_fmt_desc_get(targetFormat);
+    int flags = SWS_FAST_BILINEAR;
+    if (sourceDescriptor != NULL && targetDescriptor != NULL
+        && sourceDescriptor->log2_chroma_w == targetDescriptor->log2_chroma_w
+        && sourceDescriptor->log2_chroma_h == targetDescriptor->log2_chroma_h) {
+        flags = SWS_POINT;
+    }
+    // 参数和已有的context相同时直接返回它，否则释放后重新创建
+    *context = sws_getCachedContext(*context, frame->width, frame->height, sourceFormat,
+                                    frame->width, frame->height, targetFormat, flags,
+                                    NULL, NULL, NULL);
+    if (*context == NULL) {
+        CORE_LOGE("Failed to create sws context for format %d.", frame->format);
+        return false;
+    }
+    sws_scale(*context, frame->data, frame->linesize, 0, frame->height, dstData, dstLineSize);
+    return true;
+}
@@ -0,0 +1,29 @@
+//
+// 解码帧到拷贝输出格式的转换，优先使用libyuv的SIMD实现，没有对应实现时才使用swscale
+//
+
+#ifndef MQPLAYER_FRAME_CONVERTER_H
+#define MQPLAYER_FRAME_CONVERTER_H
+
+#include <stdint.h>
+
+extern "C" {
+#include <libavutil/frame.h>
+#include <libswscale/swscale.h>
+}
+
+// 返回frame拷贝输出时使用的格式，java层能直接渲染的格式原样返回
+int getConvertOutputFormat(int sourceFormat);
+
+// 是否有把sourceFormat转换成getConvertOutputFormat(sourceFormat)的libyuv实现
+bool hasLibyuvConverter(int sourceFormat);
+
+// 用libyuv把frame转换成outputFormat，没有对应实现时返回false
+bool convertFrameWithLibyuv(const AVFrame *frame, int outputFormat, uint8_t *const dstData[4],
+                            const int dstLineSize[4]);
+
+// 用swscale把frame转换成outputFormat，context按尺寸和格式缓存，变化时自动重新创建
+bool convertFrameWithSwscale(SwsContext **context, const AVFrame *frame, int outputFormat,
+                             uint8_t *const dstData[4], const int dstLineSize[4]);
+
+#endif //MQPLAYER_FRAME_CONVERTER_H
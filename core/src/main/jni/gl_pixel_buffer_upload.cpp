@@ -0,0 +1,13 @@
+#include "ffmpeg_api_define.h"
+
+#include <GLES3/gl3.h>
+
+/**
+ * 从当前绑定的GL_PIXEL_UNPACK_BUFFER上传纹理, java层的GLES20.glTexSubImage2D只接受Buffer参数, 无法传偏移
+ */
+PIXEL_BUFFER_UPLOADER_FUNC(void, texSubImage2DFromPixelBuffer, jint target, jint level,
+                           jint xoffset, jint yoffset, jint width, jint height,
+                           jint format, jint type, jint offset) {
+    glTexSubImage2D((GLenum) target, level, xoffset, yoffset, width, height,
+                    (GLenum) format, (GLenum) type, (const GLvoid *) (GLintptr) offset);
+}
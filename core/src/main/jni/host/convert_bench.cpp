@@ -0,0 +1,162 @@
+//
+// 对比每种解码帧格式用libyuv和swscale转换成拷贝输出格式的耗时
+// 用法：convert_bench [--width W] [--height H] [--iterations N]
+//
+
+#include "frame_converter.h"
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#include <vector>
+
+extern "C" {
+#include <libavutil/imgutils.h>
+#include <libavutil/pixdesc.h>
+}
+
+static const AVPixelFormat SOURCE_FORMATS[] = {
+        AV_PIX_FMT_YUV422P,
+        AV_PIX_FMT_YUVJ422P,
+        AV_PIX_FMT_YUV444P,
+        AV_PIX_FMT_YUVJ444P,
+        AV_PIX_FMT_GRAY8,
+        AV_PIX_FMT_YUYV422,
+        AV_PIX_FMT_UYVY422,
+        AV_PIX_FMT_YUV422P10LE,
+        AV_PIX_FMT_YUV420P12LE,
+};
+
+static double nowUs() {
+    timespec time;
+    clock_gettime(CLOCK_MONOTONIC, &time);
+    return time.tv_sec * 1000000.0 + time.tv_nsec / 1000.0;
+}
+
+// 按格式的位深填充随机像素，高位深格式的值不超过位深的范围
+static void fillFrame(AVFrame *frame) {
+    const AVPixFmtDescriptor *descriptor = av_pix_fmt_desc_get(
+            static_cast<AVPixelFormat>(frame->format));
+    int depth = descriptor->comp[0].depth;
+    int shift = descriptor->comp[0].shift;
+    for (int plane = 0; plane < 4 && frame->data[plane] != NULL; plane++) {
+        int planeHeight = plane == 0 ? frame->height
+                                     : AV_CEIL_RSHIFT(frame->height, descriptor->log2_chroma_h);
+        for (int y = 0; y < planeHeight; y++) {
+            uint8_t *row = frame->data[plane] + (size_t) y * frame->linesize[plane];
+            if (depth > 8) {
+                uint16_t *samples = reinterpret_cast<uint16_t *>(row);
+                for (int x = 0; x < frame->linesize[plane] / 2; x++) {
+                    samples[x] = (uint16_t) ((rand() & ((1 << depth) - 1)) << shift);
+                }
+            } else {
+                for (int x = 0; x < frame->linesize[plane]; x++) {
+                    row[x] = (uint8_t) rand();
+                }
+            }
+        }
+    }
+}
+
+static int maxLumaDifference(const uint8_t *a, const uint8_t *b, int lineSize, int height) {
+    int maxDifference = 0;
+    for (int i = 0; i < lineSize * height; i++) {
+        int difference = abs(a[i] - b[i]);
+        if (difference > maxDifference) {
+            maxDifference = difference;
+        }
+    }
+    return maxDifference;
+}
+
+int main(int argc, char **argv) {
+    int width = 1920;
+    int height = 1080;
+    int iterations = 100;
+    for (int i = 1; i < argc; i++) {
+        if (strcmp(argv[i], "--width") == 0 && i + 1 < argc) {
+            width = atoi(argv[++i]);
+        } else if (strcmp(argv[i], "--height") == 0 && i + 1 < argc) {
+            height = atoi(argv[++i]);
+        } else if (strcmp(argv[i], "--iterations") == 0 && i + 1 < argc) {
+            iterations = atoi(argv[++i]);
+        } else {
+            fprintf(stderr, "usage: convert_bench [--width W] [--height H] [--iterations N]\n");
+            return 2;
+        }
+    }
+    if (width <= 0 || height <= 0 || iterations <= 0) {
+        fprintf(stderr, "Invalid arguments\n");
+        return 2;
+    }
+
+    printf("%dx%d, %d iterations\n", width, height, iterations);
+    printf("%-14s %-14s %12s %12s %8s %10s\n", "source", "output", "libyuv ms", "swscale ms",
+           "speedup", "luma diff");
+    int failures = 0;
+    for (size_t i = 0; i < sizeof(SOURCE_FORMATS) / sizeof(SOURCE_FORMATS[0]); i++) {
+        AVFrame *frame = av_frame_alloc();
+        frame->format = SOURCE_FORMATS[i];
+        frame->width = width;
+        frame->height = height;
+        if (av_frame_get_buffer(frame, 32) < 0) {
+            fprintf(stderr, "Failed to allocate %s\n", av_get_pix_fmt_name(SOURCE_FORMATS[i]));
+            av_frame_free(&frame);
+            failures++;
+            continue;
+        }
+        fillFrame(frame);
+
+        AVPixelFormat outputFormat = static_cast<AVPixelFormat>(
+                getConvertOutputFormat(frame->format));
+        int lineSize[4];
+        av_image_fill_linesizes(lineSize, outputFormat, width);
+        int size = av_image_get_buffer_size(outputFormat, width, height, 1);
+        std::vector<uint8_t> libyuvOutput((size_t) size);
+        std::vector<uint8_t> swscaleOutput((size_t) size);
+        uint8_t *libyuvData[4];
+        uint8_t *swscaleData[4];
+        av_image_fill_pointers(libyuvData, outputFormat, height, libyuvOutput.data(), lineSize);
+        av_image_fill_pointers(swscaleData, outputFormat, height, swscaleOutput.data(), lineSize);
+
+        double libyuvMs = -1;
+        if (hasLibyuvConverter(frame->format)) {
+            double startUs = nowUs();
+            for (int j = 0; j < iterations; j++) {
+                if (!convertFrameWithLibyuv(frame, outputFormat, libyuvData, lineSize)) {
+                    failures++;
+                    break;
+                }
+            }
+            libyuvMs = (nowUs() - startUs) / iterations / 1000;
+        }
+
+        SwsContext *swsContext = NULL;
+        double startUs = nowUs();
+        for (int j = 0; j < iterations; j++) {
+            if (!convertFrameWithSwscale(&swsContext, frame, outputFormat, swscaleData,
+                                         lineSize)) {
+                failures++;
+                break;
+            }
+        }
+        double swscaleMs = (nowUs() - startUs) / iterations / 1000;
+        sws_freeContext(swsContext);
+
+        const char *sourceName = av_get_pix_fmt_name(static_cast<AVPixelFormat>(frame->format));
+        const char *outputName = av_get_pix_fmt_name(outputFormat);
+        if (libyuvMs >= 0) {
+            printf("%-14s %-14s %12.3f %12.3f %7.1fx %10d\n", sourceName, outputName, libyuvMs,
+                   swscaleMs, libyuvMs > 0 ? swscaleMs / libyuvMs : 0,
+                   maxLumaDifference(libyuvOutput.data(), swscaleOutput.data(), lineSize[0],
+                                     height));
+        } else {
+            printf("%-14s %-14s %12s %12.3f %8s %10s\n", sourceName, outputName, "-", swscaleMs,
+                   "-", "-");
+        }
+        av_frame_free(&frame);
+    }
+    return failures == 0 ? 0 : 1;
+}
@@ -0,0 +1,251 @@
+//
+// 在Linux上通过和JNI层相同的解码核心解码一个文件，输出帧率、每帧延迟和峰值内存
+// 用法：decode_bench [--thread-type auto|frame|slice|both] [--threads N] [--no-copy]
+//                    [--expect-frames N] <file>
+//
+
+#include "decoder_core.h"
+#include "video_decoder_core.h"
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <sys/resource.h>
+
+#include <algorithm>
+#include <map>
+#include <vector>
+
+extern "C" {
+#include <libavformat/avformat.h>
+}
+
+struct BenchOptions {
+    const char *path;
+    int threadType;
+    int threadCount;
+    bool copyFrames;
+    // 小于0表示不检查
+    long expectedFrameCount;
+};
+
+struct BenchStats {
+    // 送入packet的时间，按pts索引，取出对应的帧时计算延迟
+    std::map<int64_t, double> sendTimesUs;
+    std::vector<double> latenciesUs;
+    double copyTimeUs;
+    long frameCount;
+    std::vector<uint8_t> outputBuffer;
+};
+
+static double nowUs() {
+    timespec time;
+    clock_gettime(CLOCK_MONOTONIC, &time);
+    return time.tv_sec * 1000000.0 + time.tv_nsec / 1000.0;
+}
+
+static void printUsage() {
+    fprintf(stderr, "usage: decode_bench [--thread-type auto|frame|slice|both] [--threads N] "
+                    "[--no-copy] [--expect-frames N] <file>\n");
+}
+
+static bool parseOptions(int argc, char **argv, BenchOptions *options) {
+    options->path = NULL;
+    options->threadType = 0;
+    options->threadCount = 0;
+    options->copyFrames = true;
+    options->expectedFrameCount = -1;
+    for (int i = 1; i < argc; i++) {
+        const char *arg = argv[i];
+        bool hasValue = i + 1 < argc;
+        if (strcmp(arg, "--thread-type") == 0 && hasValue) {
+            const char *value = argv[++i];
+            if (strcmp(value, "auto") == 0) {
+                options->threadType = 0;
+            } else if (strcmp(value, "frame") == 0) {
+                options->threadType = FF_THREAD_FRAME;
+            } else if (strcmp(value, "slice") == 0) {
+                options->threadType = FF_THREAD_SLICE;
+            } else if (strcmp(value, "both") == 0) {
+                options->threadType = FF_THREAD_FRAME | FF_THREAD_SLICE;
+            } else {
+                return false;
+            }
+        } else if (strcmp(arg, "--threads") == 0 && hasValue) {
+            options->threadCount = atoi(argv[++i]);
+        } else if (strcmp(arg, "--expect-frames") == 0 && hasValue) {
+            options->expectedFrameCount = atol(argv[++i]);
+        } else if (strcmp(arg, "--no-copy") == 0) {
+            options->copyFrames = false;
+        } else if (arg[0] != '-' && options->path == NULL) {
+            options->path = arg;
+        } else {
+            return false;
+        }
+    }
+    return options->path != NULL;
+}
+
+// 取出当前能取出的所有帧，返回DECODE_AGAIN、DECODE_EOF或者错误码
+static int drainFrames(VideoDecoderCore *core, const BenchOptions *options, BenchStats *stats) {
+    while (true) {
+        int result = videoDecoderReceiveFrame(core);
+        if (result != NO_ERROR) {
+            return result;
+        }
+        double receiveTimeUs = nowUs();
+        AVFrame *frame = core->frame;
+        std::map<int64_t, double>::iterator sendTime = stats->sendTimesUs.find(frame->pts);
+        if (sendTime != stats->sendTimesUs.end()) {
+            stats->latenciesUs.push_back(receiveTimeUs - sendTime->second);
+            stats->sendTimesUs.erase(sendTime);
+        }
+
+        if (options->copyFrames) {
+            const VideoOutputLayout *layout = videoDecoderGetOutputLayout(core, frame);
+            if (stats->outputBuffer.size() < (size_t) layout->size) {
+                stats->outputBuffer.resize((size_t) layout->size);
+            }
+            double copyStartUs = nowUs();
+            result = videoDecoderCopyFrame(core, frame, stats->outputBuffer.data());
+            stats->copyTimeUs += nowUs() - copyStartUs;
+            if (result != NO_ERROR) {
+                av_frame_unref(frame);
+                return result;
+            }
+        }
+        av_frame_unref(frame);
+        stats->frameCount++;
+    }
+}
+
+static double percentile(const std::vector<double> &sortedValues, double fraction) {
+    if (sortedValues.empty()) {
+        return 0;
+    }
+    size_t index = (size_t) (fraction * (sortedValues.size() - 1) + 0.5);
+    return sortedValues[index];
+}
+
+int main(int argc, char **argv) {
+    BenchOptions options;
+    if (!parseOptions(argc, argv, &options)) {
+        printUsage();
+        return 2;
+    }
+
+    AVFormatContext *formatContext = NULL;
+    int error = avformat_open_input(&formatContext, options.path, NULL, NULL);
+    if (error < 0) {
+        logAvError("avformat_open_input", error);
+        return 1;
+    }
+    error = avformat_find_stream_info(formatContext, NULL);
+    if (error < 0) {
+        logAvError("avformat_find_stream_info", error);
+        avformat_close_input(&formatContext);
+        return 1;
+    }
+    AVCodec *codec = NULL;
+    int streamIndex = av_find_best_stream(formatContext, AVMEDIA_TYPE_VIDEO, -1, -1, &codec, 0);
+    if (streamIndex < 0 || codec == NULL) {
+        fprintf(stderr, "No decodable video stream in %s\n", options.path);
+        avformat_close_input(&formatContext);
+        return 1;
+    }
+    AVStream *stream = formatContext->streams[streamIndex];
+    AVCodecParameters *parameters = stream->codecpar;
+
+    VideoDecoderConfig config;
+    config.codec = codec;
+    config.width = parameters->width;
+    config.height = parameters->height;
+    config.extraData = parameters->extradata;
+    config.extraDataSize = parameters->extradata_size;
+    config.threadType = options.threadType;
+    config.threadCount = options.threadCount;
+    config.affinityMask = 0;
+    config.getBuffer2 = NULL;
+    config.userData = NULL;
+    VideoDecoderCore *core = videoDecoderCreate(&config);
+    if (core == NULL) {
+        avformat_close_input(&formatContext);
+        return 1;
+    }
+
+    BenchStats stats;
+    stats.copyTimeUs = 0;
+    stats.frameCount = 0;
+    int result = NO_ERROR;
+    AVPacket packet;
+    av_init_packet(&packet);
+    double startUs = nowUs();
+    while (result == NO_ERROR && av_read_frame(formatContext, &packet) >= 0) {
+        if (packet.stream_index == streamIndex) {
+            // 和java层一样，时间戳统一用微秒
+            int64_t pts = packet.pts != AV_NOPTS_VALUE ? packet.pts : packet.dts;
+            int64_t timeUs = av_rescale_q(pts, stream->time_base, AV_TIME_BASE_Q);
+            stats.sendTimesUs[timeUs] = nowUs();
+            bool isKeyFrame = (packet.flags & AV_PKT_FLAG_KEY) != 0;
+            while (true) {
+                result = videoDecoderSendPacket(core, packet.data, packet.size, timeUs, false,
+                                                isKeyFrame, false);
+                int drainResult = drainFrames(core, &options, &stats);
+                if (drainResult != DECODE_AGAIN) {
+                    result = drainResult == DECODE_EOF ? DECODE_ERROR : drainResult;
+                    break;
+                }
+                // 解码器的输入队列满了，取出帧之后重新送入
+                if (result != DECODE_AGAIN) {
+                    break;
+                }
+            }
+        }
+        av_packet_unref(&packet);
+    }
+    if (result == NO_ERROR) {
+        result = videoDecoderSendPacket(core, NULL, 0, 0, false, false, true);
+        if (result == NO_ERROR) {
+            result = drainFrames(core, &options, &stats);
+            if (result == DECODE_EOF) {
+                result = NO_ERROR;
+            }
+        }
+    }
+    double elapsedUs = nowUs() - startUs;
+    int activeThreadType = core->context->active_thread_type;
+    int threadCount = core->context->thread_count;
+    videoDecoderRelease(core);
+    avformat_close_input(&formatContext);
+
+    if (result != NO_ERROR) {
+        fprintf(stderr, "Decoding failed: %d\n", result);
+        return 1;
+    }
+
+    std::sort(stats.latenciesUs.begin(), stats.latenciesUs.end());
+    rusage usage;
+    getrusage(RUSAGE_SELF, &usage);
+    printf("file: %s\n", options.path);
+    printf("codec: %s %dx%d, threads: %d, active thread type: %d\n", codec->name,
+           parameters->width, parameters->height, threadCount, activeThreadType);
+    printf("frames: %ld in %.1f ms, %.1f fps\n", stats.frameCount, elapsedUs / 1000,
+           elapsedUs > 0 ? stats.frameCount * 1000000.0 / elapsedUs : 0);
+    printf("latency ms: p50 %.2f, p90 %.2f, p99 %.2f, max %.2f\n",
+           percentile(stats.latenciesUs, 0.5) / 1000, percentile(stats.latenciesUs, 0.9) / 1000,
+           percentile(stats.latenciesUs, 0.99) / 1000, percentile(stats.latenciesUs, 1) / 1000);
+    if (options.copyFrames) {
+        printf("copy: %.1f us per frame\n",
+               stats.frameCount > 0 ? stats.copyTimeUs / stats.frameCount : 0);
+    }
+    // Linux上ru_maxrss的单位是KB
+    printf("peak rss: %ld KB\n", usage.ru_maxrss);
+
+    if (options.expectedFrameCount >= 0 && stats.frameCount != options.expectedFrameCount) {
+        fprintf(stderr, "Expected %ld frames but decoded %ld\n", options.expectedFrameCount,
+                stats.frameCount);
+        return 1;
+    }
+    return 0;
+}
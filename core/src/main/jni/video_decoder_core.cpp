@@ -0,0 +1,353 @@
+//
+// 不依赖JNI的视频解码核心
+//
+
+#include "video_decoder_core.h"
+#include "decoder_core.h"
+#include "frame_converter.h"
+
+#include <errno.h>
+#include <sched.h>
+#include <string.h>
+
+extern "C" {
+#include <libavutil/imgutils.h>
+#include <libavutil/pixdesc.h>
+}
+
+// 把掩码转换成cpu_set_t，第n位对应cpu n
+static void toCpuSet(int64_t affinityMask, cpu_set_t *cpuSet);
+
+VideoDecoderCore::VideoDecoderCore() {
+    context = NULL;
+    frame = NULL;
+    swsContext = NULL;
+    lastErrorCode = 0;
+    skipNonReferenceFrames = false;
+    degradationLevel = 0;
+    memset(&outputLayout, 0, sizeof(outputLayout));
+    outputLayout.sourceFormat = AV_PIX_FMT_NONE;
+    outputLayout.format = AV_PIX_FMT_NONE;
+    userData = NULL;
+}
+
+VideoDecoderCore::~VideoDecoderCore() {
+    if (frame != NULL) {
+        av_frame_free(&frame);
+    }
+
+    if (swsContext != NULL) {
+        sws_freeContext(swsContext);
+    }
+    swsContext = NULL;
+}
+
+VideoDecoderCore *videoDecoderCreate(const VideoDecoderConfig *config) {
+    AVCodecContext *context = avcodec_alloc_context3(config->codec);
+    if (!context) {
+        CORE_LOGE("Failed to allocate avcodec context.");
+        return NULL;
+    }
+    VideoDecoderCore *core = new VideoDecoderCore();
+    core->context = context;
+    core->userData = config->userData;
+    context->opaque = core;
+    context->bits_per_coded_sample = 10;
+    context->profile = FF_PROFILE_HEVC_MAIN_10;
+
+    if (config->extraData != NULL) {
+        context->extradata_size = config->extraDataSize;
+        context->extradata =
+                (uint8_t *) av_malloc((size_t) (config->extraDataSize + AV_INPUT_BUFFER_PADDING_SIZE));
+        if (!context->extradata) {
+            CORE_LOGE("Failed to allocate extradata.");
+            videoDecoderRelease(core);
+            return NULL;
+        }
+        memcpy(context->extradata, config->extraData, (size_t) config->extraDataSize);
+        memset(context->extradata + config->extraDataSize, 0, AV_INPUT_BUFFER_PADDING_SIZE);
+    }
+    AVDictionary *opts = NULL;
+    av_dict_set_int(&opts, "threads", config->threadCount, 0);
+    if (config->threadType != 0) {
+        context->thread_type = config->threadType;
+    }
+    //av_dict_set_int(&opts, "lowres", true, 0);
+
+    if (config->getBuffer2 != NULL) {
+        context->get_buffer2 = config->getBuffer2;
+#if LIBAVCODEC_VERSION_MAJOR < 59
+        context->thread_safe_callbacks = 1;
+#endif
+    }
+
+    // 解码线程在avcodec_open2中创建，会继承创建线程的亲和性，所以这里临时绑定当前线程，创建完再恢复
+    cpu_set_t originalCpuSet;
+    bool pinned = false;
+    if (config->affinityMask != 0
+        && sched_getaffinity(0, sizeof(originalCpuSet), &originalCpuSet) == 0) {
+        pinned = setCurrentThreadAffinity(config->affinityMask);
+    }
+    int result = avcodec_open2(context, config->codec, &opts);
+    av_dict_free(&opts);
+    if (pinned) {
+        sched_setaffinity(0, sizeof(originalCpuSet), &originalCpuSet);
+    }
+    if (result < 0) {
+        logAvError("avcodec_open2", result);
+        videoDecoderRelease(core);
+        return NULL;
+    }
+
+    context->width = config->width;
+    context->height = config->height;
+
+    core->frame = av_frame_alloc();
+    if (core->frame == NULL) {
+        CORE_LOGE("Failed to allocate frame.");
+        videoDecoderRelease(core);
+        return NULL;
+    }
+    return core;
+}
+
+void videoDecoderRelease(VideoDecoderCore *core) {
+    if (!core) {
+        return;
+    }
+
+    AVCodecContext *context = core->context;
+    if (context != NULL) {
+        if (context->extradata != NULL) {
+            av_free(context->extradata);
+            context->extradata = NULL;
+        }
+        context->opaque = NULL;
+        avcodec_free_context(&context);
+    }
+    delete core;
+}
+
+void videoDecoderFlush(VideoDecoderCore *core) {
+    avcodec_flush_buffers(core->context);
+}
+
+void videoDecoderSetDiscard(VideoDecoderCore *core, bool skipNonReferenceFrames,
+                            int degradationLevel) {
+    if (core->skipNonReferenceFrames == skipNonReferenceFrames
+        && core->degradationLevel == degradationLevel) {
+        return;
+    }
+    core->skipNonReferenceFrames = skipNonReferenceFrames;
+    core->degradationLevel = degradationLevel;
+
+    // 依次对应DecodeDegradationController的LEVEL_*
+    static const AVDiscard skipFrame[] = {
+            AVDISCARD_DEFAULT, AVDISCARD_DEFAULT, AVDISCARD_NONREF, AVDISCARD_BIDIR};
+    static const AVDiscard skipLoopFilter[] = {
+            AVDISCARD_DEFAULT, AVDISCARD_NONREF, AVDISCARD_NONREF, AVDISCARD_BIDIR};
+    int level = FFMAX(0, FFMIN(degradationLevel, 3));
+    AVDiscard seekDiscard = skipNonReferenceFrames ? AVDISCARD_NONREF : AVDISCARD_DEFAULT;
+
+    // AVDiscard的值越大跳过的越多，取两者中较大的
+    // 帧线程模式下，这些选项在每次提交packet时同步到各个线程的上下文
+    AVCodecContext *context = core->context;
+    context->skip_frame = FFMAX(seekDiscard, skipFrame[level]);
+    context->skip_loop_filter = FFMAX(seekDiscard, skipLoopFilter[level]);
+    context->skip_idct = FFMAX(seekDiscard, skipFrame[level]);
+}
+
+// 解码相应packet
+static int decodePacket(VideoDecoderCore *core, AVPacket *packet) {
+    // Queue input data.
+    int result = NO_ERROR;
+    int ffError = avcodec_send_packet(core->context, packet);
+    if (ffError == AVERROR(EAGAIN)) {
+        result = DECODE_AGAIN;
+    } else if (ffError != 0 && ffError != AVERROR_INVALIDDATA) {
+        result = DECODE_ERROR;
+    }
+
+    core->lastErrorCode = ffError;
+    return result;
+}
+
+int videoDecoderSendPacket(VideoDecoderCore *core, uint8_t *data, int size, int64_t timeUs,
+                           bool isDecodeOnly, bool isKeyFrame, bool isEndOfStream) {
+    int result = NO_ERROR;
+
+    if (size > 0) {
+        AVPacket packet;
+        av_init_packet(&packet);
+        packet.data = data;
+        packet.size = size;
+
+        packet.pts = timeUs;
+        packet.dts = timeUs;
+        if (isDecodeOnly) {
+            packet.flags |= AV_PKT_FLAG_DISCARD;
+        }
+
+        if (isKeyFrame) {
+            packet.flags |= AV_PKT_FLAG_KEY;
+        }
+
+        result = decodePacket(core, &packet);
+    }
+
+    if (result == NO_ERROR && isEndOfStream) {
+        result = decodePacket(core, NULL);
+        if (result == DECODE_AGAIN) {
+            result = NO_ERROR;
+        }
+    }
+
+    return result;
+}
+
+int videoDecoderReceiveFrame(VideoDecoderCore *core) {
+    int result;
+    int error = avcodec_receive_frame(core->context, core->frame);
+    // 测试只有三帧的视频，send null packet后，解最后一帧出现AVERROR_INVALIDDATA错误
+    // 所以把AVERROR_INVALIDDATA当做EOF处理
+    // TODO 把AVERROR_INVALIDDATA当做EOF处理是否得当？
+    if (error == 0) {
+        result = NO_ERROR;
+    } else if (error == AVERROR(EAGAIN)) {
+        // packet还不够
+        result = DECODE_AGAIN;
+    } else if (error == AVERROR_EOF || error == AVERROR_INVALIDDATA) {
+        result = DECODE_EOF;
+    } else {
+        result = DECODE_ERROR;
+    }
+    core->lastErrorCode = error;
+    return result;
+}
+
+const VideoOutputLayout *videoDecoderGetOutputLayout(VideoDecoderCore *core, const AVFrame *frame) {
+    VideoOutputLayout *layout = &core->outputLayout;
+    if (frame->format == layout->sourceFormat && frame->width == layout->width
+        && frame->height == layout->height) {
+        return layout;
+    }
+    int outputFormat = getConvertOutputFormat(frame->format);
+    layout->sourceFormat = frame->format;
+    layout->format = outputFormat;
+    layout->width = frame->width;
+    layout->height = frame->height;
+    layout->bitDepth = getBytesPerSample(outputFormat);
+    layout->pixelLayout = getPixelLayout(outputFormat);
+    av_image_fill_linesizes(layout->lineSize, static_cast<AVPixelFormat>(outputFormat),
+                            frame->width);
+    layout->size = av_image_get_buffer_size(static_cast<AVPixelFormat>(outputFormat),
+                                            frame->width, frame->height, 1);
+    return layout;
+}
+
+int videoDecoderCopyFrame(VideoDecoderCore *core, const AVFrame *frame, uint8_t *buffer) {
+    const VideoOutputLayout *layout = videoDecoderGetOutputLayout(core, frame);
+    AVPixelFormat outputFormat = static_cast<AVPixelFormat>(layout->format);
+    if (outputFormat == frame->format) {
+        av_image_copy_to_buffer(buffer, layout->size, frame->data, frame->linesize,
+                                outputFormat, frame->width, frame->height, 1);
+        return NO_ERROR;
+    }
+
+    uint8_t *dstData[4];
+    av_image_fill_pointers(dstData, outputFormat, frame->height, buffer, layout->lineSize);
+    if (convertFrameWithLibyuv(frame, outputFormat, dstData, layout->lineSize)) {
+        return NO_ERROR;
+    }
+    if (!convertFrameWithSwscale(&core->swsContext, frame, outputFormat, dstData,
+                                 layout->lineSize)) {
+        return OTHER_ERROR;
+    }
+    return NO_ERROR;
+}
+
+int getPixelLayout(int format) {
+    switch (format) {
+        case AV_PIX_FMT_YUV420P:
+        case AV_PIX_FMT_YUVJ420P:
+        case AV_PIX_FMT_YUV420P10LE:
+            return PIXEL_LAYOUT_I420;
+        case AV_PIX_FMT_NV12:
+            return PIXEL_LAYOUT_NV12;
+        case AV_PIX_FMT_NV21:
+            return PIXEL_LAYOUT_NV21;
+        case AV_PIX_FMT_P010LE:
+            return PIXEL_LAYOUT_P010;
+        default:
+            return -1;
+    }
+}
+
+int getBytesPerSample(int format) {
+    const AVPixFmtDescriptor *descriptor = av_pix_fmt_desc_get(static_cast<AVPixelFormat>(format));
+    return descriptor != NULL && descriptor->comp[0].depth > 8 ? 2 : 1;
+}
+
+int getFrameColorSpace(const AVFrame *frame) {
+    switch (frame->colorspace) {
+        case AVCOL_SPC_BT709:
+            return COLOR_SPACE_BT709;
+        case AVCOL_SPC_BT470BG:
+        case AVCOL_SPC_SMPTE170M:
+        case AVCOL_SPC_FCC:
+        case AVCOL_SPC_SMPTE240M:
+            return COLOR_SPACE_BT601;
+        case AVCOL_SPC_BT2020_NCL:
+        case AVCOL_SPC_BT2020_CL:
+            return COLOR_SPACE_BT2020;
+        default:
+            return COLOR_VALUE_UNKNOWN;
+    }
+}
+
+int getFrameColorRange(const AVFrame *frame) {
+    // YUVJ格式是全范围的，但解码器不一定会设置color_range
+    if (frame->color_range == AVCOL_RANGE_JPEG || frame->format == AV_PIX_FMT_YUVJ420P
+        || frame->format == AV_PIX_FMT_YUVJ422P || frame->format == AV_PIX_FMT_YUVJ444P) {
+        return COLOR_RANGE_FULL;
+    }
+    if (frame->color_range == AVCOL_RANGE_MPEG) {
+        return COLOR_RANGE_LIMITED;
+    }
+    return COLOR_VALUE_UNKNOWN;
+}
+
+int getFrameColorTransfer(const AVFrame *frame) {
+    switch (frame->color_trc) {
+        case AVCOL_TRC_SMPTE2084:
+            return COLOR_TRANSFER_ST2084;
+        case AVCOL_TRC_ARIB_STD_B67:
+            return COLOR_TRANSFER_HLG;
+        case AVCOL_TRC_BT709:
+        case AVCOL_TRC_SMPTE170M:
+        case AVCOL_TRC_BT2020_10:
+        case AVCOL_TRC_BT2020_12:
+            return COLOR_TRANSFER_SDR;
+        default:
+            return COLOR_VALUE_UNKNOWN;
+    }
+}
+
+bool setCurrentThreadAffinity(int64_t affinityMask) {
+    cpu_set_t cpuSet;
+    toCpuSet(affinityMask, &cpuSet);
+    if (sched_setaffinity(0, sizeof(cpuSet), &cpuSet) != 0) {
+        CORE_LOGE("sched_setaffinity failed: %d", errno);
+        return false;
+    }
+    return true;
+}
+
+void toCpuSet(int64_t affinityMask, cpu_set_t *cpuSet) {
+    CPU_ZERO(cpuSet);
+    for (int cpu = 0; cpu < 64; cpu++) {
+        if (affinityMask & (1ULL << cpu)) {
+            CPU_SET(cpu, cpuSet);
+        }
+    }
+}
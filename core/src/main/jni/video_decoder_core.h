@@ -0,0 +1,134 @@
+//
+// 不依赖JNI的视频解码核心，JNI层和host上的测试程序走同样的解码路径
+//
+
+#ifndef MQPLAYER_VIDEO_DECODER_CORE_H
+#define MQPLAYER_VIDEO_DECODER_CORE_H
+
+#include <stdint.h>
+
+extern "C" {
+#include <libavcodec/avcodec.h>
+#include <libswscale/swscale.h>
+}
+
+// 和VideoDecoder.java中的定义对应
+#define UNSUPPORTED_ERROR -2
+#define OTHER_ERROR -1
+#define NO_ERROR 0
+#define DECODE_ERROR 1
+#define DECODE_AGAIN 3
+#define DECODE_EOF 4
+#define OUTPUT_BUFFER_ALLOCATE_FAILED 5
+
+// 和FrameBuffer.java中的PIXEL_LAYOUT_*对应
+#define PIXEL_LAYOUT_I420 0
+#define PIXEL_LAYOUT_NV12 1
+#define PIXEL_LAYOUT_NV21 2
+#define PIXEL_LAYOUT_P010 3
+
+// 和ExoPlayer中C.COLOR_SPACE_*、C.COLOR_RANGE_*、C.COLOR_TRANSFER_*对应，未知时为Format.NO_VALUE
+#define COLOR_VALUE_UNKNOWN -1
+#define COLOR_SPACE_BT709 1
+#define COLOR_SPACE_BT601 2
+#define COLOR_SPACE_BT2020 6
+#define COLOR_RANGE_FULL 1
+#define COLOR_RANGE_LIMITED 2
+#define COLOR_TRANSFER_SDR 3
+#define COLOR_TRANSFER_ST2084 6
+#define COLOR_TRANSFER_HLG 7
+
+// 拷贝输出时输出buffer的布局，只在解码帧的格式或尺寸变化时重新计算
+struct VideoOutputLayout {
+    // 布局对应的解码帧格式，和format不同时需要sws转换
+    int sourceFormat;
+    int format;
+    int width;
+    int height;
+    int bitDepth;
+    int pixelLayout;
+    int lineSize[4];
+    int size;
+};
+
+struct VideoDecoderConfig {
+    AVCodec *codec;
+    int width;
+    int height;
+    const uint8_t *extraData;
+    int extraDataSize;
+    // 0表示使用ffmpeg默认的FF_THREAD_FRAME | FF_THREAD_SLICE
+    int threadType;
+    int threadCount;
+    // 解码线程的亲和性掩码，第n位对应cpu n，0表示不绑定
+    int64_t affinityMask;
+    // 可选，解码器分配frame内存的回调
+    int (*getBuffer2)(AVCodecContext *context, AVFrame *frame, int flags);
+    // 平台层的数据，解码核心不会访问或释放
+    void *userData;
+};
+
+class VideoDecoderCore {
+public:
+    VideoDecoderCore();
+    ~VideoDecoderCore();
+
+    AVCodecContext *context;
+    // 接收解码后的frame
+    AVFrame *frame;
+    // libyuv没有对应实现的格式转换使用，格式或尺寸变化时重新创建
+    SwsContext *swsContext;
+    int lastErrorCode;
+    // 当前生效的跳帧设置，只在解码线程中访问
+    bool skipNonReferenceFrames;
+    int degradationLevel;
+    VideoOutputLayout outputLayout;
+    void *userData;
+};
+
+// 创建解码器，失败返回NULL。context->opaque指向返回的VideoDecoderCore
+VideoDecoderCore *videoDecoderCreate(const VideoDecoderConfig *config);
+
+// 释放解码器，不会释放userData
+void videoDecoderRelease(VideoDecoderCore *core);
+
+void videoDecoderFlush(VideoDecoderCore *core);
+
+// 根据seek和降级状态设置解码器可以跳过的工作
+// seek时decode only的packet跳过非参考帧，非参考帧不会被其他帧依赖，跳过不影响之后的输出
+// 降级时按级别依次跳过非参考帧的环路滤波、非参考帧、所有B帧
+void videoDecoderSetDiscard(VideoDecoderCore *core, bool skipNonReferenceFrames,
+                            int degradationLevel);
+
+// 送入一个packet，size为0时只处理isEndOfStream
+int videoDecoderSendPacket(VideoDecoderCore *core, uint8_t *data, int size, int64_t timeUs,
+                           bool isDecodeOnly, bool isKeyFrame, bool isEndOfStream);
+
+// 取出一帧到core->frame
+int videoDecoderReceiveFrame(VideoDecoderCore *core);
+
+// 返回拷贝frame需要的输出布局
+const VideoOutputLayout *videoDecoderGetOutputLayout(VideoDecoderCore *core, const AVFrame *frame);
+
+// 按输出布局把frame拷贝或者转换到buffer，buffer至少要有布局的size大小
+int videoDecoderCopyFrame(VideoDecoderCore *core, const AVFrame *frame, uint8_t *buffer);
+
+// 返回java层渲染format时使用的平面布局，不能直接渲染的格式返回-1
+int getPixelLayout(int format);
+
+// 返回format每个采样占用的字节数，高于8位的格式每个采样占两个字节
+int getBytesPerSample(int format);
+
+// 返回frame的色彩空间，码流中没有标记时返回COLOR_VALUE_UNKNOWN
+int getFrameColorSpace(const AVFrame *frame);
+
+// 返回frame的色彩范围，码流中没有标记时返回COLOR_VALUE_UNKNOWN
+int getFrameColorRange(const AVFrame *frame);
+
+// 返回frame的传递函数，码流中没有标记时返回COLOR_VALUE_UNKNOWN
+int getFrameColorTransfer(const AVFrame *frame);
+
+// 设置当前线程的亲和性
+bool setCurrentThreadAffinity(int64_t affinityMask);
+
+#endif //MQPLAYER_VIDEO_DECODER_CORE_H
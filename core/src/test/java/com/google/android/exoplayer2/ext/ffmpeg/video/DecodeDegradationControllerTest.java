@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.ffmpeg.video;
+
+import static com.google.android.exoplayer2.ext.ffmpeg.video.DecodeDegradationController.LEVEL_NONE;
+import static com.google.android.exoplayer2.ext.ffmpeg.video.DecodeDegradationController.LEVEL_SKIP_BIDIRECTIONAL;
+import static com.google.android.exoplayer2.ext.ffmpeg.video.DecodeDegradationController.LEVEL_SKIP_LOOP_FILTER;
+import static com.google.android.exoplayer2.ext.ffmpeg.video.DecodeDegradationController.LEVEL_SKIP_NON_REFERENCE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link DecodeDegradationController}.
+ */
+public final class DecodeDegradationControllerTest {
+
+  private static final long LATE_US = -50000;
+  private static final long ON_TIME_US = 30000;
+  // Frames between raises, and on time frames before a lower.
+  private static final int FRAMES_BEFORE_RAISE = 15;
+  private static final int FRAMES_BEFORE_LOWER = 120;
+
+  private final DecodeDegradationController controller = new DecodeDegradationController();
+
+  @Test
+  public void testLateFramesRaiseLevelOneStepAtATime() {
+    assertEquals(LEVEL_NONE, controller.getLevel());
+    assertLevelAfter(FRAMES_BEFORE_RAISE, LATE_US, 0, LEVEL_NONE, LEVEL_SKIP_LOOP_FILTER);
+    assertLevelAfter(FRAMES_BEFORE_RAISE, LATE_US, 0, LEVEL_SKIP_LOOP_FILTER,
+        LEVEL_SKIP_NON_REFERENCE);
+  }
+
+  @Test
+  public void testDefaultLevelStopsBeforeBidirectional() {
+    feed(2 * FRAMES_BEFORE_RAISE, LATE_US, 0);
+    assertEquals(LEVEL_SKIP_NON_REFERENCE, controller.getLevel());
+    for (int i = 0; i < 10 * FRAMES_BEFORE_RAISE; i++) {
+      assertFalse(controller.update(LATE_US, 5));
+    }
+    assertEquals(LEVEL_SKIP_NON_REFERENCE, controller.getLevel());
+  }
+
+  @Test
+  public void testBidirectionalOnlyWhenAllowed() {
+    controller.setMaxLevel(LEVEL_SKIP_BIDIRECTIONAL);
+    feed(2 * FRAMES_BEFORE_RAISE, LATE_US, 0);
+    assertLevelAfter(FRAMES_BEFORE_RAISE, LATE_US, 0, LEVEL_SKIP_NON_REFERENCE,
+        LEVEL_SKIP_BIDIRECTIONAL);
+  }
+
+  @Test
+  public void testLoweringMaxLevelLowersLevel() {
+    controller.setMaxLevel(LEVEL_SKIP_BIDIRECTIONAL);
+    feed(3 * FRAMES_BEFORE_RAISE, LATE_US, 0);
+    assertEquals(LEVEL_SKIP_BIDIRECTIONAL, controller.getLevel());
+
+    assertTrue(controller.setMaxLevel(LEVEL_SKIP_NON_REFERENCE));
+    assertEquals(LEVEL_SKIP_NON_REFERENCE, controller.getLevel());
+    assertFalse(controller.setMaxLevel(LEVEL_SKIP_NON_REFERENCE));
+  }
+
+  @Test
+  public void testConsecutiveDroppedFramesRaiseLevel() {
+    // Frames that would be on time, but are dropped two in a row.
+    assertLevelAfter(FRAMES_BEFORE_RAISE, ON_TIME_US, 2, LEVEL_NONE, LEVEL_SKIP_LOOP_FILTER);
+  }
+
+  @Test
+  public void testSingleDroppedFramesDoNotRaiseLevel() {
+    for (int i = 0; i < 10 * FRAMES_BEFORE_RAISE; i++) {
+      assertFalse(controller.update(ON_TIME_US, i % 2));
+    }
+    assertEquals(LEVEL_NONE, controller.getLevel());
+  }
+
+  @Test
+  public void testSingleLateFrameIsSmoothedOut() {
+    feed(FRAMES_BEFORE_RAISE, ON_TIME_US, 0);
+    assertFalse(controller.update(-100000, 0));
+    feed(FRAMES_BEFORE_RAISE, ON_TIME_US, 0);
+    assertEquals(LEVEL_NONE, controller.getLevel());
+  }
+
+  @Test
+  public void testLevelLowersAfterSustainedOnTimeFrames() {
+    controller.setMaxLevel(LEVEL_SKIP_BIDIRECTIONAL);
+    feed(2 * FRAMES_BEFORE_RAISE, LATE_US, 0);
+    assertEquals(LEVEL_SKIP_NON_REFERENCE, controller.getLevel());
+    // Starts the on time run from the first frame rather than from the late average.
+    controller.resetTrend();
+
+    assertLevelAfter(FRAMES_BEFORE_LOWER, ON_TIME_US, 0, LEVEL_SKIP_NON_REFERENCE,
+        LEVEL_SKIP_LOOP_FILTER);
+    assertLevelAfter(FRAMES_BEFORE_LOWER, ON_TIME_US, 0, LEVEL_SKIP_LOOP_FILTER, LEVEL_NONE);
+    feed(FRAMES_BEFORE_LOWER, ON_TIME_US, 0);
+    assertEquals(LEVEL_NONE, controller.getLevel());
+  }
+
+  @Test
+  public void testDroppedFrameRestartsRecovery() {
+    feed(FRAMES_BEFORE_RAISE, LATE_US, 0);
+    controller.resetTrend();
+    feed(FRAMES_BEFORE_LOWER - 1, ON_TIME_US, 0);
+    // A single dropped frame isn't enough to raise the level, but the on time run starts over.
+    assertFalse(controller.update(ON_TIME_US, 1));
+    assertLevelAfter(FRAMES_BEFORE_LOWER, ON_TIME_US, 0, LEVEL_SKIP_LOOP_FILTER, LEVEL_NONE);
+  }
+
+  @Test
+  public void testFramesBetweenThresholdsHoldLevel() {
+    feed(FRAMES_BEFORE_RAISE, LATE_US, 0);
+    controller.resetTrend();
+    // Slightly late but within the thresholds: neither falling behind nor keeping up.
+    feed(10 * FRAMES_BEFORE_LOWER, -10000, 0);
+    assertEquals(LEVEL_SKIP_LOOP_FILTER, controller.getLevel());
+  }
+
+  @Test
+  public void testResetTrendKeepsLevel() {
+    feed(FRAMES_BEFORE_RAISE, LATE_US, 0);
+    controller.resetTrend();
+    assertEquals(LEVEL_SKIP_LOOP_FILTER, controller.getLevel());
+    // The wait before the next raise starts over too.
+    assertLevelAfter(FRAMES_BEFORE_RAISE, LATE_US, 0, LEVEL_SKIP_LOOP_FILTER,
+        LEVEL_SKIP_NON_REFERENCE);
+  }
+
+  @Test
+  public void testResetReturnsToFullDecode() {
+    feed(2 * FRAMES_BEFORE_RAISE, LATE_US, 0);
+    controller.reset();
+    assertEquals(LEVEL_NONE, controller.getLevel());
+    assertLevelAfter(FRAMES_BEFORE_RAISE, LATE_US, 0, LEVEL_NONE, LEVEL_SKIP_LOOP_FILTER);
+  }
+
+  private void feed(int frameCount, long earlyUs, int consecutiveDroppedFrameCount) {
+    for (int i = 0; i < frameCount; i++) {
+      controller.update(earlyUs, consecutiveDroppedFrameCount);
+    }
+  }
+
+  /**
+   * Asserts that the level holds for {@code frameCount - 1} frames and changes on the last one.
+   */
+  private void assertLevelAfter(int frameCount, long earlyUs, int consecutiveDroppedFrameCount,
+      int levelBefore, int levelAfter) {
+    for (int i = 0; i < frameCount - 1; i++) {
+      assertFalse("Frame " + i, controller.update(earlyUs, consecutiveDroppedFrameCount));
+      assertEquals(levelBefore, controller.getLevel());
+    }
+    assertTrue(controller.update(earlyUs, consecutiveDroppedFrameCount));
+    assertEquals(levelAfter, controller.getLevel());
+  }
+
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.ffmpeg.video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.ext.Constant;
+import com.google.android.exoplayer2.ext.ffmpeg.VideoSoftDecoderException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for zero copy output of {@link FrameBuffer}, through a {@link BaseDecoder} that wraps
+ * its decoded planes the way the native decoder does.
+ */
+public final class FrameBufferZeroCopyTest {
+
+  private static final long TIMEOUT_MS = 5000;
+
+  private DirectBufferPool bufferPool;
+  private FakeZeroCopyDecoder decoder;
+
+  @Before
+  public void setUp() {
+    bufferPool = new DirectBufferPool();
+    decoder = new FakeZeroCopyDecoder(bufferPool);
+  }
+
+  @After
+  public void tearDown() {
+    decoder.release();
+  }
+
+  @Test
+  public void testOutputWrapsDecodedPlanesWithoutCopy() throws Exception {
+    queuePacket(0);
+    FrameBuffer outputBuffer = dequeueFrame();
+
+    assertNull(outputBuffer.data);
+    ByteBuffer[] decodedPlanes = decoder.getDecodedPlanes(outputBuffer.nativeFrame);
+    for (int i = 0; i < 3; i++) {
+      assertSame(decodedPlanes[i], outputBuffer.yuvPlanes[i]);
+    }
+    assertEquals(FakeZeroCopyDecoder.WIDTH, outputBuffer.yuvStrides[0]);
+    assertEquals(FakeZeroCopyDecoder.WIDTH / 2, outputBuffer.yuvStrides[1]);
+    // The packet is the only buffer taken from the pool.
+    assertEquals(1, bufferPool.getHitCount() + bufferPool.getMissCount());
+
+    outputBuffer.release();
+    assertEquals(0, outputBuffer.nativeFrame);
+    assertNull(outputBuffer.yuvPlanes[0]);
+    assertEquals(0, decoder.getLiveFrameCount());
+    assertEquals(0, decoder.getUnknownReleaseCount());
+  }
+
+  @Test
+  public void testFlushReleasesFramesDecodedBeforeIt() throws Exception {
+    queuePacket(0);
+    queuePacket(1);
+    queuePacket(2);
+    FrameBuffer heldBuffer = dequeueFrame();
+    long heldFrame = heldBuffer.nativeFrame;
+    waitForLiveFrameCount(3);
+
+    decoder.flush();
+    queuePacket(100);
+    FrameBuffer outputBuffer = dequeueFrame();
+
+    // Frames queued before the flush never surface, and were unreferenced when dropped.
+    assertEquals(100, outputBuffer.timeUs);
+    assertEquals(2, decoder.getLiveFrameCount());
+    assertTrue(decoder.isLive(heldFrame));
+    assertSame(decoder.getDecodedPlanes(heldFrame)[0], heldBuffer.yuvPlanes[0]);
+
+    heldBuffer.release();
+    outputBuffer.release();
+    assertEquals(0, decoder.getLiveFrameCount());
+    assertEquals(0, decoder.getUnknownReleaseCount());
+  }
+
+  @Test
+  public void testReleaseFreesQueuedFramesAndFramesReleasedLater() throws Exception {
+    queuePacket(0);
+    queuePacket(1);
+    queuePacket(2);
+    FrameBuffer heldBuffer = dequeueFrame();
+    long heldFrame = heldBuffer.nativeFrame;
+    waitForLiveFrameCount(3);
+
+    decoder.release();
+
+    // The renderer still holds one frame, which must stay valid until it releases it.
+    assertEquals(1, decoder.getLiveFrameCount());
+    assertTrue(decoder.isLive(heldFrame));
+
+    heldBuffer.release();
+    assertEquals(0, decoder.getLiveFrameCount());
+    assertEquals(0, decoder.getUnknownReleaseCount());
+    assertEquals(0, bufferPool.getOutstandingBytes());
+  }
+
+  @Test
+  public void testNoFrameLeaksAcrossRepeatedFlushes() throws Exception {
+    Random random = new Random(0);
+    List<FrameBuffer> heldBuffers = new ArrayList<>();
+    long timeUs = 0;
+    for (int i = 0; i < 200; i++) {
+      int packetCount = 1 + random.nextInt(FakeZeroCopyDecoder.BUFFER_COUNT - 1);
+      for (int j = 0; j < packetCount; j++) {
+        queuePacket(timeUs++);
+      }
+      if (heldBuffers.size() < FakeZeroCopyDecoder.BUFFER_COUNT - 2 && random.nextBoolean()) {
+        heldBuffers.add(dequeueFrame());
+      }
+      if (!heldBuffers.isEmpty() && random.nextInt(3) == 0) {
+        heldBuffers.remove(random.nextInt(heldBuffers.size())).release();
+      }
+      // Flush while frames are being decoded, queued and held.
+      decoder.flush();
+    }
+    decoder.release();
+    assertEquals(heldBuffers.size(), decoder.getLiveFrameCount());
+
+    for (FrameBuffer heldBuffer : heldBuffers) {
+      heldBuffer.release();
+    }
+    assertEquals(0, decoder.getLiveFrameCount());
+    assertEquals(0, decoder.getUnknownReleaseCount());
+    assertEquals(0, bufferPool.getOutstandingBytes());
+  }
+
+  private void queuePacket(long timeUs) throws Exception {
+    long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+    PacketBuffer inputBuffer;
+    while ((inputBuffer = decoder.dequeueInputBuffer()) == null) {
+      assertTrue("No input buffer available", System.currentTimeMillis() < deadlineMs);
+      Thread.sleep(1);
+    }
+    inputBuffer.ensureSpaceForWrite(FakeZeroCopyDecoder.PACKET_SIZE);
+    inputBuffer.data.put(new byte[FakeZeroCopyDecoder.PACKET_SIZE]);
+    inputBuffer.data.flip();
+    inputBuffer.timeUs = timeUs;
+    decoder.queueInputBuffer(inputBuffer);
+  }
+
+  private FrameBuffer dequeueFrame() throws Exception {
+    long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+    FrameBuffer outputBuffer;
+    while ((outputBuffer = decoder.dequeueOutputBuffer()) == null) {
+      assertTrue("No frame decoded", System.currentTimeMillis() < deadlineMs);
+      Thread.sleep(1);
+    }
+    assertNotNull(outputBuffer.yuvPlanes);
+    return outputBuffer;
+  }
+
+  private void waitForLiveFrameCount(int count) throws InterruptedException {
+    long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+    while (decoder.getLiveFrameCount() != count) {
+      assertTrue("Live frames: " + decoder.getLiveFrameCount(),
+          System.currentTimeMillis() < deadlineMs);
+      Thread.sleep(1);
+    }
+  }
+
+  /**
+   * Decodes each packet into newly allocated planes, standing in for the codec's frame pool, and
+   * hands them to the output buffer without copying. Tracks the frames until they are released.
+   */
+  private static final class FakeZeroCopyDecoder extends BaseDecoder {
+
+    static final int BUFFER_COUNT = 4;
+    static final int PACKET_SIZE = 16;
+    static final int WIDTH = 64;
+    static final int HEIGHT = 36;
+
+    // Frames referenced by an output buffer, and their planes.
+    private final Map<Long, ByteBuffer[]> liveFrames;
+    private final AtomicLong lastFrame;
+    private final AtomicInteger unknownReleaseCount;
+    // Accessed only by the decode thread.
+    private final ArrayDeque<Long> pendingTimesUs;
+
+    FakeZeroCopyDecoder(DirectBufferPool bufferPool) {
+      super(new PacketBuffer[BUFFER_COUNT], new FrameBuffer[BUFFER_COUNT], bufferPool);
+      liveFrames = new ConcurrentHashMap<>();
+      lastFrame = new AtomicLong();
+      unknownReleaseCount = new AtomicInteger();
+      pendingTimesUs = new ArrayDeque<>();
+    }
+
+    int getLiveFrameCount() {
+      return liveFrames.size();
+    }
+
+    boolean isLive(long nativeFrame) {
+      return liveFrames.containsKey(nativeFrame);
+    }
+
+    ByteBuffer[] getDecodedPlanes(long nativeFrame) {
+      return liveFrames.get(nativeFrame);
+    }
+
+    /** Returns the number of releases of frames that were never output or already released. */
+    int getUnknownReleaseCount() {
+      return unknownReleaseCount.get();
+    }
+
+    @Override
+    public String getName() {
+      return "fake-zero-copy";
+    }
+
+    @Override
+    protected PacketBuffer createInputBuffer() {
+      return new PacketBuffer(bufferPool);
+    }
+
+    @Override
+    protected FrameBuffer createOutputBuffer() {
+      return new FrameBuffer(this, bufferPool);
+    }
+
+    @Override
+    protected void resetDecoder() {
+      pendingTimesUs.clear();
+    }
+
+    @Override
+    protected VideoSoftDecoderException sendPacket(PacketBuffer inputBuffer) {
+      if (!inputBuffer.isEndOfStream()) {
+        pendingTimesUs.add(inputBuffer.timeUs);
+      }
+      return null;
+    }
+
+    @Override
+    protected VideoSoftDecoderException getFrame(FrameBuffer outputBuffer) {
+      Long timeUs = pendingTimesUs.poll();
+      if (timeUs == null) {
+        outputBuffer.addFlag(Constant.BUFFER_FLAG_DECODE_AGAIN);
+        return null;
+      }
+      int uvHeight = (HEIGHT + 1) / 2;
+      ByteBuffer[] planes = new ByteBuffer[] {
+          ByteBuffer.allocateDirect(WIDTH * HEIGHT),
+          ByteBuffer.allocateDirect(WIDTH / 2 * uvHeight),
+          ByteBuffer.allocateDirect(WIDTH / 2 * uvHeight)};
+      long nativeFrame = lastFrame.incrementAndGet();
+      liveFrames.put(nativeFrame, planes);
+      if (!outputBuffer.initForZeroCopyYuvFrame(nativeFrame, timeUs, 0, WIDTH, HEIGHT, planes[0],
+          planes[1], planes[2], WIDTH, WIDTH / 2, 1, FrameBuffer.PIXEL_LAYOUT_I420,
+          Format.NO_VALUE, Format.NO_VALUE, Format.NO_VALUE)) {
+        liveFrames.remove(nativeFrame);
+        return new VideoSoftDecoderException("failed to initialize buffer");
+      }
+      return null;
+    }
+
+    @Override
+    protected void releaseNativeFrame(long nativeFrame) {
+      if (liveFrames.remove(nativeFrame) == null) {
+        unknownReleaseCount.incrementAndGet();
+      }
+    }
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.ffmpeg.video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link FrameTracer}.
+ */
+public final class FrameTracerTest {
+
+  @Test
+  public void testCapacityIsRoundedUpToPowerOfTwo() throws IOException {
+    assertEquals(2, getDumpedFrameCount(new FrameTracer(2, 1, null, null), 10));
+    assertEquals(4, getDumpedFrameCount(new FrameTracer(3, 1, null, null), 10));
+    assertEquals(4, getDumpedFrameCount(new FrameTracer(4, 1, null, null), 10));
+    assertEquals(8, getDumpedFrameCount(new FrameTracer(5, 1, null, null), 10));
+    assertEquals(2, getDumpedFrameCount(new FrameTracer(1, 1, null, null), 10));
+  }
+
+  @Test
+  public void testReportsRunOnTheExecutor() {
+    QueueingExecutor executor = new QueueingExecutor();
+    CountingListener listener = new CountingListener();
+    FrameTracer tracer = new FrameTracer(16, 2, executor, listener);
+
+    traceFrame(tracer, 0);
+    assertEquals(0, executor.tasks.size());
+    traceFrame(tracer, 1);
+    // The report is due, but the statistics are not computed on the rendering thread.
+    assertEquals(1, executor.tasks.size());
+    assertEquals(0, listener.reportCount);
+
+    executor.runAll();
+    assertEquals(1, listener.reportCount);
+    assertEquals(2, listener.lastFrameCount);
+  }
+
+  @Test
+  public void testReportDueWhilePendingIsSkipped() {
+    QueueingExecutor executor = new QueueingExecutor();
+    CountingListener listener = new CountingListener();
+    FrameTracer tracer = new FrameTracer(16, 1, executor, listener);
+
+    for (int i = 0; i < 5; i++) {
+      traceFrame(tracer, i);
+    }
+    assertEquals(1, executor.tasks.size());
+    executor.runAll();
+    assertEquals(1, listener.reportCount);
+    assertEquals(5, listener.lastFrameCount);
+
+    traceFrame(tracer, 5);
+    assertEquals(1, executor.tasks.size());
+    executor.runAll();
+    assertEquals(2, listener.reportCount);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testListenerWithoutExecutorIsRejected() {
+    new FrameTracer(16, 1, null, new CountingListener());
+  }
+
+  private static void traceFrame(FrameTracer tracer, long timeUs) {
+    tracer.markQueued(timeUs);
+    tracer.mark(FrameTracer.STAGE_SENT, timeUs);
+    tracer.mark(FrameTracer.STAGE_DECODED, timeUs);
+    tracer.markRender(timeUs);
+  }
+
+  private static int getDumpedFrameCount(FrameTracer tracer, int frameCount) throws IOException {
+    for (int i = 0; i < frameCount; i++) {
+      traceFrame(tracer, i);
+    }
+    File file = File.createTempFile("frame_tracer", ".csv");
+    try {
+      tracer.dump(file);
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try {
+        int lineCount = 0;
+        while (reader.readLine() != null) {
+          lineCount++;
+        }
+        assertTrue(lineCount > 0);
+        // The first line is the header.
+        return lineCount - 1;
+      } finally {
+        reader.close();
+      }
+    } finally {
+      file.delete();
+    }
+  }
+
+  private static final class QueueingExecutor implements Executor {
+
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+    @Override
+    public void execute(Runnable task) {
+      tasks.add(task);
+    }
+
+    private void runAll() {
+      while (!tasks.isEmpty()) {
+        tasks.poll().run();
+      }
+    }
+
+  }
+
+  private static final class CountingListener implements FrameTracer.Listener {
+
+    private int reportCount;
+    private int lastFrameCount;
+
+    @Override
+    public void onFrameStats(FrameTracer.Stats stats) {
+      reportCount++;
+      lastFrameCount = stats.frameCount;
+    }
+
+  }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.ffmpeg.video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.exoplayer2.C;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link HdrToneMapping}.
+ */
+public final class HdrToneMappingTest {
+
+  private static final int MAX_ENTRY = 65535;
+
+  @Test
+  public void testIsHdr() {
+    assertTrue(HdrToneMapping.isHdr(C.COLOR_TRANSFER_ST2084));
+    assertTrue(HdrToneMapping.isHdr(C.COLOR_TRANSFER_HLG));
+    assertFalse(HdrToneMapping.isHdr(C.COLOR_TRANSFER_SDR));
+  }
+
+  @Test
+  public void testPqLutIsMonotonicWithFixedEndpoints() {
+    for (int peakLuminance : new int[] {400, 1000, 4000, 10000}) {
+      int[] lut = fillLut(C.COLOR_TRANSFER_ST2084, peakLuminance);
+      assertMonotonic(lut);
+      assertEquals(0, lut[0]);
+      // The peak maps to SDR white.
+      assertEquals(MAX_ENTRY, lut[HdrToneMapping.LUT_SIZE - 1]);
+    }
+  }
+
+  @Test
+  public void testHlgLutIsMonotonicWithFixedEndpoints() {
+    int[] lut = fillLut(C.COLOR_TRANSFER_HLG,
+        HdrToneMapping.getPeakLuminance(C.COLOR_TRANSFER_HLG, null));
+    assertMonotonic(lut);
+    assertEquals(0, lut[0]);
+    assertEquals(MAX_ENTRY, lut[HdrToneMapping.LUT_SIZE - 1]);
+  }
+
+  @Test
+  public void testBrighterPeakCompressesMore() {
+    int[] lut1000 = fillLut(C.COLOR_TRANSFER_ST2084, 1000);
+    int[] lut4000 = fillLut(C.COLOR_TRANSFER_ST2084, 4000);
+    for (int i = 0; i < HdrToneMapping.LUT_SIZE; i++) {
+      assertTrue("Entry " + i, lut4000[i] <= lut1000[i]);
+    }
+  }
+
+  @Test
+  public void testFillLutWritesFromPosition() {
+    int offset = 4;
+    ByteBuffer lut =
+        ByteBuffer.allocate(offset + HdrToneMapping.LUT_SIZE * HdrToneMapping.BYTES_PER_ENTRY);
+    lut.position(offset);
+    HdrToneMapping.fillLut(C.COLOR_TRANSFER_ST2084, 1000, lut);
+    assertEquals(lut.capacity(), lut.position());
+    for (int i = 0; i < offset; i++) {
+      assertEquals(0, lut.get(i));
+    }
+  }
+
+  @Test
+  public void testGetPeakLuminance() {
+    assertEquals(1000, HdrToneMapping.getPeakLuminance(C.COLOR_TRANSFER_ST2084, null));
+    assertEquals(1000, HdrToneMapping.getPeakLuminance(C.COLOR_TRANSFER_ST2084, new byte[4]));
+    byte[] hdrStaticInfo = new byte[25];
+    // Max mastering luminance of 4000 at offset 17, no max content light level.
+    hdrStaticInfo[17] = (byte) 0xA0;
+    hdrStaticInfo[18] = (byte) 0x0F;
+    assertEquals(4000, HdrToneMapping.getPeakLuminance(C.COLOR_TRANSFER_ST2084, hdrStaticInfo));
+    // A max content light level of 600 at offset 21 takes precedence.
+    hdrStaticInfo[21] = (byte) 0x58;
+    hdrStaticInfo[22] = (byte) 0x02;
+    assertEquals(600, HdrToneMapping.getPeakLuminance(C.COLOR_TRANSFER_ST2084, hdrStaticInfo));
+    // HLG ignores the metadata.
+    assertEquals(1000, HdrToneMapping.getPeakLuminance(C.COLOR_TRANSFER_HLG, hdrStaticInfo));
+  }
+
+  private static int[] fillLut(@C.ColorTransfer int colorTransfer, int peakLuminance) {
+    ByteBuffer buffer =
+        ByteBuffer.allocate(HdrToneMapping.LUT_SIZE * HdrToneMapping.BYTES_PER_ENTRY);
+    HdrToneMapping.fillLut(colorTransfer, peakLuminance, buffer);
+    int[] lut = new int[HdrToneMapping.LUT_SIZE];
+    for (int i = 0; i < lut.length; i++) {
+      lut[i] = (buffer.get(i * 2) & 0xFF) | ((buffer.get(i * 2 + 1) & 0xFF) << 8);
+    }
+    return lut;
+  }
+
+  private static void assertMonotonic(int[] lut) {
+    for (int i = 1; i < lut.length; i++) {
+      assertTrue("Entry " + i + " decreases", lut[i] >= lut[i - 1]);
+    }
+  }
+
+}
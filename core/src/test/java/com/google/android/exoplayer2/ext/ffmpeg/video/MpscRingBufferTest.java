@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.ffmpeg.video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link MpscRingBuffer}.
+ */
+public final class MpscRingBufferTest {
+
+  @Test
+  public void testOfferFailsWhenFull() {
+    MpscRingBuffer<Integer> ringBuffer = new MpscRingBuffer<>(4);
+    for (int i = 0; i < 4; i++) {
+      assertTrue(ringBuffer.offer(i));
+    }
+    assertFalse(ringBuffer.offer(4));
+    assertEquals(Integer.valueOf(0), ringBuffer.poll());
+    assertTrue(ringBuffer.offer(4));
+  }
+
+  @Test
+  public void testPollEmptyReturnsNull() {
+    MpscRingBuffer<Integer> ringBuffer = new MpscRingBuffer<>(4);
+    assertTrue(ringBuffer.isEmpty());
+    assertNull(ringBuffer.poll());
+    ringBuffer.offer(1);
+    assertFalse(ringBuffer.isEmpty());
+    ringBuffer.poll();
+    assertTrue(ringBuffer.isEmpty());
+    assertNull(ringBuffer.poll());
+  }
+
+  @Test
+  public void testWrapAroundKeepsOrder() {
+    MpscRingBuffer<Integer> ringBuffer = new MpscRingBuffer<>(4);
+    int next = 0;
+    int expected = 0;
+    for (int round = 0; round < 10; round++) {
+      for (int i = 0; i < 3; i++) {
+        assertTrue(ringBuffer.offer(next++));
+      }
+      for (int i = 0; i < 3; i++) {
+        assertEquals(Integer.valueOf(expected++), ringBuffer.poll());
+      }
+      assertTrue(ringBuffer.isEmpty());
+    }
+  }
+
+  @Test
+  public void testConcurrentProducersKeepPerProducerOrder() throws InterruptedException {
+    final int producerCount = 4;
+    final int countPerProducer = 50000;
+    final MpscRingBuffer<long[]> ringBuffer = new MpscRingBuffer<>(8);
+    final CountDownLatch startLatch = new CountDownLatch(1);
+    Thread[] producers = new Thread[producerCount];
+    for (int p = 0; p < producerCount; p++) {
+      final int producerIndex = p;
+      producers[p] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            startLatch.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < countPerProducer; i++) {
+            long[] element = new long[] {producerIndex, i};
+            while (!ringBuffer.offer(element)) {
+              Thread.yield();
+            }
+          }
+        }
+      };
+      producers[p].start();
+    }
+    startLatch.countDown();
+
+    long[] nextSequence = new long[producerCount];
+    for (int i = 0; i < producerCount * countPerProducer; i++) {
+      long[] element;
+      while ((element = ringBuffer.poll()) == null) {
+        Thread.yield();
+      }
+      int producerIndex = (int) element[0];
+      assertEquals(nextSequence[producerIndex], element[1]);
+      nextSequence[producerIndex]++;
+    }
+    for (Thread producer : producers) {
+      producer.join();
+    }
+    for (int p = 0; p < producerCount; p++) {
+      assertEquals(countPerProducer, nextSequence[p]);
+    }
+    assertTrue(ringBuffer.isEmpty());
+  }
+
+}
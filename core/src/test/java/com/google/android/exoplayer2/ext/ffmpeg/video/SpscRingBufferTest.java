@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.ffmpeg.video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Unit test for {@link SpscRingBuffer}.
+ */
+public final class SpscRingBufferTest {
+
+  @Test
+  public void testCapacityIsRoundedUpToPowerOfTwo() {
+    SpscRingBuffer<Integer> ringBuffer = new SpscRingBuffer<>(3);
+    for (int i = 0; i < 4; i++) {
+      assertTrue(ringBuffer.offer(i));
+    }
+    assertFalse(ringBuffer.offer(4));
+    assertEquals(4, ringBuffer.size());
+  }
+
+  @Test
+  public void testPollEmptyReturnsNull() {
+    SpscRingBuffer<Integer> ringBuffer = new SpscRingBuffer<>(4);
+    assertTrue(ringBuffer.isEmpty());
+    assertNull(ringBuffer.poll());
+    ringBuffer.offer(1);
+    ringBuffer.poll();
+    assertTrue(ringBuffer.isEmpty());
+    assertNull(ringBuffer.poll());
+  }
+
+  @Test
+  public void testOfferSucceedsAgainAfterPoll() {
+    SpscRingBuffer<Integer> ringBuffer = new SpscRingBuffer<>(2);
+    ringBuffer.offer(0);
+    ringBuffer.offer(1);
+    assertFalse(ringBuffer.offer(2));
+    assertEquals(Integer.valueOf(0), ringBuffer.poll());
+    assertTrue(ringBuffer.offer(2));
+    assertEquals(Integer.valueOf(1), ringBuffer.poll());
+    assertEquals(Integer.valueOf(2), ringBuffer.poll());
+  }
+
+  @Test
+  public void testWrapAroundKeepsOrder() {
+    SpscRingBuffer<Integer> ringBuffer = new SpscRingBuffer<>(4);
+    int next = 0;
+    int expected = 0;
+    // Three elements per round never line up with the four slots, so every slot gets reused at
+    // every offset.
+    for (int round = 0; round < 10; round++) {
+      for (int i = 0; i < 3; i++) {
+        assertTrue(ringBuffer.offer(next++));
+      }
+      assertEquals(3, ringBuffer.size());
+      for (int i = 0; i < 3; i++) {
+        assertEquals(Integer.valueOf(expected++), ringBuffer.poll());
+      }
+      assertTrue(ringBuffer.isEmpty());
+    }
+  }
+
+  @Test
+  public void testConcurrentProducerAndConsumerKeepOrder() throws InterruptedException {
+    final int count = 100000;
+    final SpscRingBuffer<Integer> ringBuffer = new SpscRingBuffer<>(4);
+    Thread producer = new Thread() {
+      @Override
+      public void run() {
+        for (int i = 0; i < count; i++) {
+          while (!ringBuffer.offer(i)) {
+            Thread.yield();
+          }
+        }
+      }
+    };
+    producer.start();
+    for (int i = 0; i < count; i++) {
+      Integer element;
+      while ((element = ringBuffer.poll()) == null) {
+        Thread.yield();
+      }
+      assertEquals(i, (int) element);
+    }
+    producer.join();
+    assertTrue(ringBuffer.isEmpty());
+  }
+
+}
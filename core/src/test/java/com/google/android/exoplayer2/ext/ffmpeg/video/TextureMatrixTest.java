@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.ffmpeg.video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Unit test for {@link TextureMatrix}.
+ */
+public final class TextureMatrixTest {
+
+  private static final float EPSILON = 1e-5f;
+
+  @Test
+  public void testFitXyWithoutPaddingIsIdentity() {
+    TextureMatrix textureMatrix = new TextureMatrix();
+    textureMatrix.update(1280, 720, 1280, 1, 0, 640, 640, FrameScaleType.FIT_XY);
+    assertCorner(textureMatrix, 0, 0, 0, 0);
+    assertCorner(textureMatrix, 1, 1, 1, 1);
+  }
+
+  @Test
+  public void testStridePaddingIsCropped() {
+    TextureMatrix textureMatrix = new TextureMatrix();
+    // 10 bit samples take two bytes, so 1000 pixels fill 2000 of the 2048 byte stride.
+    textureMatrix.update(1000, 500, 2048, 2, 0, 1000, 500, FrameScaleType.FIT_XY);
+    assertCorner(textureMatrix, 1, 1, 2000f / 2048, 1);
+  }
+
+  @Test
+  public void testFitCenterLetterboxes() {
+    TextureMatrix textureMatrix = new TextureMatrix();
+    textureMatrix.update(1920, 1080, 1920, 1, 0, 1000, 1000, FrameScaleType.FIT_CENTER);
+    // The frame is 562.5 pixels high on the surface, so the texture spans the middle of it.
+    float margin = (1000 - 562.5f) / 2 / 562.5f;
+    assertCorner(textureMatrix, 0, 0, 0, -margin);
+    assertCorner(textureMatrix, 1, 1, 1, 1 + margin);
+  }
+
+  @Test
+  public void testFitCenterPillarboxesRotatedFrame() {
+    TextureMatrix textureMatrix = new TextureMatrix();
+    // Rotated, the frame is portrait and is 562.5 pixels wide on the surface.
+    textureMatrix.update(1920, 1080, 1920, 1, 90, 1000, 1000, FrameScaleType.FIT_CENTER);
+    float margin = (1000 - 562.5f) / 2 / 562.5f;
+    // The top left corner of the surface shows the bottom left of the texture.
+    assertCorner(textureMatrix, 0, 0, 0, 1 + margin);
+    assertCorner(textureMatrix, 1, 1, 1, -margin);
+  }
+
+  @Test
+  public void testRotations() {
+    TextureMatrix textureMatrix = new TextureMatrix();
+    textureMatrix.update(100, 100, 100, 1, 90, 100, 100, FrameScaleType.FIT_XY);
+    assertCorner(textureMatrix, 0, 0, 0, 1);
+    assertCorner(textureMatrix, 1, 0, 0, 0);
+    textureMatrix.update(100, 100, 100, 1, 180, 100, 100, FrameScaleType.FIT_XY);
+    assertCorner(textureMatrix, 0, 0, 1, 1);
+    assertCorner(textureMatrix, 1, 0, 0, 1);
+    textureMatrix.update(100, 100, 100, 1, 270, 100, 100, FrameScaleType.FIT_XY);
+    assertCorner(textureMatrix, 0, 0, 1, 0);
+    assertCorner(textureMatrix, 1, 0, 1, 1);
+  }
+
+  @Test
+  public void testRecomputesOnlyWhenInputsChange() {
+    TextureMatrix textureMatrix = new TextureMatrix();
+    assertTrue(textureMatrix.update(1280, 720, 1280, 1, 0, 640, 360, FrameScaleType.FIT_CENTER));
+    int generation = textureMatrix.getGeneration();
+    assertFalse(textureMatrix.update(1280, 720, 1280, 1, 0, 640, 360, FrameScaleType.FIT_CENTER));
+    assertEquals(generation, textureMatrix.getGeneration());
+
+    assertTrue(textureMatrix.update(1280, 720, 1280, 1, 0, 640, 480, FrameScaleType.FIT_CENTER));
+    assertTrue(textureMatrix.getGeneration() != generation);
+    generation = textureMatrix.getGeneration();
+
+    textureMatrix.invalidate();
+    assertTrue(textureMatrix.update(1280, 720, 1280, 1, 0, 640, 480, FrameScaleType.FIT_CENTER));
+    assertTrue(textureMatrix.getGeneration() != generation);
+  }
+
+  /**
+   * Asserts that the unit quad coordinate (x, y) maps to the texture coordinate (s, t).
+   */
+  private static void assertCorner(TextureMatrix textureMatrix, float x, float y, float s,
+      float t) {
+    float[] m = textureMatrix.getMatrix();
+    assertEquals(s, m[0] * x + m[3] * y + m[6], EPSILON);
+    assertEquals(t, m[1] * x + m[4] * y + m[7], EPSILON);
+  }
+
+}
@@ -0,0 +1,749 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.ffmpeg.video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.exoplayer2.C;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+/**
+ * Checks the HDR programs of {@link FrameRenderer} against an independent reference.
+ * <p>
+ * The fragment shaders are the strings {@link FrameRenderer} compiles, run for a single fragment
+ * by {@link FragmentShader}, an interpreter of the GLSL they use. Its inputs are set up the way the
+ * renderer sets up GL: 16 bit samples in luminance-alpha or RGBA texels with the low byte first,
+ * the {@link ColorConversion} uniforms, and the {@link HdrToneMapping} table sampled with linear
+ * filtering. {@link #reference} computes the same pixel in double precision straight from SMPTE
+ * ST 2084, ARIB STD-B67, ITU-R BT.2390 and BT.2087, without any table.
+ * <p>
+ * The interpreter evaluates in single precision, so this doesn't cover what a GPU's mediump
+ * arithmetic or texture filtering does to the result. That needs a device.
+ */
+public final class ToneMappingShaderTest {
+
+  // Tolerance against the reference, in 8 bit output steps.
+  private static final double TOLERANCE = 1.5 / 255;
+
+  // 10 bit limited range code values: black, and the neutral chroma.
+  private static final int BLACK = 64;
+  private static final int NEUTRAL = 512;
+
+  // Published PQ signals of 100, 203 and 1000 cd/m2, and the HLG signal of reference white.
+  private static final double PQ_100_NITS = 0.5081;
+  private static final double PQ_203_NITS = 0.5807;
+  private static final double PQ_1000_NITS = 0.7518;
+  private static final double HLG_REFERENCE_WHITE = 0.75;
+
+  // The I010 and the P010 program.
+  private static final boolean[] SEMI_PLANAR = {false, true};
+
+  @Test
+  public void testReferenceMatchesPublishedPqValues() {
+    assertEquals(100, Reference.pqEotf(PQ_100_NITS), 0.5);
+    assertEquals(203, Reference.pqEotf(PQ_203_NITS), 0.5);
+    assertEquals(1000, Reference.pqEotf(PQ_1000_NITS), 1);
+    // BT.2408 places HLG reference white at 75% on a 1000 cd/m2 display.
+    assertEquals(203, Reference.hlgEotf(HLG_REFERENCE_WHITE), 1);
+  }
+
+  @Test
+  public void testBlackStaysBlack() {
+    for (boolean semiPlanar : SEMI_PLANAR) {
+      for (int colorTransfer : new int[] {C.COLOR_TRANSFER_ST2084, C.COLOR_TRANSFER_HLG}) {
+        HdrProgram program = new HdrProgram(semiPlanar, colorTransfer, 1000);
+        assertPixel(new double[] {0, 0, 0}, program.render(BLACK, NEUTRAL, NEUTRAL));
+      }
+    }
+  }
+
+  @Test
+  public void testPqGreysMatchReference() {
+    for (boolean semiPlanar : SEMI_PLANAR) {
+      for (int peakLuminance : new int[] {400, 1000, 4000}) {
+        HdrProgram program = new HdrProgram(semiPlanar, C.COLOR_TRANSFER_ST2084, peakLuminance);
+        for (double signal : new double[] {0.1, 0.3, PQ_100_NITS, PQ_203_NITS, PQ_1000_NITS, 0.9}) {
+          int y = toLimitedCode(signal);
+          double[] rgb = program.render(y, NEUTRAL, NEUTRAL);
+          assertNeutral(rgb);
+          assertPixel(
+              reference(C.COLOR_TRANSFER_ST2084, peakLuminance, y, NEUTRAL, NEUTRAL), rgb);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testPqPeakRendersAsWhite() {
+    for (boolean semiPlanar : SEMI_PLANAR) {
+      HdrProgram program = new HdrProgram(semiPlanar, C.COLOR_TRANSFER_ST2084, 1000);
+      assertPixel(new double[] {1, 1, 1},
+          program.render(toLimitedCode(PQ_1000_NITS), NEUTRAL, NEUTRAL));
+    }
+  }
+
+  @Test
+  public void testHlgGreysMatchReference() {
+    for (boolean semiPlanar : SEMI_PLANAR) {
+      HdrProgram program = new HdrProgram(semiPlanar, C.COLOR_TRANSFER_HLG, 1000);
+      for (double signal : new double[] {0.1, 0.25, 0.5, HLG_REFERENCE_WHITE, 0.9, 1}) {
+        int y = toLimitedCode(signal);
+        double[] rgb = program.render(y, NEUTRAL, NEUTRAL);
+        assertNeutral(rgb);
+        assertPixel(reference(C.COLOR_TRANSFER_HLG, 1000, y, NEUTRAL, NEUTRAL), rgb);
+      }
+    }
+  }
+
+  @Test
+  public void testReferenceWhiteMatchesAcrossTransfers() {
+    // 203 cd/m2 is the same light whether it arrives as PQ or as HLG on a 1000 cd/m2 display.
+    for (boolean semiPlanar : SEMI_PLANAR) {
+      double[] pq = new HdrProgram(semiPlanar, C.COLOR_TRANSFER_ST2084, 1000)
+          .render(toLimitedCode(PQ_203_NITS), NEUTRAL, NEUTRAL);
+      double[] hlg = new HdrProgram(semiPlanar, C.COLOR_TRANSFER_HLG, 1000)
+          .render(toLimitedCode(HLG_REFERENCE_WHITE), NEUTRAL, NEUTRAL);
+      assertPixel(pq, hlg);
+    }
+  }
+
+  @Test
+  public void testSaturatedColorsMatchReference() {
+    // Wide gamut and out of range code values, which exercise both clamps.
+    int[][] yuvs = {
+        {BLACK + 600, 200, 200}, // BT.2020 green, outside BT.709.
+        {BLACK + 300, 400, 900}, // Red.
+        {BLACK + 150, 900, 450}, // Blue.
+        {940, 960, 960}, // Beyond limited range.
+        {BLACK + 400, 64, 960},
+    };
+    for (boolean semiPlanar : SEMI_PLANAR) {
+      for (int colorTransfer : new int[] {C.COLOR_TRANSFER_ST2084, C.COLOR_TRANSFER_HLG}) {
+        HdrProgram program = new HdrProgram(semiPlanar, colorTransfer, 1000);
+        for (int[] yuv : yuvs) {
+          double[] rgb = program.render(yuv[0], yuv[1], yuv[2]);
+          for (double value : rgb) {
+            assertTrue(value >= 0 && value <= 1);
+          }
+          assertPixel(reference(colorTransfer, 1000, yuv[0], yuv[1], yuv[2]), rgb);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testOutOfGamutGreenLosesRedAndBlue() {
+    for (boolean semiPlanar : SEMI_PLANAR) {
+      HdrProgram program = new HdrProgram(semiPlanar, C.COLOR_TRANSFER_ST2084, 1000);
+      double[] rgb = program.render(BLACK + 600, 200, 200);
+      assertEquals(0, rgb[0], TOLERANCE);
+      assertEquals(0, rgb[2], TOLERANCE);
+      assertTrue(rgb[1] > 0.5);
+    }
+  }
+
+  private static int toLimitedCode(double signal) {
+    return (int) Math.round(BLACK + signal * 876);
+  }
+
+  private static void assertNeutral(double[] rgb) {
+    // The rows of the published gamut conversion sum to 1 within 0.0001.
+    assertEquals(rgb[0], rgb[1], 0.5 / 255);
+    assertEquals(rgb[0], rgb[2], 0.5 / 255);
+  }
+
+  private static void assertPixel(double[] expected, double[] actual) {
+    for (int i = 0; i < 3; i++) {
+      assertEquals("Channel " + i, expected[i], actual[i], TOLERANCE);
+    }
+  }
+
+  /**
+   * Returns the gamma encoded BT.709 pixel for 10 bit limited range BT.2020 code values.
+   */
+  private static double[] reference(@C.ColorTransfer int colorTransfer, int peakLuminance,
+      int y, int u, int v) {
+    double kr = 0.2627;
+    double kb = 0.0593;
+    double kg = 1 - kr - kb;
+    double luma = (y - 64) / 876.0;
+    double cb = (u - 512) / 896.0;
+    double cr = (v - 512) / 896.0;
+    double[] rgb = {
+        luma + 2 * (1 - kr) * cr,
+        luma - 2 * kb * (1 - kb) / kg * cb - 2 * kr * (1 - kr) / kg * cr,
+        luma + 2 * (1 - kb) * cb,
+    };
+    double[] linear = new double[3];
+    for (int i = 0; i < 3; i++) {
+      double signal = Math.min(Math.max(rgb[i], 0), 1);
+      double luminance = colorTransfer == C.COLOR_TRANSFER_HLG
+          ? Reference.hlgEotf(signal) : Reference.pqEotf(signal);
+      linear[i] = Math.min(Reference.eetf(luminance, peakLuminance) / 203, 1);
+    }
+    double[][] bt2020ToBt709 = {
+        {1.6605, -0.5876, -0.0728},
+        {-0.1246, 1.1329, -0.0083},
+        {-0.0182, -0.1006, 1.1187},
+    };
+    double[] output = new double[3];
+    for (int i = 0; i < 3; i++) {
+      double value = bt2020ToBt709[i][0] * linear[0] + bt2020ToBt709[i][1] * linear[1]
+          + bt2020ToBt709[i][2] * linear[2];
+      output[i] = Math.pow(Math.min(Math.max(value, 0), 1), 1 / 2.2);
+    }
+    return output;
+  }
+
+  private static final class Reference {
+
+    private static final double M1 = 0.1593017578125;
+    private static final double M2 = 78.84375;
+    private static final double C1 = 0.8359375;
+    private static final double C2 = 18.8515625;
+    private static final double C3 = 18.6875;
+
+    /** SMPTE ST 2084 EOTF, in cd/m2. */
+    private static double pqEotf(double signal) {
+      double p = Math.pow(signal, 1 / M2);
+      return 10000 * Math.pow(Math.max(p - C1, 0) / (C2 - C3 * p), 1 / M1);
+    }
+
+    private static double pqInverseEotf(double luminance) {
+      double y = Math.pow(luminance / 10000, M1);
+      return Math.pow((C1 + C2 * y) / (1 + C3 * y), M2);
+    }
+
+    /** ARIB STD-B67 inverse OETF followed by the BT.2100 OOTF of a 1000 cd/m2 display. */
+    private static double hlgEotf(double signal) {
+      double a = 0.17883277;
+      double b = 1 - 4 * a;
+      double c = 0.5 - a * Math.log(4 * a);
+      double scene = signal <= 0.5
+          ? signal * signal / 3 : (Math.exp((signal - c) / a) + b) / 12;
+      return 1000 * Math.pow(scene, 1.2);
+    }
+
+    /** ITU-R BT.2390 EETF from the given peak down to 203 cd/m2, in cd/m2. */
+    private static double eetf(double luminance, double peakLuminance) {
+      double sourcePeak = pqInverseEotf(peakLuminance);
+      double e1 = pqInverseEotf(Math.min(luminance, peakLuminance)) / sourcePeak;
+      double maxLuminance = pqInverseEotf(203) / sourcePeak;
+      double kneeStart = 1.5 * maxLuminance - 0.5;
+      double e2 = e1;
+      if (e1 >= kneeStart) {
+        double t = (e1 - kneeStart) / (1 - kneeStart);
+        e2 = (2 * t * t * t - 3 * t * t + 1) * kneeStart
+            + (t * t * t - 2 * t * t + t) * (1 - kneeStart)
+            + (-2 * t * t * t + 3 * t * t) * maxLuminance;
+      }
+      return pqEotf(e2 * sourcePeak);
+    }
+
+  }
+
+
+  /**
+   * The I010 or P010 HDR program of {@link FrameRenderer}, with the inputs the renderer gives it
+   * for 10 bit limited range BT.2020 frames.
+   */
+  private static final class HdrProgram {
+
+    private final boolean semiPlanar;
+    private final float[] colorMatrix;
+    private final float[] offset;
+    private final byte[] lut;
+
+    private HdrProgram(boolean semiPlanar, @C.ColorTransfer int colorTransfer,
+        int peakLuminance) {
+      this.semiPlanar = semiPlanar;
+      colorMatrix = new float[9];
+      offset = new float[3];
+      ColorConversion.getMatrix(C.COLOR_SPACE_BT2020, C.COLOR_RANGE_LIMITED, 10, colorMatrix);
+      ColorConversion.getOffset(C.COLOR_RANGE_LIMITED, 10, offset);
+      ByteBuffer buffer =
+          ByteBuffer.allocate(HdrToneMapping.LUT_SIZE * HdrToneMapping.BYTES_PER_ENTRY);
+      HdrToneMapping.fillLut(colorTransfer, peakLuminance, buffer);
+      lut = buffer.array();
+    }
+
+    /** Renders a fragment in the middle of a frame of the given code values. */
+    private double[] render(int y, int u, int v) {
+      FragmentShader shader = new FragmentShader(FrameRenderer.getHdrFragmentShader(semiPlanar));
+      shader.setUniform("interp_tc", new float[] {0.5f, 0.5f});
+      shader.setUniform("mColorConversion", colorMatrix);
+      shader.setUniform("yuvOffset", offset);
+      shader.setSampler("tone_lut", new TableTexture(lut));
+      if (semiPlanar) {
+        // P010 holds the samples in the high bits, and interleaves the chroma into RGBA texels.
+        shader.setSampler("y_tex", new ConstantTexture(luminanceAlpha(y << 6)));
+        shader.setSampler("uv_tex", new ConstantTexture(new float[] {
+            lowByte(u << 6), highByte(u << 6), lowByte(v << 6), highByte(v << 6)}));
+      } else {
+        shader.setSampler("y_tex", new ConstantTexture(luminanceAlpha(y)));
+        shader.setSampler("u_tex", new ConstantTexture(luminanceAlpha(u)));
+        shader.setSampler("v_tex", new ConstantTexture(luminanceAlpha(v)));
+      }
+      float[] fragColor = shader.run();
+      assertEquals("Alpha inside the frame", 1, fragColor[3], 0);
+      return new double[] {fragColor[0], fragColor[1], fragColor[2]};
+    }
+
+    private static float[] luminanceAlpha(int sample) {
+      float luminance = lowByte(sample);
+      return new float[] {luminance, luminance, luminance, highByte(sample)};
+    }
+
+    private static float lowByte(int sample) {
+      return (sample & 0xFF) / 255f;
+    }
+
+    private static float highByte(int sample) {
+      return ((sample >> 8) & 0xFF) / 255f;
+    }
+
+  }
+
+  /** A texture sampled with texture2D. */
+  private interface Texture {
+
+    float[] sample(float s, float t);
+
+  }
+
+  /** A frame plane of a single texel value. */
+  private static final class ConstantTexture implements Texture {
+
+    private final float[] texel;
+
+    private ConstantTexture(float[] texel) {
+      this.texel = texel;
+    }
+
+    @Override
+    public float[] sample(float s, float t) {
+      return texel.clone();
+    }
+
+  }
+
+  /**
+   * The {@link HdrToneMapping} table as a one row luminance-alpha texture, with GL_LINEAR
+   * filtering and GL_CLAMP_TO_EDGE wrapping.
+   */
+  private static final class TableTexture implements Texture {
+
+    private final byte[] lut;
+
+    private TableTexture(byte[] lut) {
+      this.lut = lut;
+    }
+
+    @Override
+    public float[] sample(float s, float t) {
+      float position = s * HdrToneMapping.LUT_SIZE - 0.5f;
+      int index = (int) Math.floor(position);
+      float fraction = position - index;
+      float[] texel = new float[4];
+      for (int i = 0; i < 4; i++) {
+        texel[i] = texel(index, i) * (1 - fraction) + texel(index + 1, i) * fraction;
+      }
+      return texel;
+    }
+
+    private float texel(int index, int channel) {
+      index = Math.min(Math.max(index, 0), HdrToneMapping.LUT_SIZE - 1);
+      int value = channel == 3 ? lut[index * 2 + 1] : lut[index * 2];
+      return (value & 0xFF) / 255f;
+    }
+
+  }
+
+  /**
+   * Runs a fragment shader for one fragment, in single precision. Covers the subset of GLSL ES 1.0
+   * the {@link FrameRenderer} shaders are written in: float, vector and mat3 values, declarations
+   * and assignments, constructors, swizzles, arithmetic, functions with a single return, and the
+   * clamp, pow, step and texture2D built-ins. Anything else fails the test.
+   */
+  private static final class FragmentShader {
+
+    private static final Pattern TOKEN = Pattern.compile(
+        "\\s*(?:([A-Za-z_][A-Za-z0-9_]*)|((?:\\d+\\.?\\d*|\\.\\d+)(?:[eE][-+]?\\d+)?)|(\\S))");
+    private static final Map<String, Integer> TYPE_SIZES = new HashMap<>();
+
+    static {
+      TYPE_SIZES.put("float", 1);
+      TYPE_SIZES.put("vec2", 2);
+      TYPE_SIZES.put("vec3", 3);
+      TYPE_SIZES.put("vec4", 4);
+      TYPE_SIZES.put("mat3", 9);
+    }
+
+    private final List<String> tokens = new ArrayList<>();
+    private final Map<String, float[]> globals = new HashMap<>();
+    private final Map<String, Texture> samplers = new HashMap<>();
+    private final Map<String, Function> functions = new HashMap<>();
+
+    private int position;
+    private Map<String, float[]> locals;
+
+    private FragmentShader(String source) {
+      Matcher matcher = TOKEN.matcher(source);
+      int end = 0;
+      while (matcher.lookingAt()) {
+        tokens.add(matcher.group(1) != null ? matcher.group(1)
+            : matcher.group(2) != null ? matcher.group(2) : matcher.group(3));
+        end = matcher.end();
+        matcher.region(end, source.length());
+      }
+      if (!source.substring(end).trim().isEmpty()) {
+        throw new IllegalArgumentException("Unexpected input: " + source.substring(end));
+      }
+    }
+
+    private void setUniform(String name, float[] value) {
+      globals.put(name, value.clone());
+    }
+
+    private void setSampler(String name, Texture texture) {
+      samplers.put(name, texture);
+    }
+
+    /** Runs main() and returns gl_FragColor. */
+    private float[] run() {
+      position = 0;
+      while (position < tokens.size()) {
+        if (accept("precision")) {
+          while (!accept(";")) {
+            position++;
+          }
+        } else if (accept("varying") || accept("uniform")) {
+          String type = next();
+          String name = next();
+          expect(";");
+          if (type.equals("sampler2D")) {
+            check(samplers.containsKey(name), "No texture for " + name);
+          } else {
+            check(globals.containsKey(name), "No value for " + name);
+            checkSize(type, globals.get(name));
+          }
+        } else {
+          defineFunction();
+        }
+      }
+      globals.put("gl_FragColor", new float[4]);
+      call("main", new ArrayList<float[]>());
+      return globals.get("gl_FragColor");
+    }
+
+    private void defineFunction() {
+      Function function = new Function(next());
+      String name = next();
+      expect("(");
+      while (!accept(")")) {
+        function.parameterTypes.add(next());
+        function.parameterNames.add(next());
+        accept(",");
+      }
+      expect("{");
+      function.bodyStart = position;
+      for (int depth = 1; depth > 0; position++) {
+        depth += tokens.get(position).equals("{") ? 1 : tokens.get(position).equals("}") ? -1 : 0;
+      }
+      functions.put(name, function);
+    }
+
+    private float[] call(String name, List<float[]> arguments) {
+      Function function = functions.get(name);
+      check(function != null, "Unknown function " + name);
+      check(arguments.size() == function.parameterNames.size(), "Arguments of " + name);
+      Map<String, float[]> callerLocals = locals;
+      int callerPosition = position;
+      locals = new HashMap<>();
+      for (int i = 0; i < arguments.size(); i++) {
+        checkSize(function.parameterTypes.get(i), arguments.get(i));
+        locals.put(function.parameterNames.get(i), arguments.get(i));
+      }
+      position = function.bodyStart;
+      float[] result = null;
+      while (!accept("}")) {
+        if (accept("return")) {
+          result = expression();
+          expect(";");
+          expect("}");
+          break;
+        }
+        statement();
+      }
+      if (function.returnType.equals("void")) {
+        check(result == null, name + " returns a value");
+      } else {
+        check(result != null, name + " returns nothing");
+        checkSize(function.returnType, result);
+      }
+      locals = callerLocals;
+      position = callerPosition;
+      return result;
+    }
+
+    private void statement() {
+      accept("const");
+      if (TYPE_SIZES.containsKey(peek())) {
+        String type = next();
+        String name = next();
+        float[] value = new float[TYPE_SIZES.get(type)];
+        if (accept("=")) {
+          value = expression();
+          checkSize(type, value);
+        }
+        expect(";");
+        locals.put(name, value);
+      } else {
+        String name = next();
+        expect("=");
+        float[] value = expression();
+        expect(";");
+        Map<String, float[]> scope = locals.containsKey(name) ? locals : globals;
+        check(scope.containsKey(name), "Unknown variable " + name);
+        check(scope.get(name).length == value.length, "Assignment to " + name);
+        scope.put(name, value);
+      }
+    }
+
+    private float[] expression() {
+      float[] value = term();
+      while (peek().equals("+") || peek().equals("-")) {
+        boolean add = next().equals("+");
+        float[] right = term();
+        value = combine(value, right, add ? '+' : '-');
+      }
+      return value;
+    }
+
+    private float[] term() {
+      float[] value = unary();
+      while (peek().equals("*") || peek().equals("/")) {
+        boolean multiply = next().equals("*");
+        float[] right = unary();
+        if (multiply && value.length == 9 && right.length == 3) {
+          value = multiply(value, right);
+        } else {
+          value = combine(value, right, multiply ? '*' : '/');
+        }
+      }
+      return value;
+    }
+
+    private float[] unary() {
+      if (accept("-")) {
+        return combine(new float[] {0}, unary(), '-');
+      }
+      accept("+");
+      float[] value = primary();
+      while (accept(".")) {
+        value = swizzle(value, next());
+      }
+      return value;
+    }
+
+    private float[] primary() {
+      String token = next();
+      if (token.equals("(")) {
+        float[] value = expression();
+        expect(")");
+        return value;
+      }
+      if (Character.isDigit(token.charAt(0)) || token.charAt(0) == '.') {
+        return new float[] {Float.parseFloat(token)};
+      }
+      if (!accept("(")) {
+        float[] value = locals != null && locals.containsKey(token)
+            ? locals.get(token) : globals.get(token);
+        check(value != null, "Unknown variable " + token);
+        return value.clone();
+      }
+      if (token.equals("texture2D")) {
+        Texture texture = samplers.get(next());
+        expect(",");
+        float[] coordinate = expression();
+        expect(")");
+        check(texture != null && coordinate.length == 2, "texture2D arguments");
+        return texture.sample(coordinate[0], coordinate[1]);
+      }
+      List<float[]> arguments = new ArrayList<>();
+      while (!accept(")")) {
+        arguments.add(expression());
+        accept(",");
+      }
+      if (TYPE_SIZES.containsKey(token)) {
+        return construct(TYPE_SIZES.get(token), arguments);
+      }
+      switch (token) {
+        case "clamp":
+          return combine(combine(arguments.get(0), arguments.get(1), 'M'), arguments.get(2), 'm');
+        case "pow":
+          return combine(arguments.get(0), arguments.get(1), '^');
+        case "step":
+          return combine(arguments.get(0), arguments.get(1), 's');
+        default:
+          return call(token, arguments);
+      }
+    }
+
+    private static float[] construct(int size, List<float[]> arguments) {
+      if (size != 9 && arguments.size() == 1 && arguments.get(0).length == 1) {
+        float[] value = new float[size];
+        Arrays.fill(value, arguments.get(0)[0]);
+        return value;
+      }
+      float[] value = new float[size];
+      int count = 0;
+      for (float[] argument : arguments) {
+        check(count + argument.length <= size, "Too many constructor components");
+        System.arraycopy(argument, 0, value, count, argument.length);
+        count += argument.length;
+      }
+      check(count == size, "Too few constructor components");
+      return value;
+    }
+
+    /**
+     * Applies an operator per component, widening a scalar operand to the other's size. Besides
+     * arithmetic, '^' is pow, 'M' and 'm' are max and min, and 's' is step.
+     */
+    private static float[] combine(float[] left, float[] right, char operator) {
+      check(left.length == right.length || left.length == 1 || right.length == 1,
+          "Operands of " + operator);
+      float[] result = new float[Math.max(left.length, right.length)];
+      for (int i = 0; i < result.length; i++) {
+        float a = left[left.length == 1 ? 0 : i];
+        float b = right[right.length == 1 ? 0 : i];
+        switch (operator) {
+          case '+':
+            result[i] = a + b;
+            break;
+          case '-':
+            result[i] = a - b;
+            break;
+          case '*':
+            result[i] = a * b;
+            break;
+          case '/':
+            result[i] = a / b;
+            break;
+          case '^':
+            result[i] = (float) Math.pow(a, b);
+            break;
+          case 'M':
+            result[i] = Math.max(a, b);
+            break;
+          case 'm':
+            result[i] = Math.min(a, b);
+            break;
+          case 's':
+            result[i] = b < a ? 0 : 1;
+            break;
+          default:
+            throw new IllegalArgumentException("Operator " + operator);
+        }
+      }
+      return result;
+    }
+
+    /** Multiplies a vec3 by a column-major mat3. */
+    private static float[] multiply(float[] matrix, float[] vector) {
+      float[] result = new float[3];
+      for (int row = 0; row < 3; row++) {
+        result[row] = matrix[row] * vector[0] + matrix[3 + row] * vector[1]
+            + matrix[6 + row] * vector[2];
+      }
+      return result;
+    }
+
+    private static float[] swizzle(float[] value, String components) {
+      check(value.length <= 4, "Swizzle of a matrix");
+      float[] result = new float[components.length()];
+      for (int i = 0; i < components.length(); i++) {
+        char component = components.charAt(i);
+        int index = "xyzw".indexOf(component);
+        if (index < 0) {
+          index = "rgba".indexOf(component);
+        }
+        check(index >= 0 && index < value.length, "Swizzle ." + components);
+        result[i] = value[index];
+      }
+      return result;
+    }
+
+    private static void checkSize(String type, float[] value) {
+      Integer size = TYPE_SIZES.get(type);
+      check(size != null, "Unsupported type " + type);
+      check(size == value.length, "Expected a " + type);
+    }
+
+    private static void check(boolean condition, String message) {
+      if (!condition) {
+        throw new IllegalArgumentException(message);
+      }
+    }
+
+    private String peek() {
+      return position < tokens.size() ? tokens.get(position) : "";
+    }
+
+    private String next() {
+      check(position < tokens.size(), "Unexpected end of shader");
+      return tokens.get(position++);
+    }
+
+    private boolean accept(String token) {
+      if (peek().equals(token)) {
+        position++;
+        return true;
+      }
+      return false;
+    }
+
+    private void expect(String token) {
+      String actual = next();
+      check(actual.equals(token), "Expected " + token + " at " + actual);
+    }
+
+    private static final class Function {
+
+      private final String returnType;
+      private final List<String> parameterTypes = new ArrayList<>();
+      private final List<String> parameterNames = new ArrayList<>();
+      private int bodyStart;
+
+      private Function(String returnType) {
+        this.returnType = returnType;
+      }
+
+    }
+
+  }
+
+}
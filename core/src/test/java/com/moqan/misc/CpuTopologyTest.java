@@ -0,0 +1,135 @@
+package com.moqan.misc;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 用临时目录模拟/sys/devices/system/cpu测试{@link CpuTopology#read(File)}
+ */
+public class CpuTopologyTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testBigLittle() throws IOException {
+        File cpuDir = folder.getRoot();
+        write(cpuDir, "present", "0-7");
+        addCluster(cpuDir, 0, 3, 1800000);
+        addCluster(cpuDir, 4, 7, 2400000);
+
+        CpuTopology topology = CpuTopology.read(cpuDir);
+        assertEquals(8, topology.getCoreCount());
+        assertEquals(2, topology.getClusterCount());
+        assertEquals(0xF0, topology.getPerformanceCoreMask());
+        assertEquals(0x0F, topology.getEfficiencyCoreMask());
+    }
+
+    @Test
+    public void testOfflineCoreUsesRelatedCpus() throws IOException {
+        File cpuDir = folder.getRoot();
+        write(cpuDir, "present", "0-7");
+        addCluster(cpuDir, 0, 3, 1800000);
+        // cpu5-7 offline，没有cpufreq目录，但cpu4的related_cpus包含它们
+        addCore(cpuDir, 4, "4-7", 2400000);
+
+        CpuTopology topology = CpuTopology.read(cpuDir);
+        assertEquals(2, topology.getClusterCount());
+        assertEquals(0xF0, topology.getPerformanceCoreMask());
+        assertEquals(0x0F, topology.getEfficiencyCoreMask());
+    }
+
+    @Test
+    public void testWholeClusterOfflineCountsAsPerformance() throws IOException {
+        File cpuDir = folder.getRoot();
+        write(cpuDir, "present", "0-7");
+        // 大核cluster整个offline，读不到它的频率，只剩一种频率时没有大小核之分
+        addCluster(cpuDir, 0, 3, 1800000);
+
+        CpuTopology topology = CpuTopology.read(cpuDir);
+        assertEquals(8, topology.getCoreCount());
+        assertEquals(1, topology.getClusterCount());
+        assertEquals(8, topology.getPerformanceCoreCount());
+        assertEquals(0, topology.getEfficiencyCoreCount());
+    }
+
+    @Test
+    public void testUnreadableCoreCountsAsPerformance() throws IOException {
+        File cpuDir = folder.getRoot();
+        write(cpuDir, "present", "0-7");
+        addCluster(cpuDir, 0, 3, 1800000);
+        addCluster(cpuDir, 4, 6, 2400000);
+        // 超大核offline，也不在其它cluster的related_cpus中
+
+        CpuTopology topology = CpuTopology.read(cpuDir);
+        assertEquals(2, topology.getClusterCount());
+        assertEquals(0xF0, topology.getPerformanceCoreMask());
+        assertEquals(0x0F, topology.getEfficiencyCoreMask());
+    }
+
+    @Test
+    public void testSingleCluster() throws IOException {
+        File cpuDir = folder.getRoot();
+        write(cpuDir, "present", "0-3");
+        addCluster(cpuDir, 0, 3, 2000000);
+
+        CpuTopology topology = CpuTopology.read(cpuDir);
+        assertEquals(1, topology.getClusterCount());
+        assertEquals(0x0F, topology.getPerformanceCoreMask());
+        assertEquals(0, topology.getEfficiencyCoreMask());
+    }
+
+    @Test
+    public void testListsCoreDirectoriesWithoutPresent() throws IOException {
+        File cpuDir = folder.getRoot();
+        addCluster(cpuDir, 0, 1, 1800000);
+        addCluster(cpuDir, 2, 3, 2400000);
+        new File(cpuDir, "cpufreq").mkdirs();
+        new File(cpuDir, "cpuidle").mkdirs();
+
+        CpuTopology topology = CpuTopology.read(cpuDir);
+        assertEquals(4, topology.getCoreCount());
+        assertEquals(0x0C, topology.getPerformanceCoreMask());
+        assertEquals(0x03, topology.getEfficiencyCoreMask());
+    }
+
+    @Test
+    public void testFallsBackToAvailableProcessors() {
+        CpuTopology topology = CpuTopology.read(new File(folder.getRoot(), "missing"));
+        int count = Math.min(Runtime.getRuntime().availableProcessors(), 64);
+        assertEquals(count, topology.getCoreCount());
+        assertEquals(count, topology.getPerformanceCoreCount());
+        assertEquals(0, topology.getEfficiencyCoreCount());
+    }
+
+    private static void addCluster(File cpuDir, int firstCore, int lastCore, long maxFreq)
+            throws IOException {
+        for (int core = firstCore; core <= lastCore; core++) {
+            addCore(cpuDir, core, firstCore + "-" + lastCore, maxFreq);
+        }
+    }
+
+    private static void addCore(File cpuDir, int core, String relatedCpus, long maxFreq)
+            throws IOException {
+        File cpufreqDir = new File(cpuDir, "cpu" + core + "/cpufreq");
+        cpufreqDir.mkdirs();
+        write(cpufreqDir, "cpuinfo_max_freq", String.valueOf(maxFreq));
+        write(cpufreqDir, "related_cpus", relatedCpus);
+    }
+
+    private static void write(File dir, String name, String content) throws IOException {
+        FileWriter writer = new FileWriter(new File(dir, name));
+        try {
+            writer.write(content + "\n");
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,447 @@
+package com.moqan.mqplayer.egl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGL11;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stress test for the locking of {@link GLThread}, run against a fake {@link IEglHelper} that
+ * checks the order of the EGL calls. Also checks how often the threads are woken and how long a
+ * render request takes to be drawn.
+ */
+public class GLThreadTest {
+
+    private static final long TIMEOUT_MS = 10000;
+    private static final int PLAYER_COUNT = 4;
+    private static final int REQUESTS_PER_PLAYER = 2000;
+    private static final int RESIZES_PER_PLAYER = 20;
+    // Generous, so that only a request left waiting for a later wake-up fails, not a slow machine.
+    private static final long MAX_REQUEST_TO_DRAW_US = 1000000;
+
+    private final AtomicReference<String> failure = new AtomicReference<>();
+    private FakeEglHelper eglHelper;
+    private FakeRenderer renderer;
+    private GLThread glThread;
+
+    @Before
+    public void setUp() {
+        eglHelper = new FakeEglHelper();
+        renderer = new FakeRenderer(eglHelper);
+        glThread = createGLThread(eglHelper, renderer);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (glThread.isAlive()) {
+            glThread.requestExitAndWait();
+            glThread.join(TIMEOUT_MS);
+        }
+    }
+
+    @Test
+    public void testRendersOnRequest() throws InterruptedException {
+        startWithSurface();
+        int drawCount = renderer.drawCount.get();
+        glThread.requestRender();
+        assertTrue(renderer.awaitDrawCount(drawCount + 1));
+        assertNull(failure.get());
+    }
+
+    @Test
+    public void testNewSurfaceIsReportedToRenderer() throws InterruptedException {
+        startWithSurface();
+        int surfaceChangedCount = renderer.surfaceChangedCount.get();
+        int drawCount = renderer.drawCount.get();
+        glThread.setSurface(new Object());
+        glThread.requestRender();
+        assertTrue(renderer.awaitDrawCount(drawCount + 1));
+        // Same size, but the renderer has to know that the new surface must be drawn in full.
+        assertEquals(surfaceChangedCount + 1, renderer.surfaceChangedCount.get());
+        assertNull(failure.get());
+    }
+
+    @Test
+    public void testExitReleasesSurfaceAndContext() throws InterruptedException {
+        startWithSurface();
+        glThread.requestExitAndWait();
+        glThread.join(TIMEOUT_MS);
+        assertFalse(glThread.isAlive());
+        assertFalse(eglHelper.hasSurface);
+        assertFalse(eglHelper.hasContext);
+        assertEquals(eglHelper.finishCount.get(), renderer.contextLostCount.get());
+        assertNull(failure.get());
+    }
+
+    @Test
+    public void testStressPreservingContext() throws InterruptedException {
+        stress(true);
+    }
+
+    @Test
+    public void testStressReleasingContextOnPause() throws InterruptedException {
+        stress(false);
+    }
+
+    /**
+     * Drives several GL threads at once, as in a feed with several players, and checks that a
+     * thread is only woken by requests made to it.
+     */
+    @Test
+    public void testWakeUpsAndRequestToDrawLatency() throws InterruptedException {
+        final GLThread[] glThreads = new GLThread[PLAYER_COUNT];
+        final FakeEglHelper[] eglHelpers = new FakeEglHelper[PLAYER_COUNT];
+        final FakeRenderer[] renderers = new FakeRenderer[PLAYER_COUNT];
+        int[] initialWorkWakeCounts = new int[PLAYER_COUNT];
+        int[] initialStateChangeWakeCounts = new int[PLAYER_COUNT];
+        int[] initialDrawCounts = new int[PLAYER_COUNT];
+        for (int i = 0; i < PLAYER_COUNT; i++) {
+            eglHelpers[i] = new FakeEglHelper();
+            renderers[i] = new FakeRenderer(eglHelpers[i]);
+            glThreads[i] = createGLThread(eglHelpers[i], renderers[i]);
+            startWithSurface(glThreads[i], renderers[i]);
+            initialWorkWakeCounts[i] = glThreads[i].getWorkWakeCount();
+            initialStateChangeWakeCounts[i] = glThreads[i].getStateChangeWakeCount();
+            initialDrawCounts[i] = renderers[i].drawCount.get();
+        }
+
+        try {
+            // One requester per player, pausing between requests so that the GL thread is usually
+            // idle and each request measures a wake-up.
+            final CountDownLatch requestersDone = new CountDownLatch(PLAYER_COUNT);
+            for (int i = 0; i < PLAYER_COUNT; i++) {
+                final int playerIndex = i;
+                new Thread("Requester " + i) {
+                    @Override
+                    public void run() {
+                        for (int j = 0; j < REQUESTS_PER_PLAYER; j++) {
+                            renderers[playerIndex].markRequested();
+                            glThreads[playerIndex].requestRender();
+                            LockSupport.parkNanos(20000);
+                        }
+                        requestersDone.countDown();
+                    }
+                }.start();
+            }
+            // Main thread resizes wait for the GL thread, while the requests for all players keep
+            // coming in.
+            for (int j = 0; j < RESIZES_PER_PLAYER; j++) {
+                for (int i = 0; i < PLAYER_COUNT; i++) {
+                    glThreads[i].onWindowResize(100 + j, 100 + j);
+                }
+            }
+            assertTrue(requestersDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            for (int i = 0; i < PLAYER_COUNT; i++) {
+                // The last request is drawn.
+                assertTrue(renderers[i].awaitRequestsDrawn());
+            }
+
+            for (int i = 0; i < PLAYER_COUNT; i++) {
+                int workWakeCount = glThreads[i].getWorkWakeCount() - initialWorkWakeCounts[i];
+                int stateChangeWakeCount =
+                        glThreads[i].getStateChangeWakeCount() - initialStateChangeWakeCounts[i];
+                int drawCount = renderers[i].drawCount.get() - initialDrawCounts[i];
+                long[] latenciesUs = renderers[i].getRequestToDrawLatenciesUs();
+                // Every wake-up of a GL thread comes from a request or a resize made to that
+                // thread, never from those made to the other players, and leads to a draw.
+                assertTrue(workWakeCount > 0);
+                assertTrue("GL thread " + i + " woken " + workWakeCount + " times for " + drawCount
+                        + " draws", workWakeCount <= drawCount);
+                assertTrue(drawCount <= REQUESTS_PER_PLAYER + RESIZES_PER_PLAYER);
+                // Each resize waits for its draw at least once, and the requests don't wake the
+                // caller.
+                assertTrue("Caller woken " + stateChangeWakeCount + " times for "
+                        + RESIZES_PER_PLAYER + " resizes",
+                        stateChangeWakeCount >= RESIZES_PER_PLAYER
+                                && stateChangeWakeCount <= drawCount);
+                // Each draw accounts for the requests made since the previous one.
+                assertTrue(latenciesUs.length > 0 && latenciesUs.length <= drawCount);
+                // A lost wake-up would leave a request waiting for the next one, or for the
+                // timeout.
+                long maxLatencyUs = percentile(latenciesUs, 100);
+                assertTrue("GL thread " + i + " drew a request after " + maxLatencyUs + " us",
+                        maxLatencyUs < MAX_REQUEST_TO_DRAW_US);
+                assertNull(failure.get());
+            }
+        } finally {
+            for (GLThread thread : glThreads) {
+                thread.requestExitAndWait();
+                thread.join(TIMEOUT_MS);
+            }
+        }
+    }
+
+    private void stress(boolean preserveEglContextOnPause) throws InterruptedException {
+        glThread.setPreserveEGLContextOnPause(preserveEglContextOnPause);
+        // Every 16th swap loses the context, so that it is recreated while requests arrive.
+        eglHelper.contextLossInterval = 16;
+        startWithSurface();
+
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicInteger queuedEventCount = new AtomicInteger();
+        final AtomicInteger eventCount = new AtomicInteger();
+        final CountDownLatch requestersDone = new CountDownLatch(3);
+        for (int i = 0; i < 3; i++) {
+            final int requesterIndex = i;
+            new Thread("Requester " + i) {
+                @Override
+                public void run() {
+                    Random random = new Random(requesterIndex);
+                    // Events run before surface changes are handled, so a requester keeps at most
+                    // one in flight rather than starving the main thread calls.
+                    final AtomicBoolean eventPending = new AtomicBoolean();
+                    while (!stop.get()) {
+                        switch (random.nextInt(3)) {
+                            case 0:
+                                glThread.requestRender();
+                                break;
+                            case 1:
+                                glThread.requestRender(System.nanoTime() + 1000000);
+                                break;
+                            default:
+                                if (eventPending.getAndSet(true)) {
+                                    break;
+                                }
+                                queuedEventCount.incrementAndGet();
+                                glThread.queueEvent(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        check(eglHelper.hasContext, "Event without context");
+                                        eventCount.incrementAndGet();
+                                        eventPending.set(false);
+                                    }
+                                });
+                                break;
+                        }
+                    }
+                    requestersDone.countDown();
+                }
+            }.start();
+        }
+
+        // The calls a view makes on the main thread, each of which waits for the GL thread.
+        Random random = new Random(0);
+        for (int i = 0; i < 300; i++) {
+            switch (random.nextInt(3)) {
+                case 0:
+                    glThread.onPause();
+                    glThread.onResume();
+                    break;
+                case 1:
+                    glThread.surfaceDestroyed();
+                    glThread.surfaceCreated();
+                    break;
+                default:
+                    glThread.onWindowResize(100 + random.nextInt(100), 100 + random.nextInt(100));
+                    break;
+            }
+        }
+        stop.set(true);
+        assertTrue(requestersDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        // No request may be lost: a render requested now must still be drawn.
+        eglHelper.contextLossInterval = 0;
+        int drawCount = renderer.drawCount.get();
+        glThread.requestRender();
+        assertTrue(renderer.awaitDrawCount(drawCount + 1));
+
+        glThread.requestExitAndWait();
+        glThread.join(TIMEOUT_MS);
+        assertFalse(glThread.isAlive());
+        assertNull(failure.get());
+        assertFalse(eglHelper.hasSurface);
+        assertFalse(eglHelper.hasContext);
+        assertTrue(eventCount.get() > 0);
+        assertTrue(eventCount.get() <= queuedEventCount.get());
+        // The context was lost and recreated along the way.
+        assertTrue(eglHelper.startCount.get() > 1);
+        assertEquals(eglHelper.startCount.get(), eglHelper.finishCount.get());
+        assertEquals(eglHelper.finishCount.get(), renderer.contextLostCount.get());
+    }
+
+    private void startWithSurface() throws InterruptedException {
+        startWithSurface(glThread, renderer);
+    }
+
+    private static GLThread createGLThread(FakeEglHelper eglHelper, FakeRenderer renderer) {
+        GLThread glThread = new GLThread.Builder()
+                .setRenderer(renderer)
+                .setSurface(new Object())
+                .createGLThread();
+        glThread.setEglHelper(eglHelper);
+        return glThread;
+    }
+
+    private static void startWithSurface(GLThread glThread, FakeRenderer renderer)
+            throws InterruptedException {
+        glThread.start();
+        glThread.surfaceCreated();
+        glThread.onWindowResize(100, 100);
+        assertTrue(renderer.awaitDrawCount(1));
+    }
+
+    private static long percentile(long[] sortedValues, int percent) {
+        if (sortedValues.length == 0) {
+            return 0;
+        }
+        return sortedValues[Math.min(sortedValues.length - 1, sortedValues.length * percent / 100)];
+    }
+
+    private final class FakeEglHelper implements IEglHelper {
+
+        final AtomicInteger startCount = new AtomicInteger();
+        final AtomicInteger finishCount = new AtomicInteger();
+        volatile boolean hasContext;
+        volatile boolean hasSurface;
+        volatile int contextLossInterval;
+        private int swapCount;
+
+        @Override
+        public EglContextWrapper start(EglContextWrapper eglContext) {
+            check(!hasContext, "Context started twice");
+            hasContext = true;
+            startCount.incrementAndGet();
+            return eglContext;
+        }
+
+        @Override
+        public boolean createSurface(Object surface) {
+            check(hasContext, "Surface created without context");
+            // Like EglHelper, which destroys the previous surface first.
+            hasSurface = true;
+            return true;
+        }
+
+        @Override
+        public int swap() {
+            check(hasContext && hasSurface, "Swap without context or surface");
+            swapCount++;
+            int interval = contextLossInterval;
+            return interval != 0 && swapCount % interval == 0
+                    ? EGL11.EGL_CONTEXT_LOST : EGL10.EGL_SUCCESS;
+        }
+
+        @Override
+        public void destroySurface() {
+            hasSurface = false;
+        }
+
+        @Override
+        public void finish() {
+            check(hasContext, "Context finished twice");
+            check(!hasSurface, "Context finished before its surface");
+            hasContext = false;
+            finishCount.incrementAndGet();
+        }
+
+        @Override
+        public void setPresentationTime(long nsecs) {
+            check(hasSurface, "Presentation time without surface");
+        }
+    }
+
+    private final class FakeRenderer implements GLViewRenderer {
+
+        final AtomicInteger drawCount = new AtomicInteger();
+        final AtomicInteger contextLostCount = new AtomicInteger();
+        final AtomicInteger surfaceChangedCount = new AtomicInteger();
+        private final FakeEglHelper eglHelper;
+        // The time of the oldest render request not drawn yet, or 0.
+        private final AtomicLong pendingRequestNs = new AtomicLong();
+        // Written on the GL thread only.
+        private final long[] latenciesUs = new long[REQUESTS_PER_PLAYER];
+        private int latencyCount;
+
+        FakeRenderer(FakeEglHelper eglHelper) {
+            this.eglHelper = eglHelper;
+        }
+
+        void markRequested() {
+            pendingRequestNs.compareAndSet(0, System.nanoTime());
+        }
+
+        @Override
+        public void onSurfaceCreated() {
+            check(eglHelper.hasContext, "onSurfaceCreated without context");
+        }
+
+        @Override
+        public void onSurfaceChanged(int width, int height) {
+            check(width > 0 && height > 0, "onSurfaceChanged with an empty size");
+            surfaceChangedCount.incrementAndGet();
+        }
+
+        @Override
+        public boolean onDrawFrame() {
+            check(eglHelper.hasContext && eglHelper.hasSurface, "Draw without context or surface");
+            long requestNs = pendingRequestNs.getAndSet(0);
+            synchronized (this) {
+                if (requestNs != 0 && latencyCount < latenciesUs.length) {
+                    latenciesUs[latencyCount++] = (System.nanoTime() - requestNs) / 1000;
+                }
+                drawCount.incrementAndGet();
+                notifyAll();
+            }
+            return true;
+        }
+
+        @Override
+        public void onContextLost() {
+            check(eglHelper.hasContext, "onContextLost without context");
+            contextLostCount.incrementAndGet();
+        }
+
+        synchronized boolean awaitRequestsDrawn() throws InterruptedException {
+            long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+            while (pendingRequestNs.get() != 0) {
+                long remainingMs = deadlineMs - System.currentTimeMillis();
+                if (remainingMs <= 0) {
+                    return false;
+                }
+                wait(remainingMs);
+            }
+            return true;
+        }
+
+        synchronized long[] getRequestToDrawLatenciesUs() {
+            long[] sortedLatenciesUs = Arrays.copyOf(latenciesUs, latencyCount);
+            Arrays.sort(sortedLatenciesUs);
+            return sortedLatenciesUs;
+        }
+
+        synchronized boolean awaitDrawCount(int count) throws InterruptedException {
+            long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+            while (drawCount.get() < count) {
+                long remainingMs = deadlineMs - System.currentTimeMillis();
+                if (remainingMs <= 0) {
+                    return false;
+                }
+                wait(remainingMs);
+            }
+            return true;
+        }
+    }
+
+    private void check(boolean condition, String message) {
+        if (!condition) {
+            failure.compareAndSet(null, message);
+        }
+    }
+}